@@ -37,16 +37,13 @@ append_classpath $serverWebAppDir
 
 
 
-eartifactFileDir="$workingDir/eartifactFiles"
-mkdir $eartifactFileDir
-
-java edu.umass.ciir.crowdlogger.server.EEArtifactDecryptor $privateKey $eartifactFileDir $inputFiles &> /dev/null
-
-jobNames=`ls -1 $eartifactFileDir/ | cut -d'-' -f1 | sort -u`
-
-for j in $jobNames; do
-    echo "creating $workingDir/$j.clog"
-    java -cp $CLASSPATH edu.umass.ciir.crowdlogger.server.EArtifactDecryptor \
-        $workingDir/$j.clog \
-        $eartifactFileDir/$j* &> /dev/null 
-done
+## Decrypts into $workingDir/eartifactFiles, then into one .clog per job,
+## checkpointing as it goes; run again with the same arguments to resume.
+mkdir -p $workingDir
+logFile=$workingDir/slog2clog.log
+echo "creating .clog files in $workingDir (logging to $logFile)"
+if ! java -cp $CLASSPATH edu.umass.ciir.crowdlogger.server.DecryptionPipeline \
+    $privateKey $workingDir $inputFiles >> $logFile 2>&1; then
+    echo "decryption failed; see $logFile"
+    exit 1
+fi
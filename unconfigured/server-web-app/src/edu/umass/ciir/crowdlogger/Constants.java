@@ -27,6 +27,22 @@ public class Constants
      */
     public final static long MAX_EARTIFACTS_PER_FILE = 
         %%MAX_EARTIFACTS_PER_FILE%%;
+
+    /**
+     * When the server forces the e-artifacts it writes to disk: "none",
+     * "interval" (at most every EARTIFACT_SYNC_INTERVAL milliseconds) or
+     * "commit" (before each deposit is acknowledged).
+     */
+    public final static String EARTIFACT_SYNC_POLICY = 
+        "%%EARTIFACT_SYNC_POLICY%%";
+    public final static long EARTIFACT_SYNC_INTERVAL = 
+        %%EARTIFACT_SYNC_INTERVAL%%;
+
+    /**
+     * The most e-artifacts the server will have waiting to be written 
+     * before deposits wait for room.
+     */
+    public final static int MAX_WAITING_EARTIFACTS = 20000;
     
     /** 
      * The max size of a bundle of e-artifacts. 
@@ -35,13 +51,13 @@ public class Constants
     
     /** 
      * The size at which the e-artifact buffer for an anonymizer will
-     *  be emptied.
+     *  be emptied, without waiting for FLUSH_BUFFER_DELAY.
      */
     public final static int FULL_BUFFER_SIZE = 2000;
     
     /** 
-     * The number of milliseconds after which an anonymizer's e-artifact
-     * buffer will be emptied.
+     * The most milliseconds an e-artifact will wait in an anonymizer's
+     * buffer before the buffer is emptied.
      */
     public final static long FLUSH_BUFFER_DELAY = 1 * 1000; // One second.
     
@@ -62,5 +78,95 @@ public class Constants
      * another anonymizer.
      */
     public final static double PROB_OF_SENDING_TO_SERVER = 0.4;
+
+    /**
+     * The maximum number of pooled connections used to forward bundles, in
+     * total and to any one anonymizer or server.
+     */
+    public final static int FORWARD_MAX_CONNECTIONS = 
+        %%FORWARD_MAX_CONNECTIONS%%;
+    public final static int FORWARD_MAX_CONNECTIONS_PER_ROUTE = 
+        %%FORWARD_MAX_CONNECTIONS_PER_ROUTE%%;
+    
+    /**
+     * How long (in milliseconds) to wait to connect to and then hear back
+     * from an anonymizer or the server when forwarding a bundle.
+     */
+    public final static int FORWARD_CONNECT_TIMEOUT = 
+        %%FORWARD_CONNECT_TIMEOUT%%;
+    public final static int FORWARD_SOCKET_TIMEOUT = 
+        %%FORWARD_SOCKET_TIMEOUT%%;
+    
+    /**
+     * How long (in milliseconds) an idle forwarding connection is kept open
+     * for reuse, unless the other end asks for less.
+     */
+    public final static long FORWARD_KEEP_ALIVE = %%FORWARD_KEEP_ALIVE%%;
+
+    /**
+     * The number of threads that send bundles on to other anonymizers and
+     * the server, and how many bundles may wait for one of them.
+     */
+    public final static int DISPATCH_THREADS = 8;
+    public final static int DISPATCH_QUEUE_SIZE = 1000;
+    
+    /**
+     * The most bundles that will be in flight to any one anonymizer or the
+     * server at a time.
+     */
+    public final static int MAX_IN_FLIGHT_PER_DESTINATION = 
+        FORWARD_MAX_CONNECTIONS_PER_ROUTE;
+    
+    /**
+     * How many times a bundle is sent before it is put back in the buffer,
+     * and the delays (in milliseconds) between attempts. The delay doubles
+     * after each attempt, up to the max, and is randomly jittered.
+     */
+    public final static int MAX_SEND_ATTEMPTS = 4;
+    public final static long RETRY_BASE_DELAY = 250;
+    public final static long RETRY_MAX_DELAY = 10 * 1000;
+
+    /**
+     * How many e-artifacts, and how many bytes of them, an anonymizer will
+     * hold before it turns deposits away; these are the ones that have been
+     * accepted but not yet delivered to the next hop.
+     */
+    public final static long MAX_HELD_EARTIFACTS = 100 * FULL_BUFFER_SIZE;
+    public final static long MAX_HELD_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * How many deposits per second, on average and at once, an anonymizer
+     * takes from any one client (other anonymizers and the server aren't
+     * limited).
+     */
+    public final static double CLIENT_DEPOSITS_PER_SECOND = 10;
+    public final static int CLIENT_DEPOSIT_BURST = 100;
+
+    /**
+     * How many seconds clients are told to wait before trying again when an
+     * anonymizer is holding too much.
+     */
+    public final static long OVERLOADED_RETRY_AFTER = 30;
+
+    /**
+     * The directory in which an anonymizer spools the e-artifacts it
+     * receives to disk before acknowledging them. If this is empty, they are
+     * only buffered in memory.
+     */
+    public final static String SPOOL_DIRECTORY =
+        "%%ANONYMIZER_SPOOL_DIRECTORY%%";
+
+    /**
+     * The size in bytes of each spool segment file.
+     */
+    public final static int SPOOL_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The most spooled e-artifacts that can be out for delivery at once; the
+     * rest wait on disk.
+     */
+    public final static int SPOOL_MAX_UNRELEASED = 10 * FULL_BUFFER_SIZE;
+    
+    
     
 }
@@ -0,0 +1,310 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Gauge;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Decides whether the depot should take a deposit. Two things are checked:
+ *
+ * <ul>
+ *   <li>How much the depot is holding: every e-artifact that has been
+ *       accepted but not yet delivered to the next hop counts, along with its
+ *       size. Once either passes its high-water mark, deposits are turned
+ *       away as {@link #OVERLOADED} until enough has been delivered.</li>
+ *   <li>How fast each client is depositing: each client address gets a token
+ *       bucket, and a deposit without a token is turned away as
+ *       {@link #RATE_LIMITED}. The other anonymizers and the server are
+ *       exempt, since forwarding to each other is how bundles get
+ *       mixed.</li>
+ * </ul>
+ *
+ * The high-water marks are soft: a deposit that is admitted is read in full,
+ * even if it takes the depot past them.
+ */
+public class AdmissionController
+{
+    /** The deposit may go ahead. */
+    public static final int ADMITTED = 0;
+
+    /** The client has made too many deposits too quickly. */
+    public static final int RATE_LIMITED = 1;
+
+    /** The depot is holding as much as it will. */
+    public static final int OVERLOADED = 2;
+
+    // Buckets are swept for idle clients once there are more than this many.
+    private static final int MAX_TRACKED_CLIENTS = 10000;
+
+    /**
+     * A client's token bucket.
+     */
+    private static class TokenBucket
+    {
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket( double tokens, long now )
+        {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+
+        /**
+         * Refills the bucket for the time since the last call and takes a
+         * token if there is one.
+         */
+        synchronized boolean tryTake( double rate, int burst, long now )
+        {
+            refill( rate, burst, now );
+            if( tokens >= 1 )
+            {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return <code>true</code> if the bucket would be full by now, in
+         *      which case forgetting it changes nothing.
+         */
+        synchronized boolean isFull( double rate, int burst, long now )
+        {
+            refill( rate, burst, now );
+            return tokens >= burst;
+        }
+
+        private void refill( double rate, int burst, long now )
+        {
+            // Another thread may have got in with a later time.
+            if( now > lastRefill )
+            {
+                tokens = Math.min( burst,
+                        tokens + (now - lastRefill) / 1e9 * rate );
+                lastRefill = now;
+            }
+        }
+    }
+
+    private final long maxHeldEArtifacts;
+    private final long maxHeldBytes;
+    private final double clientRate;
+    private final int clientBurst;
+    private final long overloadedRetryAfter;
+    private final Set<String> exemptAddresses;
+
+    private final AtomicLong heldEArtifacts = new AtomicLong( 0 );
+    private final AtomicLong heldBytes = new AtomicLong( 0 );
+    private final ConcurrentMap<String, TokenBucket> buckets =
+        new ConcurrentHashMap<String, TokenBucket>();
+
+    private static final Counter admitted =
+        Metrics.counter( "anonymizer.admission.admitted" );
+    private static final Counter admittedEArtifacts =
+        Metrics.counter( "anonymizer.admission.admitted_eartifacts" );
+    private static final Counter admittedBytes =
+        Metrics.counter( "anonymizer.admission.admitted_bytes" );
+    private static final Counter rateLimited =
+        Metrics.counter( "anonymizer.admission.rejected.rate_limited" );
+    private static final Counter overloaded =
+        Metrics.counter( "anonymizer.admission.rejected.overloaded" );
+
+    private static final Logger logger =
+        Logger.getLogger( AdmissionController.class.getName() );
+
+    /**
+     * Creates a controller.
+     *
+     * @param maxHeldEArtifacts The number of undelivered e-artifacts at which
+     *      deposits are turned away.
+     * @param maxHeldBytes The size in bytes of the undelivered e-artifacts at
+     *      which deposits are turned away.
+     * @param clientRate The number of deposits per second each client may
+     *      make, on average.
+     * @param clientBurst The number of deposits a client may make at once.
+     * @param overloadedRetryAfter The number of seconds clients are told to
+     *      wait when the depot is overloaded.
+     * @param exemptAddresses Client addresses that are never rate limited.
+     */
+    public AdmissionController( long maxHeldEArtifacts, long maxHeldBytes,
+            double clientRate, int clientBurst, long overloadedRetryAfter,
+            Set<String> exemptAddresses )
+    {
+        this.maxHeldEArtifacts = maxHeldEArtifacts;
+        this.maxHeldBytes = maxHeldBytes;
+        this.clientRate = clientRate;
+        this.clientBurst = clientBurst;
+        this.overloadedRetryAfter = overloadedRetryAfter;
+        this.exemptAddresses = exemptAddresses;
+
+        Metrics.gauge( "anonymizer.admission.held_eartifacts", new Gauge() {
+            public long getValue()
+            {
+                return heldEArtifacts.get();
+            }
+        });
+        Metrics.gauge( "anonymizer.admission.held_bytes", new Gauge() {
+            public long getValue()
+            {
+                return heldBytes.get();
+            }
+        });
+    }
+
+    /**
+     * Decides whether to take a deposit from the given client.
+     *
+     * @param clientAddress The client's address.
+     *
+     * @return {@link #ADMITTED}, {@link #RATE_LIMITED} or {@link #OVERLOADED}.
+     */
+    public int admit( String clientAddress )
+    {
+        if( heldEArtifacts.get() >= maxHeldEArtifacts ||
+                heldBytes.get() >= maxHeldBytes )
+        {
+            overloaded.increment();
+            return OVERLOADED;
+        }
+
+        if( null != clientAddress &&
+                !exemptAddresses.contains( clientAddress ) )
+        {
+            long now = System.nanoTime();
+            TokenBucket bucket = buckets.get( clientAddress );
+            if( null == bucket )
+            {
+                sweepIdleClients( now );
+                TokenBucket created = new TokenBucket( clientBurst, now );
+                bucket = buckets.putIfAbsent( clientAddress, created );
+                if( null == bucket )
+                {
+                    bucket = created;
+                }
+            }
+
+            if( !bucket.tryTake( clientRate, clientBurst, now ) )
+            {
+                rateLimited.increment();
+                return RATE_LIMITED;
+            }
+        }
+
+        admitted.increment();
+        return ADMITTED;
+    }
+
+    /**
+     * @param decision What {@link #admit(String)} returned.
+     *
+     * @return The number of seconds a turned away client should wait before
+     *      trying again.
+     */
+    public long getRetryAfter( int decision )
+    {
+        if( decision == RATE_LIMITED )
+        {
+            return Math.max( 1, (long) Math.ceil( 1 / clientRate ) );
+        }
+        return overloadedRetryAfter;
+    }
+
+    /**
+     * Counts the e-artifacts in an admitted deposit.
+     *
+     * @param eartifacts The number of e-artifacts.
+     * @param bytes Their size in bytes.
+     */
+    public void deposited( long eartifacts, long bytes )
+    {
+        admittedEArtifacts.add( eartifacts );
+        admittedBytes.add( bytes );
+        held( eartifacts, bytes );
+    }
+
+    /**
+     * Counts e-artifacts the depot has taken on, e.g., ones recovered from
+     * the spool.
+     *
+     * @param eartifacts The number of e-artifacts.
+     * @param bytes Their size in bytes.
+     */
+    public void held( long eartifacts, long bytes )
+    {
+        heldEArtifacts.addAndGet( eartifacts );
+        heldBytes.addAndGet( bytes );
+    }
+
+    /**
+     * Stops counting e-artifacts that have been delivered to the next hop.
+     *
+     * @param eartifacts The number of e-artifacts.
+     * @param bytes Their size in bytes.
+     */
+    public void released( long eartifacts, long bytes )
+    {
+        heldEArtifacts.addAndGet( -eartifacts );
+        heldBytes.addAndGet( -bytes );
+    }
+
+    /**
+     * Resolves the hosts of the given urls, e.g., the other anonymizers, so
+     * they can be exempted from rate limiting. Hosts that can't be resolved
+     * are skipped.
+     *
+     * @param urls The urls.
+     *
+     * @return The hosts' addresses.
+     */
+    public static Set<String> addressesOf( String... urls )
+    {
+        Set<String> addresses = new HashSet<String>();
+        for( String url : urls )
+        {
+            try
+            {
+                String host = new URL( url ).getHost();
+                for( InetAddress address : InetAddress.getAllByName( host ) )
+                {
+                    addresses.add( address.getHostAddress() );
+                }
+            } catch( Exception e )
+            {
+                logger.warning( "Couldn't resolve " + url + ": " + e );
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Forgets clients whose buckets have filled back up, if we're tracking
+     * too many.
+     */
+    private void sweepIdleClients( long now )
+    {
+        if( buckets.size() < MAX_TRACKED_CLIENTS )
+        {
+            return;
+        }
+
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while( it.hasNext() )
+        {
+            if( it.next().isFull( clientRate, clientBurst, now ) )
+            {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+/**
+ * An e-artifact waiting in the depot's buffer, along with when it arrived
+ * and, if it was read from the spool, where from.
+ */
+public class BufferedEArtifact
+{
+    private final String eartifact;
+    private final long depositTime;
+    private final EArtifactSpool.Segment spoolSegment;
+
+    /**
+     * @param eartifact The e-artifact.
+     * @param depositTime When it was deposited, per System.nanoTime().
+     */
+    public BufferedEArtifact( String eartifact, long depositTime )
+    {
+        this( eartifact, depositTime, null );
+    }
+
+    /**
+     * @param eartifact The e-artifact.
+     * @param depositTime When it was deposited, per System.nanoTime().
+     * @param spoolSegment The spool segment it was read from.
+     */
+    BufferedEArtifact( String eartifact, long depositTime,
+            EArtifactSpool.Segment spoolSegment )
+    {
+        this.eartifact = eartifact;
+        this.depositTime = depositTime;
+        this.spoolSegment = spoolSegment;
+    }
+
+    /**
+     * @return The e-artifact.
+     */
+    public String getEArtifact()
+    {
+        return eartifact;
+    }
+
+    /**
+     * @return When the e-artifact was deposited, per System.nanoTime().
+     */
+    public long getDepositTime()
+    {
+        return depositTime;
+    }
+
+    /**
+     * @return The spool segment the e-artifact was read from, or
+     *      <code>null</code> if it didn't come from the spool.
+     */
+    EArtifactSpool.Segment getSpoolSegment()
+    {
+        return spoolSegment;
+    }
+}
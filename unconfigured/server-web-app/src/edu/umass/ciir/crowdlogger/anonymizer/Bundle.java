@@ -0,0 +1,139 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * A bundle of e-artifacts on its way to another anonymizer or the server.
+ * Besides the newline-delimited e-artifacts themselves, it remembers when
+ * each was deposited so that the time from deposit to forward can be
+ * measured, and so they keep their original deposit times if the bundle
+ * has to go back into the buffer.
+ */
+public class Bundle
+{
+    private final StringBuilder eartifacts;
+    private long[] depositTimes;
+    private EArtifactSpool.Segment[] spoolSegments;
+    private int size;
+
+    private static final Histogram depositToForwardMicros =
+        Metrics.histogram( "anonymizer.latency.deposit_to_forward.micros" );
+
+    /**
+     * Creates an empty bundle.
+     *
+     * @param capacity The number of e-artifacts expected.
+     */
+    public Bundle( int capacity )
+    {
+        eartifacts = new StringBuilder( 500 * capacity );
+        depositTimes = new long[capacity];
+        spoolSegments = new EArtifactSpool.Segment[capacity];
+        size = 0;
+    }
+
+    /**
+     * Adds an e-artifact to the bundle.
+     *
+     * @param eartifact The e-artifact to add.
+     */
+    public void add( BufferedEArtifact eartifact )
+    {
+        if( size == depositTimes.length )
+        {
+            long[] bigger = new long[depositTimes.length * 2 + 1];
+            System.arraycopy( depositTimes, 0, bigger, 0, size );
+            depositTimes = bigger;
+            EArtifactSpool.Segment[] biggerSegments =
+                new EArtifactSpool.Segment[bigger.length];
+            System.arraycopy( spoolSegments, 0, biggerSegments, 0, size );
+            spoolSegments = biggerSegments;
+        }
+        eartifacts.append( eartifact.getEArtifact() ).append( '\n' );
+        depositTimes[size] = eartifact.getDepositTime();
+        spoolSegments[size] = eartifact.getSpoolSegment();
+        size++;
+    }
+
+    /**
+     * @return The number of e-artifacts in the bundle.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The number of characters in the bundle, newlines included. 
+     *      E-artifacts are ASCII, so this is also its size in bytes.
+     */
+    public int getLength()
+    {
+        return eartifacts.length();
+    }
+
+    /**
+     * @return The bundle's e-artifacts, one per line; this is what gets sent.
+     */
+    public String getEArtifacts()
+    {
+        return eartifacts.toString();
+    }
+
+    /**
+     * Splits the bundle back into its e-artifacts, each with its original
+     * deposit time (but no longer tied to the spool).
+     *
+     * @return The bundle's e-artifacts.
+     */
+    public List<BufferedEArtifact> unbundle()
+    {
+        List<BufferedEArtifact> unbundled =
+            new ArrayList<BufferedEArtifact>( size );
+        int start = 0;
+        for( int i = 0; i < size; i++ )
+        {
+            int end = eartifacts.indexOf( "\n", start );
+            unbundled.add( new BufferedEArtifact(
+                    eartifacts.substring( start, end ), depositTimes[i] ) );
+            start = end + 1;
+        }
+        return unbundled;
+    }
+
+    /**
+     * Records, for each e-artifact in the bundle, how long it took from
+     * being deposited to being forwarded, and releases any that came from
+     * the spool. Call this once the bundle has been delivered.
+     */
+    public void delivered()
+    {
+        long now = System.nanoTime();
+        for( int i = 0; i < size; i++ )
+        {
+            depositToForwardMicros.record( (now - depositTimes[i]) / 1000 );
+        }
+        release();
+    }
+
+    /**
+     * Releases the bundle's e-artifacts that came from the spool, so their
+     * segments can be deleted. Call this once they've been delivered or put
+     * back in the spool.
+     */
+    public void release()
+    {
+        for( int i = 0; i < size; i++ )
+        {
+            if( null != spoolSegments[i] )
+            {
+                spoolSegments[i].release();
+                spoolSegments[i] = null;
+            }
+        }
+    }
+}
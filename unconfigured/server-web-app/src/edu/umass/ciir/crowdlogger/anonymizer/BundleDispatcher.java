@@ -0,0 +1,355 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.Constants;
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Gauge;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Sends bundles of e-artifacts to the server or to randomly chosen
+ * anonymizers from a bounded pool of threads, so a slow destination only
+ * holds up the bundles headed its way. No destination has more than a set
+ * number of bundles in flight at once; a bundle that finds every destination
+ * it could go to at its limit waits a little and is queued again, which
+ * doesn't count as an attempt. A bundle whose send fails is retried a
+ * limited number of times, after an exponentially growing delay with random
+ * jitter, and is then handed back to a {@link BundleListener} (the depot
+ * puts it back in its buffer for the next flush).
+ */
+public class BundleDispatcher
+{
+    /**
+     * Told what became of each bundle.
+     */
+    public interface BundleListener
+    {
+        /**
+         * Called once a bundle has been delivered.
+         *
+         * @param bundle The delivered bundle.
+         */
+        void bundleDelivered( Bundle bundle );
+
+        /**
+         * Called once a bundle has used up its attempts, or couldn't even be
+         * queued because the dispatcher is saturated.
+         *
+         * @param bundle The undelivered bundle.
+         */
+        void bundleFailed( Bundle bundle );
+    }
+
+    private final ThreadPoolExecutor senders;
+    private final ScheduledExecutorService retryTimer;
+    private final ConcurrentMap<String, Semaphore> inFlight;
+    private final int maxInFlightPerDestination;
+    private final int maxAttempts;
+    private final long baseRetryDelay;
+    private final long maxRetryDelay;
+    private final BundleListener listener;
+    private final Random random;
+
+    // The least to wait before trying a saturated destination again, in
+    // milliseconds.
+    private static final long MIN_REQUEUE_DELAY = 10;
+
+    // Bundles that have been dispatched but not yet sent or given up on.
+    private final AtomicInteger pendingBundles = new AtomicInteger( 0 );
+
+    private static final Counter retries =
+        Metrics.counter( "anonymizer.dispatch.retries" );
+    private static final Counter requeues =
+        Metrics.counter( "anonymizer.dispatch.requeues" );
+    private static final Counter failures =
+        Metrics.counter( "anonymizer.dispatch.failures" );
+
+    private static final Logger logger =
+        Logger.getLogger( BundleDispatcher.class.getName() );
+
+    /**
+     * A single attempt to send a bundle.
+     */
+    private class SendTask implements Runnable
+    {
+        private final Bundle bundle;
+        private final boolean toServer;
+        private final int attempt;
+
+        SendTask( Bundle bundle, boolean toServer, int attempt )
+        {
+            this.bundle = bundle;
+            this.toServer = toServer;
+            this.attempt = attempt;
+        }
+
+        public void run()
+        {
+            String url = toServer ? 
+                claim( Constants.SERVER_URL ) : pickAnonymizer();
+            if( null == url )
+            {
+                // Every candidate is at its in-flight limit; nothing was
+                // tried, so this doesn't use up an attempt.
+                requeue( this );
+                return;
+            }
+
+            boolean sent = false;
+            try
+            {
+                sent = EEArtifactDepot.sendEArtifacts( url, 
+                        bundle.getEArtifacts() );
+            }
+            catch( RuntimeException e )
+            {
+                // Counts as a failed attempt rather than losing the bundle
+                // (and leaving it counted as pending) with the worker.
+                logger.log( Level.WARNING, "Couldn't send a bundle to " +
+                        url, e );
+            }
+            finally
+            {
+                semaphoreFor( url ).release();
+            }
+
+            if( sent )
+            {
+                bundle.delivered();
+                pendingBundles.decrementAndGet();
+                listener.bundleDelivered( bundle );
+            }
+            else
+            {
+                retry( this );
+            }
+        }
+
+        /**
+         * Tries the anonymizers in a random order and claims an in-flight
+         * slot with the first that has one free.
+         *
+         * @return The url of the claimed anonymizer, or <code>null</code>.
+         */
+        private String pickAnonymizer()
+        {
+            int count = Constants.ANONYMIZER_URLS.length;
+            int offset = random.nextInt( count );
+            for( int i = 0; i < count; i++ )
+            {
+                String url = claim(
+                        Constants.ANONYMIZER_URLS[(offset + i) % count] );
+                if( null != url )
+                {
+                    return url;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Claims an in-flight slot with the given destination.
+         *
+         * @return The url, or <code>null</code> if it has no free slots.
+         */
+        private String claim( String url )
+        {
+            return semaphoreFor( url ).tryAcquire() ? url : null;
+        }
+    }
+
+    /**
+     * Creates a dispatcher.
+     *
+     * @param threads The number of bundles that can be sent at once overall.
+     * @param queueSize How many bundles can wait for a thread before new ones
+     *      are turned away (and handed back to the listener).
+     * @param maxInFlightPerDestination The number of bundles that can be sent
+     *      to any one destination at once.
+     * @param maxAttempts The number of times to try sending a bundle.
+     * @param baseRetryDelay Milliseconds to wait before the first retry; this
+     *      doubles with each retry.
+     * @param maxRetryDelay The longest to wait before a retry.
+     * @param listener Told about bundles that were or couldn't be delivered.
+     */
+    public BundleDispatcher( int threads, int queueSize,
+            int maxInFlightPerDestination, int maxAttempts,
+            long baseRetryDelay, long maxRetryDelay,
+            BundleListener listener )
+    {
+        this.senders = new ThreadPoolExecutor( threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>( queueSize ),
+                daemonThreads( "bundle-sender" ) );
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(
+                daemonThreads( "bundle-retry" ) );
+        this.inFlight = new ConcurrentHashMap<String, Semaphore>();
+        this.maxInFlightPerDestination = maxInFlightPerDestination;
+        this.maxAttempts = maxAttempts;
+        this.baseRetryDelay = baseRetryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.listener = listener;
+        this.random = new Random();
+
+        Metrics.gauge( "anonymizer.dispatch.pending", new Gauge() {
+            public long getValue()
+            {
+                return pendingBundles.get();
+            }
+        });
+    }
+
+    /**
+     * Sends the bundle to the server or a random anonymizer (chosen with
+     * probability Constants.PROB_OF_SENDING_TO_SERVER), without waiting for
+     * it to go out.
+     *
+     * @param bundle The bundle of e-artifacts to send.
+     */
+    public void dispatch( Bundle bundle )
+    {
+        // If the bundle is empty, don't waste a post.
+        if( bundle.size() == 0 )
+        {
+            return;
+        }
+
+        boolean toServer = Constants.ANONYMIZER_URLS.length == 0 ||
+            random.nextDouble() <= Constants.PROB_OF_SENDING_TO_SERVER;
+
+        pendingBundles.incrementAndGet();
+        submit( new SendTask( bundle, toServer, 1 ) );
+    }
+
+    /**
+     * @return The number of bundles that have been dispatched and are still
+     *      waiting to be sent or retried.
+     */
+    public int getPendingBundles()
+    {
+        return pendingBundles.get();
+    }
+
+    /**
+     * Stops sending. Bundles that haven't gone out yet are dropped.
+     */
+    public void shutdown()
+    {
+        retryTimer.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    /**
+     * Schedules another attempt at the given task after a failed send, or
+     * gives up on it.
+     */
+    private void retry( SendTask task )
+    {
+        if( task.attempt >= maxAttempts )
+        {
+            giveUp( task.bundle );
+            return;
+        }
+
+        retries.increment();
+        schedule( new SendTask( task.bundle, task.toServer, task.attempt + 1 ),
+                Math.min( maxRetryDelay,
+                        baseRetryDelay << Math.min( task.attempt - 1, 20 ) ) );
+    }
+
+    /**
+     * Schedules the given task to try again, as the same attempt, once a
+     * destination may have a free slot.
+     */
+    private void requeue( SendTask task )
+    {
+        requeues.increment();
+        schedule( task, Math.max( MIN_REQUEUE_DELAY, baseRetryDelay ) );
+    }
+
+    /**
+     * Submits a task after about the given delay: with "equal" jitter,
+     * somewhere between half and all of it, so retries from many bundles
+     * don't land on a recovering peer at the same moment.
+     */
+    private void schedule( final SendTask task, long delay )
+    {
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+        try
+        {
+            retryTimer.schedule( new Runnable() {
+                public void run()
+                {
+                    submit( task );
+                }
+            }, delay, TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
+        {
+            giveUp( task.bundle );
+        }
+    }
+
+    private void submit( SendTask task )
+    {
+        try
+        {
+            senders.execute( task );
+        }
+        catch( RejectedExecutionException e )
+        {
+            logger.warning( "Dispatcher is saturated; returning bundle." );
+            giveUp( task.bundle );
+        }
+    }
+
+    private void giveUp( Bundle bundle )
+    {
+        pendingBundles.decrementAndGet();
+        failures.increment();
+        listener.bundleFailed( bundle );
+    }
+
+    private Semaphore semaphoreFor( String url )
+    {
+        Semaphore semaphore = inFlight.get( url );
+        if( null == semaphore )
+        {
+            Semaphore created = new Semaphore( maxInFlightPerDestination );
+            semaphore = inFlight.putIfAbsent( url, created );
+            if( null == semaphore )
+            {
+                semaphore = created;
+            }
+        }
+        return semaphore;
+    }
+
+    private static ThreadFactory daemonThreads( final String name )
+    {
+        final AtomicInteger count = new AtomicInteger( 0 );
+        return new ThreadFactory() {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable,
+                        name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,124 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The depot's answer to a deposit: whether it worked, how many e-artifacts
+ * were accepted, and a sequence number the depot assigns to each deposit in
+ * the order it received them. The answer is the same size no matter how much
+ * is sitting in the depot's buffer.
+ *
+ * By default the ack is a single line of text:
+ * <pre>
+ *     success &lt;accepted&gt; &lt;sequence&gt;
+ * </pre>
+ * (or <code>failure 0 &lt;sequence&gt;</code>), so anything that looks for
+ * "success" in the response still works. Clients that send
+ * <code>Accept: application/octet-stream</code> get a 13 byte binary ack
+ * instead: one status byte, the accepted count as a big-endian int, and the
+ * sequence number as a big-endian long.
+ */
+public class DepositAck
+{
+    /** The content type of binary acks. */
+    public static final String BINARY_CONTENT_TYPE =
+        "application/octet-stream";
+
+    /** The status byte of a successful binary ack. */
+    public static final byte SUCCESS = 1;
+
+    /** The status byte of a failed binary ack. */
+    public static final byte FAILURE = 0;
+
+    /** The length in bytes of a binary ack. */
+    public static final int BINARY_LENGTH = 1 + 4 + 8;
+
+    private final boolean success;
+    private final int accepted;
+    private final long sequence;
+
+    /**
+     * Creates an ack.
+     *
+     * @param success Whether the deposit contained an e-artifacts field.
+     * @param accepted The number of e-artifacts added to the buffer.
+     * @param sequence The deposit's sequence number.
+     */
+    public DepositAck( boolean success, int accepted, long sequence )
+    {
+        this.success = success;
+        this.accepted = accepted;
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return <code>true</code> if the deposit succeeded.
+     */
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    /**
+     * @return The number of e-artifacts accepted.
+     */
+    public int getAccepted()
+    {
+        return accepted;
+    }
+
+    /**
+     * @return The deposit's sequence number.
+     */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Writes the ack as the response to the given request, in binary if the
+     * request asked for it and as a line of text otherwise.
+     *
+     * @param request The deposit request.
+     * @param response Its response.
+     *
+     * @throws IOException
+     */
+    public void writeTo( HttpServletRequest request,
+            HttpServletResponse response ) throws IOException
+    {
+        String accept = request.getHeader( "Accept" );
+        if( null != accept && accept.indexOf( BINARY_CONTENT_TYPE ) >= 0 )
+        {
+            response.setContentType( BINARY_CONTENT_TYPE );
+            response.setContentLength( BINARY_LENGTH );
+            DataOutputStream out =
+                new DataOutputStream( response.getOutputStream() );
+            out.writeByte( success ? SUCCESS : FAILURE );
+            out.writeInt( accepted );
+            out.writeLong( sequence );
+            out.close();
+        }
+        else
+        {
+            response.setContentType( "text/plain" );
+            PrintWriter out = response.getWriter();
+            out.println( toString() );
+            out.close();
+        }
+    }
+
+    /**
+     * @return The text form of the ack.
+     */
+    public String toString()
+    {
+        return (success ? "success " : "failure ") + accepted + " " +
+            sequence;
+    }
+}
@@ -0,0 +1,94 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Shows what the depot is up to: the size of its buffer, the bundles waiting
+ * to go out, the latest deposit's sequence number and the metrics report.
+ * This is kept apart from the deposit servlet so that none of it costs
+ * anything on the deposit path.
+ *
+ * The buffered e-artifacts themselves are only listed if the servlet's
+ * <code>showEArtifacts</code> init parameter is <code>true</code>; the
+ * <code>limit</code> request parameter caps how many are listed (100 by
+ * default).
+ */
+public class DepotDebugServlet extends HttpServlet
+{
+    private static final int DEFAULT_LIMIT = 100;
+
+    private boolean showEArtifacts = false;
+
+    /**
+     * Reads the init parameters.
+     *
+     * @throws ServletException
+     */
+    public void init() throws ServletException
+    {
+        super.init();
+        showEArtifacts = "true".equalsIgnoreCase(
+                getInitParameter( "showEArtifacts" ) );
+    }
+
+    /**
+     * Writes out the depot's state as plain text.
+     *
+     * @param request The request.
+     * @param response The response.
+     *
+     * @throws ServletException
+     * @throws IOException
+     */
+    public void doGet( HttpServletRequest request,
+        HttpServletResponse response ) throws ServletException, IOException
+    {
+        StringBuilder report = new StringBuilder();
+        report.append( "buffered " )
+            .append( EEArtifactDepot.getBufferSize() ).append( '\n' );
+        report.append( "pending_bundles " )
+            .append( EEArtifactDepot.getPendingBundles() ).append( '\n' );
+        report.append( "last_sequence " )
+            .append( EEArtifactDepot.getLastSequence() ).append( '\n' );
+        report.append( '\n' ).append( Metrics.report() );
+
+        if( showEArtifacts )
+        {
+            int limit = DEFAULT_LIMIT;
+            try
+            {
+                if( null != request.getParameter( "limit" ) )
+                {
+                    limit = Integer.parseInt( request.getParameter( "limit" ) );
+                }
+            } catch( NumberFormatException e )
+            {
+                // Stick with the default.
+            }
+
+            List<BufferedEArtifact> buffer =
+                EEArtifactDepot.getBufferSnapshot();
+            report.append( "\nE-artifacts (" )
+                .append( Math.min( limit, buffer.size() ) ).append( " of " )
+                .append( buffer.size() ).append( "):\n" );
+            for( int i = 0; i < buffer.size() && i < limit; i++ )
+            {
+                report.append( buffer.get( i ).getEArtifact() ).append( '\n' );
+            }
+        }
+
+        response.setContentType( "text/plain" );
+        PrintWriter out = response.getWriter();
+        out.print( report );
+        out.close();
+    }
+}
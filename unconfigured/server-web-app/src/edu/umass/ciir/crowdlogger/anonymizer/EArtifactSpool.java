@@ -0,0 +1,787 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only spool for the depot's e-artifacts. E-artifacts are
+ * appended to memory-mapped segment files in a directory; a deposit is only
+ * acknowledged once {@link #sync(long)} says its e-artifacts have been forced
+ * to disk. A single committer thread does the forcing, so every deposit that
+ * arrives while one force is under way shares the next one (group commit).
+ *
+ * The flush reads e-artifacts back out in the order they were appended. Each
+ * one it reads has to be released (once the bundle it went out in has been
+ * acknowledged by the next hop, or it has been appended again after a failed
+ * send); a segment file is deleted once it is full and everything in it has
+ * been released. No more than a set number of e-artifacts are read and not
+ * yet released at any time, and everything else stays on disk, so the heap
+ * used doesn't grow no matter how long the next hop is unavailable.
+ *
+ * The next segment file is created (and its disk space written out) ahead of
+ * time by a background thread, so appends don't wait for it when the current
+ * segment fills up; there is therefore always one more segment file on disk
+ * than there are segments in use. A deleted segment is unmapped right away
+ * rather than whenever its buffer happens to be garbage collected.
+ *
+ * On startup, the segments left in the directory are scanned (checking each
+ * record's checksum; a torn record ends its segment) and everything in them
+ * is read again. Delivery is therefore at-least-once: e-artifacts that were
+ * forwarded from a segment that hadn't been deleted yet are forwarded again
+ * after a restart.
+ *
+ * Each record is laid out as:
+ * <pre>
+ *     int     length of the e-artifact in bytes (UTF-8); 0 marks the end
+ *     int     CRC-32 of the e-artifact's bytes
+ *     long    when it was deposited, in milliseconds since the epoch
+ *     byte[]  the e-artifact
+ * </pre>
+ */
+public class EArtifactSpool
+{
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    /**
+     * One segment file.
+     */
+    class Segment
+    {
+        final long id;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        // The end of the records written so far.
+        int end = 0;
+        // Where the next read starts.
+        int readOffset = 0;
+        int records = 0;
+        int released = 0;
+        // Whether it's full (no more records will be appended).
+        boolean sealed = false;
+
+        Segment( long id, File file, MappedByteBuffer buffer )
+        {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Releases one e-artifact read from this segment.
+         */
+        void release()
+        {
+            synchronized( EArtifactSpool.this )
+            {
+                released++;
+                unreleased--;
+                deleteIfDone( this );
+            }
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxUnreleased;
+
+    // Guarded by this.
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private Segment current;
+    private int readIndex = 0;
+    private long appended = 0;
+    private long unread = 0;
+    // The size of the unread e-artifacts, counting a newline after each.
+    private long unreadBytes = 0;
+    private int unreleased = 0;
+    private boolean closed = false;
+    // The next segment, once the preallocator has created it.
+    private Segment spare = null;
+    private IOException spareFailure = null;
+    // The segment the committer is forcing; it isn't unmapped until the
+    // committer is done with it.
+    private Segment forcing = null;
+    private final Thread preallocator;
+
+    // Guarded by commitLock.
+    private final Object commitLock = new Object();
+    private long durable = 0;
+    private IOException commitFailure = null;
+    private final Thread committer;
+
+    private final CRC32 crc = new CRC32();
+
+    private static final Logger logger =
+        Logger.getLogger( EArtifactSpool.class.getName() );
+
+    /**
+     * Opens the spool in the given directory, creating the directory if need
+     * be and recovering any segments already in it.
+     *
+     * @param directory The directory to keep the segment files in.
+     * @param segmentSize The size in bytes of each segment file.
+     * @param maxUnreleased The most e-artifacts that can be read and not yet
+     *      released.
+     *
+     * @throws IOException
+     */
+    public EArtifactSpool( File directory, int segmentSize, int maxUnreleased )
+        throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxUnreleased = maxUnreleased;
+
+        if( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException( "Couldn't create spool directory " +
+                    directory );
+        }
+
+        recover();
+
+        committer = new Thread( new Runnable() {
+            public void run()
+            {
+                commitLoop();
+            }
+        }, "spool-committer" );
+        committer.setDaemon( true );
+        committer.start();
+
+        preallocator = new Thread( new Runnable() {
+            public void run()
+            {
+                preallocateLoop();
+            }
+        }, "spool-preallocator" );
+        preallocator.setDaemon( true );
+        preallocator.start();
+    }
+
+    /**
+     * Appends an e-artifact. It is not durable until {@link #sync(long)}
+     * returns for the returned ticket (or a later one).
+     *
+     * @param eartifact The e-artifact to append.
+     *
+     * @return A ticket to pass to {@link #sync(long)}.
+     *
+     * @throws IOException
+     */
+    public long append( BufferedEArtifact eartifact ) throws IOException
+    {
+        byte[] bytes = eartifact.getEArtifact().getBytes( "UTF-8" );
+        if( bytes.length == 0 )
+        {
+            // A length of zero marks the end of a segment.
+            throw new IllegalArgumentException( "Can't spool an empty " +
+                    "e-artifact." );
+        }
+        if( HEADER_SIZE + bytes.length + 4 > segmentSize )
+        {
+            throw new IOException( "E-artifact of " + bytes.length +
+                    " bytes won't fit in a spool segment." );
+        }
+
+        // Convert the deposit time to wall clock time, so it survives a
+        // restart.
+        long depositMillis = System.currentTimeMillis() -
+            (System.nanoTime() - eartifact.getDepositTime()) / 1000000;
+
+        long ticket;
+        synchronized( this )
+        {
+            // Leave room for the record and the end marker after it.
+            while( current.end + HEADER_SIZE + bytes.length + 4 > segmentSize )
+            {
+                if( closed )
+                {
+                    throw new IOException( "The spool is closed." );
+                }
+                if( null != spare )
+                {
+                    roll();
+                }
+                else if( null != spareFailure )
+                {
+                    // Let the preallocator try again for the next append.
+                    IOException failure = spareFailure;
+                    spareFailure = null;
+                    notifyAll();
+                    throw failure;
+                }
+                else
+                {
+                    // The next segment is still being created; waiting
+                    // gives up the lock, so reads and releases go on.
+                    try
+                    {
+                        wait();
+                    } catch( InterruptedException e )
+                    {
+                        throw new InterruptedIOException(
+                                "Interrupted waiting for a spool segment." );
+                    }
+                }
+            }
+            if( closed )
+            {
+                throw new IOException( "The spool is closed." );
+            }
+
+            crc.reset();
+            crc.update( bytes, 0, bytes.length );
+
+            ByteBuffer buffer = current.buffer;
+            buffer.position( current.end + 4 );
+            buffer.putInt( (int) crc.getValue() );
+            buffer.putLong( depositMillis );
+            buffer.put( bytes );
+            buffer.putInt( 0 );
+            // Write the length last; until then, the record isn't there.
+            buffer.putInt( current.end, bytes.length );
+
+            current.end += HEADER_SIZE + bytes.length;
+            current.records++;
+            unread++;
+            unreadBytes += bytes.length + 1;
+            ticket = ++appended;
+        }
+
+        synchronized( commitLock )
+        {
+            commitLock.notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Waits until everything up to and including the e-artifact with the
+     * given ticket has been forced to disk.
+     *
+     * @param ticket The ticket returned by {@link #append}.
+     *
+     * @throws IOException If forcing failed or we were interrupted.
+     */
+    public void sync( long ticket ) throws IOException
+    {
+        synchronized( commitLock )
+        {
+            while( durable < ticket )
+            {
+                if( null != commitFailure )
+                {
+                    throw commitFailure;
+                }
+                try
+                {
+                    commitLock.wait();
+                } catch( InterruptedException e )
+                {
+                    throw new InterruptedIOException(
+                            "Interrupted waiting for the spool." );
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the next e-artifacts in the spool, without going over the limit
+     * on e-artifacts that have been read and not yet released.
+     *
+     * @param max The most e-artifacts to read.
+     *
+     * @return The e-artifacts read, each of which has to be released once
+     *      it has been delivered (see {@link Bundle#release()}).
+     *
+     * @throws IOException
+     */
+    public synchronized List<BufferedEArtifact> read( int max )
+        throws IOException
+    {
+        int count = (int) Math.min( max, getReadableCount() );
+        List<BufferedEArtifact> eartifacts =
+            new ArrayList<BufferedEArtifact>( count );
+
+        long now = System.currentTimeMillis();
+        long nanoNow = System.nanoTime();
+
+        while( eartifacts.size() < count )
+        {
+            Segment segment = segments.get( readIndex );
+            if( segment.readOffset >= segment.end )
+            {
+                // Only the current segment can be read to the end without
+                // being sealed, and then there would be nothing unread.
+                readIndex++;
+                continue;
+            }
+
+            ByteBuffer buffer = segment.buffer;
+            int length = buffer.getInt( segment.readOffset );
+            long depositMillis = buffer.getLong( segment.readOffset + 8 );
+            byte[] bytes = new byte[length];
+            buffer.position( segment.readOffset + HEADER_SIZE );
+            buffer.get( bytes );
+
+            segment.readOffset += HEADER_SIZE + length;
+            unread--;
+            unreadBytes -= length + 1;
+            unreleased++;
+
+            eartifacts.add( new BufferedEArtifact( new String( bytes, "UTF-8" ),
+                    nanoNow - (now - depositMillis) * 1000000, segment ) );
+        }
+
+        return eartifacts;
+    }
+
+    /**
+     * @return The number of e-artifacts that haven't been read yet.
+     */
+    public synchronized long getUnreadCount()
+    {
+        return unread;
+    }
+
+    /**
+     * @return The size in bytes of the e-artifacts that haven't been read
+     *      yet, counting a newline after each (as in a bundle).
+     */
+    public synchronized long getUnreadBytes()
+    {
+        return unreadBytes;
+    }
+
+    /**
+     * @return The number of e-artifacts {@link #read(int)} would read right
+     *      now, given the limit on unreleased e-artifacts.
+     */
+    public synchronized long getReadableCount()
+    {
+        return Math.max( 0, Math.min( unread, maxUnreleased - unreleased ) );
+    }
+
+    /**
+     * @return The number of e-artifacts that have been read but not yet
+     *      released.
+     */
+    public synchronized int getUnreleasedCount()
+    {
+        return unreleased;
+    }
+
+    /**
+     * Forces everything to disk and stops the committer. Nothing can be
+     * appended after this.
+     */
+    public void close()
+    {
+        long target;
+        synchronized( this )
+        {
+            if( closed )
+            {
+                return;
+            }
+            closed = true;
+            current.buffer.force();
+            target = appended;
+            if( null != spare )
+            {
+                discard( spare );
+                spare = null;
+            }
+            notifyAll();
+        }
+        committer.interrupt();
+
+        synchronized( commitLock )
+        {
+            durable = Math.max( durable, target );
+            commitLock.notifyAll();
+        }
+    }
+
+    /**
+     * Forces appended e-artifacts to disk as they come in, waking up anyone
+     * waiting in {@link #sync(long)}.
+     */
+    private void commitLoop()
+    {
+        while( true )
+        {
+            long target;
+            synchronized( commitLock )
+            {
+                try
+                {
+                    while( durable >= currentlyAppended() )
+                    {
+                        commitLock.wait();
+                    }
+                } catch( InterruptedException e )
+                {
+                    return;
+                }
+            }
+
+            // Everything before the current segment was forced when it was
+            // sealed, so only the current one needs it.
+            Segment segment;
+            synchronized( this )
+            {
+                target = appended;
+                segment = current;
+                forcing = segment;
+            }
+
+            IOException failure = null;
+            try
+            {
+                segment.buffer.force();
+            } catch( RuntimeException e )
+            {
+                failure = new IOException( "Couldn't force spool to disk." );
+                failure.initCause( e );
+                logger.log( Level.SEVERE, "Couldn't force spool to disk", e );
+            }
+
+            synchronized( this )
+            {
+                forcing = null;
+                // It may have been sealed and deleted while being forced.
+                if( !segments.contains( segment ) )
+                {
+                    unmap( segment.buffer );
+                }
+            }
+
+            synchronized( commitLock )
+            {
+                if( null == failure )
+                {
+                    durable = Math.max( durable, target );
+                }
+                commitFailure = failure;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    private synchronized long currentlyAppended()
+    {
+        return appended;
+    }
+
+    /**
+     * Keeps a spare segment ready for {@link #roll()}, creating each one
+     * without holding the lock.
+     */
+    private void preallocateLoop()
+    {
+        while( true )
+        {
+            long id;
+            synchronized( this )
+            {
+                try
+                {
+                    while( !closed &&
+                            (null != spare || null != spareFailure) )
+                    {
+                        wait();
+                    }
+                } catch( InterruptedException e )
+                {
+                    return;
+                }
+                if( closed )
+                {
+                    return;
+                }
+                id = current.id + 1;
+            }
+
+            Segment segment = null;
+            IOException failure = null;
+            try
+            {
+                segment = createSegment( id );
+            } catch( IOException e )
+            {
+                failure = e;
+                logger.log( Level.SEVERE, "Couldn't create spool segment", e );
+            }
+
+            synchronized( this )
+            {
+                if( closed )
+                {
+                    if( null != segment )
+                    {
+                        discard( segment );
+                    }
+                    return;
+                }
+                spare = segment;
+                spareFailure = failure;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Seals the current segment and moves on to the spare one, waking the
+     * preallocator to create the next. Must hold the lock.
+     */
+    private void roll()
+    {
+        current.buffer.force();
+        current.sealed = true;
+        Segment sealed = current;
+        current = spare;
+        spare = null;
+        segments.add( current );
+        notifyAll();
+        deleteIfDone( sealed );
+    }
+
+    /**
+     * Deletes the given segment if it's sealed and everything in it has been
+     * released. Must hold the lock.
+     */
+    private void deleteIfDone( Segment segment )
+    {
+        if( !segment.sealed || segment.released < segment.records )
+        {
+            return;
+        }
+
+        int index = segments.indexOf( segment );
+        segments.remove( index );
+        if( index < readIndex )
+        {
+            readIndex--;
+        }
+        else if( index == readIndex )
+        {
+            // Everything in it has been read, so move on to the next one.
+            readIndex = Math.min( readIndex, segments.size() - 1 );
+        }
+
+        if( segment != forcing )
+        {
+            unmap( segment.buffer );
+        }
+        if( !segment.file.delete() )
+        {
+            logger.warning( "Couldn't delete spool segment " + segment.file );
+        }
+    }
+
+    /**
+     * Unmaps and deletes a segment that was never used.
+     */
+    private static void discard( Segment segment )
+    {
+        unmap( segment.buffer );
+        if( !segment.file.delete() )
+        {
+            logger.warning( "Couldn't delete spool segment " + segment.file );
+        }
+    }
+
+    /**
+     * Unmaps the buffer now instead of whenever it's garbage collected, which
+     * can be long after its file has been deleted. The buffer mustn't be
+     * touched afterwards. There's no public way to do this, so if the JVM
+     * doesn't offer one of the usual private ones, the buffer is left to the
+     * garbage collector.
+     */
+    private static void unmap( MappedByteBuffer buffer )
+    {
+        try
+        {
+            // Java 9 and later.
+            Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner",
+                    ByteBuffer.class );
+            Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+            return;
+        } catch( NoSuchMethodException e )
+        {
+            // Java 8 and earlier; see below.
+        } catch( Exception e )
+        {
+            logger.log( Level.FINE, "Couldn't unmap spool segment", e );
+            return;
+        }
+
+        try
+        {
+            Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+            cleanerMethod.setAccessible( true );
+            Object cleaner = cleanerMethod.invoke( buffer );
+            if( null != cleaner )
+            {
+                cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+            }
+        } catch( Exception e )
+        {
+            logger.log( Level.FINE, "Couldn't unmap spool segment", e );
+        }
+    }
+
+    /**
+     * Maps the segments left in the directory and counts the records in
+     * them, so they'll be read again.
+     */
+    private void recover() throws IOException
+    {
+        File[] files = directory.listFiles( new FileFilter() {
+            public boolean accept( File file )
+            {
+                return file.getName().startsWith( SEGMENT_PREFIX ) &&
+                    file.getName().endsWith( SEGMENT_SUFFIX );
+            }
+        });
+        Arrays.sort( files );
+
+        long start = System.currentTimeMillis();
+        CRC32 check = new CRC32();
+        byte[] bytes = new byte[1024];
+
+        for( File file : files )
+        {
+            String name = file.getName();
+            long id = Long.parseLong( name.substring( SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length() ) );
+            Segment segment = new Segment( id, file, map( file ) );
+            ByteBuffer buffer = segment.buffer;
+
+            // Walk the records until the end marker or a torn record.
+            while( segment.end + HEADER_SIZE <= buffer.limit() )
+            {
+                int length = buffer.getInt( segment.end );
+                if( length <= 0 ||
+                        segment.end + HEADER_SIZE + length > buffer.limit() )
+                {
+                    break;
+                }
+
+                if( bytes.length < length )
+                {
+                    bytes = new byte[length];
+                }
+                buffer.position( segment.end + HEADER_SIZE );
+                buffer.get( bytes, 0, length );
+                check.reset();
+                check.update( bytes, 0, length );
+                if( (int) check.getValue() != buffer.getInt( segment.end + 4 ) )
+                {
+                    break;
+                }
+
+                segment.end += HEADER_SIZE + length;
+                segment.records++;
+                unreadBytes += length + 1;
+            }
+
+            segment.sealed = true;
+            segments.add( segment );
+            unread += segment.records;
+            appended += segment.records;
+        }
+
+        // Always append to a fresh segment, so that a torn tail never has
+        // good records written after it.
+        long nextId = segments.isEmpty() ? 0 :
+            segments.get( segments.size() - 1 ).id + 1;
+        current = createSegment( nextId );
+        segments.add( current );
+        durable = appended;
+
+        // Segments with nothing in them can go right away.
+        for( Segment segment : new ArrayList<Segment>( segments ) )
+        {
+            deleteIfDone( segment );
+        }
+
+        if( files.length > 0 )
+        {
+            logger.info( "Recovered " + unread + " e-artifacts from " +
+                    files.length + " spool segments in " +
+                    (System.currentTimeMillis() - start) + "ms." );
+        }
+    }
+
+    /**
+     * Creates and maps a new, zero-filled segment file.
+     */
+    private Segment createSegment( long id ) throws IOException
+    {
+        File file = new File( directory,
+                String.format( "%s%016d%s", SEGMENT_PREFIX, id,
+                    SEGMENT_SUFFIX ) );
+
+        // Write the zeros out rather than just setting the length, so the
+        // disk space is really there; running out of it while writing to
+        // the mapping would crash the JVM.
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate( 1 << 20 );
+            long written = 0;
+            while( written < segmentSize )
+            {
+                zeros.clear();
+                zeros.limit( (int) Math.min( zeros.capacity(),
+                            segmentSize - written ) );
+                written += channel.write( zeros, written );
+            }
+            channel.force( true );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        return new Segment( id, file, map( file ) );
+    }
+
+    private static MappedByteBuffer map( File file ) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            // The mapping stays valid after the channel is closed.
+            return raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0,
+                    raf.length() );
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+}
@@ -5,34 +5,18 @@
 package edu.umass.ciir.crowdlogger.anonymizer;
 
 import edu.umass.ciir.crowdlogger.Constants;
+import edu.umass.ciir.crowdlogger.io.EArtifactFormReader;
 
 import java.io.*;
-import java.util.ArrayList;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Iterator;
-import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
 /**
@@ -44,14 +28,74 @@ import java.util.concurrent.Executors;
  */
 public class EEArtifactDepot extends HttpServlet
 {
-    // A buffer of the received e-artifacts.
-    private final static List<String> eartifactsBuffer = 
-        Collections.synchronizedList(new ArrayList<String>());
+    // A buffer of the received e-artifacts. Deposits add to it without
+    // locking; the flush task drains it by swapping it out.
+    // Each e-artifact is stamped with the time it was deposited.
+    private final static ShardedBuffer<BufferedEArtifact> eartifactsBuffer = 
+        new ShardedBuffer<BufferedEArtifact>();
+
+    // If Constants.SPOOL_DIRECTORY is set, e-artifacts go here instead of
+    // into eartifactsBuffer.
+    private static volatile EArtifactSpool spool = null;
     
-    // A timer that will be used to flush the buffer.
-    private static Timer timer = new Timer( true );
-    private static Object isFirstLock = new Object();
-    private static boolean isFirst = true;
+    // Sends bundles on from a pool of threads. Bundles it can't deliver go
+    // back into the buffer for the next flush.
+    private final static BundleDispatcher dispatcher = 
+        new BundleDispatcher( Constants.DISPATCH_THREADS, 
+            Constants.DISPATCH_QUEUE_SIZE,
+            Constants.MAX_IN_FLIGHT_PER_DESTINATION,
+            Constants.MAX_SEND_ATTEMPTS, 
+            Constants.RETRY_BASE_DELAY, 
+            Constants.RETRY_MAX_DELAY,
+            new BundleDispatcher.BundleListener() {
+                public void bundleDelivered( Bundle bundle )
+                {
+                    AdmissionController admission = 
+                        EEArtifactDepot.admission;
+                    if( null != admission )
+                    {
+                        admission.released( bundle.size(), 
+                                bundle.getLength() );
+                    }
+                }
+
+                public void bundleFailed( Bundle bundle )
+                {
+                    if( null != spool )
+                    {
+                        respool( bundle );
+                    }
+                    else
+                    {
+                        eartifactsBuffer.addAll( bundle.unbundle() );
+                    }
+                    flushScheduler.deposited( getFlushableCount() );
+                }
+            });
+    
+    // Flushes the buffer once it holds Constants.FULL_BUFFER_SIZE e-artifacts
+    // or its oldest e-artifact has waited Constants.FLUSH_BUFFER_DELAY
+    // milliseconds, whichever comes first.
+    private final static FlushScheduler flushScheduler =
+        new FlushScheduler( new Runnable() {
+                public void run()
+                {
+                    flushEArtifacts();
+                }
+            }, Constants.FULL_BUFFER_SIZE, Constants.FLUSH_BUFFER_DELAY );
+
+    // Turns deposits away when we're holding too much or a client is
+    // depositing too quickly. Created in init().
+    private static volatile AdmissionController admission = null;
+
+    // Not in the servlet API we compile against.
+    private final static int SC_TOO_MANY_REQUESTS = 429;
+
+    // Numbers each deposit, in the order they arrive.
+    private final static AtomicLong depositSequence = new AtomicLong( 0 );
+
+    private final static Logger logger =
+        Logger.getLogger( EEArtifactDepot.class.getName() );
     
   
 //    // FOR DEBUGGING
@@ -65,6 +109,72 @@ public class EEArtifactDepot extends HttpServlet
 //        messages = "";
 //    }
 
+    /**
+     * Opens the spool, if there is one, and starts flushing the buffer. This
+     * used to happen on the first request.
+     *
+     * @throws ServletException
+     */
+    public void init() throws ServletException
+    {
+        super.init();
+
+        // The other anonymizers and the server aren't rate limited.
+        String[] peers = new String[Constants.ANONYMIZER_URLS.length + 1];
+        System.arraycopy( Constants.ANONYMIZER_URLS, 0, peers, 0, 
+                Constants.ANONYMIZER_URLS.length );
+        peers[peers.length-1] = Constants.SERVER_URL;
+        AdmissionController admission = new AdmissionController( 
+                Constants.MAX_HELD_EARTIFACTS,
+                Constants.MAX_HELD_BYTES,
+                Constants.CLIENT_DEPOSITS_PER_SECOND,
+                Constants.CLIENT_DEPOSIT_BURST,
+                Constants.OVERLOADED_RETRY_AFTER,
+                AdmissionController.addressesOf( peers ) );
+
+        if( !Constants.SPOOL_DIRECTORY.equals( "" ) )
+        {
+            try
+            {
+                spool = new EArtifactSpool( 
+                        new File( Constants.SPOOL_DIRECTORY ),
+                        Constants.SPOOL_SEGMENT_SIZE, 
+                        Constants.SPOOL_MAX_UNRELEASED );
+            } catch( IOException e )
+            {
+                throw new ServletException( "Couldn't open the spool.", e );
+            }
+
+            // Whatever was recovered from the spool is ours to deliver.
+            admission.held( spool.getUnreadCount(), spool.getUnreadBytes() );
+        }
+        EEArtifactDepot.admission = admission;
+
+        flushScheduler.start();
+
+        // Anything recovered from the spool needs flushing, too.
+        if( getFlushableCount() > 0 )
+        {
+            flushScheduler.deposited( getFlushableCount() );
+        }
+    }
+
+    /**
+     * Stops flushing, closes the spool and releases the connections used to
+     * forward bundles.
+     */
+    public void destroy()
+    {
+        flushScheduler.stop();
+        dispatcher.shutdown();
+        if( null != spool )
+        {
+            spool.close();
+        }
+        ForwardingClient.shutdownInstance();
+        super.destroy();
+    }
+
     /**
      * This is for developmental purposes. It should be taken out before 
      * deploying. It will take a GET request and pass it on to doPost, which
@@ -86,12 +196,24 @@ public class EEArtifactDepot extends HttpServlet
     /**
      * Processes a POST request that should contain a parameter named
      * "eartifacts". The value should be a string of encrypted artifacts
-     * (e-artifacts) separated by a new line character. This will add those
-     * e-artifacts to a global list. Once added, that list will either be
-     * split into random bundles and sent on to another anonymizer or the server
-     * or a timer will be set which will perform the same action but at a future
-     * time (in the event that no more e-artifact bundles come in after this 
-     * one).
+     * (e-artifacts) separated by a new line character; it is read straight
+     * from the request body rather than through getParameter so that large
+     * bundles aren't copied into memory wholesale. This will add those
+     * e-artifacts to a global list. Once that list is full it is split into
+     * random bundles and sent on to another anonymizer or the server right
+     * away; otherwise the same happens once the oldest e-artifact in it has
+     * waited Constants.FLUSH_BUFFER_DELAY milliseconds.
+     *
+     * Deposits are turned away with a 429 (Too Many Requests) if the client
+     * is depositing too quickly, or a 503 (Service Unavailable) if the depot
+     * is already holding as much as it will; both come with a Retry-After
+     * header. See {@link AdmissionController}.
+     *
+     * The response is a {@link DepositAck}: the status, how many e-artifacts
+     * were accepted, and the deposit's sequence number. (It used to echo the
+     * entire buffer back, which took time quadratic in the size of the buffer
+     * and handed every client everyone else's e-artifacts; see
+     * {@link DepotDebugServlet} for looking at the buffer.)
      * 
      * @param request The request.
      * @param response The response.
@@ -102,44 +224,32 @@ public class EEArtifactDepot extends HttpServlet
     public void doPost( HttpServletRequest request, 
         HttpServletResponse response)  throws ServletException, IOException
     {
-        synchronized( isFirstLock )
+        AdmissionController admission = EEArtifactDepot.admission;
+        if( null != admission )
         {
-            if( isFirst )
+            int decision = admission.admit( request.getRemoteAddr() );
+            if( decision != AdmissionController.ADMITTED )
             {
-                //Scheduling timer.
-//                System.out.println( "Scheduling timer." );
-                timer.scheduleAtFixedRate(
-                        new TimerTask(){
-                            public void run()
-                            {
-                                flushEArtifacts();
-                            }
-                        }, 10, Constants.FLUSH_BUFFER_DELAY );
-                isFirst = false;
+                response.setStatus( decision == 
+                        AdmissionController.RATE_LIMITED ? 
+                    SC_TOO_MANY_REQUESTS : 
+                    HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                response.setHeader( "Retry-After", 
+                    String.valueOf( admission.getRetryAfter( decision ) ) );
+                new DepositAck( false, 0, depositSequence.incrementAndGet() )
+                    .writeTo( request, response );
+                return;
             }
         }
-        
-
-        response.setContentType("text/html");
-        PrintWriter out = response.getWriter();
-        out.println(
-            "<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" "+
-            "\"http://www.w3.org/TR/html4/loose.dtd\">" );
-
 
-        String eartifacts = request.getParameter( "eartifacts" );
+        EArtifactFormReader eartifacts = 
+            EArtifactFormReader.forRequest( request );
         
-        if( null != eartifacts && processEArtifacts( eartifacts ) )
-        {
-            out.println( printEArtifacts() );
-            out.println( "success" );
-        }
-        else
-        {
-            out.println( "failure" );
-        }
-  
-        out.close();
+        int accepted = processEArtifacts( eartifacts );
+
+        new DepositAck( eartifacts.foundField(), accepted,
+                depositSequence.incrementAndGet() ).writeTo( 
+                        request, response );
     }
     
     
@@ -147,213 +257,212 @@ public class EEArtifactDepot extends HttpServlet
     /**
      * Adds the given eartifacts to the eartifactsBuffer list.
      *
-     * @param eartifacts A string consisting of e-artifacts separated by 
-     *      newlines.
-     * @return <code>true</code> if successful.
+     * @param eartifacts A reader over the e-artifacts in the request. They
+     *      are added to the buffer as they are read, so the bundle as a 
+     *      whole is never held in memory. If there is a spool, this doesn't
+     *      return until they are all on disk.
+     * @return The number of e-artifacts added to the buffer.
+     * @throws IOException
      */
-    private boolean processEArtifacts( String bundle )
+    private int processEArtifacts( EArtifactFormReader eartifacts ) 
+        throws IOException
     {
         //B_DEBUG
         //messages += "Processing e-artifact bundle<br>";
         //E_DEBUG
 
-        // Keeps track of whether or not there was a problem.
-        boolean success = true;
-        
-        // Split up the bundle into it's constituent components. 
-        String[] eartifacts = bundle.trim().split( "\\n" );
-        
-        // We want to make sure that no other threads are access the buffer.
+        // Add each of the e-artifacts to the buffer. The buffer takes care of
+        // concurrent deposits, so there's no need to lock anything here.
+        EArtifactSpool spool = EEArtifactDepot.spool;
+        long ticket = 0;
+        int accepted = 0;
+        long acceptedBytes = 0;
+        String eartifact;
+        while( (eartifact = eartifacts.readEArtifact()) != null )
+        {
 
-        synchronized( eartifactsBuffer )
+            //B_DEBUG
+            //messages += "Adding [" + eartifact + "] to buffer<br>";
+            //E_DEBUG
+            BufferedEArtifact buffered = 
+                new BufferedEArtifact( eartifact, System.nanoTime() );
+            if( null != spool )
+            {
+                ticket = spool.append( buffered );
+            }
+            else
+            {
+                eartifactsBuffer.add( buffered );
+                flushScheduler.deposited( eartifactsBuffer.size() );
+            }
+            accepted++;
+            acceptedBytes += eartifact.length() + 1;
+        }
 
+        AdmissionController admission = EEArtifactDepot.admission;
+        if( null != admission )
         {
-            //                System.out.println( 
-            //                        "processEArtifacts has eartifactsBuffer lock." );
-            // Add each of the e-artifacts to the buffer.
-            for( int i = 0; i < eartifacts.length; i++ )
-            {
+            admission.deposited( accepted, acceptedBytes );
+        }
 
-                //B_DEBUG
-                //messages += "Adding [" + eartifacts[i] + "] to buffer<br>";
-                //E_DEBUG
-//                if( !eartifacts[i].equals( "" ) )
-//                {
-                    eartifactsBuffer.add( eartifacts[i] );
-//                }
-            }
-            //                System.out.println( "processEArtifacts about to release " +
-            //                		"eartifactsBuffer lock." );
+        // Don't acknowledge spooled e-artifacts until they're on disk. The
+        // wait is shared with every other deposit made in the meantime.
+        if( null != spool && accepted > 0 )
+        {
+            spool.sync( ticket );
+            flushScheduler.deposited( getFlushableCount() );
         }
-        //            System.out.println( "processEArtifacts has released " +
-        //            		"eartifactsBuffer lock." );
 
-        return success;
+        return accepted;
     }
 
     
     
     /**
-     * Joins all of the e-artifacts in the eartifactsBuffer list into a string.
-     * 
-     * @return A string consisting of all of the e-artifacts in the 
-     * eartifactsBuffer list.
+     * @return The number of e-artifacts waiting in the buffer (or the spool).
      */
-    private String printEArtifacts() 
+    static long getBufferSize()
     {
-        String ret = "";
+        EArtifactSpool spool = EEArtifactDepot.spool;
+        return null != spool ? spool.getUnreadCount() : eartifactsBuffer.size();
+    }
 
-        synchronized( eartifactsBuffer ) 
-        {
-            Iterator<String> i = eartifactsBuffer.iterator(); 
-            while (i.hasNext())
-            {
-                ret += i.next() + "<br>";
-            }
-        }
+    /**
+     * @return The number of e-artifacts the next flush would send.
+     */
+    private static int getFlushableCount()
+    {
+        EArtifactSpool spool = EEArtifactDepot.spool;
+        return null != spool ? 
+            (int) spool.getReadableCount() : eartifactsBuffer.size();
+    }
+
+    /**
+     * @return A copy of the e-artifacts waiting in the in-memory buffer (this
+     *      doesn't include the spool). This is for debugging only; it copies
+     *      the whole buffer.
+     */
+    static List<BufferedEArtifact> getBufferSnapshot()
+    {
+        return eartifactsBuffer.snapshot();
+    }
 
-        return ret;
+    /**
+     * @return The number of bundles waiting to be sent.
+     */
+    static int getPendingBundles()
+    {
+        return dispatcher.getPendingBundles();
     }
 
+    /**
+     * @return The sequence number given to the latest deposit.
+     */
+    static long getLastSequence()
+    {
+        return depositSequence.get();
+    }
+    
     
     /**
-     * Attempts to flush and then reset the eartifactsBuffer list.
-     * 
-     * <b>NOTE: Make sure you call this in a synchronized block w.r.t. the
-     * eartifactsBuffer object.</b>
+     * Empties the eartifactsBuffer list, bundles its contents and hands the
+     * bundles to the dispatcher. This doesn't wait for the bundles to be
+     * sent; any that can't be delivered find their way back into the buffer.
      * 
-     * @return <code>true</code> if the flush was success and the list was
-     *      reset.
+     * @return <code>true</code> once the bundles have been dispatched.
      */
-    private boolean flushEArtifacts()
+    private static boolean flushEArtifacts()
     {
-//        System.out.println( "Flushing..." );
         //B_DEBUG
         //messages += "Flushing artifacts<br>";
         //E_DEBUG
 
-        // Keeps track of whether we successfully flushed and reset th
-        // eartifactsBuffer list.
-        boolean flushSuccess = false;
-     
-        //String[] currentBuffer;
-        List<String> currentBuffer = new ArrayList<String>();
-        synchronized( eartifactsBuffer )
+        EArtifactSpool spool = EEArtifactDepot.spool;
+
+        // Swap out the current contents of the buffer; new deposits go into
+        // a fresh buffer while we send these along. With a spool, read as
+        // much as can be out for delivery at once.
+        List<BufferedEArtifact> currentBuffer;
+        if( null != spool )
         {
-//            System.out.println( "flushEArtifacts has eartifactsBuffer lock." );
-            //currentBuffer = new String[eartifactsBuffer.size()];
-            for( String eartifact : eartifactsBuffer )
+            try
+            {
+                currentBuffer = spool.read( Integer.MAX_VALUE );
+            } catch( IOException e )
             {
-                currentBuffer.add( eartifact );
+                logger.log( Level.SEVERE, "Couldn't read the spool", e );
+                return false;
             }
-            eartifactsBuffer.clear();
-            
-//            System.out.println( "flushEArtifacts about to release eartifactsBuffer lock." );
-        }
-//        System.out.println( "flushEArtifacts has released eartifactsBuffer lock." );
-        
-        if( bundleAndSendEArtifacts( currentBuffer ) )
-        {
-            
-            //B_DEBUG
-            //messages += "Bundling and sending successful; buffer size: " +
-            //    eartifactsBuffer.size() + "<br>";
-            //E_DEBUG
-            
-            flushSuccess = true;
         }
         else
         {
-            //B_DEBUG
-            //messages += "Bundling and sending FAILED<br>";
-            //E_DEBUG
-            synchronized( eartifactsBuffer )
-            {
-//                System.out.println( "flushEArtifacts has eartifactsBuffer lock." );
-
-                for( String eartifact : currentBuffer )
-                {
-                    eartifactsBuffer.add( eartifact ); 
-                }
-//                System.out.println( "flushEArtifacts about to return eartifactsBuffer lock." );
-            }
-//            System.out.println( "flushEArtifacts has returned eartifactsBuffer lock." );
-            
-//            System.err.println( "bundleAndsendArtifacts() returned 'false'." );
+            currentBuffer = eartifactsBuffer.drain();
         }
         
+        // Don't hang on to forwarding connections nobody is using.
+        ForwardingClient.getInstance().closeIdleConnections();
         
+        bundleAndSendEArtifacts( currentBuffer );
+
+        // If some had to stay in the spool, come back for them.
+        if( null != spool && spool.getUnreadCount() > 0 )
+        {
+            flushScheduler.backlogged();
+        }
         
-        return flushSuccess;
+        return true;
     }
     
     
     /**
-     * Randomly divides the eartifactsBuffer list into bundles (whose size is
-     * dictated by Constants.MAX_BUNDLE_SIZE) and then sends each bundle to
-     * another anonymizer or the server (randomly). 
+     * Appends a bundle that couldn't be delivered back onto the spool, and
+     * only then lets go of the copies it was read from. If that fails, the
+     * copies are kept and will be sent again after a restart.
      *
-     * <b>NOTE: Make sure you call this in a synchronized block w.r.t. the
-     * eartifactsBuffer object.</b>
+     * @param bundle The undelivered bundle.
+     */
+    private static void respool( Bundle bundle )
+    {
+        try
+        {
+            long ticket = 0;
+            for( BufferedEArtifact eartifact : bundle.unbundle() )
+            {
+                ticket = spool.append( eartifact );
+            }
+            spool.sync( ticket );
+            bundle.release();
+        } catch( IOException e )
+        {
+            logger.log( Level.SEVERE, "Couldn't put a bundle back in the " +
+                    "spool", e );
+        }
+    }
+
+
+    /**
+     * Randomly divides the eartifactsBuffer list into bundles (whose size is
+     * dictated by Constants.MAX_BUNDLE_SIZE) and then dispatches each bundle
+     * to another anonymizer or the server (randomly). 
      * 
-     * @return <code>true</code> if the data was bundled and sent successfully.
+     * @param buffer The e-artifacts to send.
      */
-    private static boolean bundleAndSendEArtifacts( List<String> buffer )
+    private static void bundleAndSendEArtifacts( 
+            List<BufferedEArtifact> buffer )
     {
-        // Keeps track of whether we have successfully created and
-        // sent the bundles.
-        boolean success = true;
-        
         // Create the bundles.
-        String[] bundles = bundleEArtifacts( buffer );
+        Bundle[] bundles = bundleEArtifacts( buffer );
 
         //B_DEBUG
         //messages += "Bundles to send: " + bundles.length + "<br>";
         //E_DEBUG
        
-
- 
-        // For all our random-related adventures.
-        Random random = new Random();
-        
-        // Go through each bundle, but stop early if we are not successful.
-        for( int i = 0; i < bundles.length && success; i++ )
+        // The dispatcher decides where each bundle goes, sends them in
+        // parallel and takes care of retries.
+        for( int i = 0; i < bundles.length; i++ )
         {
-            // Decide if we should send them to the server or somewhere else.
-            if( random.nextDouble() <= Constants.PROB_OF_SENDING_TO_SERVER )
-            {
-
-                //B_DEBUG
-                //messages += "Sending bundle " + i + " to the server<br>";
-                //E_DEBUG
-
-                // Send to the server.
-                success = success &&
-                    sendEArtifacts( Constants.SERVER_URL, bundles[i] );
-            }
-            else
-            {
-                //B_DEBUG
-                //messages += "Sending bundle " + i + " to an anonymizer<br>";
-                //E_DEBUG
-                
-                // Keep trying to send the bundle to a random anonymizer until s
-                // it goe through.
-                boolean messageSent = false;
-                while( !messageSent )
-                {
-                    // Send to one of the anonymizers.
-                    int randIndex = 
-                        random.nextInt( Constants.ANONYMIZER_URLS.length );
-
-                    messageSent = 
-                        sendEArtifacts( Constants.ANONYMIZER_URLS[randIndex],
-                                bundles[i] );
-                }
-            }
+            dispatcher.dispatch( bundles[i] );
         }
-        
-        return success;
     }
     
 
@@ -361,11 +470,11 @@ public class EEArtifactDepot extends HttpServlet
      * Randomly places each of the e-artifacts in the eartifactsBuffer list in a
      * random bundle (which can have no more than Constants.MAX_BUNDLE_SIZE
      * e-artifacts in it). Each bundle is a string of e-artifacts delimited by
-     * a new line.
+     * a new line, along with the time each was deposited.
      * 
      * @return The randomly create bundles.
      */
-    private static String[] bundleEArtifacts( List<String> buffer )
+    private static Bundle[] bundleEArtifacts( List<BufferedEArtifact> buffer )
     {
 
         //B_DEBUG
@@ -384,14 +493,12 @@ public class EEArtifactDepot extends HttpServlet
         
         // Create an array to hold the bundles. Each bundle will be a string
         // consisting of e-artifacts delimited by new lines.
-        String[] bundles = new String[numberOfBundles];
-        int[] bundleSizes = new int[numberOfBundles];
+        Bundle[] bundles = new Bundle[numberOfBundles];
         
         // Initialize the bundles.
         for( int i = 0; i < bundles.length; i++ )
         {
-            bundles[i] = "";
-            bundleSizes[i] = 0;
+            bundles[i] = new Bundle( Constants.MAX_BUNDLE_SIZE + 1 );
         }
         
         // Shuffle the order of the eartifacts.
@@ -401,48 +508,30 @@ public class EEArtifactDepot extends HttpServlet
         // as soon as a bundle reaches its maximum size.
         int bundleIndex = 0;
         
-        // We'll use a string builder for each bundle so that we don't copy
-        // as much. We're starting it off pretty large.
-        StringBuilder currentBundle = new StringBuilder( 
-                500 * Constants.MAX_BUNDLE_SIZE );
-        
         // Iterate over the e-artifacts adding each to a random bundle.
-        for( String eartifact : buffer )
+        for( BufferedEArtifact eartifact : buffer )
         {
             
             // Check if the current bundle is too big; if so, move on to the
             // next bundle.
-            if( bundleSizes[bundleIndex] > Constants.MAX_BUNDLE_SIZE &&
+            if( bundles[bundleIndex].size() > Constants.MAX_BUNDLE_SIZE &&
                     (bundleIndex+1) < bundles.length )
             {
-                // Convert the bundle to a string.
-                bundles[bundleIndex] = currentBundle.toString();
-                // Reset the current bundle -- we're using the same space, 
-                // though, so that should help memory usage.
-                currentBundle.delete( 0, currentBundle.length() );
-                // Move on to the next bundle.
                 bundleIndex++;
             }
             
             // Add the current e-artifact to that bundle.
-            //bundles[bundleIndex] += eartifact+ "\n";
-            currentBundle.append( eartifact ).append( '\n' );
-            bundleSizes[bundleIndex]++;
+            bundles[bundleIndex].add( eartifact );
         }
-        // Convert the current bundle to a string and add it to the list.
-        if( bundleIndex < bundles.length )
-        {
-//            System.out.println( "bundles.length: " + bundles.length );
-            bundles[bundleIndex] = currentBundle.toString();
-        }
-        
         
         return bundles;
     }
     
     /**
      * Sends the given bundle to the url under the parameter name 'eartifacts'
-     * using the POST method.
+     * using the POST method. This goes through the shared, pooled 
+     * ForwardingClient, so connections to the other anonymizers and the 
+     * server are reused.
      * 
      * @param url       The url to send the bundle to.
      * @param bundle    The bundle of e-artifacts to send.
@@ -451,69 +540,13 @@ public class EEArtifactDepot extends HttpServlet
      */
     public static boolean sendEArtifacts( String url, String bundle )
     {
-//        System.out.println( "Sending bundle to [" + url + "]<br>" );
-        //B_DEBUG
-        //messages += "Sending bundle [" + bundle_ + "] to [" + url_ + "]<br>";
-        //E_DEBUG
-
-        // Keeps track of whether we have successfully sent the bundle.
-        boolean success = true;
-
         // If the bundle is empty, don't waste a post.
         if( bundle.equals( "" ) || bundle.equals( "\n" ) )
         {
             return true;
         }
         
-        // Create the request.
-        HttpClient client = new DefaultHttpClient();
-
-        // Create the post with the given url.
-        HttpPost method = new HttpPost( url );
-
-        // Add a parameter 'eartifacts' that holds the bundle.
-        List<NameValuePair> params = new ArrayList<NameValuePair>();
-        params.add( new BasicNameValuePair( "eartifacts", bundle ) );
-
-        HttpResponse response = null;
-
-        try
-        {
-            method.setEntity( new 
-                    UrlEncodedFormEntity( params, HTTP.UTF_8 ) );
-            response = client.execute( method );
-        }
-        catch (ClientProtocolException e)
-        {
-            //messages += "ERROR: ClientProtocolException raised<br>";
-            e.printStackTrace();
-            //success = false;
-        }
-        catch (IOException e)
-        {
-            //messages += "ERROR: IOException raised<br>";
-            e.printStackTrace();
-            //success = false;
-        }
-         
-        if( null == response )
-        {
-            success = false;
-            System.out.println( "ERROR! No response." );
-        }
-        else 
-        {
-            StatusLine status = response.getStatusLine();
-            if( null == status || 
-                    ( status.getStatusCode() < 200 || 
-                      status.getStatusCode() >= 300 )  )
-            {
-                success = false;
-                System.out.println( "ERROR! No status or is bad code." );
-            }
-        }
-
-        return success;
+        return ForwardingClient.getInstance().send( url, bundle );
     }
 
 
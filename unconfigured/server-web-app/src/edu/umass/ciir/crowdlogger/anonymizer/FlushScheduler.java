@@ -0,0 +1,209 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Decides when the depot's buffer gets flushed: as soon as it holds a
+ * threshold number of e-artifacts, or once the oldest e-artifact in it has
+ * waited a maximum amount of time, whichever comes first. Nothing is
+ * scheduled while the buffer is empty, so an idle anonymizer doesn't wake up
+ * at all.
+ *
+ * The depot tells the scheduler about every deposit through
+ * {@link #deposited(int)}. The first deposit after a flush arms a timer for
+ * the maximum age; that deposit is the oldest one in the buffer, so every
+ * e-artifact gets flushed within the maximum age of its arrival.
+ */
+public class FlushScheduler
+{
+    private final Runnable flush;
+    private final int sizeThreshold;
+    private final long maxAge;
+
+    private volatile ScheduledExecutorService executor = null;
+    private final AtomicBoolean flushPending = new AtomicBoolean( false );
+    // The age timer, if one is armed; only set or cleared holding
+    // timerLock, so two deposits can't both arm one.
+    private final Object timerLock = new Object();
+    private volatile ScheduledFuture<?> timer = null;
+
+    private static final Counter sizeFlushes =
+        Metrics.counter( "anonymizer.flush.by_size" );
+    private static final Counter ageFlushes =
+        Metrics.counter( "anonymizer.flush.by_age" );
+
+    private static final Logger logger =
+        Logger.getLogger( FlushScheduler.class.getName() );
+
+    /**
+     * Creates a scheduler; nothing happens until {@link #start()}.
+     *
+     * @param flush Flushes the buffer.
+     * @param sizeThreshold The buffer size that triggers an immediate flush.
+     * @param maxAge The longest, in milliseconds, an e-artifact should wait
+     *      in the buffer.
+     */
+    public FlushScheduler( Runnable flush, int sizeThreshold, long maxAge )
+    {
+        this.flush = flush;
+        this.sizeThreshold = sizeThreshold;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Starts the flush thread. Deposits made before this aren't seen: if
+     * the buffer already holds e-artifacts (e.g., recovered from a spool),
+     * call {@link #deposited(int)} with its size afterwards so a flush is
+     * scheduled for them.
+     */
+    public synchronized void start()
+    {
+        if( null != executor )
+        {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread( Runnable runnable )
+                {
+                    Thread thread = new Thread( runnable, "depot-flush" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            });
+        logger.info( "Flushing at " + sizeThreshold + " e-artifacts or " +
+                maxAge + "ms, whichever comes first." );
+    }
+
+    /**
+     * Stops the scheduler. Whatever is left in the buffer stays there.
+     */
+    public synchronized void stop()
+    {
+        if( null != executor )
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tells the scheduler that e-artifacts were just added to the buffer.
+     *
+     * @param bufferSize The size of the buffer after the deposit.
+     */
+    public void deposited( int bufferSize )
+    {
+        ScheduledExecutorService executor = this.executor;
+        if( null == executor )
+        {
+            return;
+        }
+
+        try
+        {
+            if( bufferSize >= sizeThreshold )
+            {
+                if( flushPending.compareAndSet( false, true ) )
+                {
+                    sizeFlushes.increment();
+                    executor.execute( flushTask );
+                }
+            }
+            else
+            {
+                armTimer( executor );
+            }
+        }
+        catch( RejectedExecutionException e )
+        {
+            // We've been stopped.
+        }
+    }
+
+    /**
+     * Tells the scheduler that the last flush left e-artifacts behind (e.g.,
+     * because too many were still out for delivery), so another flush should
+     * happen within the maximum age even if nothing else is deposited.
+     */
+    public void backlogged()
+    {
+        ScheduledExecutorService executor = this.executor;
+        if( null == executor )
+        {
+            return;
+        }
+
+        try
+        {
+            armTimer( executor );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // We've been stopped.
+        }
+    }
+
+    private void armTimer( ScheduledExecutorService executor )
+    {
+        if( null != timer )
+        {
+            return;
+        }
+        synchronized( timerLock )
+        {
+            if( null == timer )
+            {
+                timer = executor.schedule( ageFlushTask, maxAge,
+                        TimeUnit.MILLISECONDS );
+            }
+        }
+    }
+
+    private final Runnable ageFlushTask = new Runnable() {
+        public void run()
+        {
+            ageFlushes.increment();
+            flushTask.run();
+        }
+    };
+
+    private final Runnable flushTask = new Runnable() {
+        public void run()
+        {
+            // Clear the triggers before draining, so that anything deposited
+            // from here on arms a new timer (or a new size flush) for itself.
+            flushPending.set( false );
+            ScheduledFuture<?> armed;
+            synchronized( timerLock )
+            {
+                armed = timer;
+                timer = null;
+            }
+            if( null != armed )
+            {
+                armed.cancel( false );
+            }
+
+            try
+            {
+                flush.run();
+            }
+            catch( RuntimeException e )
+            {
+                logger.log( Level.SEVERE, "Flush failed", e );
+            }
+        }
+    };
+}
@@ -0,0 +1,260 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.StatusLine;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import edu.umass.ciir.crowdlogger.Constants;
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Gauge;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Forwards bundles of e-artifacts to other anonymizers and the server over a
+ * shared pool of keep-alive connections. There is one instance per web app;
+ * use {@link #getInstance()} to get it. The pool is sized and timed out
+ * according to the FORWARD_* settings in {@link Constants}.
+ */
+public class ForwardingClient
+{
+    private static ForwardingClient instance = null;
+
+    private final ThreadSafeClientConnManager connectionManager;
+    private final DefaultHttpClient client;
+    private final long keepAlive;
+
+    private static final Counter forwardsSent =
+        Metrics.counter( "anonymizer.forward.sent" );
+    private static final Counter forwardsFailed =
+        Metrics.counter( "anonymizer.forward.failed" );
+    private static final Histogram forwardMicros =
+        Metrics.histogram( "anonymizer.forward.micros" );
+
+    private static final Logger logger =
+        Logger.getLogger( ForwardingClient.class.getName() );
+
+    /**
+     * Returns the shared client, creating it if need be.
+     *
+     * @return The shared client.
+     */
+    public static synchronized ForwardingClient getInstance()
+    {
+        if( null == instance )
+        {
+            instance = new ForwardingClient(
+                    Constants.FORWARD_MAX_CONNECTIONS,
+                    Constants.FORWARD_MAX_CONNECTIONS_PER_ROUTE,
+                    Constants.FORWARD_CONNECT_TIMEOUT,
+                    Constants.FORWARD_SOCKET_TIMEOUT,
+                    Constants.FORWARD_KEEP_ALIVE );
+        }
+        return instance;
+    }
+
+    /**
+     * Closes the shared client's connections. A later call to
+     * {@link #getInstance()} creates a new one.
+     */
+    public static synchronized void shutdownInstance()
+    {
+        if( null != instance )
+        {
+            instance.shutdown();
+            instance = null;
+        }
+    }
+
+    /**
+     * Creates a client with its own connection pool.
+     *
+     * @param maxConnections The most connections to keep open in total.
+     * @param maxConnectionsPerRoute The most connections to keep open to any
+     *      one host.
+     * @param connectTimeout Milliseconds to wait for a connection to open
+     *      (and for a pooled connection to become free).
+     * @param socketTimeout Milliseconds to wait for a response.
+     * @param keepAlive Milliseconds to keep an idle connection open, unless
+     *      the other end says otherwise.
+     */
+    public ForwardingClient( int maxConnections, int maxConnectionsPerRoute,
+            int connectTimeout, int socketTimeout, final long keepAlive )
+    {
+        this.keepAlive = keepAlive;
+
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections( params, maxConnections );
+        ConnManagerParams.setMaxConnectionsPerRoute( params,
+                new ConnPerRouteBean( maxConnectionsPerRoute ) );
+        ConnManagerParams.setTimeout( params, connectTimeout );
+        HttpConnectionParams.setConnectionTimeout( params, connectTimeout );
+        HttpConnectionParams.setSoTimeout( params, socketTimeout );
+        HttpConnectionParams.setStaleCheckingEnabled( params, true );
+        HttpProtocolParams.setVersion( params, HttpVersion.HTTP_1_1 );
+        HttpProtocolParams.setContentCharset( params, HTTP.UTF_8 );
+
+        SchemeRegistry schemes = new SchemeRegistry();
+        schemes.register( new Scheme( "http",
+                PlainSocketFactory.getSocketFactory(), 80 ) );
+        schemes.register( new Scheme( "https",
+                SSLSocketFactory.getSocketFactory(), 443 ) );
+
+        connectionManager = new ThreadSafeClientConnManager( params, schemes );
+        client = new DefaultHttpClient( connectionManager, params );
+
+        // Honor the other end's Keep-Alive timeout if it gives one;
+        // otherwise use ours.
+        client.setKeepAliveStrategy( new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration( HttpResponse response,
+                    HttpContext context )
+            {
+                HeaderElementIterator it = new BasicHeaderElementIterator(
+                        response.headerIterator( HTTP.CONN_KEEP_ALIVE ) );
+                while( it.hasNext() )
+                {
+                    HeaderElement element = it.nextElement();
+                    if( "timeout".equalsIgnoreCase( element.getName() ) &&
+                            null != element.getValue() )
+                    {
+                        try
+                        {
+                            return Math.min( keepAlive,
+                                Long.parseLong( element.getValue() ) * 1000 );
+                        } catch( NumberFormatException e )
+                        {
+                            // Fall through to our default.
+                        }
+                    }
+                }
+                return keepAlive;
+            }
+        });
+
+        Metrics.gauge( "anonymizer.forward.pool.connections", new Gauge() {
+            public long getValue()
+            {
+                return connectionManager.getConnectionsInPool();
+            }
+        });
+
+        logger.info( "Forwarding client created: " + maxConnections +
+                " connections (" + maxConnectionsPerRoute + " per route)" );
+    }
+
+    /**
+     * Sends the given bundle to the url under the parameter name
+     * 'eartifacts' using the POST method. The response is always read to the
+     * end so the connection can go back into the pool.
+     *
+     * @param url       The url to send the bundle to.
+     * @param bundle    The bundle of e-artifacts to send.
+     *
+     * @return <code>true</code> if the other end responded with a 2xx code.
+     */
+    public boolean send( String url, String bundle )
+    {
+        long start = System.nanoTime();
+        boolean success = false;
+
+        HttpPost method = new HttpPost( url );
+        List<NameValuePair> params = new ArrayList<NameValuePair>( 1 );
+        params.add( new BasicNameValuePair( "eartifacts", bundle ) );
+
+        try
+        {
+            method.setEntity( new UrlEncodedFormEntity( params, HTTP.UTF_8 ) );
+            HttpResponse response = client.execute( method );
+
+            StatusLine status = response.getStatusLine();
+            success = null != status &&
+                status.getStatusCode() >= 200 && status.getStatusCode() < 300;
+
+            // Reading the body to the end releases the connection.
+            HttpEntity entity = response.getEntity();
+            if( null != entity )
+            {
+                entity.consumeContent();
+            }
+
+            if( !success )
+            {
+                logger.warning( "Forward to " + url + " failed: " + status );
+            }
+        }
+        catch( IOException e )
+        {
+            // Drop the connection rather than returning it to the pool in
+            // an unknown state.
+            method.abort();
+            logger.warning( "Forward to " + url + " failed: " + e );
+        }
+        catch( RuntimeException e )
+        {
+            method.abort();
+            throw e;
+        }
+        finally
+        {
+            forwardMicros.record( (System.nanoTime() - start) / 1000 );
+            if( success )
+            {
+                forwardsSent.increment();
+            }
+            else
+            {
+                forwardsFailed.increment();
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * Closes connections that the other end has expired or that have sat
+     * idle for longer than the keep-alive period. Call this periodically.
+     */
+    public void closeIdleConnections()
+    {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections( keepAlive,
+                TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Closes all of the pool's connections.
+     */
+    public void shutdown()
+    {
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,190 @@
+package edu.umass.ciir.crowdlogger.anonymizer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A multi-producer buffer that never makes producers wait on one another.
+ * Items are spread over a number of shards (one per core, rounded up to a
+ * power of two) picked by the id of the adding thread. Each shard holds a
+ * generation: a lock-free queue plus a count of producers that are currently
+ * adding to it. Draining swaps every shard's generation out for an empty one
+ * and then waits for the (very short) adds that were already under way on the
+ * old generations to land, so nothing is lost and no add ever blocks.
+ *
+ * @param <E> The type of item being buffered.
+ */
+public class ShardedBuffer<E>
+{
+    /**
+     * One shard's current contents.
+     */
+    private static class Generation<E>
+    {
+        final ConcurrentLinkedQueue<E> items = new ConcurrentLinkedQueue<E>();
+        final AtomicInteger writers = new AtomicInteger( 0 );
+        final AtomicInteger size = new AtomicInteger( 0 );
+    }
+
+    private final AtomicReference<Generation<E>>[] shards;
+    private final int shardMask;
+
+    /**
+     * Creates a buffer with one shard per available processor.
+     */
+    public ShardedBuffer()
+    {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Creates a buffer with at least the given number of shards (this is
+     * rounded up to the next power of two).
+     *
+     * @param minShards The minimum number of shards to create.
+     */
+    public ShardedBuffer( int minShards )
+    {
+        int numberOfShards = 1;
+        while( numberOfShards < minShards )
+        {
+            numberOfShards <<= 1;
+        }
+
+        shards = newShards( numberOfShards );
+        for( int i = 0; i < shards.length; i++ )
+        {
+            shards[i] = new AtomicReference<Generation<E>>(
+                    new Generation<E>() );
+        }
+        shardMask = numberOfShards - 1;
+    }
+
+    /**
+     * Makes the array of shards. Java can't create an array of a generic
+     * type, so it's created raw; it only ever holds references to
+     * Generation&lt;E&gt;.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <E> AtomicReference<Generation<E>>[] newShards( int size )
+    {
+        return new AtomicReference[size];
+    }
+
+    /**
+     * Adds an item to the calling thread's shard. This never blocks.
+     *
+     * @param item The item to add.
+     */
+    public void add( E item )
+    {
+        AtomicReference<Generation<E>> shard =
+            shards[(int) Thread.currentThread().getId() & shardMask];
+
+        while( true )
+        {
+            Generation<E> generation = shard.get();
+
+            // Announce ourselves, then make sure the generation wasn't
+            // swapped out from under us before we did. If it was, the drainer
+            // may already be done with it, so start over on the new one.
+            generation.writers.incrementAndGet();
+            if( shard.get() != generation )
+            {
+                generation.writers.decrementAndGet();
+                continue;
+            }
+
+            generation.items.add( item );
+            generation.size.incrementAndGet();
+            generation.writers.decrementAndGet();
+            return;
+        }
+    }
+
+    /**
+     * Adds all of the given items.
+     *
+     * @param items The items to add.
+     */
+    public void addAll( Collection<? extends E> items )
+    {
+        for( E item : items )
+        {
+            add( item );
+        }
+    }
+
+    /**
+     * Returns the approximate number of buffered items. Adds and drains that
+     * are running concurrently may or may not be reflected.
+     *
+     * @return The number of items in the buffer.
+     */
+    public int size()
+    {
+        int size = 0;
+        for( int i = 0; i < shards.length; i++ )
+        {
+            size += shards[i].get().size.get();
+        }
+        return size;
+    }
+
+    /**
+     * Empties the buffer by swapping each shard for a fresh one. The cost of
+     * the swap doesn't depend on how many items are buffered; the items are
+     * only copied into the returned list after the buffer is already
+     * accepting new adds again.
+     *
+     * @return Everything that was in the buffer.
+     */
+    public List<E> drain()
+    {
+        List<Generation<E>> drained = new ArrayList<Generation<E>>(
+                shards.length );
+        int size = 0;
+        for( int i = 0; i < shards.length; i++ )
+        {
+            Generation<E> old = shards[i].getAndSet( new Generation<E>() );
+            drained.add( old );
+        }
+
+        // Wait for any adds that had already committed to an old generation.
+        for( Generation<E> old : drained )
+        {
+            while( old.writers.get() != 0 )
+            {
+                Thread.yield();
+            }
+            size += old.size.get();
+        }
+
+        List<E> items = new ArrayList<E>( size );
+        for( Generation<E> old : drained )
+        {
+            items.addAll( old.items );
+        }
+        return items;
+    }
+
+    /**
+     * Returns a weakly consistent copy of the buffer's contents without
+     * removing anything.
+     *
+     * @return The items currently in the buffer.
+     */
+    public List<E> snapshot()
+    {
+        List<E> items = new ArrayList<E>( size() );
+        for( int i = 0; i < shards.length; i++ )
+        {
+            items.addAll( shards[i].get().items );
+        }
+        return items;
+    }
+}
@@ -0,0 +1,637 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Pulls the fields of e-artifacts and ee-artifacts out of their JSON
+ * without building a JSONObject. The known fields' values are copied into
+ * buffers that are reused from one record to the next, so reading a record
+ * allocates nothing; other fields are skipped over. A field can be read as
+ * a CharSequence that's only good until the next record, or copied into a
+ * String.
+ *
+ * Only a flat object of the strict JSON that JSONObject.toString writes is
+ * read this way. Anything else -- single quotes, unquoted or nested values,
+ * escapes in names, known fields with values that aren't what they usually
+ * are, repeated known fields -- is handed to JSONObject, and its fields are
+ * read from that, so the values (and the exceptions) are the same as with
+ * JSONObject either way.
+ *
+ * Not safe to share between threads.
+ */
+public class EArtifactFields
+{
+    /** An ee-artifact's RSA-encrypted AES key. */
+    public static final int RSA_PROTECTED_KEY = 0;
+    /** An ee-artifact's AES-encrypted e-artifact. */
+    public static final int ENCRYPTED_DATA = 1;
+    /** An e-artifact's primary cipher text. */
+    public static final int PRIMARY_CIPHER_TEXT = 2;
+    /** An e-artifact's secondary cipher text. */
+    public static final int SECONDARY_CIPHER_TEXT = 3;
+    /** An e-artifact's experiment id. */
+    public static final int EXPERIMENT_ID = 4;
+    /** An e-artifact's k; the only field read as a number. */
+    public static final int K = 5;
+    /** An e-artifact's x. */
+    public static final int X = 6;
+    /** An e-artifact's y. */
+    public static final int Y = 7;
+
+    private static final String[] NAMES = { "rsa_protected_key",
+        "encrypted_data", "primary_cipher_text", "secondary_cipher_text",
+        "experiment_id", "k", "x", "y" };
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * A field's value, in a buffer that's reused.
+     */
+    private static class Field implements CharSequence
+    {
+        char[] chars = new char[64];
+        int length;
+        boolean present;
+
+        void append( char c )
+        {
+            if( length == chars.length )
+            {
+                char[] grown = new char[chars.length * 2];
+                System.arraycopy( chars, 0, grown, 0, length );
+                chars = grown;
+            }
+            chars[length++] = c;
+        }
+
+        void set( String value )
+        {
+            length = 0;
+            for( int i = 0; i < value.length(); i++ )
+            {
+                append( value.charAt( i ) );
+            }
+            present = true;
+        }
+
+        public char charAt( int index )
+        {
+            if( index >= length )
+            {
+                throw new IndexOutOfBoundsException( "" + index );
+            }
+            return chars[index];
+        }
+
+        public int length()
+        {
+            return length;
+        }
+
+        public CharSequence subSequence( int start, int end )
+        {
+            return toString().substring( start, end );
+        }
+
+        public String toString()
+        {
+            return new String( chars, 0, length );
+        }
+    }
+
+    /**
+     * The bytes of a slice as characters; any byte that isn't ASCII is
+     * marked so the record goes to JSONObject, which decodes UTF-8.
+     */
+    private static class ByteChars implements CharSequence
+    {
+        ByteBuffer bytes;
+        int start;
+        int length;
+
+        public char charAt( int index )
+        {
+            byte b = bytes.get( start + index );
+            return b < 0 ? NOT_ASCII : (char) b;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+
+        public CharSequence subSequence( int from, int to )
+        {
+            return toString().substring( from, to );
+        }
+
+        public String toString()
+        {
+            byte[] copy = new byte[length];
+            for( int i = 0; i < length; i++ )
+            {
+                copy[i] = bytes.get( start + i );
+            }
+            return new String( copy, UTF8 );
+        }
+    }
+
+    // Stands in for a byte of a multi-byte character; never valid here.
+    private static final char NOT_ASCII = '\uffff';
+
+    private final Field[] fields = new Field[NAMES.length];
+    private final ByteChars byteChars = new ByteChars();
+    // The k, and whether it's a number (only used if it's present).
+    private int k;
+    private boolean kIsInt;
+    private boolean fullyParsed;
+
+    // The record being read, and where.
+    private CharSequence in;
+    private int at;
+    // Where the names of the unknown fields start and end, to find repeats.
+    private int[] unknownNames = new int[16];
+    private int unknownCount;
+
+    private static final Counter fast =
+        Metrics.counter( "json.fields.fast" );
+    private static final Counter fallbacks =
+        Metrics.counter( "json.fields.fallbacks" );
+
+    public EArtifactFields()
+    {
+        for( int i = 0; i < fields.length; i++ )
+        {
+            fields[i] = new Field();
+        }
+    }
+
+    /**
+     * Reads a record.
+     *
+     * @param text The JSON object.
+     *
+     * @throws JSONException If JSONObject couldn't read it either.
+     */
+    public void parse( CharSequence text ) throws JSONException
+    {
+        in = text;
+        try
+        {
+            if( read() )
+            {
+                fullyParsed = false;
+                fast.increment();
+                return;
+            }
+        } finally {
+            in = null;
+        }
+        fallbacks.increment();
+        fallBack( new JSONObject( text.toString() ) );
+    }
+
+    /**
+     * Reads a record from a slice of UTF-8, like a line from
+     * {@link MappedLineReader}. The slice's position isn't moved.
+     *
+     * @param slice The JSON object, between the slice's position and
+     *      limit.
+     *
+     * @throws JSONException If JSONObject couldn't read it either.
+     */
+    public void parse( ByteBuffer slice ) throws JSONException
+    {
+        byteChars.bytes = slice;
+        byteChars.start = slice.position();
+        byteChars.length = slice.remaining();
+        try
+        {
+            parse( byteChars );
+        } finally {
+            byteChars.bytes = null;
+        }
+    }
+
+    /**
+     * @param field One of the field constants.
+     *
+     * @return Whether the record has the field.
+     */
+    public boolean has( int field )
+    {
+        return fields[field].present;
+    }
+
+    /**
+     * Gets a field's value, as JSONObject.getString would have it, without
+     * copying it.
+     *
+     * @param field One of the field constants.
+     *
+     * @return The value, which is only good until the next record is read.
+     *
+     * @throws JSONException If the record doesn't have the field.
+     */
+    public CharSequence get( int field ) throws JSONException
+    {
+        if( !fields[field].present )
+        {
+            throw new JSONException( "JSONObject[" +
+                    JSONObject.quote( NAMES[field] ) + "] not found." );
+        }
+        return fields[field];
+    }
+
+    /**
+     * Gets a field's value, as JSONObject.getString would have it.
+     *
+     * @param field One of the field constants.
+     *
+     * @return The value.
+     *
+     * @throws JSONException If the record doesn't have the field.
+     */
+    public String getString( int field ) throws JSONException
+    {
+        return get( field ).toString();
+    }
+
+    /**
+     * Gets the value of k, as JSONObject.getInt would have it.
+     *
+     * @param field {@link #K}.
+     *
+     * @return The value.
+     *
+     * @throws JSONException If the record doesn't have the field, or it
+     *      isn't a number.
+     */
+    public int getInt( int field ) throws JSONException
+    {
+        get( field );
+        if( field != K || !kIsInt )
+        {
+            throw new JSONException( "JSONObject[" +
+                    JSONObject.quote( NAMES[field] ) + "] is not a number." );
+        }
+        return k;
+    }
+
+    /**
+     * @return Whether the last record had to be read with JSONObject.
+     */
+    public boolean wasFullyParsed()
+    {
+        return fullyParsed;
+    }
+
+    /**
+     * Takes the known fields from a record JSONObject has read.
+     */
+    private void fallBack( JSONObject record )
+    {
+        for( int i = 0; i < fields.length; i++ )
+        {
+            fields[i].present = false;
+            if( record.has( NAMES[i] ) )
+            {
+                fields[i].set( record.opt( NAMES[i] ).toString() );
+            }
+        }
+        try
+        {
+            k = record.getInt( NAMES[K] );
+            kIsInt = true;
+        } catch( JSONException e ) {
+            kIsInt = false;
+        }
+        fullyParsed = true;
+    }
+
+    /**
+     * Reads the record in strict JSON.
+     *
+     * @return <code>false</code> if it isn't, or it has something that's
+     *      left to JSONObject.
+     */
+    private boolean read()
+    {
+        for( Field field : fields )
+        {
+            field.present = false;
+            field.length = 0;
+        }
+        kIsInt = false;
+        unknownCount = 0;
+        at = 0;
+
+        skipSpace();
+        if( !take( '{' ) )
+        {
+            return false;
+        }
+        skipSpace();
+        if( take( '}' ) )
+        {
+            return true;
+        }
+        while( true )
+        {
+            int field = readName();
+            if( field == -2 )
+            {
+                return false;
+            }
+            skipSpace();
+            if( !take( ':' ) )
+            {
+                return false;
+            }
+            skipSpace();
+            if( field >= 0 && fields[field].present )
+            {
+                // JSONObject rejects repeated names.
+                return false;
+            }
+
+            boolean read;
+            if( field == K )
+            {
+                read = readInt();
+            }
+            else if( at < in.length() && in.charAt( at ) == '"' )
+            {
+                read = readString( field < 0 ? null : fields[field] );
+            }
+            else
+            {
+                // Only unknown fields are expected to have other values.
+                read = field < 0 && skipToken();
+            }
+            if( !read )
+            {
+                return false;
+            }
+            if( field >= 0 )
+            {
+                fields[field].present = true;
+            }
+
+            skipSpace();
+            if( take( '}' ) )
+            {
+                // Anything after the object is ignored, as JSONObject does.
+                return true;
+            }
+            if( !take( ',' ) )
+            {
+                return false;
+            }
+            skipSpace();
+        }
+    }
+
+    /**
+     * Reads a quoted name.
+     *
+     * @return The field, -1 for one that isn't known, or -2 if the name
+     *      isn't a plain quoted string or is an unknown one seen before.
+     */
+    private int readName()
+    {
+        if( !take( '"' ) )
+        {
+            return -2;
+        }
+        int start = at;
+        int length = in.length();
+        while( at < length && in.charAt( at ) != '"' )
+        {
+            char c = in.charAt( at );
+            if( c == '\\' || c == '\n' || c == '\r' || c == 0 ||
+                    c == NOT_ASCII )
+            {
+                return -2;
+            }
+            at++;
+        }
+        if( at == length )
+        {
+            return -2;
+        }
+        int end = at++;
+        for( int field = 0; field < NAMES.length; field++ )
+        {
+            String name = NAMES[field];
+            if( name.length() != end - start )
+            {
+                continue;
+            }
+            int i = 0;
+            while( i < name.length() && name.charAt( i ) ==
+                    in.charAt( start + i ) )
+            {
+                i++;
+            }
+            if( i == name.length() )
+            {
+                return field;
+            }
+        }
+        return isRepeat( start, end ) ? -2 : -1;
+    }
+
+    /**
+     * Notes the name of an unknown field.
+     *
+     * @return Whether it's already been seen.
+     */
+    private boolean isRepeat( int start, int end )
+    {
+        for( int i = 0; i < unknownCount; i += 2 )
+        {
+            int other = unknownNames[i];
+            if( unknownNames[i + 1] - other != end - start )
+            {
+                continue;
+            }
+            int j = 0;
+            while( j < end - start && in.charAt( other + j ) ==
+                    in.charAt( start + j ) )
+            {
+                j++;
+            }
+            if( j == end - start )
+            {
+                return true;
+            }
+        }
+        if( unknownCount == unknownNames.length )
+        {
+            int[] grown = new int[unknownNames.length * 2];
+            System.arraycopy( unknownNames, 0, grown, 0, unknownCount );
+            unknownNames = grown;
+        }
+        unknownNames[unknownCount++] = start;
+        unknownNames[unknownCount++] = end;
+        return false;
+    }
+
+    /**
+     * Reads a quoted string, unescaping it into the field if there is one.
+     */
+    private boolean readString( Field field )
+    {
+        at++;
+        int length = in.length();
+        while( at < length )
+        {
+            char c = in.charAt( at++ );
+            if( c == '"' )
+            {
+                return true;
+            }
+            if( c == '\n' || c == '\r' || c == 0 || c == NOT_ASCII )
+            {
+                return false;
+            }
+            if( c == '\\' )
+            {
+                if( at >= length )
+                {
+                    return false;
+                }
+                c = in.charAt( at++ );
+                switch( c )
+                {
+                case 'b': c = '\b'; break;
+                case 't': c = '\t'; break;
+                case 'n': c = '\n'; break;
+                case 'f': c = '\f'; break;
+                case 'r': c = '\r'; break;
+                case '"': case '\'': case '\\': case '/': break;
+                case 'u':
+                    if( at + 4 > length )
+                    {
+                        return false;
+                    }
+                    int value = 0;
+                    for( int i = 0; i < 4; i++ )
+                    {
+                        int digit = Character.digit( in.charAt( at++ ), 16 );
+                        if( digit < 0 )
+                        {
+                            return false;
+                        }
+                        value = value << 4 | digit;
+                    }
+                    c = (char) value;
+                    break;
+                default:
+                    return false;
+                }
+            }
+            if( null != field )
+            {
+                field.append( c );
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads k as a plain integer, copying its digits into its field.
+     */
+    private boolean readInt()
+    {
+        Field field = fields[K];
+        int length = in.length();
+        int start = at;
+        long value = 0;
+        while( at < length && in.charAt( at ) >= '0' && in.charAt( at ) <= '9' )
+        {
+            value = value * 10 + (in.charAt( at++ ) - '0');
+            // Leave big numbers, signs and leading zeros to JSONObject.
+            if( at - start > 9 )
+            {
+                return false;
+            }
+        }
+        int digits = at - start;
+        if( digits == 0 || (digits > 1 && in.charAt( start ) == '0') ||
+                !endsToken() )
+        {
+            return false;
+        }
+        for( int i = start; i < at; i++ )
+        {
+            field.append( in.charAt( i ) );
+        }
+        k = (int) value;
+        kIsInt = true;
+        return true;
+    }
+
+    /**
+     * Skips an unquoted value that isn't an object or an array.
+     */
+    private boolean skipToken()
+    {
+        int start = at;
+        int length = in.length();
+        while( at < length && !endsToken() )
+        {
+            char c = in.charAt( at );
+            if( c == '{' || c == '[' || c == '"' || c == '\'' ||
+                    c == NOT_ASCII || c == '\\' || c == '/' || c == '#' ||
+                    c == ':' || c == ';' || c == '=' )
+            {
+                return false;
+            }
+            at++;
+        }
+        return at > start;
+    }
+
+    /**
+     * @return Whether the next character ends an unquoted value.
+     */
+    private boolean endsToken()
+    {
+        if( at >= in.length() )
+        {
+            return true;
+        }
+        char c = in.charAt( at );
+        return c == ',' || c == '}' || c == ']' || c <= ' ';
+    }
+
+    private void skipSpace()
+    {
+        int length = in.length();
+        // A NUL ends the text for JSONObject, so it isn't skipped.
+        while( at < length && in.charAt( at ) <= ' ' &&
+                in.charAt( at ) != 0 )
+        {
+            at++;
+        }
+    }
+
+    private boolean take( char c )
+    {
+        if( at < in.length() && in.charAt( at ) == c )
+        {
+            at++;
+            return true;
+        }
+        return false;
+    }
+}
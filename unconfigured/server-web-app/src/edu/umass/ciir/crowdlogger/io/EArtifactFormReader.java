@@ -0,0 +1,300 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Reads e-artifacts out of a URL-encoded form one line at a time, straight
+ * from the request's input stream. Only the bytes of the current e-artifact
+ * are ever held in memory, so the cost of a request no longer grows with the
+ * size of the bundle it carries (the container's
+ * <code>getParameter</code> decodes the whole form into one String).
+ *
+ * Blank lines are skipped and each e-artifact is trimmed, which matches what
+ * the servlets did with the old <code>trim().split("\\n")</code>.
+ */
+public class EArtifactFormReader
+{
+    /** The name of the form field the clients put their bundles in. */
+    public static final String EARTIFACTS_FIELD = "eartifacts";
+
+    private static final String FORM_CONTENT_TYPE =
+        "application/x-www-form-urlencoded";
+
+    // Returned by readDecoded for the form's own (unencoded) separators.
+    private static final int END_OF_STREAM = -1;
+    private static final int FIELD_SEPARATOR = -2;
+    private static final int NAME_SEPARATOR = -3;
+
+    private final InputStream in;
+    private final String fieldName;
+    private final String charset;
+    private final boolean urlEncoded;
+
+    // Where we are in the form.
+    private boolean inField;
+    private boolean fieldFound;
+    private boolean done;
+
+    // Holds the (decoded) bytes of the current line or field name.
+    private byte[] buffer;
+    private int length;
+
+    /**
+     * Creates a reader over a URL-encoded form.
+     *
+     * @param in The form, e.g., the body of a POST request.
+     * @param fieldName The field holding the e-artifacts.
+     * @param charset The character set the percent-encoded bytes are in.
+     */
+    public EArtifactFormReader( InputStream in, String fieldName,
+            String charset )
+    {
+        this( in, fieldName, charset, true );
+    }
+
+    /**
+     * Creates a reader over an already decoded field value.
+     *
+     * @param value The field's value; <code>null</code> if it was missing.
+     */
+    public EArtifactFormReader( String value ) throws IOException
+    {
+        this( new ByteArrayInputStream(
+                  null == value ? new byte[0] : value.getBytes( "UTF-8" ) ),
+              null, "UTF-8", false );
+        inField = fieldFound = ( null != value );
+        done = !fieldFound;
+    }
+
+    private EArtifactFormReader( InputStream in, String fieldName,
+            String charset, boolean urlEncoded )
+    {
+        this.in = new BufferedInputStream( in, 0x4000 );
+        this.fieldName = fieldName;
+        this.charset = charset;
+        this.urlEncoded = urlEncoded;
+        this.buffer = new byte[1024];
+        this.length = 0;
+        this.inField = false;
+        this.fieldFound = false;
+        this.done = false;
+    }
+
+    /**
+     * Creates a reader for the e-artifacts field of the given request. POSTed
+     * forms are streamed from the request body and GET requests are read
+     * from the query string. Anything else (e.g., multipart forms) is left to
+     * the container to parse.
+     *
+     * @param request The request.
+     *
+     * @return A reader over the request's e-artifacts.
+     *
+     * @throws IOException
+     */
+    public static EArtifactFormReader forRequest( HttpServletRequest request )
+        throws IOException
+    {
+        String charset = request.getCharacterEncoding();
+        if( null == charset )
+        {
+            charset = "UTF-8";
+        }
+
+        String contentType = request.getContentType();
+        if( "POST".equals( request.getMethod() ) && null != contentType &&
+                contentType.toLowerCase().startsWith( FORM_CONTENT_TYPE ) )
+        {
+            return new EArtifactFormReader( request.getInputStream(),
+                    EARTIFACTS_FIELD, charset );
+        }
+
+        if( "GET".equals( request.getMethod() ) )
+        {
+            String query = request.getQueryString();
+            return new EArtifactFormReader( new ByteArrayInputStream(
+                    null == query ? new byte[0] : query.getBytes( "US-ASCII" )),
+                    EARTIFACTS_FIELD, charset );
+        }
+
+        return new EArtifactFormReader(
+                request.getParameter( EARTIFACTS_FIELD ) );
+    }
+
+    /**
+     * Reads the next e-artifact.
+     *
+     * @return The next e-artifact, or <code>null</code> once there are no
+     *      more.
+     *
+     * @throws IOException
+     */
+    public String readEArtifact() throws IOException
+    {
+        while( !done )
+        {
+            if( !inField && !findField() )
+            {
+                done = true;
+                break;
+            }
+
+            boolean endOfField = readLine();
+            if( endOfField )
+            {
+                // Like getParameter, we only look at the first occurrence.
+                done = true;
+            }
+
+            String eartifact = new String( buffer, 0, length, charset ).trim();
+            if( !eartifact.equals( "" ) )
+            {
+                return eartifact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether the form contained the field at all. This is only
+     * accurate once {@link #readEArtifact()} has been called.
+     *
+     * @return <code>true</code> if the field was present.
+     */
+    public boolean foundField()
+    {
+        return fieldFound;
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        in.close();
+    }
+
+    /**
+     * Skips form fields until the one we want comes up, leaving the stream
+     * at the start of its value.
+     *
+     * @return <code>false</code> if the form ended without the field.
+     */
+    private boolean findField() throws IOException
+    {
+        while( true )
+        {
+            // Read the field name.
+            length = 0;
+            int b;
+            while( (b = readDecoded()) >= 0 )
+            {
+                append( b );
+            }
+
+            if( b == END_OF_STREAM && length == 0 )
+            {
+                return false;
+            }
+
+            String name = new String( buffer, 0, length, charset );
+            if( b == NAME_SEPARATOR && name.equals( fieldName ) )
+            {
+                inField = fieldFound = true;
+                return true;
+            }
+
+            // Not ours; skip over the value.
+            while( b != FIELD_SEPARATOR && b != END_OF_STREAM )
+            {
+                b = in.read();
+                if( b == '&' )
+                {
+                    b = FIELD_SEPARATOR;
+                }
+            }
+            if( b == END_OF_STREAM )
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads the next line of the field's value into the buffer.
+     *
+     * @return <code>true</code> if the field's value ended.
+     */
+    private boolean readLine() throws IOException
+    {
+        length = 0;
+        int b;
+        while( (b = readDecoded()) >= 0 )
+        {
+            if( b == '\n' )
+            {
+                return false;
+            }
+            append( b );
+        }
+        return true;
+    }
+
+    /**
+     * Reads one decoded byte. The form's own separators come back as
+     * negative values so they can't be confused with encoded data: an
+     * unencoded '&' as FIELD_SEPARATOR and, outside of a value, an
+     * unencoded '=' as NAME_SEPARATOR.
+     *
+     * @return The byte, END_OF_STREAM, or one of the separators.
+     */
+    private int readDecoded() throws IOException
+    {
+        int b = in.read();
+        if( !urlEncoded || b < 0 )
+        {
+            return b < 0 ? END_OF_STREAM : b;
+        }
+
+        switch( b )
+        {
+        case '&':
+            return FIELD_SEPARATOR;
+        case '=':
+            return inField ? b : NAME_SEPARATOR;
+        case '+':
+            return ' ';
+        case '%':
+            int high = Character.digit( in.read(), 16 );
+            int low = Character.digit( in.read(), 16 );
+            if( high < 0 || low < 0 )
+            {
+                throw new IOException( "Malformed percent-encoding in form." );
+            }
+            return (high << 4) | low;
+        default:
+            return b;
+        }
+    }
+
+    /**
+     * Appends a byte to the buffer, growing it if need be.
+     */
+    private void append( int b )
+    {
+        if( length == buffer.length )
+        {
+            byte[] bigger = new byte[buffer.length * 2];
+            System.arraycopy( buffer, 0, bigger, 0, length );
+            buffer = bigger;
+        }
+        buffer[length++] = (byte) b;
+    }
+}
@@ -0,0 +1,381 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * A compact binary alternative to a file of JSON e-artifacts, one per line,
+ * for the e-artifacts between EEArtifactDecryptor and EArtifactDecryptor.
+ * Segments are made from JSON lines and turned back into them with
+ * {@link #main(String[])}; EArtifactDecryptor reads either.
+ *
+ * A segment starts with {@link #MAGIC} and {@link #VERSION}, then has one
+ * record per e-artifact:
+ * <pre>
+ *     int     length of the rest of the record
+ *     varint  flags: which fields follow, and how
+ *     varint  experiment id: its index in the segment's experiment ids,
+ *             shifted left a bit; the low bit is set the first time it's
+ *             used, and then the id follows (varint length, UTF-8)
+ *     varint  k
+ *     cipher  primary cipher text
+ *     cipher  secondary cipher text
+ *     number  x
+ *     number  y
+ *     string  the e-artifact's other fields, as a JSON object
+ * </pre>
+ * A cipher text is normally kept as the bytes its base 64 stands for. The
+ * "Salted__" header and salt the extension puts on every one is kept once
+ * per segment: a varint, 0 for no header, or its index (from 1) in the
+ * segment's headers shifted left a bit, with the low bit set and the 16
+ * bytes following the first time it's used; then the varint length and the
+ * rest of the bytes. A number is its scale (one
+ * byte), the length of its unscaled value (one byte) and the unscaled value
+ * in two's complement, big-endian, as BigInteger.toByteArray has it. A field
+ * is only encoded this way if it would come back exactly as it was, the
+ * same characters; otherwise it's kept as text (cipher texts) or with the
+ * other fields. Varints are base 128, low bits first.
+ *
+ * After the last record is a footer, which indexes the records by the hash
+ * ({@link #hash(String)}) of their primary cipher texts:
+ * <pre>
+ *     int     number of records
+ *     int     number of experiment ids, then each (varint length, UTF-8)
+ *     int     number of headers, then each (16 bytes)
+ *     int     number of indexed records (those with a primary cipher text)
+ *     long[]  their hashes, in ascending order
+ *     long[]  the offset of each one's record, in the same order
+ *     long    offset of the footer
+ *     int     {@link #FOOTER_MAGIC}
+ * </pre>
+ * A segment without the footer wasn't finished and isn't read.
+ */
+public final class EArtifactSegment
+{
+    /** The first four bytes of a segment: "CLSG". */
+    public static final int MAGIC = 0x434c5347;
+    /** The version of the format this reads and writes. */
+    public static final int VERSION = 1;
+    /** The last four bytes of a finished segment: "CLIX". */
+    public static final int FOOTER_MAGIC = 0x434c4958;
+
+    /**
+     * Roughly how many bytes of JSON lines a byte of segment stands for, for
+     * working out how much memory the e-artifacts will take.
+     */
+    public static final int EXPANSION = 3;
+
+    // Flags.
+    static final int EXPERIMENT_ID = 0x01;
+    static final int K = 0x02;
+    static final int PRIMARY = 0x04;
+    static final int SECONDARY = 0x08;
+    static final int X = 0x10;
+    static final int Y = 0x20;
+    static final int OTHER_FIELDS = 0x40;
+    static final int PRIMARY_AS_TEXT = 0x80;
+    static final int SECONDARY_AS_TEXT = 0x100;
+
+    static final int HEADER_BYTES = 16;
+    static final int SALTED_BYTES = 8;
+    static final byte[] SALTED = { 'S', 'a', 'l', 't', 'e', 'd', '_', '_' };
+
+    static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+        .toCharArray();
+    private static final byte[] DIGITS = new byte[128];
+    static
+    {
+        Arrays.fill( DIGITS, (byte) -1 );
+        for( int i = 0; i < BASE64.length; i++ )
+        {
+            DIGITS[BASE64[i]] = (byte) i;
+        }
+    }
+
+    private static final Logger logger =
+        Logger.getLogger( EArtifactSegment.class.getName() );
+
+    private static final Counter malformed =
+        Metrics.counter( "segment.malformed" );
+
+    private EArtifactSegment()
+    {
+    }
+
+    /**
+     * A 64-bit hash of a primary cipher text (FNV-1a over its characters),
+     * which is what a segment's footer indexes records by.
+     *
+     * @param primaryCipherText The primary cipher text.
+     *
+     * @return The hash.
+     */
+    public static long hash( String primaryCipherText )
+    {
+        long h = 0xcbf29ce484222325L;
+        for( int i = 0; i < primaryCipherText.length(); i++ )
+        {
+            h ^= primaryCipherText.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @param file A file.
+     *
+     * @return Whether the file starts like a segment (rather than JSON).
+     */
+    public static boolean isSegment( File file ) throws IOException
+    {
+        if( file.length() < 4 )
+        {
+            return false;
+        }
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the e-artifacts in files of JSON lines to a segment. Lines
+     * that aren't JSON objects are logged and left out.
+     *
+     * @param jsonFiles The files of e-artifacts, one per line.
+     * @param segment The segment to write.
+     *
+     * @return The number of e-artifacts written.
+     *
+     * @throws IOException
+     */
+    public static long toSegment( File[] jsonFiles, File segment )
+        throws IOException
+    {
+        EArtifactSegmentWriter writer = new EArtifactSegmentWriter( segment );
+        try
+        {
+            for( File jsonFile : jsonFiles )
+            {
+                BufferedReader in = new BufferedReader( new InputStreamReader(
+                        new FileInputStream( jsonFile ), "UTF-8" ),
+                        64 * 1024 );
+                try
+                {
+                    String line;
+                    while( (line = in.readLine()) != null )
+                    {
+                        if( line.trim().length() == 0 )
+                        {
+                            continue;
+                        }
+                        try
+                        {
+                            writer.write( new JSONObject( line ) );
+                        } catch( JSONException e ) {
+                            malformed.increment();
+                            logger.severe( "Exception reading line [" + line +
+                                    "]:" + e.toString() );
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return writer.getRecordCount();
+    }
+
+    /**
+     * Writes the e-artifacts in segments out as JSON, one per line.
+     *
+     * @param segments The segments.
+     * @param jsonFile The file to write.
+     *
+     * @return The number of e-artifacts written.
+     *
+     * @throws IOException
+     */
+    public static long toJSON( File[] segments, File jsonFile )
+        throws IOException
+    {
+        long written = 0;
+        Writer out = new BufferedWriter( new OutputStreamWriter(
+                new FileOutputStream( jsonFile ), "UTF-8" ), 64 * 1024 );
+        try
+        {
+            for( File segment : segments )
+            {
+                EArtifactSegmentReader reader =
+                    new EArtifactSegmentReader( segment );
+                try
+                {
+                    JSONObject eartifact;
+                    while( (eartifact = reader.next()) != null )
+                    {
+                        out.write( eartifact.toString() );
+                        out.write( '\n' );
+                        written++;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+
+    /**
+     * Decodes base 64 if it's in the form {@link #encodeBase64} gives: no
+     * white space, padded to a multiple of four characters, and with no
+     * stray bits in the last digit.
+     *
+     * @return The bytes, or <code>null</code> if the text isn't in that
+     *      form.
+     */
+    static byte[] decodeBase64( String text )
+    {
+        int length = text.length();
+        if( length == 0 || length % 4 != 0 )
+        {
+            return null;
+        }
+        int padding = text.charAt( length - 1 ) != '=' ? 0 :
+            text.charAt( length - 2 ) != '=' ? 1 : 2;
+        byte[] bytes = new byte[length / 4 * 3 - padding];
+        int bits = 0;
+        int filled = 0;
+        for( int i = 0; i < length - padding; i++ )
+        {
+            char c = text.charAt( i );
+            int digit = c < 128 ? DIGITS[c] : -1;
+            if( digit < 0 )
+            {
+                return null;
+            }
+            bits = (bits << 6) | digit;
+            if( i % 4 == 3 )
+            {
+                bytes[filled++] = (byte) (bits >> 16);
+                bytes[filled++] = (byte) (bits >> 8);
+                bytes[filled++] = (byte) bits;
+                bits = 0;
+            }
+        }
+        if( padding == 1 )
+        {
+            if( (bits & 0x3) != 0 )
+            {
+                return null;
+            }
+            bytes[filled++] = (byte) (bits >> 10);
+            bytes[filled++] = (byte) (bits >> 2);
+        }
+        else if( padding == 2 )
+        {
+            if( (bits & 0xf) != 0 )
+            {
+                return null;
+            }
+            bytes[filled++] = (byte) (bits >> 4);
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes bytes as padded base 64 with no line breaks.
+     *
+     * @param header Bytes to encode before the others; may be
+     *      <code>null</code>.
+     * @param bytes Holds the rest of the bytes.
+     * @param offset Where they start.
+     * @param length How many there are.
+     * @param chars A buffer with room for the base 64.
+     *
+     * @return The base 64.
+     */
+    static String encodeBase64( byte[] header, byte[] bytes, int offset,
+            int length, char[] chars )
+    {
+        int headerLength = null == header ? 0 : header.length;
+        int total = headerLength + length;
+        int filled = 0;
+        for( int i = 0; i < total; i += 3 )
+        {
+            int n = Math.min( 3, total - i );
+            int bits = 0;
+            for( int j = 0; j < 3; j++ )
+            {
+                int b = 0;
+                if( j < n )
+                {
+                    int at = i + j;
+                    b = (at < headerLength ? header[at] :
+                        bytes[offset + at - headerLength]) & 0xff;
+                }
+                bits = (bits << 8) | b;
+            }
+            chars[filled++] = BASE64[(bits >> 18) & 0x3f];
+            chars[filled++] = BASE64[(bits >> 12) & 0x3f];
+            chars[filled++] = n > 1 ? BASE64[(bits >> 6) & 0x3f] : '=';
+            chars[filled++] = n > 2 ? BASE64[bits & 0x3f] : '=';
+        }
+        return new String( chars, 0, filled );
+    }
+
+    public static void main( String[] args ) throws IOException
+    {
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.io." +
+            "EArtifactSegment --to-segment <segment> <e-artifact file>...\n" +
+            "       java edu.umass.ciir.crowdlogger.io." +
+            "EArtifactSegment --to-json <e-artifact file> <segment>...\n\n" +
+            "--to-segment writes the e-artifacts in JSON files (one per " +
+            "line) to a segment.\n" +
+            "--to-json writes the e-artifacts in segments to a JSON file.";
+
+        if( args.length < 3 || !(args[0].equals( "--to-segment" ) ||
+                args[0].equals( "--to-json" )) )
+        {
+            System.out.println( usage );
+            System.exit( 0 );
+        }
+
+        File output = new File( args[1] );
+        File[] inputs = new File[args.length - 2];
+        long inputBytes = 0;
+        for( int i = 2; i < args.length; i++ )
+        {
+            inputs[i - 2] = new File( args[i] );
+            inputBytes += inputs[i - 2].length();
+        }
+
+        long written = args[0].equals( "--to-segment" ) ?
+            toSegment( inputs, output ) : toJSON( inputs, output );
+        logger.info( "Wrote " + written + " e-artifacts (" + inputBytes +
+                " bytes in, " + output.length() + " bytes out)." );
+    }
+}
@@ -0,0 +1,402 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Reads the e-artifacts in a segment (see {@link EArtifactSegment} for the
+ * format), either in the order they were written or, using the footer's
+ * index, just those with a given primary cipher text. Each comes back as
+ * the JSONObject it was written from.
+ *
+ * Not safe to share between threads.
+ */
+public class EArtifactSegmentReader
+{
+    private final File file;
+    private final long footer;
+    private final int records;
+    private final String[] experimentIds;
+    private final byte[][] headers;
+    private final long[] hashes;
+    private final long[] offsets;
+
+    private DataInputStream in = null;
+    private long position;
+    private RandomAccessFile random = null;
+
+    // The record being decoded.
+    private byte[] record = new byte[512];
+    private char[] chars = new char[512];
+
+    private static final Counter read = Metrics.counter( "segment.read" );
+
+    /**
+     * Opens a segment and reads its footer.
+     *
+     * @param file The segment.
+     *
+     * @throws IOException If it isn't a finished segment.
+     */
+    public EArtifactSegmentReader( File file ) throws IOException
+    {
+        this.file = file;
+        RandomAccessFile footerFile = new RandomAccessFile( file, "r" );
+        try
+        {
+            long length = footerFile.length();
+            if( length < 5 + 12 ||
+                    footerFile.readInt() != EArtifactSegment.MAGIC )
+            {
+                throw new IOException( file + " isn't an e-artifact segment." );
+            }
+            int version = footerFile.readUnsignedByte();
+            if( version != EArtifactSegment.VERSION )
+            {
+                throw new IOException( file + " is a version " + version +
+                        " segment; only version " + EArtifactSegment.VERSION +
+                        " can be read." );
+            }
+            footerFile.seek( length - 12 );
+            footer = footerFile.readLong();
+            if( footerFile.readInt() != EArtifactSegment.FOOTER_MAGIC ||
+                    footer < 5 || footer > length - 12 )
+            {
+                throw new IOException( file + " wasn't finished." );
+            }
+
+            byte[] bytes = new byte[(int) (length - 12 - footer)];
+            footerFile.seek( footer );
+            footerFile.readFully( bytes );
+            ByteBuffer buffer = ByteBuffer.wrap( bytes );
+            records = buffer.getInt();
+            experimentIds = new String[buffer.getInt()];
+            for( int i = 0; i < experimentIds.length; i++ )
+            {
+                experimentIds[i] = getString( buffer );
+            }
+            headers = new byte[buffer.getInt()][EArtifactSegment.HEADER_BYTES];
+            for( int i = 0; i < headers.length; i++ )
+            {
+                buffer.get( headers[i] );
+            }
+            int indexed = buffer.getInt();
+            hashes = new long[indexed];
+            offsets = new long[indexed];
+            buffer.asLongBuffer().get( hashes );
+            buffer.position( buffer.position() + 8 * indexed );
+            buffer.asLongBuffer().get( offsets );
+        } catch( BufferUnderflowException e ) {
+            throw new IOException( "The footer of " + file + " is corrupt." );
+        } finally {
+            footerFile.close();
+        }
+        position = 5;
+    }
+
+    /**
+     * @return The number of e-artifacts in the segment.
+     */
+    public int getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * Reads the next e-artifact.
+     *
+     * @return The e-artifact, or <code>null</code> if they've all been read.
+     *
+     * @throws IOException
+     */
+    public JSONObject next() throws IOException
+    {
+        if( position >= footer )
+        {
+            return null;
+        }
+        if( null == in )
+        {
+            in = new DataInputStream( new BufferedInputStream(
+                    new FileInputStream( file ), 64 * 1024 ) );
+            skipFully( in, position );
+        }
+        int length = in.readInt();
+        if( length < 0 || position + 4 + length > footer )
+        {
+            throw new IOException( "Corrupt record at " + position + " in " +
+                    file + "." );
+        }
+        if( record.length < length )
+        {
+            record = new byte[Math.max( length, record.length * 2 )];
+        }
+        in.readFully( record, 0, length );
+        JSONObject eartifact = decode( position, length );
+        position += 4 + length;
+        return eartifact;
+    }
+
+    /**
+     * Reads the e-artifacts with a primary cipher text, in the order they
+     * were written, using the index.
+     *
+     * @param primaryCipherText The primary cipher text.
+     *
+     * @return The e-artifacts; empty if there aren't any.
+     *
+     * @throws IOException
+     */
+    public List<JSONObject> find( String primaryCipherText ) throws IOException
+    {
+        List<JSONObject> found = new ArrayList<JSONObject>();
+        long hash = EArtifactSegment.hash( primaryCipherText );
+        // The first entry with the hash.
+        int low = 0;
+        int high = hashes.length;
+        while( low < high )
+        {
+            int middle = (low + high) >>> 1;
+            if( hashes[middle] < hash )
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        for( int i = low; i < hashes.length && hashes[i] == hash; i++ )
+        {
+            if( null == random )
+            {
+                random = new RandomAccessFile( file, "r" );
+            }
+            random.seek( offsets[i] );
+            int length = random.readInt();
+            if( length < 0 || offsets[i] + 4 + length > footer )
+            {
+                throw new IOException( "Corrupt record at " + offsets[i] +
+                        " in " + file + "." );
+            }
+            if( record.length < length )
+            {
+                record = new byte[Math.max( length, record.length * 2 )];
+            }
+            random.readFully( record, 0, length );
+            JSONObject eartifact = decode( offsets[i], length );
+            // Different primary cipher texts can have the same hash.
+            if( primaryCipherText.equals(
+                    eartifact.opt( "primary_cipher_text" ) ) )
+            {
+                found.add( eartifact );
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Closes the segment.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            if( null != in )
+            {
+                in.close();
+            }
+        } finally {
+            if( null != random )
+            {
+                random.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes the record in the record buffer.
+     *
+     * @param offset Where it is in the segment, for errors.
+     * @param length Its length.
+     */
+    private JSONObject decode( long offset, int length ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap( record, 0, length );
+        try
+        {
+            int flags = getVarint( buffer );
+            String experimentId = null;
+            if( (flags & EArtifactSegment.EXPERIMENT_ID) != 0 )
+            {
+                int index = getVarint( buffer );
+                if( (index & 1) != 0 )
+                {
+                    // The footer already has it.
+                    int idLength = getVarint( buffer );
+                    buffer.position( buffer.position() + idLength );
+                }
+                experimentId = experimentIds[index >>> 1];
+            }
+            int k = (flags & EArtifactSegment.K) != 0 ?
+                getVarint( buffer ) : -1;
+            String primary = null;
+            if( (flags & EArtifactSegment.PRIMARY) != 0 )
+            {
+                primary = (flags & EArtifactSegment.PRIMARY_AS_TEXT) != 0 ?
+                    getString( buffer ) : getCipherText( buffer );
+            }
+            String secondary = null;
+            if( (flags & EArtifactSegment.SECONDARY) != 0 )
+            {
+                secondary = (flags & EArtifactSegment.SECONDARY_AS_TEXT) != 0 ?
+                    getString( buffer ) : getCipherText( buffer );
+            }
+            String x = (flags & EArtifactSegment.X) != 0 ?
+                getNumber( buffer ) : null;
+            String y = (flags & EArtifactSegment.Y) != 0 ?
+                getNumber( buffer ) : null;
+
+            JSONObject eartifact =
+                (flags & EArtifactSegment.OTHER_FIELDS) != 0 ?
+                    new JSONObject( getString( buffer ) ) : new JSONObject();
+            if( buffer.hasRemaining() )
+            {
+                throw new IOException( "Corrupt record at " + offset + " in " +
+                        file + "." );
+            }
+            if( null != experimentId )
+            {
+                eartifact.put( "experiment_id", experimentId );
+            }
+            if( k >= 0 )
+            {
+                eartifact.put( "k", k );
+            }
+            if( null != primary )
+            {
+                eartifact.put( "primary_cipher_text", primary );
+            }
+            if( null != secondary )
+            {
+                eartifact.put( "secondary_cipher_text", secondary );
+            }
+            if( null != x )
+            {
+                eartifact.put( "x", x );
+            }
+            if( null != y )
+            {
+                eartifact.put( "y", y );
+            }
+            read.increment();
+            return eartifact;
+        } catch( JSONException e ) {
+            throw new IOException( "Corrupt record at " + offset + " in " +
+                    file + ": " + e.toString() );
+        } catch( RuntimeException e ) {
+            // Running off the end of the record, or a bad index.
+            throw new IOException( "Corrupt record at " + offset + " in " +
+                    file + ": " + e.toString() );
+        }
+    }
+
+    private String getCipherText( ByteBuffer buffer )
+    {
+        int header = getVarint( buffer );
+        byte[] headerBytes = null;
+        if( header != 0 )
+        {
+            if( (header & 1) != 0 )
+            {
+                // The footer already has it.
+                buffer.position( buffer.position() +
+                        EArtifactSegment.HEADER_BYTES );
+            }
+            headerBytes = headers[(header >>> 1) - 1];
+        }
+        int length = getVarint( buffer );
+        int start = buffer.position();
+        buffer.position( start + length );
+        int chars = (length + EArtifactSegment.HEADER_BYTES + 2) / 3 * 4;
+        if( this.chars.length < chars )
+        {
+            this.chars = new char[Math.max( chars, this.chars.length * 2 )];
+        }
+        return EArtifactSegment.encodeBase64( headerBytes, record, start,
+                length, this.chars );
+    }
+
+    private static String getNumber( ByteBuffer buffer )
+    {
+        int scale = buffer.get() & 0xff;
+        byte[] unscaled = new byte[buffer.get() & 0xff];
+        buffer.get( unscaled );
+        return new BigDecimal( new BigInteger( unscaled ), scale )
+            .toPlainString();
+    }
+
+    private static String getString( ByteBuffer buffer )
+    {
+        int length = getVarint( buffer );
+        int start = buffer.position();
+        buffer.position( start + length );
+        try
+        {
+            return new String( buffer.array(), buffer.arrayOffset() + start,
+                    length, "UTF-8" );
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static int getVarint( ByteBuffer buffer )
+    {
+        int value = 0;
+        for( int shift = 0; shift < 35; shift += 7 )
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if( b >= 0 )
+            {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException( "Varint too long" );
+    }
+
+    private static void skipFully( DataInputStream in, long bytes )
+        throws IOException
+    {
+        while( bytes > 0 )
+        {
+            long skipped = in.skip( bytes );
+            if( skipped <= 0 )
+            {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Writes e-artifacts to a segment (see {@link EArtifactSegment} for the
+ * format). The segment can't be read until the writer is closed, which is
+ * when the footer is written. The index is held in memory until then, 16
+ * bytes per e-artifact.
+ *
+ * Not safe to share between threads.
+ */
+public class EArtifactSegmentWriter
+{
+    // The fields with an encoding of their own, in the order of their flags.
+    private static final List<String> FIELDS = Arrays.asList( "experiment_id",
+            "k", "primary_cipher_text", "secondary_cipher_text", "x", "y" );
+
+    private final DataOutputStream out;
+    private long position;
+    private boolean closed = false;
+
+    // The record being encoded.
+    private byte[] record = new byte[512];
+    private int length;
+
+    private final HashMap<String, Integer> experimentIds =
+        new HashMap<String, Integer>();
+    private final List<String> experimentIdList = new ArrayList<String>();
+    private final List<byte[]> headers = new ArrayList<byte[]>();
+
+    private long records = 0;
+    private int indexed = 0;
+    private long[] hashes = new long[1024];
+    private long[] offsets = new long[1024];
+
+    private static final Counter written =
+        Metrics.counter( "segment.written" );
+    private static final Counter asText =
+        Metrics.counter( "segment.fields_as_text" );
+
+    /**
+     * Creates a segment, replacing any file that's there.
+     *
+     * @param file The segment.
+     *
+     * @throws IOException
+     */
+    public EArtifactSegmentWriter( File file ) throws IOException
+    {
+        out = new DataOutputStream( new BufferedOutputStream(
+                new FileOutputStream( file ), 64 * 1024 ) );
+        out.writeInt( EArtifactSegment.MAGIC );
+        out.writeByte( EArtifactSegment.VERSION );
+        position = 5;
+    }
+
+    /**
+     * Writes an e-artifact.
+     *
+     * @param eartifact The e-artifact.
+     *
+     * @throws IOException
+     */
+    public void write( JSONObject eartifact ) throws IOException
+    {
+        if( closed )
+        {
+            throw new IOException( "The segment is closed." );
+        }
+
+        int flags = 0;
+        Object experimentId = eartifact.opt( "experiment_id" );
+        if( experimentId instanceof String )
+        {
+            flags |= EArtifactSegment.EXPERIMENT_ID;
+        }
+        Object k = eartifact.opt( "k" );
+        if( k instanceof Integer && ((Integer) k) >= 0 )
+        {
+            flags |= EArtifactSegment.K;
+        }
+        Object primary = eartifact.opt( "primary_cipher_text" );
+        byte[] primaryBytes = null;
+        if( primary instanceof String )
+        {
+            flags |= EArtifactSegment.PRIMARY;
+            primaryBytes = EArtifactSegment.decodeBase64( (String) primary );
+            if( null == primaryBytes )
+            {
+                flags |= EArtifactSegment.PRIMARY_AS_TEXT;
+            }
+        }
+        Object secondary = eartifact.opt( "secondary_cipher_text" );
+        byte[] secondaryBytes = null;
+        if( secondary instanceof String )
+        {
+            flags |= EArtifactSegment.SECONDARY;
+            secondaryBytes =
+                EArtifactSegment.decodeBase64( (String) secondary );
+            if( null == secondaryBytes )
+            {
+                flags |= EArtifactSegment.SECONDARY_AS_TEXT;
+            }
+        }
+        BigDecimal x = number( eartifact.opt( "x" ) );
+        if( null != x )
+        {
+            flags |= EArtifactSegment.X;
+        }
+        BigDecimal y = number( eartifact.opt( "y" ) );
+        if( null != y )
+        {
+            flags |= EArtifactSegment.Y;
+        }
+        JSONObject others = others( eartifact, flags );
+        if( null != others )
+        {
+            flags |= EArtifactSegment.OTHER_FIELDS;
+        }
+
+        length = 0;
+        putVarint( flags );
+        if( (flags & EArtifactSegment.EXPERIMENT_ID) != 0 )
+        {
+            putExperimentId( (String) experimentId );
+        }
+        if( (flags & EArtifactSegment.K) != 0 )
+        {
+            putVarint( (Integer) k );
+        }
+        if( (flags & EArtifactSegment.PRIMARY) != 0 )
+        {
+            putCipherText( (String) primary, primaryBytes );
+        }
+        if( (flags & EArtifactSegment.SECONDARY) != 0 )
+        {
+            putCipherText( (String) secondary, secondaryBytes );
+        }
+        if( null != x )
+        {
+            putNumber( x );
+        }
+        if( null != y )
+        {
+            putNumber( y );
+        }
+        if( null != others )
+        {
+            putString( others.toString() );
+        }
+
+        if( primary instanceof String )
+        {
+            if( indexed == hashes.length )
+            {
+                hashes = Arrays.copyOf( hashes, indexed * 2 );
+                offsets = Arrays.copyOf( offsets, indexed * 2 );
+            }
+            hashes[indexed] = EArtifactSegment.hash( (String) primary );
+            offsets[indexed] = position;
+            indexed++;
+        }
+        out.writeInt( length );
+        out.write( record, 0, length );
+        position += 4 + length;
+        records++;
+        written.increment();
+    }
+
+    /**
+     * @return The number of e-artifacts written so far.
+     */
+    public long getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * Writes the footer and closes the file. Does nothing if it's already
+     * closed.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if( closed )
+        {
+            return;
+        }
+        closed = true;
+        try
+        {
+            long footer = position;
+            sort( hashes, offsets, indexed );
+
+            out.writeInt( (int) records );
+            out.writeInt( experimentIdList.size() );
+            for( String experimentId : experimentIdList )
+            {
+                length = 0;
+                putString( experimentId );
+                out.write( record, 0, length );
+            }
+            out.writeInt( headers.size() );
+            for( byte[] header : headers )
+            {
+                out.write( header );
+            }
+            out.writeInt( indexed );
+            for( int i = 0; i < indexed; i++ )
+            {
+                out.writeLong( hashes[i] );
+            }
+            for( int i = 0; i < indexed; i++ )
+            {
+                out.writeLong( offsets[i] );
+            }
+            out.writeLong( footer );
+            out.writeInt( EArtifactSegment.FOOTER_MAGIC );
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The value as a number, if it's a string that comes back the
+     *      same from the number; otherwise <code>null</code>.
+     */
+    private static BigDecimal number( Object value )
+    {
+        if( !(value instanceof String) )
+        {
+            return null;
+        }
+        String text = (String) value;
+        BigDecimal number;
+        try
+        {
+            number = new BigDecimal( text );
+        } catch( NumberFormatException e ) {
+            asText.increment();
+            return null;
+        }
+        if( number.scale() < 0 || number.scale() > 255 ||
+                number.unscaledValue().bitLength() >= 255 * 8 ||
+                !number.toPlainString().equals( text ) )
+        {
+            asText.increment();
+            return null;
+        }
+        return number;
+    }
+
+    /**
+     * @return The fields of the e-artifact that the flags don't say are
+     *      encoded on their own, or <code>null</code> if there aren't any.
+     */
+    private static JSONObject others( JSONObject eartifact, int flags )
+        throws IOException
+    {
+        int encoded = Integer.bitCount( flags & ((1 << FIELDS.size()) - 1) );
+        if( eartifact.length() == encoded )
+        {
+            return null;
+        }
+
+        JSONObject others = new JSONObject();
+        try
+        {
+            Iterator<?> keys = eartifact.keys();
+            while( keys.hasNext() )
+            {
+                String key = (String) keys.next();
+                int field = FIELDS.indexOf( key );
+                if( field < 0 || (flags & (1 << field)) == 0 )
+                {
+                    others.put( key, eartifact.get( key ) );
+                }
+            }
+        } catch( JSONException e ) {
+            throw new IOException( e.toString() );
+        }
+        return others;
+    }
+
+    private void putExperimentId( String experimentId )
+    {
+        Integer index = experimentIds.get( experimentId );
+        if( null != index )
+        {
+            putVarint( index << 1 );
+            return;
+        }
+        index = experimentIdList.size();
+        experimentIds.put( experimentId, index );
+        experimentIdList.add( experimentId );
+        putVarint( (index << 1) | 1 );
+        putString( experimentId );
+    }
+
+    /**
+     * Puts a cipher text as its bytes, with the header kept once per
+     * segment, or as text if it isn't in the usual base 64.
+     */
+    private void putCipherText( String text, byte[] bytes )
+    {
+        if( null == bytes )
+        {
+            asText.increment();
+            putString( text );
+            return;
+        }
+
+        int start = 0;
+        if( isSalted( bytes ) )
+        {
+            int index = 0;
+            while( index < headers.size() && !sameHeader( headers.get( index ),
+                    bytes ) )
+            {
+                index++;
+            }
+            if( index < headers.size() )
+            {
+                putVarint( (index + 1) << 1 );
+            }
+            else
+            {
+                headers.add( Arrays.copyOf( bytes,
+                        EArtifactSegment.HEADER_BYTES ) );
+                putVarint( ((index + 1) << 1) | 1 );
+                putBytes( bytes, 0, EArtifactSegment.HEADER_BYTES );
+            }
+            start = EArtifactSegment.HEADER_BYTES;
+        }
+        else
+        {
+            putVarint( 0 );
+        }
+        putVarint( bytes.length - start );
+        putBytes( bytes, start, bytes.length - start );
+    }
+
+    private static boolean isSalted( byte[] bytes )
+    {
+        if( bytes.length < EArtifactSegment.HEADER_BYTES )
+        {
+            return false;
+        }
+        for( int i = 0; i < EArtifactSegment.SALTED_BYTES; i++ )
+        {
+            if( bytes[i] != EArtifactSegment.SALTED[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameHeader( byte[] header, byte[] bytes )
+    {
+        for( int i = EArtifactSegment.SALTED_BYTES;
+                i < EArtifactSegment.HEADER_BYTES; i++ )
+        {
+            if( header[i] != bytes[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putNumber( BigDecimal number )
+    {
+        byte[] unscaled = number.unscaledValue().toByteArray();
+        ensure( 2 + unscaled.length );
+        record[length++] = (byte) number.scale();
+        record[length++] = (byte) unscaled.length;
+        putBytes( unscaled, 0, unscaled.length );
+    }
+
+    private void putString( String text )
+    {
+        byte[] bytes;
+        try
+        {
+            bytes = text.getBytes( "UTF-8" );
+        } catch( UnsupportedEncodingException e ) {
+            throw new IllegalStateException( e );
+        }
+        putVarint( bytes.length );
+        putBytes( bytes, 0, bytes.length );
+    }
+
+    private void putVarint( int value )
+    {
+        ensure( 5 );
+        while( (value & ~0x7f) != 0 )
+        {
+            record[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        record[length++] = (byte) value;
+    }
+
+    private void putBytes( byte[] bytes, int offset, int count )
+    {
+        ensure( count );
+        System.arraycopy( bytes, offset, record, length, count );
+        length += count;
+    }
+
+    private void ensure( int more )
+    {
+        if( length + more > record.length )
+        {
+            record = Arrays.copyOf( record,
+                    Math.max( record.length * 2, length + more ) );
+        }
+    }
+
+    /**
+     * Sorts the first n hashes, and the offsets with them, by hash and then
+     * offset (heap sort, so nothing more is allocated).
+     */
+    private static void sort( long[] hashes, long[] offsets, int n )
+    {
+        for( int i = n / 2 - 1; i >= 0; i-- )
+        {
+            siftDown( hashes, offsets, i, n );
+        }
+        for( int end = n - 1; end > 0; end-- )
+        {
+            swap( hashes, offsets, 0, end );
+            siftDown( hashes, offsets, 0, end );
+        }
+    }
+
+    private static void siftDown( long[] hashes, long[] offsets, int i,
+            int n )
+    {
+        while( 2 * i + 1 < n )
+        {
+            int child = 2 * i + 1;
+            if( child + 1 < n && less( hashes, offsets, child, child + 1 ) )
+            {
+                child++;
+            }
+            if( !less( hashes, offsets, i, child ) )
+            {
+                return;
+            }
+            swap( hashes, offsets, i, child );
+            i = child;
+        }
+    }
+
+    private static boolean less( long[] hashes, long[] offsets, int a, int b )
+    {
+        return hashes[a] < hashes[b] ||
+            (hashes[a] == hashes[b] && offsets[a] < offsets[b]);
+    }
+
+    private static void swap( long[] hashes, long[] offsets, int a, int b )
+    {
+        long hash = hashes[a];
+        hashes[a] = hashes[b];
+        hashes[b] = hash;
+        long offset = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = offset;
+    }
+}
@@ -0,0 +1,274 @@
+package edu.umass.ciir.crowdlogger.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Reads the lines of a file, like the server's
+ * <code>eartifacts.&lt;date&gt;.NNN</code> files or EArtifactWriter's
+ * <code>.eartifacts</code> files, by memory-mapping it and scanning for new
+ * lines. Each line is handed back as a slice of the mapped file, with no
+ * copying and nothing allocated per line; {@link #decode(ByteBuffer)} and
+ * {@link #nextLine()} make a String of it for callers that need one. A
+ * trailing "\r" is dropped, as Scanner and BufferedReader do, and so is an
+ * empty last line.
+ *
+ * The file is mapped a window at a time, so files of any size can be read;
+ * a line that runs past the end of a window is found by mapping the next
+ * window from the start of that line.
+ *
+ * A reader can be given a range of the file, so that several can read one
+ * file at once (see {@link #split(File, int)}). It reads the lines that
+ * start in its range, so the last one may run past the range's end; the
+ * lines of ranges that meet are each read exactly once.
+ *
+ * Not safe to share between threads.
+ */
+public class MappedLineReader
+{
+    /** The system property holding the size of window to map, in MB. */
+    public static final String WINDOW_PROPERTY =
+        "crowdlogger.reader.windowMB";
+
+    private static final int DEFAULT_WINDOW_MB = 64;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final Charset LATIN1 = Charset.forName( "ISO-8859-1" );
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long end;
+    private final int windowSize;
+
+    // The mapped part of the file, a view of it to hand out, and where in
+    // the file it starts.
+    private MappedByteBuffer window;
+    private ByteBuffer line;
+    private long windowStart;
+    // Where in the window the next line starts.
+    private int position;
+    // Whether the last line read ended in a new line.
+    private boolean lineEnded = true;
+
+    private byte[] bytes = new byte[256];
+
+    private static final Counter windowsMapped =
+        Metrics.counter( "reader.windows_mapped" );
+
+    /**
+     * Opens a file to read all of its lines.
+     *
+     * @param file The file.
+     *
+     * @throws IOException
+     */
+    public MappedLineReader( File file ) throws IOException
+    {
+        this( file, 0, Long.MAX_VALUE );
+    }
+
+    /**
+     * Opens a file to read the lines that start in a range of it.
+     *
+     * @param file The file.
+     * @param start The first byte of the range.
+     * @param end The byte after the range.
+     *
+     * @throws IOException
+     */
+    public MappedLineReader( File file, long start, long end )
+        throws IOException
+    {
+        this.file = new RandomAccessFile( file, "r" );
+        channel = this.file.getChannel();
+        size = channel.size();
+        this.end = Math.min( end, size );
+        windowSize = Integer.getInteger( WINDOW_PROPERTY,
+                DEFAULT_WINDOW_MB ) << 20;
+
+        if( start <= 0 || start >= this.end )
+        {
+            map( Math.min( Math.max( start, 0 ), size ), windowSize );
+        }
+        else
+        {
+            // The line that starts at the range's start is ours only if the
+            // byte before it ends a line; skip to the end of that line.
+            map( start - 1, windowSize );
+            int newLine = scan();
+            position = Math.min( newLine + 1, window.limit() );
+        }
+    }
+
+    /**
+     * Reads the next line.
+     *
+     * @return The line, between the position and limit of a buffer that's
+     *      only good until this is called again; <code>null</code> if
+     *      there are no more.
+     *
+     * @throws IOException
+     */
+    public ByteBuffer next() throws IOException
+    {
+        if( windowStart + position >= end )
+        {
+            return null;
+        }
+        int newLine = scan();
+        int start = position;
+        int lineEnd = newLine;
+        lineEnded = newLine < window.limit();
+        position = Math.min( newLine + 1, window.limit() );
+        if( lineEnd > start && window.get( lineEnd - 1 ) == '\r' )
+        {
+            lineEnd--;
+        }
+        line.limit( lineEnd );
+        line.position( start );
+        return line;
+    }
+
+    /**
+     * Reads the next line as a String.
+     *
+     * @return The line, or <code>null</code> if there are no more.
+     *
+     * @throws IOException
+     */
+    public String nextLine() throws IOException
+    {
+        ByteBuffer slice = next();
+        return null == slice ? null : decode( slice );
+    }
+
+    /**
+     * @return Where in the file the next line starts (just past the new
+     *      line of the last one read); a reader opened there reads the
+     *      rest of the lines.
+     */
+    public long position()
+    {
+        return windowStart + position;
+    }
+
+    /**
+     * @return Whether the last line read ended in a new line. Only the last
+     *      line of the file can fail to, and if the file is still being
+     *      written, the rest of that line may be yet to come.
+     */
+    public boolean lineEnded()
+    {
+        return lineEnded;
+    }
+
+    /**
+     * Closes the file. Windows stay mapped until they're garbage collected.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    /**
+     * Decodes a slice as UTF-8 (without moving its position).
+     *
+     * @param slice The bytes between the slice's position and limit.
+     *
+     * @return The String.
+     */
+    public String decode( ByteBuffer slice )
+    {
+        int length = slice.remaining();
+        if( bytes.length < length )
+        {
+            bytes = new byte[Math.max( length, bytes.length * 2 )];
+        }
+        slice.duplicate().get( bytes, 0, length );
+        for( int i = 0; i < length; i++ )
+        {
+            if( bytes[i] < 0 )
+            {
+                return new String( bytes, 0, length, UTF8 );
+            }
+        }
+        // Each byte is a character, with nothing to decode.
+        return new String( bytes, 0, length, LATIN1 );
+    }
+
+    /**
+     * Splits a file into ranges to read with a reader each.
+     *
+     * @param file The file.
+     * @param parts How many ranges to make.
+     *
+     * @return The boundaries of the ranges: range i is from element i to
+     *      element i + 1.
+     */
+    public static long[] split( File file, int parts )
+    {
+        long length = file.length();
+        long[] boundaries = new long[parts + 1];
+        for( int i = 0; i <= parts; i++ )
+        {
+            boundaries[i] = length / parts * i + Math.min( i, length % parts );
+        }
+        return boundaries;
+    }
+
+    /**
+     * Finds the next new line at or after the position, mapping more of
+     * the file if need be (which moves the position, but not in the file).
+     *
+     * @return Where it is in the window, or the window's limit if the file
+     *      ends first.
+     */
+    private int scan() throws IOException
+    {
+        int i = position;
+        while( true )
+        {
+            int limit = window.limit();
+            for( ; i < limit; i++ )
+            {
+                if( window.get( i ) == '\n' )
+                {
+                    return i;
+                }
+            }
+            if( windowStart + limit >= size )
+            {
+                return limit;
+            }
+            // Map again from the start of the line, with room for it.
+            int scanned = i - position;
+            map( windowStart + position, Math.max( windowSize,
+                    scanned < Integer.MAX_VALUE / 2 ? scanned * 2 :
+                    Integer.MAX_VALUE ) );
+            i = scanned;
+        }
+    }
+
+    /**
+     * Maps a window of the file and moves the position to its start.
+     */
+    private void map( long start, int length ) throws IOException
+    {
+        windowStart = start;
+        window = channel.map( FileChannel.MapMode.READ_ONLY, start,
+                Math.min( length, size - start ) );
+        line = window.duplicate();
+        position = 0;
+        windowsMapped.increment();
+    }
+}
@@ -0,0 +1,42 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, monotonically increasing count.
+ */
+public class Counter
+{
+    private final AtomicLong count = new AtomicLong( 0 );
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment()
+    {
+        count.incrementAndGet();
+    }
+
+    /**
+     * Adds the given amount to the count.
+     *
+     * @param amount The amount to add.
+     */
+    public void add( long amount )
+    {
+        count.addAndGet( amount );
+    }
+
+    /**
+     * @return The current count.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public String toString()
+    {
+        return Long.toString( getCount() );
+    }
+}
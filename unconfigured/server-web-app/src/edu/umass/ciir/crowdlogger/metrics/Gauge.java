@@ -0,0 +1,12 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+/**
+ * A value that is read on demand, e.g., the size of a pool or a buffer.
+ */
+public interface Gauge
+{
+    /**
+     * @return The current value.
+     */
+    long getValue();
+}
@@ -0,0 +1,141 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values (e.g., latencies in
+ * microseconds). Values are kept in buckets that are spaced logarithmically,
+ * with eight buckets per power of two, so percentiles are accurate to within
+ * about 10% no matter the magnitude of the values.
+ */
+public class Histogram
+{
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong( 0 );
+    private final AtomicLong sum = new AtomicLong( 0 );
+    private final AtomicLong max = new AtomicLong( 0 );
+
+    /**
+     * Records a value. Negative values are counted as zero.
+     *
+     * @param value The value to record.
+     */
+    public void record( long value )
+    {
+        if( value < 0 )
+        {
+            value = 0;
+        }
+        buckets.incrementAndGet( bucketOf( value ) );
+        count.incrementAndGet();
+        sum.addAndGet( value );
+
+        long currentMax;
+        while( value > (currentMax = max.get()) &&
+                !max.compareAndSet( currentMax, value ) )
+        {
+            // Someone else raised the max; try again.
+        }
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none.
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return The largest value recorded.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Estimates the given percentile.
+     *
+     * @param percentile A number between 0 and 100.
+     *
+     * @return The (upper bound of the bucket holding the) value at the given
+     *      percentile, or 0 if nothing has been recorded.
+     */
+    public long getPercentile( double percentile )
+    {
+        long n = 0;
+        long[] counts = new long[BUCKETS];
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            counts[i] = buckets.get( i );
+            n += counts[i];
+        }
+        if( n == 0 )
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil( percentile / 100.0 * n );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            seen += counts[i];
+            if( seen >= rank && counts[i] > 0 )
+            {
+                return Math.min( upperBoundOf( i ), max.get() );
+            }
+        }
+        return max.get();
+    }
+
+    public String toString()
+    {
+        return String.format( "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                getCount(), getMean(), getPercentile( 50 ),
+                getPercentile( 90 ), getPercentile( 99 ), getMax() );
+    }
+
+    /**
+     * Finds the bucket for a value: values below SUB_BUCKETS get their own
+     * bucket, everything else is split by its highest bit and the next three.
+     */
+    private static int bucketOf( long value )
+    {
+        if( value < SUB_BUCKETS )
+        {
+            return (int) value;
+        }
+        int highBit = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) (value >>> (highBit - 3)) & (SUB_BUCKETS - 1);
+        return (highBit - 2) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The largest value that lands in the given bucket.
+     */
+    private static long upperBoundOf( int bucket )
+    {
+        if( bucket < SUB_BUCKETS )
+        {
+            return bucket;
+        }
+        int highBit = bucket / SUB_BUCKETS + 2;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + subBucket) << (highBit - 3);
+        return lower + (1L << (highBit - 3)) - 1;
+    }
+}
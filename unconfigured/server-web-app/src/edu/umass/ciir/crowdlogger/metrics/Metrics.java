@@ -0,0 +1,111 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A process-wide registry of named metrics. Metrics are created the first
+ * time they are asked for, so callers typically look them up once and keep
+ * the reference in a static field.
+ */
+public class Metrics
+{
+    private static final ConcurrentMap<String, Object> metrics =
+        new ConcurrentHashMap<String, Object>();
+
+    private Metrics()
+    {
+    }
+
+    /**
+     * Gets (creating, if need be) the counter with the given name.
+     *
+     * @param name The name of the counter, e.g., "anonymizer.forwards.sent".
+     *
+     * @return The counter.
+     */
+    public static Counter counter( String name )
+    {
+        return register( name, new Counter(), Counter.class );
+    }
+
+    /**
+     * Gets (creating, if need be) the histogram with the given name.
+     *
+     * @param name The name of the histogram.
+     *
+     * @return The histogram.
+     */
+    public static Histogram histogram( String name )
+    {
+        return register( name, new Histogram(), Histogram.class );
+    }
+
+    /**
+     * Gets (creating, if need be) the timer with the given name.
+     *
+     * @param name The name of the timer, e.g., "decryption.rsa.micros".
+     *
+     * @return The timer.
+     */
+    public static Timer timer( String name )
+    {
+        return register( name, new Timer(), Timer.class );
+    }
+
+    /**
+     * Registers a gauge under the given name, replacing any gauge already
+     * registered under it.
+     *
+     * @param name The name of the gauge.
+     * @param gauge The gauge.
+     */
+    public static void gauge( String name, Gauge gauge )
+    {
+        metrics.put( name, gauge );
+    }
+
+    /**
+     * Produces a report of every metric, one per line and sorted by name.
+     *
+     * @return The report.
+     */
+    public static String report()
+    {
+        StringBuilder report = new StringBuilder();
+        for( Map.Entry<String, Object> entry :
+                new TreeMap<String, Object>( metrics ).entrySet() )
+        {
+            Object metric = entry.getValue();
+            report.append( entry.getKey() ).append( ' ' );
+            if( metric instanceof Gauge )
+            {
+                report.append( ((Gauge) metric).getValue() );
+            }
+            else
+            {
+                report.append( metric );
+            }
+            report.append( '\n' );
+        }
+        return report.toString();
+    }
+
+    private static <T> T register( String name, T metric, Class<T> type )
+    {
+        Object existing = metrics.putIfAbsent( name, metric );
+        if( null == existing )
+        {
+            return metric;
+        }
+        if( !type.isInstance( existing ) )
+        {
+            throw new IllegalArgumentException( "Metric " + name +
+                    " is already registered as a " +
+                    existing.getClass().getSimpleName() );
+        }
+        return type.cast( existing );
+    }
+}
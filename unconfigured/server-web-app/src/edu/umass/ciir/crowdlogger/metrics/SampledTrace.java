@@ -0,0 +1,77 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Debug tracing for hot paths: only one in every so many calls is traced,
+ * and only while the logger is at FINE or below. Callers should build their
+ * message only once {@link #isSampled()} says so, e.g.,
+ *
+ * <pre>
+ *     if( trace.isSampled() )
+ *     {
+ *         trace.trace( "Decrypting " + line );
+ *     }
+ * </pre>
+ *
+ * so that tracing costs a level check when it's off. The sampling interval
+ * is read from the <code>crowdlogger.trace.sampleEvery</code> system
+ * property (default 1000; 1 traces every call).
+ */
+public class SampledTrace
+{
+    /** The system property holding the sampling interval. */
+    public static final String SAMPLE_EVERY_PROPERTY =
+        "crowdlogger.trace.sampleEvery";
+
+    private static final long DEFAULT_SAMPLE_EVERY = 1000;
+
+    private final Logger logger;
+    private final long sampleEvery;
+    private final AtomicLong calls = new AtomicLong( 0 );
+
+    /**
+     * Creates a trace that logs to the given logger, with the sampling
+     * interval from the system property.
+     *
+     * @param logger The logger to trace to.
+     */
+    public SampledTrace( Logger logger )
+    {
+        this( logger, Long.getLong( SAMPLE_EVERY_PROPERTY,
+                DEFAULT_SAMPLE_EVERY ) );
+    }
+
+    /**
+     * Creates a trace that logs to the given logger.
+     *
+     * @param logger The logger to trace to.
+     * @param sampleEvery Trace one in this many calls.
+     */
+    public SampledTrace( Logger logger, long sampleEvery )
+    {
+        this.logger = logger;
+        this.sampleEvery = Math.max( 1, sampleEvery );
+    }
+
+    /**
+     * @return <code>true</code> if this call should be traced.
+     */
+    public boolean isSampled()
+    {
+        return logger.isLoggable( Level.FINE ) &&
+            calls.getAndIncrement() % sampleEvery == 0;
+    }
+
+    /**
+     * Logs a trace message.
+     *
+     * @param message The message.
+     */
+    public void trace( String message )
+    {
+        logger.fine( message );
+    }
+}
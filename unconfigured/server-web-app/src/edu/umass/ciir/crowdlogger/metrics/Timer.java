@@ -0,0 +1,31 @@
+package edu.umass.ciir.crowdlogger.metrics;
+
+/**
+ * A histogram of elapsed times, in microseconds. Typical use:
+ *
+ * <pre>
+ *     long start = timer.start();
+ *     ...
+ *     timer.stop( start );
+ * </pre>
+ */
+public class Timer extends Histogram
+{
+    /**
+     * @return The time to pass to {@link #stop(long)}.
+     */
+    public long start()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time since the given start.
+     *
+     * @param start What {@link #start()} returned.
+     */
+    public void stop( long start )
+    {
+        record( (System.nanoTime() - start) / 1000 );
+    }
+}
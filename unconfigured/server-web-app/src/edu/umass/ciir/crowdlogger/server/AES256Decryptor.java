@@ -0,0 +1,302 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.ssl.OpenSSL;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.SampledTrace;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
+/**
+ * Decrypts cipher texts made with one password in the format of
+ * <code>openssl enc -aes-256-cbc -a</code>: "Salted__", an 8-byte salt and
+ * the cipher text, in base 64. This is what the extension encrypts an
+ * artifact's fields with.
+ *
+ * OpenSSL.decrypt derives the key and IV from the password and salt (with
+ * EVP_BytesToKey) and sets up a new Cipher for every cipher text. The
+ * extension uses the same salt for everything, so all of a bag's fields
+ * have the same key and IV; this derives them once per salt, keeps one
+ * initialized Cipher, and decodes the base 64 into buffers it reuses.
+ * Anything it can't parse is handed to OpenSSL.decrypt, so the results are
+ * the same either way.
+ *
+ * Not safe to share between threads.
+ */
+public class AES256Decryptor
+{
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 16;
+    private static final int BLOCK_BYTES = 16;
+    private static final int HEADER_BYTES = 16;
+
+    // Base 64 digit -> value; -1 for characters that are skipped, -2 for
+    // ones that aren't base 64 at all.
+    private static final byte[] DIGITS = new byte[128];
+    static
+    {
+        Arrays.fill( DIGITS, (byte) -2 );
+        String alphabet =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for( int i = 0; i < alphabet.length(); i++ )
+        {
+            DIGITS[alphabet.charAt( i )] = (byte) i;
+        }
+        DIGITS['\n'] = DIGITS['\r'] = DIGITS[' '] = DIGITS['\t'] = -1;
+    }
+
+    private final char[] password;
+    private final byte[] passwordBytes;
+    private final Cipher cipher;
+    private final MessageDigest md5;
+    // The salt the cipher is initialized for, if it is.
+    private final byte[] salt;
+    private boolean initialized;
+    private byte[] encrypted;
+    private byte[] clear;
+
+    private static final Logger logger =
+        Logger.getLogger( AES256Decryptor.class.getName() );
+    private static final SampledTrace trace = new SampledTrace( logger );
+
+    private static final Timer aesTimer =
+        Metrics.timer( "decryption.aes.micros" );
+    private static final Counter aesFailures =
+        Metrics.counter( "decryption.aes.failed" );
+    private static final Counter keysDerived =
+        Metrics.counter( "decryption.aes.keys_derived" );
+    private static final Counter fallbacks =
+        Metrics.counter( "decryption.aes.fallbacks" );
+
+    /**
+     * Creates a decryptor for a password.
+     *
+     * @param password The password the cipher texts were encrypted with.
+     *
+     * @throws GeneralSecurityException If AES or MD5 aren't available.
+     */
+    public AES256Decryptor( char[] password ) throws GeneralSecurityException
+    {
+        this.password = password;
+        // OpenSSL.deriveKey keeps the low byte of each character.
+        passwordBytes = new byte[password.length];
+        for( int i = 0; i < password.length; i++ )
+        {
+            passwordBytes[i] = (byte) password[i];
+        }
+        cipher = Cipher.getInstance( "AES/CBC/PKCS5Padding" );
+        md5 = MessageDigest.getInstance( "MD5" );
+        salt = new byte[8];
+        initialized = false;
+        encrypted = new byte[256];
+        clear = new byte[256];
+    }
+
+    /**
+     * Creates a decryptor for a password.
+     *
+     * @param password The password the cipher texts were encrypted with.
+     *
+     * @throws GeneralSecurityException If AES or MD5 aren't available.
+     */
+    public AES256Decryptor( String password ) throws GeneralSecurityException
+    {
+        this( password.toCharArray() );
+    }
+
+    /**
+     * Decrypts a cipher text.
+     *
+     * @param cipherText The base 64 cipher text.
+     *
+     * @return The clear text, without a trailing new line.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException If the password doesn't fit.
+     */
+    public String decrypt( String cipherText )
+        throws IOException, GeneralSecurityException
+    {
+        if( trace.isSampled() )
+        {
+            trace.trace( "Deciphering AES cipher text: " + cipherText );
+        }
+
+        long start = aesTimer.start();
+        boolean deciphered = false;
+        try
+        {
+            String clearText;
+            int length = decodeBase64( cipherText );
+            if( length < HEADER_BYTES + BLOCK_BYTES ||
+                    (length - HEADER_BYTES) % BLOCK_BYTES != 0 ||
+                    !isSalted( encrypted ) )
+            {
+                fallbacks.increment();
+                clearText = new String( OpenSSL.decrypt( "aes-256-cbc",
+                        password, cipherText.getBytes() ) );
+            }
+            else
+            {
+                init();
+                if( clear.length < length )
+                {
+                    clear = new byte[encrypted.length];
+                }
+                int clearLength;
+                try
+                {
+                    clearLength = cipher.doFinal( encrypted, HEADER_BYTES,
+                            length - HEADER_BYTES, clear, 0 );
+                } catch( GeneralSecurityException e ) {
+                    // Start from a clean cipher next time.
+                    initialized = false;
+                    throw e;
+                }
+                clearText = new String( clear, 0, clearLength );
+            }
+
+            if( clearText.indexOf( '\n' ) >= 0 )
+            {
+                clearText = clearText.replaceAll( "\n$", "" );
+            }
+            deciphered = true;
+            return clearText;
+        } finally {
+            aesTimer.stop( start );
+            if( !deciphered )
+            {
+                aesFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * Makes sure the cipher is initialized with the key and IV for the salt
+     * in the encrypted buffer, deriving them if it's a different salt.
+     */
+    private void init() throws GeneralSecurityException
+    {
+        boolean sameSalt = true;
+        for( int i = 0; i < salt.length; i++ )
+        {
+            sameSalt &= salt[i] == encrypted[8 + i];
+        }
+        if( initialized && sameSalt )
+        {
+            // doFinal leaves the cipher as it was after init.
+            return;
+        }
+
+        System.arraycopy( encrypted, 8, salt, 0, salt.length );
+        byte[] keyAndIV = bytesToKey( passwordBytes, salt );
+        cipher.init( Cipher.DECRYPT_MODE,
+                new SecretKeySpec( keyAndIV, 0, KEY_BYTES, "AES" ),
+                new IvParameterSpec( keyAndIV, KEY_BYTES, IV_BYTES ) );
+        keysDerived.increment();
+        initialized = true;
+    }
+
+    /**
+     * OpenSSL's EVP_BytesToKey with MD5 and one iteration.
+     */
+    private byte[] bytesToKey( byte[] password, byte[] salt )
+    {
+        byte[] keyAndIV = new byte[KEY_BYTES + IV_BYTES];
+        byte[] block = new byte[0];
+        int filled = 0;
+        while( filled < keyAndIV.length )
+        {
+            md5.update( block );
+            md5.update( password );
+            md5.update( salt );
+            block = md5.digest();
+            int n = Math.min( block.length, keyAndIV.length - filled );
+            System.arraycopy( block, 0, keyAndIV, filled, n );
+            filled += n;
+        }
+        return keyAndIV;
+    }
+
+    /**
+     * @return Whether the bytes start with "Salted__", in any case, as
+     *      OpenSSL.decrypt checks for it.
+     */
+    private static boolean isSalted( byte[] bytes )
+    {
+        String magic = "SALTED__";
+        for( int i = 0; i < magic.length(); i++ )
+        {
+            if( Character.toUpperCase( (char) bytes[i] ) != magic.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes base 64 into the encrypted buffer, skipping white space and
+     * stopping at padding.
+     *
+     * @return The number of bytes decoded, or -1 if the text isn't base 64.
+     */
+    private int decodeBase64( String text )
+    {
+        int maxBytes = text.length() / 4 * 3 + 3;
+        if( encrypted.length < maxBytes )
+        {
+            encrypted = new byte[maxBytes];
+        }
+
+        int length = 0;
+        int bits = 0;
+        int digits = 0;
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( c == '=' )
+            {
+                break;
+            }
+            int digit = c < 128 ? DIGITS[c] : -2;
+            if( digit == -1 )
+            {
+                continue;
+            }
+            if( digit == -2 )
+            {
+                return -1;
+            }
+            bits = (bits << 6) | digit;
+            if( ++digits == 4 )
+            {
+                encrypted[length++] = (byte) (bits >> 16);
+                encrypted[length++] = (byte) (bits >> 8);
+                encrypted[length++] = (byte) bits;
+                bits = 0;
+                digits = 0;
+            }
+        }
+        if( digits == 3 )
+        {
+            encrypted[length++] = (byte) (bits >> 10);
+            encrypted[length++] = (byte) (bits >> 2);
+        }
+        else if( digits == 2 )
+        {
+            encrypted[length++] = (byte) (bits >> 4);
+        }
+        return length;
+    }
+}
@@ -27,13 +27,17 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
-import org.apache.commons.ssl.OpenSSL;
 import org.apache.commons.ssl.PKCS8Key;
 import org.apache.commons.ssl.Base64;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.SampledTrace;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
 
 /**
  * Removes the RSA encryption from a list of doubly-encrypted artifracts 
@@ -45,11 +49,20 @@ public class BasicDecryptor
 {
 	public static final int AES_KEY_SIZE = 256;
 	
-	private Cipher pkCipher;
+	// A Cipher can only be used by one thread at a time, so each thread that
+	// deciphers RSA gets its own.
+	private PrivateKey privateKey;
+	private ThreadLocal<Cipher> pkCipher;
 	private Base64 b64;
 	
 	private static final Logger logger = 
 	    Logger.getLogger(BasicDecryptor.class.getName());
+	private static final SampledTrace trace = new SampledTrace( logger );
+	
+	private static final Timer rsaTimer = 
+	    Metrics.timer( "decryption.rsa.micros" );
+	private static final Counter rsaFailures = 
+	    Metrics.counter( "decryption.rsa.failed" );
 	
 	
 	/**
@@ -103,22 +116,50 @@ public class BasicDecryptor
 		byte[] decrypted = pkcs8.getDecryptedBytes();
 		PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec( decrypted );
 		
-		PrivateKey pk = pkcs8.getPrivateKey();
+		privateKey = pkcs8.getPrivateKey();
 		
 		//System.out.println( "key: " + pkcs8.getPrivateKey() );
 		
-		pkCipher = Cipher.getInstance("RSA");
-		SecretKeySpec aeskeySpec;
+		pkCipher = new ThreadLocal<Cipher>() {
+		    protected Cipher initialValue()
+		    {
+		        try
+		        {
+		            return createPKCipher();
+		        } catch( GeneralSecurityException e )
+		        {
+		            // This already worked once, below.
+		            throw new IllegalStateException( e );
+		        }
+		    }
+		};
 		
-		pkCipher.init(Cipher.DECRYPT_MODE, pk);
+		// Make sure the key works before anyone relies on it.
+		pkCipher.set( createPKCipher() );
 		
 		logger.info( "Public key cipher initialized" );
 	}
 	
 	
+	/**
+	 * Creates a cipher that decrypts with the private key.
+	 * 
+	 * @return The cipher.
+	 * 
+	 * @throws GeneralSecurityException
+	 */
+	private Cipher createPKCipher() throws GeneralSecurityException
+	{
+	    Cipher cipher = Cipher.getInstance("RSA");
+	    cipher.init(Cipher.DECRYPT_MODE, privateKey);
+	    return cipher;
+	}
+	
+	
 	/**
 	 * Takes a cipher text encrypted using the public key corresponding to this
-	 * instance's private key and decrypts it into the plain text.
+	 * instance's private key and decrypts it into the plain text. This can be
+	 * called from any number of threads at once.
 	 * 
 	 * @param rsaCipherText The cipher text to decrypt.
 	 * 
@@ -130,13 +171,28 @@ public class BasicDecryptor
 	public char[] decipherRSA( String rsaCipherText ) 
 		throws IllegalBlockSizeException, BadPaddingException 
 	{
-	    logger.info( "Dechipering RSA cipher text: " +
-	            rsaCipherText );
+	    if( trace.isSampled() )
+	    {
+	        trace.trace( "Deciphering RSA cipher text: " + rsaCipherText );
+	    }
 	    
-		return new String( Base64.decodeBase64(
-		        pkCipher.doFinal( 
-		                prepareRSACipherText(rsaCipherText) 
-		                ) ) ).toCharArray();
+	    long start = rsaTimer.start();
+	    boolean deciphered = false;
+	    try
+	    {
+	        char[] plainText = new String( Base64.decodeBase64(
+	                pkCipher.get().doFinal( 
+	                        prepareRSACipherText(rsaCipherText) 
+	                ) ) ).toCharArray();
+	        deciphered = true;
+	        return plainText;
+	    } finally {
+	        rsaTimer.stop( start );
+	        if( !deciphered )
+	        {
+	            rsaFailures.increment();
+	        }
+	    }
 	}
 	
 	
@@ -154,10 +210,8 @@ public class BasicDecryptor
 	public static String decryptAES256( char[] key, String cipherText ) 
 	    throws IOException, GeneralSecurityException
 	{
-	    logger.info( "Dechipering AES cipher text: " + cipherText );
-	    return new String( 
-	            OpenSSL.decrypt("aes-256-cbc", key, cipherText.getBytes() ) ).
-	            replaceAll("\n$", "");
+	    // To decrypt many cipher texts with one key, keep an AES256Decryptor.
+	    return new AES256Decryptor( key ).decrypt( cipherText );
 	}
 	
 	public static String decryptAES256( String key, String cipherText ) 
@@ -179,7 +233,6 @@ public class BasicDecryptor
 	 */
 	public static byte[] prepareRSACipherText( String cipherText )
 	{
-	    logger.info( "Preparing RSA cipher text." );
 	    return Base64.decodeBase64( cipherText.replaceAll("\\n", "") );
 	}
 
@@ -9,6 +9,7 @@ import java.math.RoundingMode;
 import java.util.HashMap;
 import java.util.logging.Logger;
 
+import edu.umass.ciir.crowdlogger.metrics.SampledTrace;
 import edu.umass.ciir.crowdlogger.test.SSSSTester;
 
 public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
@@ -16,6 +17,7 @@ public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
     
     private static final Logger logger = 
         Logger.getLogger(BigDecimalLagrangeInterpolator.class.getName());
+    private static final SampledTrace trace = new SampledTrace( logger );
 
     /**
      * Initializes the set of points over which the interpolation will occur.
@@ -73,6 +75,7 @@ public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
         // Calculate P_k(x) = \sum_{i=0}^{i<k} y_i * l_i(x)
 
         BigDecimal y = new BigDecimal(0);
+        boolean traced = trace.isSampled();
         
         BigDecimal[] xs = new BigDecimal[points.size()];
         points.keySet().toArray( xs );
@@ -84,8 +87,6 @@ public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
             // The current (x,y) pair.
             BigDecimal xJ = xs[j];
             BigDecimal yJ = points.get( xs[j] );
-           
-            logger.info( "Looking at (" + xJ + ", " + yJ + ")" );
             
             // To keep track of the numerator and denominator of the Lagrange basis.
             BigDecimal lagrangeNumerator = new BigDecimal( "1" );
@@ -106,15 +107,16 @@ public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
                         xJ.subtract( xI ) );
             }
             
-            logger.info( " y += " + yJ.toPlainString() + " * " 
-                    + lagrangeNumerator + " / " + lagrangeDenominator );
+            if( traced )
+            {
+                trace.trace( " y += " + yJ.toPlainString() + " * " 
+                        + lagrangeNumerator + " / " + lagrangeDenominator );
+            }
             
             // We are multiply this way to minimize the amount of error we get from
             // dividing a smaller number by the denominator.
             y = y.add( yJ.multiply( lagrangeNumerator ).divide(
                     lagrangeDenominator, 5,  RoundingMode.HALF_UP ) );
-            
-            logger.info( "Current value of y: " + y );
         }
         
 
@@ -135,8 +137,6 @@ public class BigDecimalLagrangeInterpolator extends BigDecimalInterpolator
     {
         String result = number.toPlainString();
         
-        System.out.println( "Result as string: " + result );
-        
         String[] resultParts = result.split( "\\." );
         
         if( resultParts.length == 1 )
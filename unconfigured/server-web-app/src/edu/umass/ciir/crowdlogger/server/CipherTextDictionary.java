@@ -0,0 +1,415 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Gives each distinct cipher text (in practice, each primary cipher text)
+ * a dense int id, 0, 1, 2, ... in the order they're first added, so what's
+ * kept per cipher text can go in arrays rather than a map keyed by Strings.
+ *
+ * Nothing is kept on the heap per cipher text. Each one's bytes are stored
+ * once, after a varint length, in slabs of direct memory that are filled
+ * in turn. They're found through an open-addressed table, also in direct
+ * memory, of 64-bit hashes and ids; a lookup whose hash matches is checked
+ * against the stored bytes, so different cipher texts with the same hash
+ * still get different ids. The table is grown from the hashes it holds,
+ * without reading the cipher texts again.
+ *
+ * Cipher texts are ASCII in practice and are stored a byte per character
+ * without encoding them; anything else is stored as UTF-8.
+ *
+ * A dictionary holds at most {@link #MAX_SIZE} (about 100 million) cipher
+ * texts, so that the table's hashes fit in one buffer; {@link #add} throws
+ * an IllegalStateException rather than add more. Callers that may see more
+ * have to split their input up (EArtifactDecryptor spills it to partitions).
+ *
+ * Not safe to share between threads.
+ */
+public class CipherTextDictionary
+{
+    /** The system property holding the size of slab to allocate, in MB. */
+    public static final String SLAB_PROPERTY =
+        "crowdlogger.dictionary.slabMB";
+
+    private static final int DEFAULT_SLAB_MB = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // The most slots, so the hashes fit in one buffer.
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    /** The most cipher texts a dictionary holds. */
+    public static final int MAX_SIZE = MAX_CAPACITY / 4 * 3;
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+    private static final Charset LATIN1 = Charset.forName( "ISO-8859-1" );
+
+    private final int slabSize;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    // The slab being filled, and where.
+    private int slab;
+    private int slabPosition;
+
+    // The table: a hash and id + 1 per slot, 0 for an empty slot.
+    private LongBuffer hashes;
+    private IntBuffer ids;
+    private int capacity;
+    // Where each id's cipher text is: slab << 32 | offset.
+    private LongBuffer addresses;
+    private int size;
+
+    // The cipher text being looked up, as bytes.
+    private byte[] key = new byte[128];
+    private int keyLength;
+
+    private static final Counter collisions =
+        Metrics.counter( "dictionary.hash_collisions" );
+
+    public CipherTextDictionary()
+    {
+        slabSize = Integer.getInteger( SLAB_PROPERTY, DEFAULT_SLAB_MB ) << 20;
+        allocateTable( INITIAL_CAPACITY );
+        addresses = ByteBuffer.allocateDirect( INITIAL_CAPACITY * 8 )
+            .asLongBuffer();
+    }
+
+    /**
+     * Gets the id of a cipher text, adding it if it's new.
+     *
+     * @param cipherText The cipher text; it isn't kept.
+     *
+     * @return Its id.
+     *
+     * @throws IllegalStateException If it's new and the dictionary already
+     *      holds {@link #MAX_SIZE} cipher texts.
+     */
+    public int add( CharSequence cipherText )
+    {
+        encode( cipherText );
+        long hash = hash( key, keyLength );
+        int slot = find( hash );
+        if( ids.get( slot ) != 0 )
+        {
+            return ids.get( slot ) - 1;
+        }
+        if( size == MAX_SIZE )
+        {
+            throw new IllegalStateException( "Already holding the most " +
+                    "cipher texts, " + MAX_SIZE + "." );
+        }
+
+        if( size == addresses.capacity() )
+        {
+            LongBuffer grown = ByteBuffer.allocateDirect(
+                    addresses.capacity() * 2 * 8 ).asLongBuffer();
+            addresses.clear();
+            grown.put( addresses );
+            addresses = grown;
+        }
+        int id = size++;
+        addresses.put( id, store() );
+        hashes.put( slot, hash );
+        ids.put( slot, id + 1 );
+        if( size > capacity / 4 * 3 )
+        {
+            grow();
+        }
+        return id;
+    }
+
+    /**
+     * Gets the id of a cipher text.
+     *
+     * @param cipherText The cipher text.
+     *
+     * @return Its id, or -1 if it hasn't been added.
+     */
+    public int find( CharSequence cipherText )
+    {
+        encode( cipherText );
+        return ids.get( find( hash( key, keyLength ) ) ) - 1;
+    }
+
+    /**
+     * @param id An id.
+     *
+     * @return The cipher text with that id.
+     */
+    public String get( int id )
+    {
+        if( id < 0 || id >= size )
+        {
+            throw new IndexOutOfBoundsException( "No cipher text " + id );
+        }
+        long address = addresses.get( id );
+        ByteBuffer bytes = slabs.get( (int) (address >>> 32) ).duplicate();
+        bytes.position( (int) address );
+        int length = getVarint( bytes );
+        if( key.length < length )
+        {
+            key = new byte[Math.max( length, key.length * 2 )];
+        }
+        bytes.get( key, 0, length );
+        for( int i = 0; i < length; i++ )
+        {
+            if( key[i] < 0 )
+            {
+                return new String( key, 0, length, UTF8 );
+            }
+        }
+        return new String( key, 0, length, LATIN1 );
+    }
+
+    /**
+     * @return The number of cipher texts; the next one added gets this id.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return The bytes of direct memory allocated.
+     */
+    public long getBytesAllocated()
+    {
+        long bytes = (long) capacity * (8 + 4) + addresses.capacity() * 8L;
+        for( ByteBuffer s : slabs )
+        {
+            bytes += s.capacity();
+        }
+        return bytes;
+    }
+
+    /**
+     * Forgets every cipher text, keeping the memory to use again; ids start
+     * from 0 again.
+     */
+    public void clear()
+    {
+        for( int i = 0; i < capacity; i++ )
+        {
+            ids.put( i, 0 );
+        }
+        size = 0;
+        slab = 0;
+        slabPosition = 0;
+    }
+
+    /**
+     * Hashes a cipher text's bytes: 64-bit FNV-1a, with the bits mixed
+     * afterwards (as MurmurHash3 finishes) so the low bits, which pick the
+     * slot, depend on every byte. Tests override this to make hashes
+     * collide.
+     *
+     * @param bytes The bytes.
+     * @param length How many of them there are.
+     *
+     * @return The hash.
+     */
+    protected long hash( byte[] bytes, int length )
+    {
+        long h = 0xcbf29ce484222325L;
+        for( int i = 0; i < length; i++ )
+        {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Puts a cipher text's bytes in the key buffer.
+     */
+    private void encode( CharSequence cipherText )
+    {
+        int length = cipherText.length();
+        if( key.length < length )
+        {
+            key = new byte[Math.max( length, key.length * 2 )];
+        }
+        for( int i = 0; i < length; i++ )
+        {
+            char c = cipherText.charAt( i );
+            if( c >= 0x80 )
+            {
+                byte[] utf8 = cipherText.toString().getBytes( UTF8 );
+                if( key.length < utf8.length )
+                {
+                    key = new byte[utf8.length];
+                }
+                System.arraycopy( utf8, 0, key, 0, utf8.length );
+                keyLength = utf8.length;
+                return;
+            }
+            key[i] = (byte) c;
+        }
+        keyLength = length;
+    }
+
+    /**
+     * Finds the slot of the key buffer's cipher text.
+     *
+     * @param hash Its hash.
+     *
+     * @return Its slot, or the empty slot it would go in.
+     */
+    private int find( long hash )
+    {
+        int mask = capacity - 1;
+        for( int slot = (int) hash & mask; ; slot = (slot + 1) & mask )
+        {
+            int id = ids.get( slot );
+            if( id == 0 )
+            {
+                return slot;
+            }
+            if( hashes.get( slot ) == hash )
+            {
+                if( matches( id - 1 ) )
+                {
+                    return slot;
+                }
+                collisions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return Whether the key buffer holds the cipher text with an id.
+     */
+    private boolean matches( int id )
+    {
+        long address = addresses.get( id );
+        ByteBuffer bytes = slabs.get( (int) (address >>> 32) );
+        int offset = (int) address;
+        int length = 0;
+        for( int shift = 0; ; shift += 7 )
+        {
+            byte b = bytes.get( offset++ );
+            length |= (b & 0x7f) << shift;
+            if( b >= 0 )
+            {
+                break;
+            }
+        }
+        if( length != keyLength )
+        {
+            return false;
+        }
+        for( int i = 0; i < length; i++ )
+        {
+            if( bytes.get( offset + i ) != key[i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the key buffer into a slab.
+     *
+     * @return Where it went.
+     */
+    private long store()
+    {
+        int needed = 5 + keyLength;
+        if( slab == slabs.size() ||
+                slabPosition + needed > slabs.get( slab ).capacity() )
+        {
+            if( slab < slabs.size() )
+            {
+                slab++;
+                slabPosition = 0;
+            }
+            // Slabs kept from before a clear are filled again.
+            while( slab < slabs.size() &&
+                    needed > slabs.get( slab ).capacity() )
+            {
+                slab++;
+            }
+            if( slab == slabs.size() )
+            {
+                slabs.add( ByteBuffer.allocateDirect(
+                        Math.max( slabSize, needed ) ) );
+            }
+        }
+        ByteBuffer bytes = slabs.get( slab );
+        long address = (long) slab << 32 | slabPosition;
+        bytes.position( slabPosition );
+        int length = keyLength;
+        while( (length & ~0x7f) != 0 )
+        {
+            bytes.put( (byte) (length | 0x80) );
+            length >>>= 7;
+        }
+        bytes.put( (byte) length );
+        bytes.put( key, 0, keyLength );
+        slabPosition = bytes.position();
+        return address;
+    }
+
+    /**
+     * Doubles the table, moving each entry by the hash it has.
+     */
+    private void grow()
+    {
+        if( capacity > MAX_CAPACITY / 2 )
+        {
+            throw new IllegalStateException( "More than " + size +
+                    " cipher texts." );
+        }
+        LongBuffer oldHashes = hashes;
+        IntBuffer oldIds = ids;
+        int oldCapacity = capacity;
+        allocateTable( capacity * 2 );
+        int mask = capacity - 1;
+        for( int i = 0; i < oldCapacity; i++ )
+        {
+            int id = oldIds.get( i );
+            if( id != 0 )
+            {
+                long hash = oldHashes.get( i );
+                int slot = (int) hash & mask;
+                while( ids.get( slot ) != 0 )
+                {
+                    slot = (slot + 1) & mask;
+                }
+                hashes.put( slot, hash );
+                ids.put( slot, id );
+            }
+        }
+    }
+
+    private void allocateTable( int capacity )
+    {
+        this.capacity = capacity;
+        hashes = ByteBuffer.allocateDirect( capacity * 8 ).asLongBuffer();
+        ids = ByteBuffer.allocateDirect( capacity * 4 ).asIntBuffer();
+    }
+
+    private static int getVarint( ByteBuffer buffer )
+    {
+        int value = 0;
+        for( int shift = 0; ; shift += 7 )
+        {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if( b >= 0 )
+            {
+                return value;
+            }
+        }
+    }
+}
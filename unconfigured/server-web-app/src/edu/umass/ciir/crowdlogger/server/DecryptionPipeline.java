@@ -0,0 +1,630 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
+/**
+ * Runs both stages of decrypting what the server collected, as
+ * <code>scripts/slog2clog.sh</code> does, so that it can be stopped at any
+ * point and picked up again: {@link EEArtifactDecryptor} turns the server's
+ * ee-artifact files into one set of e-artifact files per job in
+ * <code>&lt;working dir&gt;/eartifactFiles</code>, then
+ * {@link EArtifactDecryptor} turns each job's e-artifacts into
+ * <code>&lt;working dir&gt;/&lt;job&gt;.clog</code>.
+ *
+ * Progress is kept in <code>&lt;working dir&gt;/checkpoint.json</code>: how
+ * far into each input file the first stage has got, how long each
+ * e-artifact file was at that point, and which jobs the second stage has
+ * finished. During the first stage, a checkpoint is taken every so many
+ * lines or seconds (whichever comes first) and at the end of each input:
+ * the e-artifact files are written out and synced, then the checkpoint is
+ * written to a temporary file, synced and renamed over the old one. A job
+ * is checkpointed once its <code>.clog</code> is in place.
+ *
+ * Run again on the same working directory, the e-artifact files are cut
+ * back to their checkpointed lengths (and any started since are removed),
+ * finished inputs are skipped and the rest are picked up where the
+ * checkpoint left them, then only the jobs not yet finished are decrypted.
+ * So at most one interval's worth of ee-artifacts, or one job, is done over
+ * after a failure. An input may grow between runs (the new lines are read),
+ * but shouldn't otherwise change. Since an input may still be being written,
+ * a last line without a new line is left for the next run, unless the
+ * inputs are known to be complete ({@link #setInputsComplete(boolean)}).
+ *
+ * A run on a working directory without a checkpoint saves an empty one
+ * before it starts. If the directory already holds e-artifact files but no
+ * checkpoint, the run refuses to start rather than remove them, unless told
+ * to discard them ({@link #setDiscardExisting(boolean)}). An input that
+ * isn't read to the end, or a job whose e-artifacts couldn't all be read,
+ * fails the run without being checkpointed.
+ */
+public class DecryptionPipeline
+{
+    /** The default number of lines between checkpoints. */
+    public static final int CHECKPOINT_LINES = 100000;
+
+    /** The default number of seconds between checkpoints. */
+    public static final int CHECKPOINT_SECONDS = 300;
+
+    private static final String EARTIFACT_DIRECTORY = "eartifactFiles";
+    private static final String CHECKPOINT_FILE = "checkpoint.json";
+    private static final String EARTIFACT_SUFFIX = ".eartifacts";
+
+    private static final Logger logger =
+        Logger.getLogger( DecryptionPipeline.class.getName() );
+
+    private static final Counter checkpoints =
+        Metrics.counter( "pipeline.checkpoints" );
+    private static final Counter bytesSkipped =
+        Metrics.counter( "pipeline.bytes_skipped" );
+    private static final Counter bytesDiscarded =
+        Metrics.counter( "pipeline.bytes_discarded" );
+    private static final Timer checkpointTimer =
+        Metrics.timer( "pipeline.checkpoint.micros" );
+
+    private final EEArtifactDecryptor eeartifactDecryptor;
+    private final File workingDirectory;
+    private final File eartifactDirectory;
+    private final File checkpointFile;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long checkpointLines = CHECKPOINT_LINES;
+    private long checkpointMillis = CHECKPOINT_SECONDS * 1000L;
+    private boolean discardExisting = false;
+    private boolean inputsComplete = false;
+
+    // What the checkpoint holds: the offset reached in each input (by
+    // canonical path), the length of each e-artifact file, and the jobs
+    // whose .clog is done.
+    private final Map<String, Long> offsets =
+        new LinkedHashMap<String, Long>();
+    private final Map<String, Long> shardLengths =
+        new TreeMap<String, Long>();
+    private final TreeSet<String> aggregated = new TreeSet<String>();
+
+    // Lines written since the last checkpoint, and when that was.
+    private long uncheckpointedLines;
+    private long lastCheckpoint;
+
+    /**
+     * @param eeartifactDecryptor Removes the RSA layer.
+     * @param workingDirectory Where the e-artifact files, the
+     *      <code>.clog</code> files and the checkpoint go.
+     */
+    public DecryptionPipeline( EEArtifactDecryptor eeartifactDecryptor,
+            String workingDirectory )
+    {
+        this.eeartifactDecryptor = eeartifactDecryptor;
+        this.workingDirectory = new File( workingDirectory );
+        eartifactDirectory = new File( workingDirectory, EARTIFACT_DIRECTORY );
+        checkpointFile = new File( workingDirectory, CHECKPOINT_FILE );
+    }
+
+    /**
+     * @param threads The number of threads each stage decrypts with.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = Math.max( 1, threads );
+    }
+
+    /**
+     * Sets how often the first stage is checkpointed.
+     *
+     * @param lines At most this many lines between checkpoints.
+     * @param seconds At most this many seconds between checkpoints.
+     */
+    public void setCheckpointInterval( long lines, long seconds )
+    {
+        checkpointLines = Math.max( 1, lines );
+        checkpointMillis = Math.max( 0, seconds ) * 1000;
+    }
+
+    /**
+     * Sets whether e-artifact files found without a checkpoint are removed;
+     * if not (the default), the run refuses to start.
+     *
+     * @param discardExisting Whether to remove them.
+     */
+    public void setDiscardExisting( boolean discardExisting )
+    {
+        this.discardExisting = discardExisting;
+    }
+
+    /**
+     * Sets whether the inputs are known to be complete, so that a last line
+     * without a new line is read rather than left for the next run.
+     *
+     * @param inputsComplete Whether they're complete.
+     */
+    public void setInputsComplete( boolean inputsComplete )
+    {
+        this.inputsComplete = inputsComplete;
+    }
+
+    /**
+     * Runs (or resumes) both stages.
+     *
+     * @param eeartifactFilenames The server's ee-artifact files.
+     *
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws JSONException
+     */
+    public void run( String[] eeartifactFilenames )
+        throws IOException, GeneralSecurityException, JSONException
+    {
+        if( !eartifactDirectory.isDirectory() &&
+                !eartifactDirectory.mkdirs() )
+        {
+            throw new IOException( "Couldn't make " + eartifactDirectory );
+        }
+        restore();
+        decryptEEArtifacts( eeartifactFilenames );
+        decryptEArtifacts();
+    }
+
+    /**
+     * Reads the checkpoint, if there is one, and puts the e-artifact files
+     * back the way they were when it was taken.
+     */
+    private void restore() throws IOException
+    {
+        offsets.clear();
+        shardLengths.clear();
+        aggregated.clear();
+        if( checkpointFile.exists() )
+        {
+            try
+            {
+                JSONObject checkpoint = new JSONObject(
+                        new String( readFile( checkpointFile ), "UTF-8" ) );
+                JSONObject inputs = checkpoint.getJSONObject( "inputs" );
+                for( Iterator<?> i = inputs.keys(); i.hasNext(); )
+                {
+                    String input = (String) i.next();
+                    offsets.put( input, inputs.getLong( input ) );
+                }
+                JSONObject shards = checkpoint.getJSONObject( "shards" );
+                for( Iterator<?> i = shards.keys(); i.hasNext(); )
+                {
+                    String shard = (String) i.next();
+                    shardLengths.put( shard, shards.getLong( shard ) );
+                }
+                JSONArray jobs = checkpoint.getJSONArray( "aggregated" );
+                for( int i = 0; i < jobs.length(); i++ )
+                {
+                    aggregated.add( jobs.getString( i ) );
+                }
+            } catch( JSONException e ) {
+                throw new IOException( "Bad checkpoint " + checkpointFile +
+                        ": " + e.getMessage() );
+            }
+            logger.info( "Resuming from checkpoint " + checkpointFile );
+        }
+        else if( !shards().isEmpty() && !discardExisting )
+        {
+            throw new IOException( eartifactDirectory + " has e-artifact " +
+                    "files but there's no checkpoint to resume from; " +
+                    "remove them, or discard them with --discard-existing." );
+        }
+
+        for( File shard : shards() )
+        {
+            Long length = shardLengths.get( shard.getName() );
+            if( null == length )
+            {
+                // Started after the checkpoint, so it'll be written again.
+                bytesDiscarded.add( shard.length() );
+                if( !shard.delete() )
+                {
+                    throw new IOException( "Couldn't remove " + shard );
+                }
+            }
+            else if( shard.length() < length )
+            {
+                throw new IOException( shard + " is shorter than when it " +
+                        "was checkpointed (" + length + " bytes)." );
+            }
+            else if( shard.length() > length )
+            {
+                bytesDiscarded.add( shard.length() - length );
+                RandomAccessFile file = new RandomAccessFile( shard, "rw" );
+                try
+                {
+                    file.setLength( length );
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        for( String shard : shardLengths.keySet() )
+        {
+            if( !new File( eartifactDirectory, shard ).exists() )
+            {
+                throw new IOException( "Checkpointed file " + shard +
+                        " is missing from " + eartifactDirectory );
+            }
+        }
+
+        if( !checkpointFile.exists() )
+        {
+            // From here on, any e-artifact file was started by this run.
+            save();
+        }
+    }
+
+    /**
+     * The first stage: decrypts what's left of each ee-artifact file into
+     * the e-artifact files.
+     */
+    private void decryptEEArtifacts( String[] eeartifactFilenames )
+        throws IOException
+    {
+        final EArtifactWriter writer =
+            new EArtifactWriter( eartifactDirectory.getPath() );
+        lastCheckpoint = System.currentTimeMillis();
+        try
+        {
+            for( String eeartifactFilename : eeartifactFilenames )
+            {
+                final String input =
+                    new File( eeartifactFilename ).getCanonicalPath();
+                Long offset = offsets.get( input );
+                long start = null == offset ? 0 : offset;
+                long length = new File( input ).length();
+                if( start > length )
+                {
+                    throw new IOException( input + " is shorter than when " +
+                            "it was checkpointed (" + start + " bytes)." );
+                }
+                bytesSkipped.add( start );
+                if( start == length && null != offset )
+                {
+                    logger.info( "Already decrypted " + input );
+                    continue;
+                }
+                if( start > 0 )
+                {
+                    logger.info( "Resuming " + input + " at byte " + start );
+                }
+
+                offsets.put( input, start );
+                eeartifactDecryptor.decrptEEArtifactFile( eeartifactFilename,
+                        start, writer, threads,
+                        new EEArtifactDecryptor.Progress() {
+                            public void written( long offset )
+                                throws IOException
+                            {
+                                offsets.put( input, offset );
+                                uncheckpointedLines++;
+                                if( uncheckpointedLines >= checkpointLines ||
+                                        System.currentTimeMillis() -
+                                        lastCheckpoint >= checkpointMillis )
+                                {
+                                    checkpoint( writer );
+                                }
+                            }
+                        }, inputsComplete );
+                long reached = offsets.get( input );
+                if( reached < length )
+                {
+                    if( inputsComplete || !unfinishedLine( input, reached ) )
+                    {
+                        throw new IOException( "Stopped at byte " + reached +
+                                " of " + input + " (" + length + " bytes)." );
+                    }
+                    logger.info( "Leaving the unfinished last line of " +
+                            input + " for the next run." );
+                }
+                checkpoint( writer );
+            }
+        } finally {
+            writer.closeFiles();
+        }
+    }
+
+    /**
+     * The second stage: decrypts each job's e-artifacts into its
+     * <code>.clog</code>, unless that's already been done.
+     */
+    private void decryptEArtifacts()
+        throws IOException, GeneralSecurityException, JSONException
+    {
+        Map<String, List<String>> jobs = new TreeMap<String, List<String>>();
+        for( File shard : shards() )
+        {
+            String job = shard.getName().substring( 0,
+                    Math.max( 0, shard.getName().lastIndexOf( '-' ) ) );
+            List<String> files = jobs.get( job );
+            if( null == files )
+            {
+                files = new ArrayList<String>();
+                jobs.put( job, files );
+            }
+            files.add( shard.getPath() );
+        }
+
+        for( Map.Entry<String, List<String>> job : jobs.entrySet() )
+        {
+            File clog = new File( workingDirectory, job.getKey() + ".clog" );
+            if( aggregated.contains( job.getKey() ) && clog.exists() )
+            {
+                logger.info( "Already created " + clog );
+                continue;
+            }
+            logger.info( "Creating " + clog );
+            File partial = new File( clog.getPath() + ".tmp" );
+            EArtifactDecryptor decryptor = new EArtifactDecryptor();
+            decryptor.setThreads( threads );
+            decryptor.decrptEArtifactFile(
+                    job.getValue().toArray( new String[0] ),
+                    partial.getPath() );
+            if( decryptor.getUnfinishedFiles() > 0 )
+            {
+                partial.delete();
+                throw new IOException( "Couldn't read all of job " +
+                        job.getKey() + "'s e-artifacts; see the log." );
+            }
+            sync( partial );
+            rename( partial, clog );
+            aggregated.add( job.getKey() );
+            save();
+        }
+    }
+
+    /**
+     * Writes out and syncs the e-artifact files, then saves where every
+     * input has got to along with the files' lengths. Any <code>.clog</code>
+     * files are out of date once more e-artifacts are written.
+     */
+    private void checkpoint( EArtifactWriter writer ) throws IOException
+    {
+        long start = checkpointTimer.start();
+        try
+        {
+            writer.closeFiles();
+            shardLengths.clear();
+            for( File shard : shards() )
+            {
+                sync( shard );
+                shardLengths.put( shard.getName(), shard.length() );
+            }
+            aggregated.clear();
+            save();
+            uncheckpointedLines = 0;
+            lastCheckpoint = System.currentTimeMillis();
+            checkpoints.increment();
+        } finally {
+            checkpointTimer.stop( start );
+        }
+    }
+
+    /**
+     * Writes the checkpoint to a temporary file and renames it over the
+     * old one, so there's always a whole checkpoint to go back to.
+     */
+    private void save() throws IOException
+    {
+        String text;
+        try
+        {
+            JSONObject checkpoint = new JSONObject();
+            checkpoint.put( "inputs", new JSONObject( offsets ) );
+            checkpoint.put( "shards", new JSONObject( shardLengths ) );
+            checkpoint.put( "aggregated", new JSONArray( aggregated ) );
+            text = checkpoint.toString( 2 ) + "\n";
+        } catch( JSONException e ) {
+            throw new IOException( "Couldn't write the checkpoint: " +
+                    e.getMessage() );
+        }
+
+        File partial = new File( checkpointFile.getPath() + ".tmp" );
+        FileOutputStream out = new FileOutputStream( partial );
+        try
+        {
+            out.write( text.getBytes( "UTF-8" ) );
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        rename( partial, checkpointFile );
+    }
+
+    /**
+     * @return The e-artifact files in the e-artifact directory.
+     */
+    private List<File> shards()
+    {
+        List<File> shards = new ArrayList<File>();
+        File[] files = eartifactDirectory.listFiles();
+        if( null != files )
+        {
+            for( File file : files )
+            {
+                if( file.isFile() &&
+                        file.getName().endsWith( EARTIFACT_SUFFIX ) )
+                {
+                    shards.add( file );
+                }
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * @return Whether what's in the file from the given offset on is a line
+     *      without a new line (one that may still be being written).
+     */
+    private static boolean unfinishedLine( String filename, long offset )
+        throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( filename, "r" );
+        try
+        {
+            in.seek( offset );
+            byte[] buffer = new byte[65536];
+            int read;
+            while( (read = in.read( buffer )) > 0 )
+            {
+                for( int i = 0; i < read; i++ )
+                {
+                    if( buffer[i] == '\n' )
+                    {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes sure a file's contents are on disk.
+     */
+    private static void sync( File file ) throws IOException
+    {
+        RandomAccessFile out = new RandomAccessFile( file, "rw" );
+        try
+        {
+            out.getChannel().force( true );
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void rename( File from, File to ) throws IOException
+    {
+        // Not every platform will rename over an existing file.
+        if( !from.renameTo( to ) && !(to.delete() && from.renameTo( to )) )
+        {
+            throw new IOException( "Couldn't rename " + from + " to " + to );
+        }
+    }
+
+    private static byte[] readFile( File file ) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully( bytes );
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main( String[] args )
+    {
+        String help = "Usage: edu.umass.ciir.crowdlogger.server." +
+            "DecryptionPipeline [--threads=X] [--checkpoint-lines=N] " +
+            "[--checkpoint-seconds=S] [--discard-existing] " +
+            "[--inputs-complete] " +
+            "<private key filename> " +
+            "<working directory> <server files...>\n\n" +
+            "Decrypts the server's eartifacts.<date>.<part> files into " +
+            "<working directory>/<job>.clog,\nby way of " +
+            "<working directory>/" + EARTIFACT_DIRECTORY + ". Progress " +
+            "is checkpointed in\n<working directory>/" + CHECKPOINT_FILE +
+            "; run again with the same arguments to pick\nup where a " +
+            "run left off.\n\n" +
+            "--threads=X decrypts with X threads (default: one per core).\n" +
+            "--checkpoint-lines=N checkpoints at least every N lines " +
+            "(default: " + CHECKPOINT_LINES + ").\n" +
+            "--checkpoint-seconds=S checkpoints at least every S seconds " +
+            "(default: " + CHECKPOINT_SECONDS + ").\n" +
+            "--discard-existing removes e-artifact files left in the " +
+            "working directory\nwithout a checkpoint, rather than " +
+            "refusing to start.\n" +
+            "--inputs-complete reads a last line without a new line; by " +
+            "default it's\nleft for the next run, as the server may still " +
+            "be writing it.\n\n" +
+            "The -D options of EEArtifactDecryptor and EArtifactDecryptor " +
+            "apply to\neach stage.";
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        long lines = CHECKPOINT_LINES;
+        long seconds = CHECKPOINT_SECONDS;
+        boolean discardExisting = false;
+        boolean inputsComplete = false;
+        int first = 0;
+        for( ; first < args.length && args[first].startsWith( "--" ); first++ )
+        {
+            if( args[first].startsWith( "--threads=" ) )
+            {
+                threads = Integer.parseInt(
+                        args[first].replaceFirst( "--threads=", "" ) );
+            }
+            else if( args[first].startsWith( "--checkpoint-lines=" ) )
+            {
+                lines = Long.parseLong(
+                        args[first].replaceFirst( "--checkpoint-lines=", "" ) );
+            }
+            else if( args[first].startsWith( "--checkpoint-seconds=" ) )
+            {
+                seconds = Long.parseLong( args[first].replaceFirst(
+                        "--checkpoint-seconds=", "" ) );
+            }
+            else if( args[first].equals( "--discard-existing" ) )
+            {
+                discardExisting = true;
+            }
+            else if( args[first].equals( "--inputs-complete" ) )
+            {
+                inputsComplete = true;
+            }
+        }
+
+        if( args.length - first < 3 )
+        {
+            System.out.println( help );
+            System.exit( 0 );
+        }
+
+        String privateKeyFilename = args[first];
+        String workingDirectory = args[first + 1];
+        String[] inputFilenames = new String[args.length - first - 2];
+        for( int i = first + 2; i < args.length; i++ )
+        {
+            inputFilenames[i - first - 2] = args[i];
+        }
+
+        try
+        {
+            DecryptionPipeline pipeline = new DecryptionPipeline(
+                    new EEArtifactDecryptor( privateKeyFilename ),
+                    workingDirectory );
+            pipeline.setThreads( threads );
+            pipeline.setCheckpointInterval( lines, seconds );
+            pipeline.setDiscardExisting( discardExisting );
+            pipeline.setInputsComplete( inputsComplete );
+            pipeline.run( inputFilenames );
+
+            logger.info( "Metrics:\n" + Metrics.report() );
+        } catch( Exception e ) {
+            e.printStackTrace();
+            System.exit( 1 );
+        }
+    }
+}
@@ -5,18 +5,31 @@
 package edu.umass.ciir.crowdlogger.server;
 
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.umass.ciir.crowdlogger.io.EArtifactFields;
+import edu.umass.ciir.crowdlogger.io.EArtifactSegment;
+import edu.umass.ciir.crowdlogger.io.EArtifactSegmentReader;
+import edu.umass.ciir.crowdlogger.io.MappedLineReader;
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
 import edu.umass.ciir.crowdlogger.server.artifact.ArtifactBag;
 import edu.umass.ciir.crowdlogger.server.artifact.EArtifactBag;
 
@@ -24,12 +37,54 @@ import edu.umass.ciir.crowdlogger.server.artifact.EArtifactBag;
 /**
  * Writes incoming e-artifacts to a file.
  * 
+ * Normally every e-artifact is read into memory before any bag is 
+ * decrypted. Given a memory budget that the input won't fit in, the 
+ * e-artifacts are instead spilled to partition files by their primary 
+ * cipher text (see {@link EArtifactPartitioner}) and the bags are put 
+ * together and decrypted one partition at a time; a partition that's still 
+ * too big is split again. The output has the same lines either way, though
+ * the bags come out in a different order.
+ * 
+ * The bags in memory can only have so many distinct primary cipher texts
+ * between them (at most {@link CipherTextDictionary#MAX_SIZE}). If reading
+ * the whole input into memory finds more, the bags read so far are dropped
+ * and the input is spilled to partitions after all; a partition with too
+ * many is split again.
+ * 
+ * Bags are decrypted on a pool of threads, one per core by default, and 
+ * written out by a single thread in the order they'd be decrypted in 
+ * serially; that thread is also the only one to touch the stats, so the 
+ * output is the same whatever the number of threads.
+ * 
  * @author hfeild
  */
 public class EArtifactDecryptor 
 {
+	/** The system property holding the memory budget, in megabytes. */
+	public static final String MEMORY_BUDGET_PROPERTY = 
+	    "crowdlogger.decryption.memoryBudgetMB";
+	
+	/** The system property holding the directory to spill partitions to. */
+	public static final String SPILL_DIRECTORY_PROPERTY = 
+	    "crowdlogger.decryption.spillDirectory";
+	
+	// Roughly how many bytes of heap a byte of input takes up once it's in
+	// bags, erring high.
+	private static final int HEAP_PER_INPUT_BYTE = 2;
+	// The most partitions to write at once; more are made by splitting again.
+	private static final int MAX_PARTITIONS = 256;
+	// How many times a partition can be split before it's decrypted anyway
+	// (e.g., because it's a single huge bag).
+	private static final int MAX_SPLITS = 4;
+	private static final int MAX_PARTITION_BUFFER = 64 * 1024;
+	private static final int MIN_PARTITION_BUFFER = 4 * 1024;
+	// Bags are handed to the decryption threads this many at a time.
+	private static final int BATCH_SIZE = 64;
+	
 	private BasicDecryptor decryptor;
-	private HashMap<String, EArtifactBag> eartifactBags;
+	// Primary cipher text -> id, and the bags by id.
+	private CipherTextDictionary primaryCipherTexts;
+	private EArtifactBag[] eartifactBags;
 	// support -> {distinct, impressions}
 	private HashMap<Long, Long[]> unsupportedArtifactStats;
 	private long numberOfDistinctArtifactsSupported;
@@ -38,9 +93,56 @@ public class EArtifactDecryptor
 	private long totalDistinctArtifacts;
 	private long totalArtifacts;
 	
+	// In bytes; 0 for no limit.
+	private long memoryBudget;
+	private File spillDirectory;
+	private int threads;
+	// Input files whose reading was cut short by an error.
+	private int unfinishedFiles = 0;
+	// The most distinct primary cipher texts to hold in bags at once.
+	private int maxCipherTexts = CipherTextDictionary.MAX_SIZE;
+	// The fields of the e-artifact being read; reading is one thread.
+	private final EArtifactFields fields = new EArtifactFields();
+	
 	private static final Logger logger = 
 	    Logger.getLogger(EArtifactDecryptor.class.getName());
 	
+	private static final Counter read = 
+	    Metrics.counter( "decryption.eartifacts.read" );
+	private static final Counter malformed = 
+	    Metrics.counter( "decryption.eartifacts.malformed" );
+	private static final Histogram supportHistogram = 
+	    Metrics.histogram( "decryption.bags.support" );
+	private static final Counter resplit = 
+	    Metrics.counter( "decryption.spill.resplit" );
+	private static final Timer decryptTimer = 
+	    Metrics.timer( "decryption.bags.stage.micros" );
+	
+	/**
+	 * A decrypted bag and the lines to write for it.
+	 */
+	private static class DecryptedBag
+	{
+	    EArtifactBag eartifactBag;
+	    ArtifactBag artifactBag;
+	    String line;
+	    String note;
+	}
+	
+	/**
+	 * Thrown when the bags already have as many distinct primary cipher 
+	 * texts as they may.
+	 */
+	private static class TooManyCipherTexts extends IOException
+	{
+	    private static final long serialVersionUID = 1L;
+	    
+	    TooManyCipherTexts( int max )
+	    {
+	        super( "More than " + max + " distinct primary cipher texts." );
+	    }
+	}
+	
 	
 	/**
 	 * Initializes an instance by creating the private key cipher that will be
@@ -57,13 +159,66 @@ public class EArtifactDecryptor
 		throws FileNotFoundException, IOException, GeneralSecurityException
 	{		
 	    decryptor = new BasicDecryptor();
-	    eartifactBags = new HashMap<String, EArtifactBag>();
+	    primaryCipherTexts = new CipherTextDictionary();
+	    eartifactBags = new EArtifactBag[1024];
 	    unsupportedArtifactStats = new HashMap<Long, Long[]>();
 	    numberOfDistinctArtifactsSupported = 0;
 	    numberOfArtifactInstancesSupported = 0;
 	    
 	    totalDistinctArtifacts = 0;
 	    totalArtifacts = 0;
+	    
+	    setMemoryBudget( 
+	            Long.getLong( MEMORY_BUDGET_PROPERTY, 0 ) * 1024 * 1024,
+	            new File( System.getProperty( SPILL_DIRECTORY_PROPERTY, 
+	                    System.getProperty( "java.io.tmpdir" ) ) ) );
+	    threads = Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Sets the number of threads to decrypt bags with.
+	 * 
+	 * @param threads The number of threads; one per core by default.
+	 */
+	public void setThreads( int threads )
+	{
+	    this.threads = Math.max( 1, threads );
+	}
+	
+	/**
+	 * Sets the most distinct primary cipher texts the bags in memory may 
+	 * have between them; past that, the input is partitioned.
+	 * 
+	 * @param maxCipherTexts The most, up to (and by default) 
+	 *     {@link CipherTextDictionary#MAX_SIZE}.
+	 */
+	public void setMaxCipherTexts( int maxCipherTexts )
+	{
+	    this.maxCipherTexts = Math.max( 1, 
+	            Math.min( maxCipherTexts, CipherTextDictionary.MAX_SIZE ) );
+	}
+	
+	/**
+	 * @return The number of input files that an error stopped from being 
+	 *     read to the end; the rest of each was skipped (and the error 
+	 *     logged).
+	 */
+	public int getUnfinishedFiles()
+	{
+	    return unfinishedFiles;
+	}
+	
+	/**
+	 * Sets how much memory the bags may take up. If the input is likely to
+	 * need more, it's partitioned on disk first.
+	 * 
+	 * @param memoryBudget The budget, in bytes; 0 for no limit.
+	 * @param spillDirectory The directory to write partitions to.
+	 */
+	public void setMemoryBudget( long memoryBudget, File spillDirectory )
+	{
+	    this.memoryBudget = memoryBudget;
+	    this.spillDirectory = spillDirectory;
 	}
 
 	
@@ -90,96 +245,598 @@ public class EArtifactDecryptor
 	    // Open the output file.
 	    FileWriter outputFile = new FileWriter( outputFilename );
 	    
-	    for( int i = 0; i < eartifactFilenames.length; i++ )
+	    try
 	    {
-	        // Open the input file
-	        Scanner eartifactFile = new Scanner( 
-	                new File(eartifactFilenames[i]) );
+	        long inputBytes = 0;
+	        for( int i = 0; i < eartifactFilenames.length; i++ )
+	        {
+	            File input = new File( eartifactFilenames[i] );
+	            // Segments are sized by the JSON they stand for.
+	            inputBytes += input.length() * 
+	                (EArtifactSegment.isSegment( input ) ? 
+	                        EArtifactSegment.EXPANSION : 1);
+	        }
 	        
-	        // Read and process each line from the input file.
-	        String line;
-	        try{
-	            while( (line = eartifactFile.nextLine() ) != null )
+	        if( fitsInMemory( inputBytes ) && 
+	                readIntoBags( eartifactFilenames ) )
+	        {
+	            decryptBags( outputFile );
+	        }
+	        else
+	        {
+	            EArtifactPartitioner partitioner = 
+	                newPartitioner( inputBytes, 0 );
+	            List<File> partitions = null;
+	            try
+	            {
+	                for( int i = 0; i < eartifactFilenames.length; i++ )
+	                {
+	                    readEArtifactFile( eartifactFilenames[i], 
+	                            partitioner );
+	                }
+	            } finally {
+	                partitions = partitioner.close();
+	            }
+	            logger.info( "Spilled e-artifacts to " + partitions.size() + 
+	                    " partitions in " + spillDirectory + "." );
+	            decryptPartitions( partitions, 1, outputFile );
+	        }
+	        
+	        writeSummary( outputFile );
+	    } finally {
+	        outputFile.close();
+	    }
+	}
+	
+	/**
+	 * Reads every input file into bags.
+	 * 
+	 * @param eartifactFilenames The input files.
+	 * 
+	 * @return <code>false</code> if they have too many distinct primary 
+	 *     cipher texts to hold at once, in which case the bags are emptied.
+	 * 
+	 * @throws IOException
+	 */
+	private boolean readIntoBags( String[] eartifactFilenames ) 
+	    throws IOException
+	{
+	    try
+	    {
+	        for( int i = 0; i < eartifactFilenames.length; i++ )
+	        {
+	            readEArtifactFile( eartifactFilenames[i], null );
+	        }
+	    } catch( TooManyCipherTexts e ) {
+	        logger.warning( e.getMessage() + " Partitioning the input " +
+	                "instead." );
+	        clearBags();
+	        // They'll all be read again.
+	        unfinishedFiles = 0;
+	        return false;
+	    }
+	    logger.info( "Found " + primaryCipherTexts.size() + 
+	            " distinct e-artifacts." );
+	    return true;
+	}
+	
+	/**
+	 * Reads the e-artifacts in a file, either into bags or, if a
+	 * partitioner is given, out to their partitions.
+	 * 
+	 * @param eartifactFilename The name of the file.
+	 * @param partitioner Where to spill the e-artifacts; 
+	 *     <code>null</code> to put them in bags.
+	 * 
+	 * @throws IOException If the e-artifacts can't be spilled.
+	 */
+	private void readEArtifactFile( String eartifactFilename, 
+	        EArtifactPartitioner partitioner ) throws IOException
+	{
+	    if( EArtifactSegment.isSegment( new File( eartifactFilename ) ) )
+	    {
+	        readSegment( eartifactFilename, partitioner );
+	        return;
+	    }
+	    
+	    // Open the input file
+	    MappedLineReader eartifactFile = 
+	        new MappedLineReader( new File(eartifactFilename) );
+	    
+	    // Read and process each line from the input file; lines going into
+	    // bags are read where they're mapped, without making Strings.
+	    ByteBuffer line;
+	    try{
+	        while( (line = eartifactFile.next() ) != null )
+	        {
+	            read.increment();
+	            if( null == partitioner )
+	            {
+	                checkRoom();
+	                addEArtifact( line, eartifactFile );
+	            }
+	            else
+	            {
+	                spillEArtifact( eartifactFile.decode( line ), 
+	                        partitioner );
+	            }
+	        }
+	
+	    } catch ( IOException e ){
+	        // Losing spilled e-artifacts would change the output.
+	        throw e;
+	    } catch ( Exception e ){
+	        unfinishedFiles++;
+	        logger.severe( "Exception reading file " + eartifactFilename +
+	                ": " + e.toString() );
+	    } finally {
+	        // Close all of the files we opened.
+	        eartifactFile.close();
+	    }
+	}
+	
+	/**
+	 * Reads the e-artifacts in a segment (see {@link EArtifactSegment}), 
+	 * either into bags or, if a partitioner is given, out to their 
+	 * partitions as JSON lines.
+	 * 
+	 * @param segmentFilename The name of the segment.
+	 * @param partitioner Where to spill the e-artifacts; 
+	 *     <code>null</code> to put them in bags.
+	 * 
+	 * @throws IOException If the segment can't be read or the e-artifacts
+	 *     can't be spilled.
+	 */
+	private void readSegment( String segmentFilename, 
+	        EArtifactPartitioner partitioner ) throws IOException
+	{
+	    EArtifactSegmentReader segment = 
+	        new EArtifactSegmentReader( new File( segmentFilename ) );
+	    try{
+	        JSONObject eartifact;
+	        while( (eartifact = segment.next()) != null )
+	        {
+	            read.increment();
+	            if( null == partitioner )
 	            {
-	                try{
-	                // Read the e-artifact.
-	                JSONObject eartifact = new JSONObject( line );
+	                checkRoom();
+	            }
+	            try{
 	                String primaryCipherText = eartifact.getString( 
 	                    "primary_cipher_text" );
-	                
-	                logger.info( "Adding e-artifact with primary " +
-	                		"cipher text: " + primaryCipherText );
-
-	                // Check if we need to create a new
-	                if( !eartifactBags.containsKey(primaryCipherText) )
+	                if( null == partitioner )
 	                {
-	                    eartifactBags.put(primaryCipherText, 
-	                            new EArtifactBag() );
+	                    addEArtifact( primaryCipherText, eartifact );
 	                }
-	                
-	                // Add in the new object.
-	                eartifactBags.get( primaryCipherText ).
-	                    addEArtifact( eartifact );
-	                } catch ( JSONException e ) {
-	                    logger.severe( "Exception reading line [" + line +"]:"+
-	                            e.toString() ); 
+	                else
+	                {
+	                    partitioner.add( primaryCipherText, 
+	                            eartifact.toString() );
 	                }
+	            } catch ( JSONException e ) {
+	                malformed.increment();
+	                logger.severe( "Exception reading e-artifact [" + 
+	                        eartifact + "]:" + e.toString() ); 
 	            }
-
-	        } catch ( Exception e ){
-	            logger.severe( "Exception reading file " + eartifactFilenames[i] +
-	                    ": " + e.toString() );
-	        } finally {
-	            // Close all of the files we opened.
-	            eartifactFile.close();
 	        }
+	    } finally {
+	        segment.close();
 	    }
-	    
-	    logger.info( "Found " + eartifactBags.size() + " distinct e-artifacts." );
-	    // Go through each of the eartifacts and attempt to decrypt it.
-	    for( EArtifactBag eab : eartifactBags.values() )
+	}
+	
+	/**
+	 * Adds an e-artifact to its bag, logging it if it's malformed.
+	 * 
+	 * @param line The e-artifact.
+	 */
+	private void addEArtifact( String line )
+	{
+	    try{
+	        // Read the e-artifact.
+	        fields.parse( line );
+	        addEArtifact( fields );
+	    } catch ( JSONException e ) {
+	        malformed.increment();
+	        logger.severe( "Exception reading line [" + line +"]:"+
+	                e.toString() ); 
+	    }
+	}
+	
+	/**
+	 * Adds an e-artifact to its bag, logging it if it's malformed.
+	 * 
+	 * @param line The e-artifact, as a slice of the file.
+	 * @param file The file, to decode the line if it's logged.
+	 */
+	private void addEArtifact( ByteBuffer line, MappedLineReader file )
+	{
+	    try{
+	        fields.parse( line );
+	        addEArtifact( fields );
+	    } catch ( JSONException e ) {
+	        malformed.increment();
+	        logger.severe( "Exception reading line [" + file.decode( line ) +
+	                "]:" + e.toString() ); 
+	    }
+	}
+	
+	/**
+	 * Adds an e-artifact to its bag.
+	 * 
+	 * @param eartifact The e-artifact's fields.
+	 * 
+	 * @throws JSONException If the e-artifact is missing a field.
+	 */
+	private void addEArtifact( EArtifactFields eartifact ) 
+	    throws JSONException
+	{
+	    // The dictionary keeps the primary cipher text, not the bag.
+	    bag( primaryCipherTexts.add( eartifact.get( 
+	            EArtifactFields.PRIMARY_CIPHER_TEXT ) ) ).
+	        addEArtifactWithoutPrimary( eartifact );
+	}
+	
+	/**
+	 * Adds an e-artifact to its bag.
+	 * 
+	 * @param primaryCipherText The e-artifact's primary cipher text.
+	 * @param eartifact The e-artifact.
+	 * 
+	 * @throws JSONException If the e-artifact is missing a field.
+	 */
+	private void addEArtifact( String primaryCipherText, 
+	        JSONObject eartifact ) throws JSONException
+	{
+	    bag( primaryCipherTexts.add( primaryCipherText ) ).
+	        addEArtifact( eartifact );
+	}
+	
+	/**
+	 * Makes sure the bags have room for another primary cipher text.
+	 * 
+	 * @throws TooManyCipherTexts If they don't.
+	 */
+	private void checkRoom() throws TooManyCipherTexts
+	{
+	    if( primaryCipherTexts.size() >= maxCipherTexts )
 	    {
-	        ArtifactBag ab = eab.decrypt();
-	        
-	        // If it is null, add the given info to the unsupported artifact 
-	        // structure.
-	        if( null == ab )
+	        throw new TooManyCipherTexts( maxCipherTexts );
+	    }
+	}
+	
+	/**
+	 * Gets the bag with an id, making it if it's new.
+	 * 
+	 * @param id The id of the bag's primary cipher text.
+	 * 
+	 * @return The bag.
+	 */
+	private EArtifactBag bag( int id )
+	{
+	    if( id == eartifactBags.length )
+	    {
+	        eartifactBags = Arrays.copyOf( eartifactBags, id * 2 );
+	    }
+	    if( null == eartifactBags[id] )
+	    {
+	        eartifactBags[id] = new EArtifactBag();
+	    }
+	    return eartifactBags[id];
+	}
+	
+	/**
+	 * Writes an e-artifact to its partition, logging it if it has no 
+	 * primary cipher text. Anything else wrong with it is found when its
+	 * partition is read back.
+	 * 
+	 * @param line The e-artifact.
+	 * @param partitioner Where to write it.
+	 * 
+	 * @throws IOException
+	 */
+	private void spillEArtifact( String line, 
+	        EArtifactPartitioner partitioner ) throws IOException
+	{
+	    String primaryCipherText;
+	    try{
+	        fields.parse( line );
+	        primaryCipherText = 
+	            fields.getString( EArtifactFields.PRIMARY_CIPHER_TEXT );
+	    } catch ( JSONException e ) {
+	        malformed.increment();
+	        logger.severe( "Exception reading line [" + line +"]:"+
+	                e.toString() ); 
+	        return;
+	    }
+	    partitioner.add( primaryCipherText, line );
+	}
+	
+	/**
+	 * Decrypts the bags in each partition in turn, splitting any that look
+	 * too big for the memory budget. The partitions are deleted as they're
+	 * done with.
+	 * 
+	 * @param partitions The partition files.
+	 * @param depth How many times these partitions have been split.
+	 * @param outputFile Where to write the bags.
+	 * 
+	 * @throws IOException
+	 */
+	private void decryptPartitions( List<File> partitions, int depth, 
+	        FileWriter outputFile ) throws IOException
+	{
+	    try
+	    {
+	        for( File partition : partitions )
 	        {
-	            
-	            long support = eab.getAmountOfSupport();
-	            long instances = eab.getNumberOfInstances();
-	            
-	            Long[] stats = {new Long(1), instances};
-	            if( unsupportedArtifactStats.containsKey( support ) )
+	            boolean tooBig = depth <= MAX_SPLITS && 
+	                !fitsInMemory( partition.length() );
+	            if( !tooBig )
 	            {
-	                stats = unsupportedArtifactStats.get( support );
-	                stats[0]++;
-	                stats[1] += instances;
+	                try
+	                {
+	                    readPartition( partition );
+	                } catch( TooManyCipherTexts e ) {
+	                    if( depth > MAX_SPLITS )
+	                    {
+	                        throw e;
+	                    }
+	                    clearBags();
+	                    tooBig = true;
+	                }
 	            }
 	            
-	            logger.info( "Current e-artifact bag is null. Support: " +
-	                    support + "; instances: " + instances );
-	            
-	            unsupportedArtifactStats.put( support, stats );
-
-                outputFile.write( "## "+ eab.toString2() +"\n");
-	            
+	            if( tooBig )
+	            {
+	                resplit.increment();
+	                decryptPartitions( split( partition, depth ), depth + 1, 
+	                        outputFile );
+	            }
+	            else
+	            {
+	                logger.fine( "Found " + primaryCipherTexts.size() + 
+	                        " distinct e-artifacts in " + partition + "." );
+	                decryptBags( outputFile );
+	            }
+	            partition.delete();
 	        }
-	        // Otherwise, write it to file and update the necessary counts.
-	        else
+	    } finally {
+	        // Only left over if something went wrong.
+	        for( File partition : partitions )
 	        {
-	            numberOfDistinctArtifactsSupported++;
-	            numberOfArtifactInstancesSupported += ab.getNumberOfInstances();
-	            outputFile.write( ab.toString() + "\n" );
-
-                if( ab.getPrimaryField().equals("") )
-                    outputFile.write( "# "+ eab.toString2() +"\n" );
+	            partition.delete();
 	        }
-	        
-	        totalDistinctArtifacts++;
-	        totalArtifacts += eab.getNumberOfInstances();
+	    }
+	}
+	
+	/**
+	 * Splits a partition with a new hash seed.
+	 * 
+	 * @return The new partitions.
+	 * 
+	 * @throws IOException
+	 */
+	private List<File> split( File partition, int depth ) throws IOException
+	{
+	    EArtifactPartitioner partitioner = 
+	        newPartitioner( partition.length(), depth );
+	    BufferedReader reader = openPartition( partition );
+	    List<File> partitions = null;
+	    try
+	    {
+	        String line;
+	        while( null != (line = reader.readLine()) )
+	        {
+	            // These all parsed the first time through.
+	            try
+	            {
+	                fields.parse( line );
+	                partitioner.add( fields.getString( 
+	                        EArtifactFields.PRIMARY_CIPHER_TEXT ), line );
+	            } catch( JSONException e ) {
+	                throw new IOException( "Unreadable line in " + partition +
+	                        ": " + e.toString() );
+	            }
+	        }
+	    } finally {
+	        reader.close();
+	        partitions = partitioner.close();
+	    }
+	    return partitions;
+	}
+	
+	/**
+	 * Reads the e-artifacts in a partition into bags.
+	 * 
+	 * @throws IOException
+	 */
+	private void readPartition( File partition ) throws IOException
+	{
+	    BufferedReader reader = openPartition( partition );
+	    try
+	    {
+	        String line;
+	        while( null != (line = reader.readLine()) )
+	        {
+	            checkRoom();
+	            addEArtifact( line );
+	        }
+	    } finally {
+	        reader.close();
+	    }
+	}
+	
+	private static BufferedReader openPartition( File partition ) 
+	    throws IOException
+	{
+	    return new BufferedReader( new InputStreamReader( 
+	            new FileInputStream( partition ), "UTF-8" ) );
+	}
+	
+	/**
+	 * @return <code>true</code> if that much input can be put in bags 
+	 *     without going over the memory budget.
+	 */
+	private boolean fitsInMemory( long inputBytes )
+	{
+	    return memoryBudget <= 0 || 
+	        inputBytes <= memoryBudget / HEAP_PER_INPUT_BYTE;
+	}
+	
+	/**
+	 * Creates a partitioner with enough partitions that each should fit in
+	 * the memory budget (up to MAX_PARTITIONS), and with their buffers 
+	 * together taking up a small part of it.
+	 */
+	private EArtifactPartitioner newPartitioner( long inputBytes, int seed )
+	{
+	    long perPartition = Math.max( 1, memoryBudget / HEAP_PER_INPUT_BYTE );
+	    // At least two, for input that fits in the budget but has too many
+	    // primary cipher texts.
+	    int partitions = (int) Math.max( 2, Math.min( MAX_PARTITIONS, 
+	            (inputBytes + perPartition - 1) / perPartition ) );
+	    // Two bytes a character, and a quarter of the budget between them.
+	    int bufferSize = (int) Math.max( MIN_PARTITION_BUFFER, Math.min( 
+	            MAX_PARTITION_BUFFER, memoryBudget / 8 / partitions ) );
+	    return new EArtifactPartitioner( spillDirectory, partitions, seed, 
+	            bufferSize );
+	}
+	
+	/**
+	 * Decrypts the bags read so far, writes them out, and empties the 
+	 * bags.
+	 * 
+	 * @param outputFile Where to write the bags.
+	 * 
+	 * @throws IOException
+	 */
+	private void decryptBags( final FileWriter outputFile ) 
+	    throws IOException
+	{
+	    // Bags go out in the order their primary cipher texts were first 
+	    // seen, and are let go of as they do so they can be collected once 
+	    // written.
+	    OrderedParallelProcessor.Source<EArtifactBag> source = 
+	        new OrderedParallelProcessor.Source<EArtifactBag>() {
+	            private int id = 0;
+	            
+	            public EArtifactBag next()
+	            {
+	                if( id == primaryCipherTexts.size() )
+	                {
+	                    return null;
+	                }
+	                EArtifactBag bag = eartifactBags[id];
+	                eartifactBags[id] = null;
+	                bag.setPrimaryCipherText( primaryCipherTexts.get( id ) );
+	                id++;
+	                return bag;
+	            }
+	        };
+	    
+	    // Interpolates and decrypts, and puts together the output lines.
+	    OrderedParallelProcessor.Worker<EArtifactBag, DecryptedBag> decrypt =
+	        new OrderedParallelProcessor.Worker<EArtifactBag, DecryptedBag>() {
+	            public DecryptedBag process( EArtifactBag eab )
+	            {
+	                DecryptedBag decrypted = new DecryptedBag();
+	                decrypted.eartifactBag = eab;
+	                decrypted.artifactBag = eab.decrypt();
+	                supportHistogram.record( eab.getAmountOfSupport() );
+	                
+	                if( null == decrypted.artifactBag )
+	                {
+	                    decrypted.line = "## "+ eab.toString2();
+	                }
+	                else
+	                {
+	                    decrypted.line = decrypted.artifactBag.toString();
+	                    
+	                    // Note bags that were empty or had bad shares.
+	                    if( decrypted.artifactBag.getPrimaryField().equals("") ||
+	                            !eab.getBadShares().isEmpty() )
+	                        decrypted.note = "# "+ eab.toString2();
+	                }
+	                return decrypted;
+	            }
+	        };
+	    
+	    // Writes the lines and keeps the counts, all from one thread.
+	    OrderedParallelProcessor.Sink<DecryptedBag> write = 
+	        new OrderedParallelProcessor.Sink<DecryptedBag>() {
+	            public void write( DecryptedBag decrypted ) throws IOException
+	            {
+	                EArtifactBag eab = decrypted.eartifactBag;
+	                ArtifactBag ab = decrypted.artifactBag;
+	                
+	                // If it is null, add the given info to the unsupported 
+	                // artifact structure.
+	                if( null == ab )
+	                {
+	                    long support = eab.getAmountOfSupport();
+	                    long instances = eab.getNumberOfInstances();
+	                    
+	                    Long[] stats = {new Long(1), instances};
+	                    if( unsupportedArtifactStats.containsKey( support ) )
+	                    {
+	                        stats = unsupportedArtifactStats.get( support );
+	                        stats[0]++;
+	                        stats[1] += instances;
+	                    }
+	                    
+	                    unsupportedArtifactStats.put( support, stats );
+	                }
+	                // Otherwise, update the necessary counts.
+	                else
+	                {
+	                    numberOfDistinctArtifactsSupported++;
+	                    numberOfArtifactInstancesSupported += 
+	                        ab.getNumberOfInstances();
+	                }
+	                
+	                outputFile.write( decrypted.line + "\n" );
+	                if( null != decrypted.note )
+	                {
+	                    outputFile.write( decrypted.note + "\n" );
+	                }
+	                
+	                totalDistinctArtifacts++;
+	                totalArtifacts += eab.getNumberOfInstances();
+	            }
+	        };
+	    
+	    long start = decryptTimer.start();
+	    try
+	    {
+	        new OrderedParallelProcessor<EArtifactBag, DecryptedBag>( 
+	                "bag", threads, BATCH_SIZE ).run( source, decrypt, write );
+	    } finally {
+	        decryptTimer.stop( start );
 	    }
 	    
+	    clearBags();
+	}
+	
+	/**
+	 * Empties the bags.
+	 */
+	private void clearBags()
+	{
+	    primaryCipherTexts.clear();
+	    Arrays.fill( eartifactBags, null );
+	}
+	
+	/**
+	 * Writes the stats of the unsupported bags and prints the totals.
+	 * 
+	 * @param outputFile Where to write the stats.
+	 * 
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	private void writeSummary( FileWriter outputFile ) 
+	    throws IOException, JSONException
+	{
 	    // Loop through the unsupported stats and write them to file.
 	    for( Long support : unsupportedArtifactStats.keySet() )
 	    {
@@ -199,7 +856,6 @@ public class EArtifactDecryptor
 	            "Distinct supported artifacts: " + numberOfDistinctArtifactsSupported );
 	    
 	    outputFile.flush();
-	    outputFile.close();
 	}
 	
 	
@@ -207,31 +863,69 @@ public class EArtifactDecryptor
 	public static void main( String[] args )
 	{
 	    String help = "Usage: edu.umass.ciir.crowdlogger.server." +
-	    		"DecryptEArtifacts " +
-	    		"<output file> <e-artifact input file>";
+	    		"DecryptEArtifacts [--threads=X] [--memory-budget=MB] " +
+	    		"[--spill-dir=DIR] " +
+	    		"<output file> <e-artifact input file>\n\n" +
+	    		"Input files may be JSON lines or segments (see " +
+	    		"edu.umass.ciir.crowdlogger.io.EArtifactSegment).\n" +
+	    		"--memory-budget=MB decrypts the bags a partition at a time " +
+	    		"if they\nwon't fit in MB megabytes (default: no limit).\n" +
+	    		"--spill-dir=DIR writes the partitions to DIR (default: the " +
+	    		"temp directory).\n" +
+	    		"--threads=X decrypts bags with X threads (default: one per " +
+	    		"core).";
 	    
-	    if( args.length < 2 )
+	    long memoryBudget = Long.getLong( MEMORY_BUDGET_PROPERTY, 0 );
+	    String spillDirectory = System.getProperty( SPILL_DIRECTORY_PROPERTY, 
+	            System.getProperty( "java.io.tmpdir" ) );
+	    int threads = Runtime.getRuntime().availableProcessors();
+	    int first = 0;
+	    for( ; first < args.length && args[first].startsWith( "--" ); first++ )
+	    {
+	        if( args[first].startsWith( "--threads=" ) )
+	        {
+	            threads = Integer.parseInt( 
+	                    args[first].replaceFirst( "--threads=", "" ) );
+	        }
+	        else if( args[first].startsWith( "--memory-budget=" ) )
+	        {
+	            memoryBudget = Long.parseLong( 
+	                    args[first].replaceFirst( "--memory-budget=", "" ) );
+	        }
+	        else if( args[first].startsWith( "--spill-dir=" ) )
+	        {
+	            spillDirectory = 
+	                args[first].replaceFirst( "--spill-dir=", "" );
+	        }
+	    }
+	    
+	    if( args.length - first < 2 )
 	    {
 	        System.out.println( help );
 	        System.exit( 0 );
 	    }
 	    
 
-	    String outputFilename     = args[0];
-	    String[] inputFilenames   = new String[args.length-1];
+	    String outputFilename     = args[first];
+	    String[] inputFilenames   = new String[args.length-first-1];
 	    
-	    for( int i = 1; i < args.length; i++ )
+	    for( int i = first+1; i < args.length; i++ )
 	    {
-	        inputFilenames[i-1] = args[i]; 
+	        inputFilenames[i-first-1] = args[i]; 
 	    }
 	     
 	    try {
 	        
 	        EArtifactDecryptor dea = new EArtifactDecryptor();
+	        dea.setMemoryBudget( memoryBudget * 1024 * 1024, 
+	                new File( spillDirectory ) );
+	        dea.setThreads( threads );
 	        logger.info( "About to proceess " + inputFilenames.length + 
 	                " input files." );
 	        dea.decrptEArtifactFile(inputFilenames, outputFilename);
 	        
+	        logger.info( "Metrics:\n" + Metrics.report() );
+	        
 	        
 	    } catch ( Exception e ) {
 	        e.printStackTrace();
@@ -0,0 +1,137 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Spills e-artifact lines to files on disk, partitioned by a hash of their
+ * primary cipher text. Every e-artifact of a bag ends up in the same file,
+ * in the order it was added, so the bags can be put together and decrypted
+ * one file at a time.
+ *
+ * The hash is salted with a seed; a partition that's still too big can be
+ * split again with a different seed. Files are made when the first line
+ * goes to them, and are UTF-8 with one line per e-artifact, as given.
+ */
+public class EArtifactPartitioner
+{
+    private final File directory;
+    private final int seed;
+    private final int bufferSize;
+    private final File[] files;
+    private final Writer[] writers;
+
+    private static final Counter partitionsWritten =
+        Metrics.counter( "decryption.spill.partitions" );
+    private static final Counter bytesWritten =
+        Metrics.counter( "decryption.spill.bytes" );
+
+    /**
+     * Creates a partitioner.
+     *
+     * @param directory Where to put the partition files.
+     * @param partitions The number of partitions.
+     * @param seed The seed of the hash; use a different one to split a
+     *      partition again.
+     * @param bufferSize The number of characters to buffer per partition.
+     */
+    public EArtifactPartitioner( File directory, int partitions, int seed,
+            int bufferSize )
+    {
+        this.directory = directory;
+        this.seed = seed;
+        this.bufferSize = bufferSize;
+        files = new File[Math.max( 1, partitions )];
+        writers = new Writer[files.length];
+    }
+
+    /**
+     * Adds an e-artifact to its partition.
+     *
+     * @param primaryCipherText The e-artifact's primary cipher text.
+     * @param line The e-artifact, as read.
+     *
+     * @throws IOException
+     */
+    public void add( String primaryCipherText, String line ) throws IOException
+    {
+        int partition = partition( primaryCipherText, seed, files.length );
+        if( null == writers[partition] )
+        {
+            files[partition] = File.createTempFile( "eartifacts-" + seed + "-",
+                    ".partition", directory );
+            // In case we don't get as far as deleting it.
+            files[partition].deleteOnExit();
+            writers[partition] = new BufferedWriter( new OutputStreamWriter(
+                    new FileOutputStream( files[partition] ), "UTF-8" ),
+                    bufferSize );
+        }
+        writers[partition].write( line );
+        writers[partition].write( "\n" );
+    }
+
+    /**
+     * Closes every partition file.
+     *
+     * @return The partition files that were written to. It's up to the
+     *      caller to delete them.
+     *
+     * @throws IOException
+     */
+    public List<File> close() throws IOException
+    {
+        List<File> written = new ArrayList<File>();
+        IOException error = null;
+        for( int i = 0; i < writers.length; i++ )
+        {
+            if( null == writers[i] )
+            {
+                continue;
+            }
+            try
+            {
+                writers[i].close();
+            } catch( IOException e ) {
+                error = e;
+            }
+            writers[i] = null;
+            written.add( files[i] );
+            partitionsWritten.increment();
+            bytesWritten.add( files[i].length() );
+        }
+
+        if( null != error )
+        {
+            for( File file : written )
+            {
+                file.delete();
+            }
+            throw error;
+        }
+        return written;
+    }
+
+    /**
+     * @return The partition the primary cipher text goes to, in
+     *      [0, partitions).
+     */
+    static int partition( String primaryCipherText, int seed, int partitions )
+    {
+        // Mix the bits so that the partitions with one seed are spread
+        // evenly over those of another.
+        int h = primaryCipherText.hashCode() * 0x9e3779b9 + seed * 0x85ebca6b;
+        h ^= h >>> 16;
+        h *= 0x7feb352d;
+        h ^= h >>> 15;
+        return (h & 0x7fffffff) % partitions;
+    }
+}
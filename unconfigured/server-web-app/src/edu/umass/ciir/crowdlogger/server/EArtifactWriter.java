@@ -4,68 +4,258 @@
 
 package edu.umass.ciir.crowdlogger.server;
 
-import edu.umass.ciir.crowdlogger.Constants;
-
-import javax.servlet.*;
-import javax.servlet.http.*;
-
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Gauge;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
 
 /**
- * Writes incoming e-artifacts to a file. The file the e-artifact is written 
- * to is it's job or experiment id followed by a dash followed by the first 
- * letter of the private field cipher text. Multiple files are open at the same
- * time, but this is limited so as to avoid having too many files open.
+ * Writes incoming e-artifacts to files, sharded so that every e-artifact 
+ * of a bag goes to the same file. By default, the file the e-artifact is 
+ * written to is it's job or experiment id followed by a dash followed by 
+ * the 36th character of the primary cipher text (the first 35 are the
+ * same for every cipher text made with the extension's salt); setting the
+ * <code>crowdlogger.writer.shards</code> system property to N spreads each
+ * experiment's e-artifacts over N files by a hash of the primary cipher 
+ * text instead, and any other {@link Sharder} can be given to the 
+ * constructor.
+ * 
+ * Each file being written to has a buffer that e-artifacts are added to, 
+ * and is only written to when the buffer is full. Buffers come from a pool 
+ * that holds at most a set number of them; when they're all in use, the 
+ * file that has had one longest is written out and gives it up, so memory 
+ * stays bounded however many files there are. Only so many files are kept 
+ * open at once; the least recently written one is closed to make room for 
+ * another, and files are always opened to append. Any number of threads 
+ * can write at once: they only contend for the same file's buffer, and 
+ * when writing a buffer out. Nothing is certain to be on disk until 
+ * {@link #flush()} or {@link #closeFiles()} is called.
  * 
  * @author hfeild
  */
 public class EArtifactWriter
 {
+    /** The number of files kept open, unless configured otherwise. */
     public static final int MAX_OPEN_FILES = 25;
     
-    private HashMap<String, FileWriter> openFiles;
-    private String outputDirectory;
-    private ArrayList<String> recentFiles;
+    /** The size of each file's buffer, unless configured otherwise. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+    
+    /** The most buffers in use at once, unless configured otherwise. */
+    public static final int MAX_BUFFERS = 256;
+    
+    /** The system property holding the number of files to keep open. */
+    public static final String MAX_OPEN_FILES_PROPERTY = 
+        "crowdlogger.writer.maxOpenFiles";
+    
+    /** The system property holding the size of each buffer, in KB. */
+    public static final String BUFFER_SIZE_PROPERTY = 
+        "crowdlogger.writer.bufferKB";
+    
+    /** The system property holding the most buffers in use at once. */
+    public static final String MAX_BUFFERS_PROPERTY = 
+        "crowdlogger.writer.maxBuffers";
+    
+    /** 
+     * The system property holding the number of files to hash each 
+     * experiment's e-artifacts over; if it's not set, they're sharded by a
+     * character of their primary cipher text.
+     */
+    public static final String SHARDS_PROPERTY = "crowdlogger.writer.shards";
+    
+    /**
+     * Picks the file an e-artifact goes to. Every e-artifact with the same 
+     * experiment id and primary cipher text must go to the same file.
+     */
+    public interface Sharder
+    {
+        /**
+         * @param experimentId The e-artifact's experiment id.
+         * @param primaryCipherText The e-artifact's primary cipher text.
+         * 
+         * @return The name of the file, without the directory.
+         */
+        String filename( String experimentId, String primaryCipherText );
+    }
+    
+    /**
+     * Shards by experiment id and the 36th character of the primary cipher
+     * text: &lt;experiment id&gt;-&lt;character&gt;.eartifacts, with 
+     * characters that aren't word characters replaced.
+     */
+    public static final Sharder BY_CHARACTER = new Sharder() {
+        public String filename( String experimentId, 
+                String primaryCipherText )
+        {
+            String charId = primaryCipherText.charAt(35) + "";
+            charId = charId.replaceAll( "\\W", "zz" );
+            return experimentId.replaceAll("\\W", "_") + "-" + charId + 
+                ".eartifacts";
+        }
+    };
+    
+    /**
+     * Creates a sharder that spreads each experiment's e-artifacts over a
+     * number of files by a hash of the primary cipher text:
+     * &lt;experiment id&gt;-&lt;NNN&gt;.eartifacts.
+     * 
+     * @param shards The number of files per experiment.
+     * 
+     * @return The sharder.
+     */
+    public static Sharder byHash( final int shards )
+    {
+        return new Sharder() {
+            public String filename( String experimentId, 
+                    String primaryCipherText )
+            {
+                return experimentId.replaceAll("\\W", "_") + "-" + 
+                    String.format( "%03d", EArtifactPartitioner.partition( 
+                            primaryCipherText, 0, shards ) ) + ".eartifacts";
+            }
+        };
+    }
+    
+    /**
+     * A file and the e-artifacts waiting to be written to it. The buffer 
+     * is guarded by the shard itself (though it may be read without it, as
+     * a hint).
+     */
+    private static class Shard
+    {
+        final File file;
+        volatile byte[] buffer;
+        int length;
+        
+        Shard( File file )
+        {
+            this.file = file;
+        }
+    }
+    
+    private final File outputDirectory;
+    private final Sharder sharder;
+    private final int maxOpenFiles;
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ConcurrentHashMap<String, Shard> shards;
+    // Least recently written first. Guarded by itself; every write to a 
+    // file is made holding it.
+    private final LinkedHashMap<Shard, OutputStream> openFiles;
+    // Buffers not in use. Guarded by itself, as are the two below.
+    private final ArrayDeque<byte[]> buffers;
+    // Shards holding a buffer, in the order they took it.
+    private final LinkedHashSet<Shard> buffered;
+    private int allocatedBuffers = 0;
     
     private static final Logger logger = 
         Logger.getLogger(EArtifactWriter.class.getName());
     
+    private static final Counter fileOpens = 
+        Metrics.counter( "decryption.writer.file_opens" );
+    private static final Counter evictions = 
+        Metrics.counter( "decryption.writer.evictions" );
+    private static final Counter writes = 
+        Metrics.counter( "decryption.writer.writes" );
+    private static final Counter bytesWritten = 
+        Metrics.counter( "decryption.writer.bytes" );
+    private static final Counter bufferEvictions = 
+        Metrics.counter( "decryption.writer.buffer_evictions" );
+    
     /**
      * Initializes a new writer that will output e-artifacts to files in the
-     * specified output directory.
+     * specified output directory, configured by the system properties.
      * 
      * @param outputDirectory The directory where the output files will go.
      */
     public EArtifactWriter( String outputDirectory )
     {
-        openFiles = new HashMap<String, FileWriter>();
-        recentFiles = new ArrayList<String>();
-        this.outputDirectory = outputDirectory;
+        this( outputDirectory, 
+                Integer.getInteger( SHARDS_PROPERTY, 0 ) > 0 ?
+                        byHash( Integer.getInteger( SHARDS_PROPERTY ) ) :
+                        BY_CHARACTER,
+                Integer.getInteger( MAX_OPEN_FILES_PROPERTY, 
+                        MAX_OPEN_FILES ),
+                Integer.getInteger( BUFFER_SIZE_PROPERTY, 
+                        BUFFER_SIZE / 1024 ) * 1024,
+                Integer.getInteger( MAX_BUFFERS_PROPERTY, MAX_BUFFERS ) );
+    }
+    
+    /**
+     * Initializes a new writer that will output e-artifacts to files in the
+     * specified output directory.
+     * 
+     * @param outputDirectory The directory where the output files will go.
+     * @param sharder Picks the file each e-artifact goes to.
+     * @param maxOpenFiles The number of files to keep open at once.
+     * @param bufferSize The size of each file's buffer, in bytes.
+     */
+    public EArtifactWriter( String outputDirectory, Sharder sharder, 
+            int maxOpenFiles, int bufferSize )
+    {
+        this( outputDirectory, sharder, maxOpenFiles, bufferSize, 
+                MAX_BUFFERS );
+    }
+    
+    /**
+     * Initializes a new writer that will output e-artifacts to files in the
+     * specified output directory.
+     * 
+     * @param outputDirectory The directory where the output files will go.
+     * @param sharder Picks the file each e-artifact goes to.
+     * @param maxOpenFiles The number of files to keep open at once.
+     * @param bufferSize The size of each file's buffer, in bytes.
+     * @param maxBuffers The most buffers in use at once.
+     */
+    public EArtifactWriter( String outputDirectory, Sharder sharder, 
+            int maxOpenFiles, int bufferSize, int maxBuffers )
+    {
+        this.outputDirectory = new File( outputDirectory );
+        this.sharder = sharder;
+        this.maxOpenFiles = Math.max( 1, maxOpenFiles );
+        this.bufferSize = Math.max( 1, bufferSize );
+        this.maxBuffers = Math.max( 1, maxBuffers );
+        shards = new ConcurrentHashMap<String, Shard>();
+        openFiles = new LinkedHashMap<Shard, OutputStream>( 16, 0.75f, true );
+        buffers = new ArrayDeque<byte[]>();
+        buffered = new LinkedHashSet<Shard>();
+        
+        Metrics.gauge( "decryption.writer.open_files", new Gauge() {
+            public long getValue()
+            {
+                synchronized( openFiles )
+                {
+                    return openFiles.size();
+                }
+            }
+        });
         
         logger.info( "EArtifactWriter initialized to write files to " +
-        		"directory: " + outputDirectory );
+        		"directory: " + outputDirectory + " (" + this.maxOpenFiles + 
+        		" open files, " + this.maxBuffers + " buffers of " + 
+        		this.bufferSize + " bytes)" );
     }
     
 
     /**
-     * Write an e-artifact to a file in the output directory (the one given to
-     * the constructor). The file the e-artifact is written to is it's job or
-     * experiment id followed by a dash followed by the first letter of the
-     * private field cipher text.
+     * Write an e-artifact to the file the sharder picks for it in the 
+     * output directory (the one given to the constructor). This can be 
+     * called from any number of threads at once.
      * 
      * @param eartifact The e-artifact to write.
      * 
@@ -75,63 +265,230 @@ public class EArtifactWriter
     public void writeEArtifact( JSONObject eartifact ) 
         throws JSONException, IOException
     {
-        // The file name is based on the job id and the primary cipher text.
-        String experimentId = eartifact.getString("experiment_id");
-        String primaryCipherText = eartifact.getString("primary_cipher_text");
-
-        String charId = primaryCipherText.charAt(35) + "";
-        charId = charId.replaceAll( "\\W", "zz" );
- 
-        // Form the file name.
-        String filename = outputDirectory + 
-            File.separator + experimentId.replaceAll("\\W", "_") + "-" + 
-            charId + ".eartifacts";
+        String filename = sharder.filename( 
+                eartifact.getString("experiment_id"), 
+                eartifact.getString("primary_cipher_text") );
+        byte[] line = (eartifact.toString() + "\n").getBytes( "UTF-8" );
         
-        // Check if the file is open.
-        if( !openFiles.containsKey( filename ) )
+        Shard shard = shards.get( filename );
+        if( null == shard )
         {
-            // It's not open, so open it. But first, close another file if we
-            // are at the limit.
-            if( recentFiles.size() >= MAX_OPEN_FILES )
+            Shard newShard = new Shard( 
+                    new File( outputDirectory, filename ) );
+            shard = shards.putIfAbsent( filename, newShard );
+            if( null == shard )
             {
-                String removedFilename = recentFiles.remove(0);
-                logger.info( "Attempting to close file " + removedFilename );
-                if( openFiles.containsKey( removedFilename ) )
-                {
-                    FileWriter file = openFiles.remove( removedFilename );
-                    file.close();
-                    logger.info( "File closed." );
-                }
+                shard = newShard;
             }
-            
-            logger.info( "Opening file: " + filename );
-            recentFiles.add( filename );
-            FileWriter newFile = new FileWriter( filename, true );
-            openFiles.put(filename, newFile);
         }
         
-        // It's open, so write the file.
-        openFiles.get(filename).append( eartifact.toString() + "\n" );
-        
+        // Free up a buffer, if need be, before holding the shard; taking one
+        // shard while holding another could deadlock.
+        if( null == shard.buffer )
+        {
+            makeRoomForBuffer();
+        }
         
+        synchronized( shard )
+        {
+            if( null == shard.buffer )
+            {
+                shard.buffer = takeBuffer( shard );
+            }
+            if( null == shard.buffer )
+            {
+                // Another thread took the buffer that was freed up.
+                write( shard, line, line.length );
+                return;
+            }
+            if( shard.length + line.length > shard.buffer.length )
+            {
+                write( shard, shard.buffer, shard.length );
+                shard.length = 0;
+            }
+            if( line.length > shard.buffer.length )
+            {
+                write( shard, line, line.length );
+            }
+            else
+            {
+                System.arraycopy( line, 0, shard.buffer, shard.length, 
+                        line.length );
+                shard.length += line.length;
+            }
+        }
     }
     
     /**
-     * Closes all of the open output files.
+     * Writes out every file's buffer. The files stay open.
+     * 
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        for( Shard shard : shards.values() )
+        {
+            synchronized( shard )
+            {
+                writeOut( shard );
+            }
+        }
+    }
+    
+    /**
+     * Writes out every file's buffer and closes all of the open output 
+     * files. The writer can still be written to; files are reopened to 
+     * append.
      * 
      * @throws IOException
      */
     public void closeFiles() throws IOException
     {
         logger.info( "Closing all files." );
-        for( String filename : openFiles.keySet() )
+        IOException error = null;
+        try
+        {
+            flush();
+        } catch( IOException e ) {
+            error = e;
+        }
+        
+        synchronized( openFiles )
+        {
+            for( Map.Entry<Shard, OutputStream> entry : openFiles.entrySet() )
+            {
+                logger.info( "Closing file: " + entry.getKey().file );
+                try
+                {
+                    entry.getValue().close();
+                } catch( IOException e ) {
+                    error = null == error ? e : error;
+                }
+            }
+            openFiles.clear();
+        }
+        
+        if( null != error )
+        {
+            throw error;
+        }
+    }
+    
+    /**
+     * Writes bytes to a shard's file, opening it if need be (and closing 
+     * the least recently written file if too many are open). The caller 
+     * must hold the shard.
+     */
+    private void write( Shard shard, byte[] bytes, int length ) 
+        throws IOException
+    {
+        if( length == 0 )
+        {
+            return;
+        }
+        
+        synchronized( openFiles )
+        {
+            OutputStream file = openFiles.get( shard );
+            if( null == file )
+            {
+                // Make room first.
+                Iterator<Map.Entry<Shard, OutputStream>> eldest = 
+                    openFiles.entrySet().iterator();
+                while( openFiles.size() >= maxOpenFiles )
+                {
+                    Map.Entry<Shard, OutputStream> entry = eldest.next();
+                    eldest.remove();
+                    evictions.increment();
+                    logger.fine( "Closing file " + entry.getKey().file );
+                    entry.getValue().close();
+                }
+                
+                logger.fine( "Opening file: " + shard.file );
+                fileOpens.increment();
+                file = new FileOutputStream( shard.file, true );
+                openFiles.put( shard, file );
+            }
+            
+            file.write( bytes, 0, length );
+            writes.increment();
+            bytesWritten.add( length );
+        }
+    }
+    
+    /**
+     * Writes out a shard's buffer, if it has one, and gives the buffer back
+     * to the pool. The caller must hold the shard.
+     */
+    private void writeOut( Shard shard ) throws IOException
+    {
+        byte[] buffer = shard.buffer;
+        if( null == buffer )
+        {
+            return;
+        }
+        try
+        {
+            write( shard, buffer, shard.length );
+        } finally {
+            shard.buffer = null;
+            shard.length = 0;
+            synchronized( buffers )
+            {
+                buffered.remove( shard );
+                buffers.push( buffer );
+            }
+        }
+    }
+    
+    /**
+     * If every buffer is in use, writes out the shard that has had one 
+     * longest, freeing its buffer. The caller mustn't hold any shard.
+     */
+    private void makeRoomForBuffer() throws IOException
+    {
+        Shard victim;
+        synchronized( buffers )
         {
-            logger.info( "Closing file: " + filename );
-            FileWriter file = openFiles.get( filename );
-            file.close();
+            if( !buffers.isEmpty() || allocatedBuffers < maxBuffers || 
+                    buffered.isEmpty() )
+            {
+                return;
+            }
+            victim = buffered.iterator().next();
         }
         
-        openFiles = new HashMap<String, FileWriter>();
-        recentFiles = new ArrayList<String>();
+        synchronized( victim )
+        {
+            if( null != victim.buffer )
+            {
+                bufferEvictions.increment();
+                writeOut( victim );
+            }
+        }
+    }
+    
+    /**
+     * @return A buffer from the pool, a new one if fewer than the most 
+     *      allowed have been made, or <code>null</code> if they're all in 
+     *      use. The caller must hold the shard taking it.
+     */
+    private byte[] takeBuffer( Shard shard )
+    {
+        synchronized( buffers )
+        {
+            byte[] buffer = buffers.poll();
+            if( null == buffer )
+            {
+                if( allocatedBuffers >= maxBuffers )
+                {
+                    return null;
+                }
+                allocatedBuffers++;
+                buffer = new byte[bufferSize];
+            }
+            buffered.add( shard );
+            return buffer;
+        }
     }
 }
@@ -34,6 +34,13 @@ import org.apache.commons.ssl.Base64;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import edu.umass.ciir.crowdlogger.io.EArtifactFields;
+import edu.umass.ciir.crowdlogger.io.MappedLineReader;
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.SampledTrace;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
 
 /**
  * Removes the RSA encryption from a list of doubly-encrypted artifracts 
@@ -45,10 +52,61 @@ public class EEArtifactDecryptor
 {
 	public static final int AES_KEY_SIZE = 256;
 	
+	// The number of lines handed to a decryption thread at a time.
+	private static final int BATCH_SIZE = 256;
+	
 	private BasicDecryptor decryptor;
 	
 	private static final Logger logger = 
 	    Logger.getLogger(EEArtifactDecryptor.class.getName());
+	private static final SampledTrace trace = new SampledTrace( logger );
+	
+	private static final Counter read = 
+	    Metrics.counter( "decryption.eeartifacts.read" );
+	private static final Counter decrypted = 
+	    Metrics.counter( "decryption.eeartifacts.decrypted" );
+	private static final Counter failed = 
+	    Metrics.counter( "decryption.eeartifacts.failed" );
+	private static final Timer writeTimer = 
+	    Metrics.timer( "decryption.eeartifacts.write.micros" );
+	
+	/**
+	 * Told how far through a file the written e-artifacts go.
+	 */
+	public interface Progress
+	{
+	    /**
+	     * Called, from a single thread, once a line's e-artifact has been 
+	     * handed to the writer (or dropped, if it couldn't be decrypted); 
+	     * every line before it has been too.
+	     * 
+	     * @param offset Where in the file the line ends, just past its new
+	     *     line.
+	     * 
+	     * @throws IOException
+	     */
+	    void written( long offset ) throws IOException;
+	}
+	
+	/**
+	 * A line of an ee-artifact file, where it ends, and its e-artifact once
+	 * decrypted.
+	 */
+	private static class Line
+	{
+	    String text;
+	    long end;
+	    JSONObject eartifact;
+	}
+	
+	// Each worker reads ee-artifacts' fields into its own buffers.
+	private static final ThreadLocal<EArtifactFields> fields = 
+	    new ThreadLocal<EArtifactFields>() {
+	        protected EArtifactFields initialValue()
+	        {
+	            return new EArtifactFields();
+	        }
+	    };
 	
 	/**
 	 * Initializes an instance by creating the private key cipher that will be
@@ -93,28 +151,38 @@ public class EEArtifactDecryptor
 	public String decrypteEEArtifact( String eeartifact ) 
 	    throws JSONException, IOException, GeneralSecurityException 
 	{
-	    logger.info( "Decrypting eeartifact: " + eeartifact );
-	    // Decode the e-artifact so we can read it's fields.
-	    JSONObject eartifactObject = new JSONObject( eeartifact );
+	    boolean traced = trace.isSampled();
+	    if( traced )
+	    {
+	        trace.trace( "Decrypting eeartifact: " + eeartifact );
+	    }
+	    
+	    // Pull out the e-artifact's fields.
+	    EArtifactFields eartifactFields = fields.get();
+	    eartifactFields.parse( eeartifact );
 
 	    // Get the key for the cipher text, which is encrypted with RSA.
-	    char[] aesKey = decryptor.decipherRSA( 
-	               eartifactObject.getString( "rsa_protected_key" ) );
+	    char[] aesKey = decryptor.decipherRSA( eartifactFields.getString( 
+	            EArtifactFields.RSA_PROTECTED_KEY ) );
 	       
 	    // Decrypt the cipher text.    
 	    String clearText = BasicDecryptor.decryptAES256( aesKey, 
-	                    eartifactObject.getString( "encrypted_data" ) ); 
-	    logger.info( "Decrypted to: " + clearText );
+	            eartifactFields.getString( EArtifactFields.ENCRYPTED_DATA ) ); 
+	    if( traced )
+	    {
+	        trace.trace( "Decrypted to: " + clearText );
+	    }
 	    return clearText;
 	}
 	
 	/**
-	 * Decrypts each line of the given e-artifact file and writes the
-	 * plain text to the given output file.
+	 * Decrypts each line of the given e-artifact files and writes the
+	 * plain text to files in the given output directory, using one thread
+	 * per core.
 	 * 
-	 * @param eartifactFilename The name of the file containing e-artifacts
-	 *     (one e-artifact per line).
-	 * @param outputFilename The name of the file to which the decrypted
+	 * @param eartifactFilenames The names of the files containing 
+	 *     e-artifacts (one e-artifact per line).
+	 * @param outputDirectory The directory to which the decrypted
 	 *     e-artifacts should be written. Note that they will still be
 	 *     encrypted with AES; they must be aggregated and interpolated to
 	 *     decrypt.
@@ -124,47 +192,161 @@ public class EEArtifactDecryptor
 	public void decrptEEArtifactFile( 
 	        String[] eeartifactFilenames, 
 	        String outputDirectory ) throws IOException
+	{
+	    decrptEEArtifactFile( eeartifactFilenames, outputDirectory,
+	            Runtime.getRuntime().availableProcessors() );
+	}
+	
+	/**
+	 * Decrypts each line of the given e-artifact files and writes the
+	 * plain text to files in the given output directory. Lines are read on
+	 * this thread, decrypted by a pool of threads (each with its own RSA
+	 * cipher), and written by a single thread in the order they were read.
+	 * Lines that can't be decrypted are logged and skipped.
+	 * 
+	 * @param eartifactFilenames The names of the files containing 
+	 *     e-artifacts (one e-artifact per line).
+	 * @param outputDirectory The directory to which the decrypted
+	 *     e-artifacts should be written. Note that they will still be
+	 *     encrypted with AES; they must be aggregated and interpolated to
+	 *     decrypt.
+	 * @param threads The number of decryption threads.
+	 * 
+	 * @return The number of lines read.
+	 *     
+	 * @throws IOException
+	 */
+	public long decrptEEArtifactFile( 
+	        String[] eeartifactFilenames, 
+	        String outputDirectory, int threads ) throws IOException
 	{
 	    // This takes care of writing.
-        EArtifactWriter writer = new EArtifactWriter( outputDirectory );
+	    EArtifactWriter writer = new EArtifactWriter( outputDirectory );
+	    long read = 0;
+	    try
+	    {
+	        for( String eeartifactFilename : eeartifactFilenames )
+	        {
+	            read += decrptEEArtifactFile( eeartifactFilename, 0, writer, 
+	                    threads, null, true );
+	        }
+	    } finally {
+	        // Close all of the files we opened.
+	        writer.closeFiles();
+	    }
+	    return read;
+	}
+	
+	/**
+	 * Decrypts the lines of an ee-artifact file from a given place on, 
+	 * as {@link #decrptEEArtifactFile(String[], String, int)} does, writing
+	 * them with the given writer (which is left open). Progress is reported
+	 * as each line is written, so a caller can note how far it's got and 
+	 * pick up from there later.
+	 * 
+	 * @param eeartifactFilename The name of the file.
+	 * @param start Where in the file to start: 0, or just past the end of
+	 *     a line.
+	 * @param writer Where the e-artifacts go.
+	 * @param threads The number of decryption threads.
+	 * @param progress Told as each line is done with; may be 
+	 *     <code>null</code>.
+	 * @param complete Whether the file is known to be complete. If not, a 
+	 *     last line without a new line is left unread, since the rest of 
+	 *     it may not have been written yet.
+	 * 
+	 * @return The number of lines read.
+	 * 
+	 * @throws IOException
+	 */
+	public long decrptEEArtifactFile( String eeartifactFilename, long start,
+	        final EArtifactWriter writer, int threads, 
+	        final Progress progress, final boolean complete ) 
+	    throws IOException
+	{
+	    logger.info( "Processing new input file: " + eeartifactFilename + 
+	            (start > 0 ? " from byte " + start : "") );
+	    final MappedLineReader file = new MappedLineReader( 
+	            new File( eeartifactFilename ), start, Long.MAX_VALUE );
 	    
-        for( int i = 0; i < eeartifactFilenames.length; i++ )
-        {
-            logger.info( "Processing new input file: " +eeartifactFilenames[i]);
-            
-            // Open the input and output files.
-            Scanner eartifactFile = new Scanner( 
-                    new File(eeartifactFilenames[i]) );
-            //FileWriter outputFile = new FileWriter( outputDirectory );
-
-            // Read and process each line from the input file.
-            String line;
-            try{
-                while( (line = eartifactFile.nextLine() ) != null )
-                {
-                    try{
-                    logger.info( "Extracted line: " + line );
-                    // Extract the artifact.
-                    JSONObject eartifactObject = 
-                        new JSONObject( decrypteEEArtifact( line ) );
-
-                    // Write it to file.
-                    writer.writeEArtifact( eartifactObject );
-                    } catch( JSONException e ) {
-                        logger.severe( "Error processing line [" +line + "]: " +
-                        		e.toString() );
-                    }
-                    
-                }
-
-            } catch ( Exception e ){
-                logger.severe( "Error processing the file: " + e.toString() );
-            } finally {
-                // Close all of the files we opened.
-                eartifactFile.close();
-                writer.closeFiles();
-            }
-        }
+	    // Reads the lines of the file, noting where each ends.
+	    OrderedParallelProcessor.Source<Line> lines = 
+	        new OrderedParallelProcessor.Source<Line>() {
+	            public Line next() throws IOException
+	            {
+	                String text = file.nextLine();
+	                if( null == text || (!complete && !file.lineEnded()) )
+	                {
+	                    return null;
+	                }
+	                read.increment();
+	                Line line = new Line();
+	                line.text = text;
+	                line.end = file.position();
+	                return line;
+	            }
+	        };
+	    
+	    // Removes the RSA layer and parses the result.
+	    OrderedParallelProcessor.Worker<Line, Line> decrypt =
+	        new OrderedParallelProcessor.Worker<Line, Line>() {
+	            public Line process( Line line )
+	            {
+	                try
+	                {
+	                    line.eartifact = 
+	                        new JSONObject( decrypteEEArtifact( line.text ) );
+	                    decrypted.increment();
+	                } catch( Exception e ) {
+	                    failed.increment();
+	                    logger.severe( "Error processing line [" + 
+	                            line.text + "]: " + e.toString() );
+	                }
+	                line.text = null;
+	                return line;
+	            }
+	        };
+	    
+	    OrderedParallelProcessor.Sink<Line> write = 
+	        new OrderedParallelProcessor.Sink<Line>() {
+	            public void write( Line line ) throws IOException
+	            {
+	                if( null != line.eartifact )
+	                {
+	                    long began = writeTimer.start();
+	                    try
+	                    {
+	                        writer.writeEArtifact( line.eartifact );
+	                    } catch( JSONException e ) {
+	                        failed.increment();
+	                        logger.severe( "Error writing e-artifact [" + 
+	                                line.eartifact + "]: " + e.toString() );
+	                    } catch( RuntimeException e ) {
+	                        // A malformed e-artifact (say, a cipher text too
+	                        // short to shard by) is skipped like one that
+	                        // won't parse, rather than ending the run.
+	                        failed.increment();
+	                        logger.severe( "Error writing e-artifact [" + 
+	                                line.eartifact + "]: " + e.toString() );
+	                    } finally {
+	                        writeTimer.stop( began );
+	                    }
+	                }
+	                if( null != progress )
+	                {
+	                    progress.written( line.end );
+	                }
+	            }
+	        };
+	    
+	    try
+	    {
+	        return new OrderedParallelProcessor<Line, Line>( 
+	                "eeartifact", threads, BATCH_SIZE ).run( 
+	                        lines, decrypt, write );
+	    } finally {
+	        file.close();
+	    }
 	}
 	
 	/**
@@ -221,32 +403,47 @@ public class EEArtifactDecryptor
 	public static void main( String[] args )
 	{
 	    String help = "Usage: edu.umass.ciir.crowdlogger.server." +
-	    		"DecryptEArtifacts <private key filename> " +
+	    		"EEArtifactDecryptor [--threads=X] <private key filename> " +
 	    		"<output directory> <e-artifact input files...>\n\n" +
 	    		"Input file should have one doublely-encrypted artifact per line.\n" +
 	    		"The ee-artifacts should be in JSON format with two fields:\n" +
 	    		"\trsa_protected_key\n" +
 	    		"\tencrypted_data\n\n" +
 	    		"The output directory will contain one file per experiment id " +
-	    		"+ the\nfirst character of the private field cipher text.";
+	    		"+ the\n36th character of the primary cipher text, or, with " +
+	    		"-D" + EArtifactWriter.SHARDS_PROPERTY + "=N,\nN files per " +
+	    		"experiment id by a hash of the primary cipher text. Set\n-D" +
+	    		EArtifactWriter.MAX_OPEN_FILES_PROPERTY + " and -D" +
+	    		EArtifactWriter.BUFFER_SIZE_PROPERTY + " to change how\n" +
+	    		"many files are kept open and how big their buffers are.\n\n" +
+	    		"--threads=X decrypts with X threads (default: one per core).";
 //	    		"one sub-directory per " +
 //	    		"distinct experiment id each experiment's directory will "+
 //	    		"contain up to nine files, where each file will contain all " +
 //	    		"the e-artifacts that being with a common number (1--9), "+
 //	            "one e-artificat per line";
 	    
-	    if( args.length < 3 )
+	    int threads = Runtime.getRuntime().availableProcessors();
+	    int first = 0;
+	    if( args.length > 0 && args[0].startsWith( "--threads=" ) )
+	    {
+	        threads = Integer.parseInt( 
+	                args[0].replaceFirst( "--threads=", "" ) );
+	        first = 1;
+	    }
+	    
+	    if( args.length - first < 3 )
 	    {
 	        System.out.println( help );
 	        System.exit( 0 );
 	    }
 	    
-	    String privateKeyFilename = args[0];
-	    String outputDirectory    = args[1];
-        String[] inputFilenames = new  String[args.length - 2];
-        for( int i = 2; i < args.length; i++ )
+	    String privateKeyFilename = args[first];
+	    String outputDirectory    = args[first+1];
+        String[] inputFilenames = new  String[args.length - first - 2];
+        for( int i = first + 2; i < args.length; i++ )
         {
-            inputFilenames[i-2] = args[i];
+            inputFilenames[i-first-2] = args[i];
         }
 	    
 
@@ -257,7 +454,9 @@ public class EEArtifactDecryptor
 	        EEArtifactDecryptor dea = 
 	            new EEArtifactDecryptor(privateKeyFilename);
 	        
-	        dea.decrptEEArtifactFile(inputFilenames, outputDirectory);
+	        dea.decrptEEArtifactFile(inputFilenames, outputDirectory, threads);
+	        
+	        logger.info( "Metrics:\n" + Metrics.report() );
 	        
 	    } catch ( Exception e ) {
 	        e.printStackTrace();
@@ -5,36 +5,76 @@
 package edu.umass.ciir.crowdlogger.server;
 
 import edu.umass.ciir.crowdlogger.Constants;
+import edu.umass.ciir.crowdlogger.io.EArtifactFormReader;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
- * Writes incoming e-artifacts to a file.
+ * Writes incoming e-artifacts to a file, through a 
+ * {@link RotatingEArtifactLog}.
  * 
  * @author hfeild
  */
 public class EEArtifactWriter extends HttpServlet
 {
-    // A lock that ensures that two threads are not writing to the
-    // output file simultaneously.
-    private static Object FILE_LOCK = new Object();
-    private static int    linesWrittenToCurrentFile = 0;
-    private static String currentFileNameBase = "";
-    private static int    currentFileExtension = 1; // 1, 2, 3, etc.
- 
-    // For our dates (used for file extensions).
-    private static DateFormat dateFormatter = 
-        new SimpleDateFormat( "dd-MMM-yyyy" );
+    // Keeps the current file open and does all of the writing. Opened by
+    // init(), or by the first write if that comes first.
+    private static RotatingEArtifactLog log = null;
+    
+    // The most e-artifacts of a request held at once. There's room for a
+    // whole bundle from an anonymizer, so those are still written together.
+    private static final int CHUNK_SIZE = 2 * Constants.MAX_BUNDLE_SIZE;
+    
+    /**
+     * Opens the e-artifact log.
+     * 
+     * @throws ServletException
+     */
+    public void init() throws ServletException
+    {
+        super.init();
+        log();
+    }
+    
+    /**
+     * Writes whatever is waiting and closes the current file.
+     */
+    public void destroy()
+    {
+        synchronized( EEArtifactWriter.class )
+        {
+            if( null != log )
+            {
+                log.close();
+                log = null;
+            }
+        }
+        super.destroy();
+    }
+    
+    /**
+     * @return The e-artifact log, opening it if need be.
+     */
+    private static synchronized RotatingEArtifactLog log()
+    {
+        if( null == log )
+        {
+            log = new RotatingEArtifactLog( Constants.OUTPUT_FILE_NAME_BASE,
+                    Constants.MAX_EARTIFACTS_PER_FILE,
+                    RotatingEArtifactLog.SyncPolicy.valueOf( 
+                            Constants.EARTIFACT_SYNC_POLICY.toUpperCase() ),
+                    Constants.EARTIFACT_SYNC_INTERVAL,
+                    Constants.MAX_WAITING_EARTIFACTS );
+        }
+        return log;
+    }
     
     /**
      * This is for developmental purposes. It should be taken out before 
@@ -59,7 +99,8 @@ public class EEArtifactWriter extends HttpServlet
      * Processes a POST request that should contain a parameter named
      * "eartifacts". The value should be a string of encrypted artifacts
      * (e-artifacts) separated by a new line character. This will write those
-     * e-artifacts to a file.
+     * e-artifacts to a file, reading them from the request body a chunk at
+     * a time.
      * 
      * @param request The request.
      * @param response The response.
@@ -76,9 +117,9 @@ public class EEArtifactWriter extends HttpServlet
             "<!DOCTYPE html PUBLIC \"-//W3C//DTD HTML 4.01 Transitional//EN\" "+
             "\"http://www.w3.org/TR/html4/loose.dtd\">" );
 
-        String eartifacts = request.getParameter( "eartifacts" );
-        out.println( "--> eartifacts: " + eartifacts + "<br>" );
-        if( null != eartifacts && writeEArtifactsToFile( eartifacts ) )
+        EArtifactFormReader eartifacts = 
+            EArtifactFormReader.forRequest( request );
+        if( writeEArtifactsToFile( eartifacts ) )
         {
             out.println( "success" );
         }
@@ -99,76 +140,46 @@ public class EEArtifactWriter extends HttpServlet
      * @return <code>true</code> if successful.
      */
     public boolean writeEArtifactsToFile( String bundle )
-    {   
-        // Removoe leading/trailing whitespace.
-        bundle = bundle.trim();
-        
-        // Short cute if this bundle is empty.
-        if( bundle.equals( "" ) )
+    {
+        try
         {
-            return true;
+            return writeEArtifactsToFile( new EArtifactFormReader( bundle ) );
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
         }
-        
+    }
+
+
+    /**
+     * Writes the e-artifacts from the given reader to file, in chunks of at
+     * most CHUNK_SIZE so the heap a request takes doesn't grow with its 
+     * size. Each chunk is read first and then written together, after any
+     * other requests' that are already waiting; if the current file fills 
+     * up part way through, the rest of the e-artifacts go to the next file.
+     * The chunks of a bigger request may not end up next to each other, 
+     * and if one can't be written, those before it stay written.
+     *
+     * @param eartifacts A reader over the e-artifacts to write.
+     * @return <code>true</code> if successful.
+     */
+    public boolean writeEArtifactsToFile( EArtifactFormReader eartifacts )
+    {   
         try
         {
-            // Make sure we're the only ones accessing the file right now.
-            synchronized( FILE_LOCK )
+            List<String> chunk = readChunk( eartifacts );
+
+            // Short cut if this bundle is empty (or missing).
+            if( chunk.isEmpty() )
+            {
+                return eartifacts.foundField();
+            }
+
+            while( !chunk.isEmpty() )
             {
-                // Create the new file name (append the day to the end).
-                String filename = Constants.OUTPUT_FILE_NAME_BASE + "." +
-                    dateFormatter.format( new Date() );
-                
-                
-                // Get the number of e-artifacts in the current bundle.
-                int sizeOfBundle = 0;
-                for( int i = 0; i < bundle.length(); i++ )
-                {
-                    if( bundle.charAt(i) == '\n')
-                    {
-                        sizeOfBundle++;
-                    }
-                }
-                
-                // Check if the above is a new file (i.e., the first file of 
-                // the day. If not, check if to many e-artifacts have been 
-                // written to the current file.
-                if( filename.equals( currentFileNameBase ) )
-                {
-                    // Too many lines have been written to the current file,
-                    // so we're going to increment the extension and create a 
-                    // new file.
-                    if( linesWrittenToCurrentFile > 
-                           (Constants.MAX_EARTIFACTS_PER_FILE - sizeOfBundle) )
-                    {
-                        currentFileExtension++;
-                        linesWrittenToCurrentFile = 0;
-                    }
-                }
-                else
-                {
-                    // Update the filename base and reset the file extension.
-                    currentFileNameBase = filename;
-                    currentFileExtension = 1;
-                    linesWrittenToCurrentFile = 0;
-                }
-                
-                // Add the extension to the file name. We are padding it with
-                // 0's so we'll get something like;
-                //    outputfile.001
-                //    outputfile.002
-                //    ...
-                filename += String.format( ".%03d", currentFileExtension );
-                
-                // Update the number of lines added to this file.
-                linesWrittenToCurrentFile += sizeOfBundle;
-                
-                // Create a new writer to append to our output file.
-                BufferedWriter out = new BufferedWriter(
-                        new FileWriter( filename, true ) );
-
-                out.write( bundle + "\n" );
-                                
-                out.close();
+                log().write( chunk );
+                chunk = readChunk( eartifacts );
             }
 
             // If we reached here, we'll consider the write successful.
@@ -184,5 +195,27 @@ public class EEArtifactWriter extends HttpServlet
 
     }
     
+    /**
+     * Reads the next chunk of e-artifacts from a request. This is done 
+     * before the log is touched and holds no lock, so a client that sends 
+     * its body slowly only holds up its own request.
+     *
+     * @param eartifacts A reader over the e-artifacts.
+     * @return Up to CHUNK_SIZE e-artifacts; none once they've all been read.
+     * 
+     * @throws IOException
+     */
+    private static List<String> readChunk( EArtifactFormReader eartifacts )
+        throws IOException
+    {
+        List<String> chunk = new ArrayList<String>();
+        String eartifact;
+        while( chunk.size() < CHUNK_SIZE && 
+                null != (eartifact = eartifacts.readEArtifact()) )
+        {
+            chunk.add( eartifact );
+        }
+        return chunk;
+    }
     
 }
@@ -0,0 +1,473 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lagrange interpolation in exact rational arithmetic. The shares' x values
+ * are decimals, so they are scaled up to integers (which leaves the Lagrange
+ * bases unchanged), and so are the y values; the value at x is then
+ *
+ * <pre>
+ *     P(x) = sum_j Y_j * N_j / D_j,  N_j = prod_{i != j} (X - X_i),
+ *                                    D_j = prod_{i != j} (X_j - X_i)
+ * </pre>
+ *
+ * over 10^t, where t is the scale of the y values. Each D_j divides their
+ * least common multiple L, so the barycentric weights c_j = L / D_j are
+ * whole numbers. They depend only on the points and are computed once;
+ * evaluating is then a sum of integer products and a single division by L.
+ * Shares of a polynomial with integer coefficients give back its value
+ * exactly, however large k is.
+ *
+ * The weights are as long as L, though, and there are k of them, so they
+ * cost about k^3 digits to work out. Before reaching for them, the
+ * polynomial is put into Newton form,
+ *
+ * <pre>
+ *     P(X) = F_0 + F_1 (X - X_0) + ... + F_{k-1} (X - X_0)...(X - X_{k-2}),
+ * </pre>
+ *
+ * where F_m is the divided difference of Y_0 ... Y_m. For shares of a
+ * polynomial with integer coefficients (whose y values have all of their
+ * decimal places) every divided difference is a whole number, so each
+ * division by X_i - X_j is exact and the numbers stay about as long as the
+ * y values. Only when a division leaves a remainder (a bad share, say) are
+ * the weights computed. L is used there rather than the Vandermonde product
+ * prod_{i < j} (X_j - X_i), which every D_j also divides, since the
+ * differences between share numbers have many factors in common.
+ *
+ * The weights, along with the basis at x = 0, can be shared between
+ * interpolators through a {@link LagrangeBasisCache}, since bags of
+ * e-artifacts often have the same x values. Recovering a key from them is
+ * then just a dot product with the y values.
+ *
+ * Like {@link BigDecimalLagrangeInterpolator}, the first <code>degree</code>
+ * points in the map's iteration order are used.
+ */
+public class ExactLagrangeInterpolator extends BigDecimalInterpolator
+{
+    // The decimal places kept when a value isn't a terminating decimal.
+    private static final int INEXACT_SCALE = 20;
+
+    /**
+     * The weights for a set of x values, in increasing order.
+     */
+    static class Basis
+    {
+        final BigDecimal[] xs;
+        final BigInteger[] scaledXs;
+        final int xScale;
+
+        // c_j = L / D_j, and L = lcm_j D_j, made positive.
+        final BigInteger[] weights;
+        final BigInteger denominator;
+
+        // c_j * N_j at x = 0, once asked for.
+        private volatile BigInteger[] atZero;
+
+        /**
+         * Computes the weights.
+         *
+         * @param xs The x values, sorted.
+         * @param minScale The number of decimal places the x values need to
+         *      be scaled by, at the least.
+         *
+         * @throws ArithmeticException If two of the x values are equal.
+         */
+        Basis( BigDecimal[] xs, int minScale )
+        {
+            int n = xs.length;
+            this.xs = xs;
+
+            int scale = minScale;
+            for( int i = 0; i < n; i++ )
+            {
+                scale = Math.max( scale, xs[i].scale() );
+            }
+            xScale = scale;
+            scaledXs = new BigInteger[n];
+            for( int i = 0; i < n; i++ )
+            {
+                scaledXs[i] = xs[i].setScale( xScale ).unscaledValue();
+            }
+
+            // D_j = prod_{i != j} (X_j - X_i).
+            BigInteger[] denominators = new BigInteger[n];
+            BigInteger lcm = BigInteger.ONE;
+            for( int j = 0; j < n; j++ )
+            {
+                BigInteger product = BigInteger.ONE;
+                for( int i = 0; i < n; i++ )
+                {
+                    if( i != j )
+                    {
+                        product = product.multiply(
+                                scaledXs[j].subtract( scaledXs[i] ) );
+                    }
+                }
+                if( product.signum() == 0 )
+                {
+                    throw new ArithmeticException( "Two points share the " +
+                            "x value " + xs[j].toPlainString() );
+                }
+                denominators[j] = product;
+                lcm = lcm.multiply( product.abs().divide(
+                            lcm.gcd( product ) ) );
+            }
+
+            denominator = lcm;
+            weights = new BigInteger[n];
+            for( int j = 0; j < n; j++ )
+            {
+                weights[j] = denominator.divide( denominators[j] );
+            }
+        }
+
+        /**
+         * @return c_j * N_j at x = 0, i.e., L times each basis polynomial
+         *      at 0.
+         */
+        BigInteger[] atZero()
+        {
+            BigInteger[] coefficients = atZero;
+            if( null == coefficients )
+            {
+                coefficients = at( BigInteger.ZERO );
+                atZero = coefficients;
+            }
+            return coefficients;
+        }
+
+        /**
+         * @param scaledX An x value, scaled like the others.
+         *
+         * @return c_j * N_j at x, with N_j from prefix and suffix products.
+         */
+        BigInteger[] at( BigInteger scaledX )
+        {
+            int n = xs.length;
+            BigInteger[] suffix = new BigInteger[n + 1];
+            suffix[n] = BigInteger.ONE;
+            for( int i = n - 1; i >= 0; i-- )
+            {
+                suffix[i] = suffix[i + 1].multiply(
+                        scaledX.subtract( scaledXs[i] ) );
+            }
+
+            BigInteger[] coefficients = new BigInteger[n];
+            BigInteger prefix = BigInteger.ONE;
+            for( int j = 0; j < n; j++ )
+            {
+                coefficients[j] = weights[j].multiply(
+                        prefix.multiply( suffix[j + 1] ) );
+                prefix = prefix.multiply( scaledX.subtract( scaledXs[j] ) );
+            }
+            return coefficients;
+        }
+    }
+
+    /**
+     * The Newton form of the polynomial through a set of points, when its
+     * divided differences are whole numbers.
+     */
+    static class Newton
+    {
+        final BigInteger[] scaledXs;
+        final int xScale;
+        final BigInteger powerOfTen;
+
+        // F_m, the divided difference of the first m + 1 (scaled) points.
+        final BigInteger[] differences;
+
+        private Newton( BigInteger[] scaledXs, int xScale,
+                BigInteger powerOfTen, BigInteger[] differences )
+        {
+            this.scaledXs = scaledXs;
+            this.xScale = xScale;
+            this.powerOfTen = powerOfTen;
+            this.differences = differences;
+        }
+
+        /**
+         * Computes the divided differences through the given points.
+         *
+         * @param xs The x values to use, sorted.
+         * @param points The points, by x value.
+         *
+         * @return The Newton form, or <code>null</code> if one of the
+         *      divided differences isn't a whole number.
+         *
+         * @throws ArithmeticException If two of the x values are equal.
+         */
+        static Newton through( BigDecimal[] xs,
+                HashMap<BigDecimal, BigDecimal> points )
+        {
+            int n = xs.length;
+            int xScale = 0;
+            int yScale = 0;
+            for( int i = 0; i < n; i++ )
+            {
+                xScale = Math.max( xScale, xs[i].scale() );
+                yScale = Math.max( yScale, points.get( xs[i] ).scale() );
+            }
+
+            BigInteger[] scaledXs = new BigInteger[n];
+            BigInteger[] differences = new BigInteger[n];
+            for( int i = 0; i < n; i++ )
+            {
+                scaledXs[i] = xs[i].setScale( xScale ).unscaledValue();
+                differences[i] = points.get( xs[i] ).setScale( yScale ).
+                    unscaledValue();
+                if( i > 0 && scaledXs[i].equals( scaledXs[i - 1] ) )
+                {
+                    throw new ArithmeticException( "Two points share the " +
+                            "x value " + xs[i].toPlainString() );
+                }
+            }
+
+            // After pass m, differences[i] holds the divided difference of
+            // points i - m through i.
+            for( int m = 1; m < n; m++ )
+            {
+                for( int i = n - 1; i >= m; i-- )
+                {
+                    BigInteger[] qr = differences[i].subtract(
+                            differences[i - 1] ).divideAndRemainder(
+                                scaledXs[i].subtract( scaledXs[i - m] ) );
+                    if( qr[1].signum() != 0 )
+                    {
+                        return null;
+                    }
+                    differences[i] = qr[0];
+                }
+            }
+            return new Newton( scaledXs, xScale,
+                    BigInteger.TEN.pow( yScale ), differences );
+        }
+
+        /**
+         * @param scaledX An x value, scaled like the others.
+         *
+         * @return The polynomial at x, times 10^t.
+         */
+        BigInteger at( BigInteger scaledX )
+        {
+            BigInteger value = BigInteger.ZERO;
+            for( int m = differences.length - 1; m >= 0; m-- )
+            {
+                value = value.multiply( scaledX.subtract( scaledXs[m] ) ).
+                    add( differences[m] );
+            }
+            return value;
+        }
+    }
+
+    private final LagrangeBasisCache cache;
+    private Basis basis;
+    private Newton newton;
+    private boolean newtonTried;
+
+    /**
+     * Initializes the set of points over which the interpolation will occur.
+     *
+     * @param points A map consisting of (x,y) pairs.
+     */
+    public ExactLagrangeInterpolator( HashMap<BigDecimal, BigDecimal> points )
+    {
+        super( points );
+        cache = null;
+    }
+
+    /**
+     * Initializes the set of points over which the interpolation will occur
+     * and the degree of the polynomial (i.e., the minimum number of points
+     * required to interpolate).
+     *
+     * @param points A map consisting of (x,y) pairs.
+     * @param degree The number of points to interpolate over.
+     */
+    public ExactLagrangeInterpolator( HashMap<BigDecimal, BigDecimal> points,
+            int degree )
+    {
+        this( points, degree, null );
+    }
+
+    /**
+     * Initializes the set of points over which the interpolation will occur
+     * and the degree of the polynomial, sharing weights through the given
+     * cache.
+     *
+     * @param points A map consisting of (x,y) pairs.
+     * @param degree The number of points to interpolate over.
+     * @param cache Where to look up and keep weights; may be
+     *      <code>null</code>.
+     */
+    public ExactLagrangeInterpolator( HashMap<BigDecimal, BigDecimal> points,
+            int degree, LagrangeBasisCache cache )
+    {
+        super( points, degree );
+        this.cache = cache;
+    }
+
+    @Override
+    public void addPoint( BigDecimal x, BigDecimal y )
+    {
+        super.addPoint( x, y );
+        basis = null;
+        newton = null;
+        newtonTried = false;
+    }
+
+    /**
+     * Calculates the y-value associated with x given the interpolation and
+     * rounds it (half up) to the nearest whole number.
+     *
+     * @param x The x-value to evaluate.
+     *
+     * @return The y-value corresponding to the given x, rounded to the nearest
+     * whole number.
+     */
+    @Override
+    public String evaluateAndRound( BigDecimal x )
+    {
+        BigInteger[] fraction = evaluateFraction( x );
+        BigInteger numerator = fraction[0];
+        BigInteger denominator = fraction[1];
+
+        // floor( n/d + 1/2 ) = floor( (2n + d) / 2d ), with d > 0.
+        BigInteger[] qr = numerator.shiftLeft( 1 ).add( denominator ).
+            divideAndRemainder( denominator.shiftLeft( 1 ) );
+        BigInteger rounded = qr[0];
+        if( qr[1].signum() < 0 )
+        {
+            rounded = rounded.subtract( BigInteger.ONE );
+        }
+        return rounded.toString();
+    }
+
+    /**
+     * Calculates the y-value associated with x using Lagrange interpolation.
+     * The result is exact if it can be written as a decimal; otherwise it is
+     * rounded to twenty decimal places.
+     *
+     * @param x The x-value to evaluate.
+     *
+     * @return The y-value corresponding to the given x.
+     */
+    @Override
+    public BigDecimal evaluate( BigDecimal x )
+    {
+        BigInteger[] fraction = evaluateFraction( x );
+        BigDecimal numerator = new BigDecimal( fraction[0] );
+        BigDecimal denominator = new BigDecimal( fraction[1] );
+        try
+        {
+            return numerator.divide( denominator );
+        } catch( ArithmeticException e )
+        {
+            // Not a terminating decimal.
+            return numerator.divide( denominator, INEXACT_SCALE,
+                    RoundingMode.HALF_UP );
+        }
+    }
+
+    /**
+     * Interpolates at x, leaving the result as a fraction. When the result
+     * is a decimal with no more places than the y values, the denominator is
+     * a power of ten.
+     *
+     * @param x The x-value to evaluate.
+     *
+     * @return The numerator and (positive) denominator.
+     *
+     * @throws ArithmeticException If two of the points have the same x.
+     */
+    public BigInteger[] evaluateFraction( BigDecimal x )
+    {
+        if( !newtonTried )
+        {
+            newtonTried = true;
+            newton = Newton.through( choose(), points );
+        }
+        if( null != newton && x.scale() <= newton.xScale )
+        {
+            return new BigInteger[]{ newton.at(
+                    x.setScale( newton.xScale ).unscaledValue() ),
+                newton.powerOfTen };
+        }
+
+        prepare( Math.max( 0, x.scale() ) );
+        int n = basis.xs.length;
+
+        // The y values, as integers over a common power of ten.
+        int yScale = 0;
+        for( int j = 0; j < n; j++ )
+        {
+            yScale = Math.max( yScale, points.get( basis.xs[j] ).scale() );
+        }
+
+        BigInteger[] coefficients = x.signum() == 0 ? basis.atZero() :
+            basis.at( x.setScale( basis.xScale ).unscaledValue() );
+        BigInteger sum = BigInteger.ZERO;
+        for( int j = 0; j < n; j++ )
+        {
+            BigInteger y = points.get( basis.xs[j] ).setScale( yScale ).
+                unscaledValue();
+            sum = sum.add( y.multiply( coefficients[j] ) );
+        }
+
+        BigInteger powerOfTen = BigInteger.TEN.pow( yScale );
+        BigInteger[] qr = sum.divideAndRemainder( basis.denominator );
+        if( qr[1].signum() == 0 )
+        {
+            return new BigInteger[]{ qr[0], powerOfTen };
+        }
+        return new BigInteger[]{ sum,
+                basis.denominator.multiply( powerOfTen ) };
+    }
+
+    /**
+     * Gets the weights for the chosen points, if that hasn't been done at a
+     * large enough scale.
+     *
+     * @param minScale The number of decimal places the x values need to be
+     *      scaled by, at the least.
+     *
+     * @throws ArithmeticException If two of the points have the same x.
+     */
+    private void prepare( int minScale )
+    {
+        if( null != basis && minScale <= basis.xScale )
+        {
+            return;
+        }
+
+        BigDecimal[] xs = choose();
+        if( null != cache )
+        {
+            basis = cache.get( xs );
+        }
+        if( null == basis || minScale > basis.xScale )
+        {
+            basis = new Basis( xs, minScale );
+        }
+    }
+
+    /**
+     * @return The x values of the points to interpolate over, sorted.
+     */
+    private BigDecimal[] choose()
+    {
+        int n = Math.min( degree, points.size() );
+        BigDecimal[] allXs = new BigDecimal[points.size()];
+        points.keySet().toArray( allXs );
+        BigDecimal[] xs = new BigDecimal[n];
+        System.arraycopy( allXs, 0, xs, 0, n );
+        Arrays.sort( xs );
+        return xs;
+    }
+}
@@ -0,0 +1,419 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.artifact.ArtifactBag;
+import edu.umass.ciir.crowdlogger.server.artifact.EArtifactBag;
+
+/**
+ * Decrypts e-artifacts as they come in, rather than after all of them have
+ * been read. A bag is decrypted as soon as a new share gives it k of them,
+ * and is written out right away; its key is kept, so later e-artifacts for
+ * it only need their secondary cipher texts decrypted (each distinct one
+ * once). Bags that have grown since they were written are written again,
+ * in full, on each {@link #flush()}.
+ *
+ * The output has one ArtifactBag per line, in the same form as
+ * EArtifactDecryptor's, but a bag can appear more than once: each line
+ * holds the counts so far, so the last line for a primary private field is
+ * the one to go by. Bags that never get enough support aren't written.
+ *
+ * Run from the command line, it reads the given files (or the
+ * eartifacts.&lt;date&gt;.NNN files in the given directories, oldest first)
+ * and, with --follow, keeps polling them for new lines, so the master
+ * server's files can be decrypted while it's still writing them. Every
+ * bag is kept in memory for as long as this runs.
+ */
+public class IncrementalEArtifactDecryptor
+{
+    private final Writer output;
+    private final HashMap<String, EArtifactBag> eartifactBags;
+    // Bags that have been written and added to since.
+    private final LinkedHashSet<EArtifactBag> updated;
+
+    private static final Logger logger =
+        Logger.getLogger( IncrementalEArtifactDecryptor.class.getName() );
+
+    private static final Counter read =
+        Metrics.counter( "decryption.eartifacts.read" );
+    private static final Counter malformed =
+        Metrics.counter( "decryption.eartifacts.malformed" );
+    private static final Counter firstWrites =
+        Metrics.counter( "decryption.incremental.bags.first_written" );
+    private static final Counter rewrites =
+        Metrics.counter( "decryption.incremental.bags.rewritten" );
+
+    // The server's file names: eartifacts.<dd-MMM-yyyy>.<NNN>.
+    private static final Pattern ROTATED_FILE =
+        Pattern.compile( "(.*)\\.(\\d\\d-[^.]+-\\d{4})\\.(\\d+)" );
+
+    /**
+     * Creates a decryptor.
+     *
+     * @param output Where to write the decrypted bags.
+     */
+    public IncrementalEArtifactDecryptor( Writer output )
+    {
+        this.output = output;
+        eartifactBags = new HashMap<String, EArtifactBag>();
+        updated = new LinkedHashSet<EArtifactBag>();
+    }
+
+    /**
+     * Adds an e-artifact to its bag, logging it if it's malformed. If this
+     * gives the bag enough shares, it's decrypted and written.
+     *
+     * @param line The e-artifact, as JSON.
+     *
+     * @throws IOException
+     */
+    public void addEArtifact( String line ) throws IOException
+    {
+        read.increment();
+        try
+        {
+            addEArtifact( new JSONObject( line ) );
+        } catch( JSONException e ) {
+            malformed.increment();
+            logger.severe( "Exception reading line [" + line + "]:" +
+                    e.toString() );
+        }
+    }
+
+    /**
+     * Adds an e-artifact to its bag. If this gives the bag enough shares,
+     * it's decrypted and written.
+     *
+     * @param eartifact The e-artifact.
+     *
+     * @throws JSONException
+     * @throws IOException
+     */
+    public void addEArtifact( JSONObject eartifact )
+        throws JSONException, IOException
+    {
+        String primaryCipherText =
+            eartifact.getString( "primary_cipher_text" );
+        EArtifactBag bag = eartifactBags.get( primaryCipherText );
+        if( null == bag )
+        {
+            bag = new EArtifactBag();
+            eartifactBags.put( primaryCipherText, bag );
+        }
+
+        long support = bag.getAmountOfSupport();
+        bag.addEArtifact( eartifact );
+
+        if( bag.isKeyCached() )
+        {
+            updated.add( bag );
+        }
+        // Only a new share can make a difference to the key.
+        else if( bag.getAmountOfSupport() > support &&
+                bag.hasSufficientSupport() )
+        {
+            ArtifactBag artifactBag = bag.decryptAndCacheKey();
+            if( null != artifactBag )
+            {
+                firstWrites.increment();
+                output.write( artifactBag.toString() + "\n" );
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Writes every bag that's been added to since it was last written, and
+     * flushes the output.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        for( EArtifactBag bag : updated )
+        {
+            ArtifactBag artifactBag = bag.decrypt();
+            if( null != artifactBag )
+            {
+                rewrites.increment();
+                output.write( artifactBag.toString() + "\n" );
+            }
+        }
+        updated.clear();
+        output.flush();
+    }
+
+    /**
+     * Flushes and closes the output.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        flush();
+        output.close();
+    }
+
+    /**
+     * @return The number of distinct bags seen so far.
+     */
+    public int getNumberOfBags()
+    {
+        return eartifactBags.size();
+    }
+
+    /**
+     * Lists the input files: each file given, and the files in each
+     * directory given, with the server's rotated files in the order they
+     * were written.
+     */
+    static List<File> listInputs( String[] inputs )
+    {
+        List<File> files = new ArrayList<File>();
+        for( String input : inputs )
+        {
+            File file = new File( input );
+            if( file.isDirectory() )
+            {
+                File[] children = file.listFiles();
+                Arrays.sort( children, new Comparator<File>() {
+                    public int compare( File a, File b )
+                    {
+                        return compareRotated( a.getName(), b.getName() );
+                    }
+                });
+                for( File child : children )
+                {
+                    if( child.isFile() && child.getName().startsWith(
+                            "eartifacts." ) )
+                    {
+                        files.add( child );
+                    }
+                }
+            }
+            else
+            {
+                files.add( file );
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Orders rotated file names by base, date and then number; names that
+     * aren't rotated files go after them, by name.
+     */
+    static int compareRotated( String a, String b )
+    {
+        Matcher ma = ROTATED_FILE.matcher( a );
+        Matcher mb = ROTATED_FILE.matcher( b );
+        boolean rotatedA = ma.matches();
+        boolean rotatedB = mb.matches();
+        if( !rotatedA || !rotatedB )
+        {
+            return rotatedA ? -1 : rotatedB ? 1 : a.compareTo( b );
+        }
+
+        int order = ma.group( 1 ).compareTo( mb.group( 1 ) );
+        if( order != 0 )
+        {
+            return order;
+        }
+        // The same format the server names them with.
+        SimpleDateFormat dateFormat = new SimpleDateFormat( "dd-MMM-yyyy" );
+        try
+        {
+            order = dateFormat.parse( ma.group( 2 ) ).compareTo(
+                    dateFormat.parse( mb.group( 2 ) ) );
+        } catch( ParseException e ) {
+            order = ma.group( 2 ).compareTo( mb.group( 2 ) );
+        }
+        if( order != 0 )
+        {
+            return order;
+        }
+        return Long.valueOf( ma.group( 3 ) ).compareTo(
+                Long.valueOf( mb.group( 3 ) ) );
+    }
+
+    /**
+     * Reads the lines of a file from the given offset on. Only lines ending
+     * in a new line are returned unless <code>partial</code> is true, since
+     * the rest of a line may not have been written yet.
+     *
+     * @param file The file.
+     * @param offset Where to start, in bytes.
+     * @param lines Where to put the lines.
+     * @param partial Whether to return a last line without a new line.
+     *
+     * @return The offset just past the last line returned.
+     *
+     * @throws IOException
+     */
+    static long readLines( File file, long offset, List<String> lines,
+            boolean partial ) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            in.seek( offset );
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] buffer = new byte[65536];
+            long position = offset;
+            int read;
+            while( (read = in.read( buffer )) > 0 )
+            {
+                int start = 0;
+                for( int i = 0; i < read; i++ )
+                {
+                    if( buffer[i] == '\n' )
+                    {
+                        line.write( buffer, start, i - start );
+                        lines.add( line.toString( "UTF-8" ) );
+                        line.reset();
+                        start = i + 1;
+                        offset = position + start;
+                    }
+                }
+                line.write( buffer, start, read - start );
+                position += read;
+            }
+            if( partial && line.size() > 0 )
+            {
+                lines.add( line.toString( "UTF-8" ) );
+                offset = position;
+            }
+            return offset;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static void main( String[] args )
+    {
+        String help = "Usage: edu.umass.ciir.crowdlogger.server." +
+            "IncrementalEArtifactDecryptor [--private-key=FILE] " +
+            "[--follow] [--poll=SECONDS] <output file> <inputs...>\n\n" +
+            "Inputs are e-artifact files, or directories of the master " +
+            "server's\neartifacts.<date>.NNN files, which are read oldest " +
+            "first. Bags are\nwritten as soon as they can be decrypted, and " +
+            "again (with the counts so\nfar) after each pass over the " +
+            "inputs if they've grown.\n\n" +
+            "--private-key=FILE takes the inputs to be ee-artifacts and " +
+            "decrypts them\nwith the private key in FILE first.\n" +
+            "--follow keeps polling the inputs for new lines and files.\n" +
+            "--poll=SECONDS polls every SECONDS seconds (default: 10).";
+
+        String privateKey = null;
+        boolean follow = false;
+        long pollMillis = 10 * 1000;
+        int first = 0;
+        for( ; first < args.length && args[first].startsWith( "--" ); first++ )
+        {
+            if( args[first].startsWith( "--private-key=" ) )
+            {
+                privateKey = args[first].replaceFirst( "--private-key=", "" );
+            }
+            else if( args[first].equals( "--follow" ) )
+            {
+                follow = true;
+            }
+            else if( args[first].startsWith( "--poll=" ) )
+            {
+                pollMillis = 1000 * Long.parseLong(
+                        args[first].replaceFirst( "--poll=", "" ) );
+            }
+        }
+
+        if( args.length - first < 2 )
+        {
+            System.out.println( help );
+            System.exit( 0 );
+        }
+
+        String outputFilename = args[first];
+        String[] inputs = new String[args.length - first - 1];
+        System.arraycopy( args, first + 1, inputs, 0, inputs.length );
+
+        try
+        {
+            EEArtifactDecryptor eeDecryptor = null == privateKey ? null :
+                new EEArtifactDecryptor( privateKey );
+            IncrementalEArtifactDecryptor decryptor =
+                new IncrementalEArtifactDecryptor(
+                        new FileWriter( outputFilename ) );
+
+            // How far into each file we've read.
+            HashMap<File, Long> offsets = new HashMap<File, Long>();
+            while( true )
+            {
+                for( File file : listInputs( inputs ) )
+                {
+                    Long offset = offsets.get( file );
+                    if( null == offset )
+                    {
+                        offset = 0L;
+                    }
+                    if( file.length() <= offset )
+                    {
+                        continue;
+                    }
+
+                    List<String> lines = new ArrayList<String>();
+                    offsets.put( file, readLines( file, offset, lines,
+                            !follow ) );
+                    for( String line : lines )
+                    {
+                        if( null == eeDecryptor )
+                        {
+                            decryptor.addEArtifact( line );
+                            continue;
+                        }
+                        try
+                        {
+                            decryptor.addEArtifact(
+                                    eeDecryptor.decrypteEEArtifact( line ) );
+                        } catch( Exception e ) {
+                            logger.severe( "Error processing line [" + line +
+                                    "]: " + e.toString() );
+                        }
+                    }
+                }
+                decryptor.flush();
+
+                if( !follow )
+                {
+                    break;
+                }
+                logger.info( decryptor.getNumberOfBags() + " bags so far." );
+                Thread.sleep( pollMillis );
+            }
+
+            decryptor.close();
+            logger.info( "Metrics:\n" + Metrics.report() );
+        } catch( Exception e ) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
+/**
+ * Recovers the password of a bag of shares, checking each candidate against
+ * the primary cipher text. A bag can hold many more than k shares, and a
+ * malformed or malicious one among the k that are interpolated gives the
+ * wrong password; when that happens, other k-subsets are tried until one
+ * decrypts the primary cipher text or the budget of attempts runs out.
+ *
+ * The first subset is the first k shares in the map's iteration order, as
+ * before. After that, subsets are picked from the shares that have been in
+ * the fewest failed subsets, with ties broken at random, so shares that
+ * haven't been tried come first and a bad share's company is let off after
+ * one failure. When there are no more k-subsets than the budget, they are
+ * simply all tried, in order.
+ *
+ * A candidate passes if the primary cipher text decrypts (i.e., its padding
+ * checks out) to text without undecodable bytes. Once a subset that needed
+ * a retry passes, every share is checked against the polynomial with the
+ * key as its intercept, and the ones off of it are reported as bad.
+ *
+ * The budget is read from the <code>crowdlogger.recovery.budget</code>
+ * system property (default 64); each attempt is an interpolation over k
+ * points and one AES decryption, so the cost doesn't grow with the size of
+ * the bag until a retry needs every share checked.
+ */
+public class KeyRecovery
+{
+    /** The system property holding the number of subsets to try. */
+    public static final String BUDGET_PROPERTY = "crowdlogger.recovery.budget";
+
+    /** The number of subsets tried by default. */
+    public static final int DEFAULT_BUDGET = 64;
+
+    // How many times to draw before deciding there's no untried subset left.
+    private static final int MAX_DRAWS = 16;
+
+    /**
+     * What came of recovering a bag's password.
+     */
+    public static class Result
+    {
+        private final String key;
+        private final String primaryPrivateField;
+        private final List<BigDecimal> badShares;
+        private final int attempts;
+
+        Result( String key, String primaryPrivateField,
+                List<BigDecimal> badShares, int attempts )
+        {
+            this.key = key;
+            this.primaryPrivateField = primaryPrivateField;
+            this.badShares = badShares;
+            this.attempts = attempts;
+        }
+
+        /**
+         * @return <code>true</code> if a password was found.
+         */
+        public boolean isRecovered()
+        {
+            return null != key;
+        }
+
+        /**
+         * @return The password, or <code>null</code> if none was found.
+         */
+        public String getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return The decrypted primary cipher text, or <code>null</code> if
+         *      no password was found.
+         */
+        public String getPrimaryPrivateField()
+        {
+            return primaryPrivateField;
+        }
+
+        /**
+         * @return The x values of the shares that aren't on the password's
+         *      polynomial, in increasing order. This is only worked out when
+         *      the first subset failed; otherwise it's empty.
+         */
+        public List<BigDecimal> getBadShares()
+        {
+            return badShares;
+        }
+
+        /**
+         * @return The number of subsets tried.
+         */
+        public int getAttempts()
+        {
+            return attempts;
+        }
+    }
+
+    private final int budget;
+    private final LagrangeBasisCache cache;
+
+    private static final Timer interpolateTimer =
+        Metrics.timer( "decryption.bags.interpolate.micros" );
+    private static final Histogram attemptsHistogram =
+        Metrics.histogram( "decryption.recovery.attempts" );
+    private static final Counter retried =
+        Metrics.counter( "decryption.recovery.retried" );
+    private static final Counter exhausted =
+        Metrics.counter( "decryption.recovery.exhausted" );
+    private static final Counter badShareCount =
+        Metrics.counter( "decryption.recovery.bad_shares" );
+
+    /**
+     * Creates a recoverer with the budget from the system property.
+     *
+     * @param cache Where to look up interpolation weights; may be
+     *      <code>null</code>.
+     */
+    public KeyRecovery( LagrangeBasisCache cache )
+    {
+        this( Integer.getInteger( BUDGET_PROPERTY, DEFAULT_BUDGET ), cache );
+    }
+
+    /**
+     * Creates a recoverer.
+     *
+     * @param budget The most subsets to try for a bag.
+     * @param cache Where to look up interpolation weights; may be
+     *      <code>null</code>.
+     */
+    public KeyRecovery( int budget, LagrangeBasisCache cache )
+    {
+        this.budget = Math.max( 1, budget );
+        this.cache = cache;
+    }
+
+    /**
+     * Recovers the password of a bag.
+     *
+     * @param points The bag's shares, as (x,y) pairs.
+     * @param k The number of shares needed.
+     * @param primaryCipherText The bag's primary cipher text.
+     *
+     * @return What was found.
+     */
+    public Result recover( HashMap<BigDecimal, BigDecimal> points, int k,
+            String primaryCipherText )
+    {
+        int m = points.size();
+        BigDecimal[] xs = points.keySet().toArray( new BigDecimal[m] );
+        k = Math.min( k, m );
+
+        boolean exhaustive = combinations( m, k, budget ) <= budget;
+        int[] failures = new int[m];
+        HashSet<String> tried = new HashSet<String>();
+        Random random = new Random( m );
+
+        int[] subset = new int[k];
+        for( int i = 0; i < k; i++ )
+        {
+            subset[i] = i;
+        }
+
+        int attempts = 0;
+        while( null != subset && attempts < budget )
+        {
+            attempts++;
+            tried.add( Arrays.toString( subset ) );
+
+            HashMap<BigDecimal, BigDecimal> chosen =
+                new HashMap<BigDecimal, BigDecimal>();
+            for( int i : subset )
+            {
+                chosen.put( xs[i], points.get( xs[i] ) );
+            }
+
+            String key = interpolate( chosen, k );
+            String primary = null == key ? null :
+                decrypt( key, primaryCipherText );
+            if( null != primary )
+            {
+                attemptsHistogram.record( attempts );
+                List<BigDecimal> bad = Collections.emptyList();
+                if( attempts > 1 )
+                {
+                    retried.increment();
+                    bad = offPolynomial( points, chosen, k, key );
+                    badShareCount.add( bad.size() );
+                }
+                return new Result( key, primary, bad, attempts );
+            }
+
+            for( int i : subset )
+            {
+                failures[i]++;
+            }
+            subset = exhaustive ? nextCombination( subset, m ) :
+                leastSuspected( failures, k, random, tried );
+        }
+
+        attemptsHistogram.record( attempts );
+        exhausted.increment();
+        return new Result( null, null, Collections.<BigDecimal>emptyList(),
+                attempts );
+    }
+
+    /**
+     * @return The intercept through the given points, or <code>null</code>
+     *      if two of them have the same x.
+     */
+    private String interpolate( HashMap<BigDecimal, BigDecimal> chosen,
+            int k )
+    {
+        long start = interpolateTimer.start();
+        try
+        {
+            return new ExactLagrangeInterpolator( chosen, k, cache ).
+                evaluateAndRound( BigDecimal.ZERO );
+        } catch( ArithmeticException e )
+        {
+            // "3.1" and "3.10" are different keys but the same x.
+            return null;
+        } finally {
+            interpolateTimer.stop( start );
+        }
+    }
+
+    /**
+     * @return The primary cipher text decrypted with the key, or
+     *      <code>null</code> if the key doesn't fit.
+     */
+    private static String decrypt( String key, String primaryCipherText )
+    {
+        try
+        {
+            String clearText = BasicDecryptor.decryptAES256(
+                    key, primaryCipherText );
+            // A wrong key gets past the padding check one time in 256 or
+            // so, but seldom decrypts to text.
+            return clearText.indexOf( '\uFFFD' ) < 0 ? clearText : null;
+        } catch( IOException e )
+        {
+            return null;
+        } catch( GeneralSecurityException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Works out which shares aren't on the polynomial whose intercept is the
+     * key. Normally that's the polynomial through the chosen shares, but one
+     * of them can be off by too little to change the rounded key; then each
+     * is swapped out in turn for (0, key), and the polynomial the most
+     * shares are on is the one kept.
+     *
+     * @return The x values of the shares off of the polynomial, in
+     *      increasing order.
+     */
+    private List<BigDecimal> offPolynomial(
+            HashMap<BigDecimal, BigDecimal> points,
+            HashMap<BigDecimal, BigDecimal> chosen, int k, String key )
+    {
+        BigDecimal intercept = new BigDecimal( key );
+        ExactLagrangeInterpolator polynomial =
+            new ExactLagrangeInterpolator( chosen, k, cache );
+        if( polynomial.evaluate( BigDecimal.ZERO ).compareTo( intercept ) == 0 )
+        {
+            return misses( points, polynomial );
+        }
+
+        List<BigDecimal> fewest = null;
+        for( BigDecimal left : chosen.keySet() )
+        {
+            HashMap<BigDecimal, BigDecimal> others =
+                new HashMap<BigDecimal, BigDecimal>( chosen );
+            others.remove( left );
+            others.put( BigDecimal.ZERO, intercept );
+            List<BigDecimal> bad = misses( points,
+                    new ExactLagrangeInterpolator( others, k, cache ) );
+            if( null == fewest || bad.size() < fewest.size() )
+            {
+                fewest = bad;
+            }
+        }
+        return fewest;
+    }
+
+    /**
+     * @return The x values of the shares the polynomial misses, in
+     *      increasing order.
+     */
+    private static List<BigDecimal> misses(
+            HashMap<BigDecimal, BigDecimal> points,
+            ExactLagrangeInterpolator polynomial )
+    {
+        List<BigDecimal> bad = new ArrayList<BigDecimal>();
+        for( BigDecimal x : points.keySet() )
+        {
+            try
+            {
+                if( polynomial.evaluate( x ).compareTo( points.get( x ) ) != 0 )
+                {
+                    bad.add( x );
+                }
+            } catch( ArithmeticException e )
+            {
+                bad.add( x );
+            }
+        }
+        Collections.sort( bad );
+        return bad;
+    }
+
+    /**
+     * Picks the k shares that have been in the fewest failed subsets,
+     * breaking ties at random, skipping subsets already tried.
+     *
+     * @return The subset, sorted, or <code>null</code> if no untried one
+     *      turned up.
+     */
+    private static int[] leastSuspected( final int[] failures, int k,
+            Random random, HashSet<String> tried )
+    {
+        int m = failures.length;
+        Integer[] order = new Integer[m];
+        for( int i = 0; i < m; i++ )
+        {
+            order[i] = i;
+        }
+
+        for( int draw = 0; draw < MAX_DRAWS; draw++ )
+        {
+            Collections.shuffle( Arrays.asList( order ), random );
+            Arrays.sort( order, new Comparator<Integer>() {
+                public int compare( Integer a, Integer b )
+                {
+                    return failures[a] - failures[b];
+                }
+            });
+
+            int[] subset = new int[k];
+            for( int i = 0; i < k; i++ )
+            {
+                subset[i] = order[i];
+            }
+            Arrays.sort( subset );
+            if( !tried.contains( Arrays.toString( subset ) ) )
+            {
+                return subset;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Steps to the next k-subset of 0..m-1 in lexicographic order.
+     *
+     * @return The subset, updated in place, or <code>null</code> after the
+     *      last one.
+     */
+    private static int[] nextCombination( int[] subset, int m )
+    {
+        int k = subset.length;
+        int i = k - 1;
+        while( i >= 0 && subset[i] == m - k + i )
+        {
+            i--;
+        }
+        if( i < 0 )
+        {
+            return null;
+        }
+        subset[i]++;
+        for( int j = i + 1; j < k; j++ )
+        {
+            subset[j] = subset[j - 1] + 1;
+        }
+        return subset;
+    }
+
+    /**
+     * @return m choose k, or something over the limit if it's more than
+     *      the limit.
+     */
+    private static long combinations( int m, int k, long limit )
+    {
+        long count = 1;
+        for( int i = 0; i < k; i++ )
+        {
+            // Exact at every step: count is (m choose i+1) afterwards.
+            count = count * (m - i) / (i + 1);
+            if( count > limit )
+            {
+                return limit + 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,156 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Gauge;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * A bounded, least-recently-used cache of Lagrange weights, keyed by the
+ * sorted x values they were computed for. Clients' x values come from a
+ * small range, so many bags are interpolated over the same points; with the
+ * weights (and the basis at x = 0) cached, recovering a key is a dot product
+ * with the y values. Safe to share between threads.
+ *
+ * The extension hashes the primary data into each user's x, though, so the
+ * same set of x values seldom comes up in two bags, and at the k's used in
+ * practice the weights take only a few microseconds to compute. The
+ * decryptor therefore only uses a cache when the
+ * <code>crowdlogger.basisCache.capacity</code> system property is set to
+ * the number of x value sets to keep. Shares that are all on a polynomial
+ * with integer coefficients don't need the weights at all (see
+ * {@link ExactLagrangeInterpolator}), so it only comes into play for
+ * subsets with a bad share.
+ */
+public class LagrangeBasisCache
+{
+    /** The system property holding the decryptor's cache capacity. */
+    public static final String CAPACITY_PROPERTY =
+        "crowdlogger.basisCache.capacity";
+
+    /** A reasonable capacity, for when there's no reason to pick another. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * A sorted set of x values, compared element by element.
+     */
+    private static class Key
+    {
+        private final BigDecimal[] xs;
+        private final int hash;
+
+        Key( BigDecimal[] xs )
+        {
+            this.xs = xs;
+            this.hash = Arrays.hashCode( xs );
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals( Object other )
+        {
+            return other instanceof Key && Arrays.equals( xs, ((Key) other).xs );
+        }
+    }
+
+    private final Map<Key, ExactLagrangeInterpolator.Basis> bases;
+
+    private static final Counter hits =
+        Metrics.counter( "decryption.basis_cache.hits" );
+    private static final Counter misses =
+        Metrics.counter( "decryption.basis_cache.misses" );
+    private static final Counter evictions =
+        Metrics.counter( "decryption.basis_cache.evictions" );
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity The number of x value sets to keep weights for.
+     */
+    public LagrangeBasisCache( final int capacity )
+    {
+        bases = new LinkedHashMap<Key, ExactLagrangeInterpolator.Basis>(
+                16, 0.75f, true ) {
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, ExactLagrangeInterpolator.Basis> eldest )
+            {
+                if( size() > capacity )
+                {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        Metrics.gauge( "decryption.basis_cache.size", new Gauge() {
+            public long getValue()
+            {
+                return size();
+            }
+        });
+    }
+
+    /**
+     * Gets the weights for the given x values, computing and keeping them if
+     * they aren't here.
+     *
+     * @param xs The x values, sorted.
+     *
+     * @return The weights.
+     *
+     * @throws ArithmeticException If two of the x values are equal.
+     */
+    ExactLagrangeInterpolator.Basis get( BigDecimal[] xs )
+    {
+        Key key = new Key( xs );
+        ExactLagrangeInterpolator.Basis basis;
+        synchronized( bases )
+        {
+            basis = bases.get( key );
+        }
+        if( null != basis )
+        {
+            hits.increment();
+            return basis;
+        }
+
+        // Compute outside the lock; if another thread beat us to it, either
+        // copy will do.
+        misses.increment();
+        basis = new ExactLagrangeInterpolator.Basis( xs, 0 );
+        synchronized( bases )
+        {
+            bases.put( key, basis );
+        }
+        return basis;
+    }
+
+    /**
+     * @return The number of x value sets held.
+     */
+    public int size()
+    {
+        synchronized( bases )
+        {
+            return bases.size();
+        }
+    }
+
+    /**
+     * @return The fraction of lookups that found their weights here.
+     */
+    public static double getHitRate()
+    {
+        long h = hits.getCount();
+        long total = h + misses.getCount();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
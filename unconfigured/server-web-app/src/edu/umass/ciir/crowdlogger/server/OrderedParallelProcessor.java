@@ -0,0 +1,282 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a CPU-heavy step over a stream of inputs on a pool of worker threads
+ * while keeping the outputs in input order. The calling thread reads inputs
+ * from a {@link Source} and hands them to the workers in batches; a single
+ * writer thread waits on the batches in the order they were handed out and
+ * passes the outputs to a {@link Sink}, so the sink never has to be thread
+ * safe. Only a bounded number of batches are in the pipeline at once, so a
+ * slow sink holds up the reader rather than filling the heap.
+ *
+ * @param <I> The type of input.
+ * @param <O> The type of output.
+ */
+public class OrderedParallelProcessor<I, O>
+{
+    /**
+     * Supplies inputs.
+     */
+    public interface Source<I>
+    {
+        /**
+         * @return The next input, or <code>null</code> if there are no more.
+         *
+         * @throws IOException
+         */
+        I next() throws IOException;
+    }
+
+    /**
+     * The step to run on each input. This is called from many threads at
+     * once.
+     */
+    public interface Worker<I, O>
+    {
+        /**
+         * @param input The input.
+         *
+         * @return The output, or <code>null</code> to drop this input.
+         */
+        O process( I input );
+    }
+
+    /**
+     * Takes the outputs, in input order, from a single thread.
+     */
+    public interface Sink<O>
+    {
+        /**
+         * @param output The next output.
+         *
+         * @throws IOException
+         */
+        void write( O output ) throws IOException;
+    }
+
+    private final String name;
+    private final int threads;
+    private final int batchSize;
+
+    /**
+     * @param name What to name the threads after.
+     * @param threads The number of worker threads.
+     * @param batchSize The number of inputs handed to a worker at a time.
+     */
+    public OrderedParallelProcessor( String name, int threads, int batchSize )
+    {
+        this.name = name;
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Processes every input from the source and writes the outputs to the
+     * sink, returning once they've all been written.
+     *
+     * @param source Where the inputs come from.
+     * @param worker What to do with each input.
+     * @param sink Where the outputs go.
+     *
+     * @return The number of inputs read.
+     *
+     * @throws IOException If reading or writing failed.
+     * @throws RuntimeException If the sink threw one; it's rethrown here
+     *      rather than ending the run early without a word.
+     */
+    public long run( Source<I> source, final Worker<I, O> worker,
+            final Sink<O> sink ) throws IOException
+    {
+        ExecutorService workers = Executors.newFixedThreadPool( threads,
+                namedThreads( name + "-worker" ) );
+
+        // Batches in the order they were read, followed by the end marker.
+        // Bounding this bounds everything in flight.
+        final BlockingQueue<Future<List<O>>> inOrder =
+            new ArrayBlockingQueue<Future<List<O>>>( threads * 4 );
+        final Future<List<O>> end = workers.submit( new Callable<List<O>>() {
+            public List<O> call()
+            {
+                return null;
+            }
+        });
+
+        // Whatever stopped the writer early, to be thrown from here.
+        final Throwable[] writeFailure = new Throwable[1];
+        Thread writer = new Thread( new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    while( true )
+                    {
+                        Future<List<O>> batch = inOrder.take();
+                        if( batch == end )
+                        {
+                            return;
+                        }
+                        for( O output : batch.get() )
+                        {
+                            if( null != output )
+                            {
+                                sink.write( output );
+                            }
+                        }
+                    }
+                } catch( IOException e )
+                {
+                    writeFailure[0] = e;
+                } catch( ExecutionException e )
+                {
+                    writeFailure[0] = new IOException(
+                            "A worker failed: " + e.getCause() );
+                    writeFailure[0].initCause( e.getCause() );
+                } catch( InterruptedException e )
+                {
+                    // We're being shut down.
+                } catch( RuntimeException e )
+                {
+                    writeFailure[0] = e;
+                } catch( Error e )
+                {
+                    writeFailure[0] = e;
+                }
+                // Something went wrong; keep the reader from blocking.
+                inOrder.clear();
+            }
+        }, name + "-writer" );
+        writer.setDaemon( true );
+        writer.start();
+
+        long read = 0;
+        try
+        {
+            I input = source.next();
+            while( null != input && writer.isAlive() )
+            {
+                final List<I> batch = new ArrayList<I>( batchSize );
+                while( null != input && batch.size() < batchSize )
+                {
+                    batch.add( input );
+                    input = source.next();
+                }
+                read += batch.size();
+
+                put( inOrder, workers.submit( new Callable<List<O>>() {
+                    public List<O> call()
+                    {
+                        List<O> outputs = new ArrayList<O>( batch.size() );
+                        for( I item : batch )
+                        {
+                            outputs.add( worker.process( item ) );
+                        }
+                        return outputs;
+                    }
+                }), writer );
+            }
+            put( inOrder, end, writer );
+            writer.join();
+        }
+        catch( InterruptedException e )
+        {
+            writer.interrupt();
+            throw new IOException( "Interrupted." );
+        }
+        finally
+        {
+            // If reading failed, stop the writer before the workers, so it
+            // isn't left waiting on a batch they'll never finish.
+            stop( writer, inOrder, end );
+            workers.shutdownNow();
+        }
+
+        Throwable failure = writeFailure[0];
+        if( failure instanceof IOException )
+        {
+            throw (IOException) failure;
+        }
+        else if( failure instanceof RuntimeException )
+        {
+            throw (RuntimeException) failure;
+        }
+        else if( failure instanceof Error )
+        {
+            throw (Error) failure;
+        }
+        return read;
+    }
+
+    /**
+     * Stops the writer, if it's still running, and waits for it to end.
+     */
+    private void stop( Thread writer, BlockingQueue<Future<List<O>>> queue,
+            Future<List<O>> end )
+    {
+        if( !writer.isAlive() )
+        {
+            return;
+        }
+
+        // The end marker stops it even if the sink swallows the interrupt.
+        queue.clear();
+        queue.offer( end );
+        writer.interrupt();
+
+        boolean interrupted = false;
+        while( writer.isAlive() )
+        {
+            try
+            {
+                writer.join();
+            } catch( InterruptedException e )
+            {
+                interrupted = true;
+            }
+        }
+        if( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Puts a batch in the queue, giving up if the writer has died.
+     */
+    private void put( BlockingQueue<Future<List<O>>> queue,
+            Future<List<O>> batch, Thread writer ) throws InterruptedException
+    {
+        while( writer.isAlive() &&
+                !queue.offer( batch, 100, TimeUnit.MILLISECONDS ) )
+        {
+            // Keep waiting for room.
+        }
+    }
+
+    private static ThreadFactory namedThreads( final String name )
+    {
+        final AtomicInteger count = new AtomicInteger( 0 );
+        return new ThreadFactory() {
+            public Thread newThread( Runnable runnable )
+            {
+                Thread thread = new Thread( runnable,
+                        name + "-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,488 @@
+package edu.umass.ciir.crowdlogger.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+
+/**
+ * Appends the e-artifacts the server receives to files named
+ * &lt;base&gt;.&lt;dd-MMM-yyyy&gt;.NNN, moving on to the next file once one
+ * holds the most e-artifacts allowed and starting again at 001 each day.
+ *
+ * The current file is kept open. Request threads don't touch it: they hand
+ * their e-artifacts to {@link #write(List)}, and a single writer thread
+ * writes whatever has been handed over since it last wrote, in one go
+ * (group commit), then lets every thread in the group go on. What "written"
+ * means is up to the {@link SyncPolicy}. Rotating, by count or by date, is
+ * done by the writer thread between groups. If too many e-artifacts are
+ * waiting to be written, {@link #write(List)} waits for room.
+ *
+ * When it starts on a day's files, the log carries on from the last one
+ * already there, so restarting the server doesn't overfill a file.
+ */
+public class RotatingEArtifactLog
+{
+    /**
+     * When written e-artifacts are forced to disk.
+     */
+    public enum SyncPolicy
+    {
+        /**
+         * Never; {@link #write(List)} returns once they've been handed to
+         * the operating system, which is as far as a servlet's FileWriter
+         * ever took them.
+         */
+        NONE,
+
+        /**
+         * At most once per sync interval, and when a file is closed;
+         * {@link #write(List)} doesn't wait for it.
+         */
+        INTERVAL,
+
+        /**
+         * Every group, before {@link #write(List)} returns.
+         */
+        COMMIT
+    }
+
+    /**
+     * E-artifacts handed over together, and what became of them.
+     */
+    private static class Group
+    {
+        final List<String> eartifacts = new ArrayList<String>();
+        // Guarded by the group.
+        boolean done = false;
+        IOException failure = null;
+    }
+
+    private final String fileNameBase;
+    private final long maxPerFile;
+    private final SyncPolicy syncPolicy;
+    private final long syncInterval;
+    private final int maxWaiting;
+
+    // Guarded by this.
+    private Group open = null;
+    private int waiting = 0;
+    private int waitingForRoom = 0;
+    private boolean closed = false;
+
+    // Only used by the writer thread.
+    private final DateFormat dateFormatter =
+        new SimpleDateFormat( "dd-MMM-yyyy" );
+    private String currentFileNameBase = null;
+    private int currentFileExtension = 0;
+    private long linesWrittenToCurrentFile = 0;
+    private FileOutputStream file = null;
+    private Writer out = null;
+    private boolean unsynced = false;
+    private long lastSync = 0;
+
+    private final Thread writer;
+
+    private static final Logger logger =
+        Logger.getLogger( RotatingEArtifactLog.class.getName() );
+
+    private static final Counter appended =
+        Metrics.counter( "server.log.eartifacts" );
+    private static final Counter failures =
+        Metrics.counter( "server.log.failed" );
+    private static final Counter rotations =
+        Metrics.counter( "server.log.rotations" );
+    private static final Counter syncs =
+        Metrics.counter( "server.log.syncs" );
+    private static final Histogram groupSizes =
+        Metrics.histogram( "server.log.group.size" );
+    private static final Timer groupTimer =
+        Metrics.timer( "server.log.group.micros" );
+
+    /**
+     * Starts the log's writer thread. Nothing is opened until the first
+     * e-artifacts are written.
+     *
+     * @param fileNameBase The path of the files, before the date.
+     * @param maxPerFile The most e-artifacts to write to a file.
+     * @param syncPolicy When to force the files to disk.
+     * @param syncInterval For {@link SyncPolicy#INTERVAL}, the most
+     *      milliseconds between forcing the file.
+     * @param maxWaiting The most e-artifacts that can be waiting to be
+     *      written.
+     */
+    public RotatingEArtifactLog( String fileNameBase, long maxPerFile,
+            SyncPolicy syncPolicy, long syncInterval, int maxWaiting )
+    {
+        this.fileNameBase = fileNameBase;
+        this.maxPerFile = Math.max( 1, maxPerFile );
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+        this.maxWaiting = Math.max( 1, maxWaiting );
+
+        writer = new Thread( new Runnable() {
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "eartifact-log-writer" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+    /**
+     * Writes e-artifacts, in order and next to each other in the same file
+     * unless it fills up part way through. Returns once they've been
+     * written (and, with {@link SyncPolicy#COMMIT}, forced to disk). This
+     * can be called from any number of threads at once.
+     *
+     * @param eartifacts The e-artifacts, one per line.
+     *
+     * @throws IOException If they couldn't be written, or the log is
+     *      closed.
+     */
+    public void write( List<String> eartifacts ) throws IOException
+    {
+        if( eartifacts.isEmpty() )
+        {
+            return;
+        }
+
+        Group group;
+        try
+        {
+            synchronized( this )
+            {
+                // A group bigger than the limit goes in on its own.
+                while( !closed && waiting > 0 &&
+                        waiting + eartifacts.size() > maxWaiting )
+                {
+                    waitingForRoom++;
+                    try
+                    {
+                        wait();
+                    } finally {
+                        waitingForRoom--;
+                    }
+                }
+                if( closed )
+                {
+                    throw new IOException( "The e-artifact log is closed." );
+                }
+                if( null == open )
+                {
+                    open = new Group();
+                    // The writer only waits when there's no group.
+                    notifyAll();
+                }
+                group = open;
+                group.eartifacts.addAll( eartifacts );
+                waiting += eartifacts.size();
+            }
+
+            synchronized( group )
+            {
+                while( !group.done )
+                {
+                    group.wait();
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted writing e-artifacts." );
+        }
+
+        if( null != group.failure )
+        {
+            throw group.failure;
+        }
+    }
+
+    /**
+     * Writes everything handed over so far, closes the current file and
+     * stops the writer thread. Anything written after this fails.
+     */
+    public void close()
+    {
+        synchronized( this )
+        {
+            closed = true;
+            notifyAll();
+        }
+        try
+        {
+            writer.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The date used to name the file the next group goes to.
+     */
+    protected Date now()
+    {
+        return new Date();
+    }
+
+    /**
+     * Writes groups as they come in, and forces the file to disk when the
+     * sync policy says to.
+     */
+    private void writeLoop()
+    {
+        while( true )
+        {
+            Group group;
+            synchronized( this )
+            {
+                try
+                {
+                    while( null == open && !closed )
+                    {
+                        if( unsynced && syncPolicy == SyncPolicy.INTERVAL )
+                        {
+                            long wait = lastSync + syncInterval -
+                                System.currentTimeMillis();
+                            if( wait <= 0 )
+                            {
+                                break;
+                            }
+                            wait( wait );
+                        }
+                        else
+                        {
+                            wait();
+                        }
+                    }
+                } catch( InterruptedException e ) {
+                    closed = true;
+                }
+            }
+
+            // Give the request threads that are ready to run a chance to
+            // join the group before taking it.
+            Thread.yield();
+            synchronized( this )
+            {
+                group = open;
+                open = null;
+            }
+
+            if( null == group )
+            {
+                if( !closed )
+                {
+                    // The interval is up and nothing else has come in.
+                    sync();
+                    continue;
+                }
+                closeFile();
+                return;
+            }
+
+            long start = groupTimer.start();
+            try
+            {
+                writeGroup( group.eartifacts );
+                if( syncPolicy == SyncPolicy.COMMIT ||
+                        (syncPolicy == SyncPolicy.INTERVAL &&
+                        System.currentTimeMillis() - lastSync >=
+                            syncInterval) )
+                {
+                    forceFile();
+                }
+            } catch( IOException e ) {
+                group.failure = e;
+                failures.add( group.eartifacts.size() );
+                logger.log( Level.SEVERE, "Couldn't write e-artifacts", e );
+                // Start again with a fresh file handle.
+                closeFile();
+            } finally {
+                groupTimer.stop( start );
+            }
+            groupSizes.record( group.eartifacts.size() );
+
+            synchronized( this )
+            {
+                waiting -= group.eartifacts.size();
+                if( waitingForRoom > 0 )
+                {
+                    notifyAll();
+                }
+            }
+            synchronized( group )
+            {
+                group.done = true;
+                group.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a group to the current file, rotating as need be, and flushes
+     * it to the operating system.
+     */
+    private void writeGroup( List<String> eartifacts ) throws IOException
+    {
+        // Create the new file name (append the day to the end).
+        String filename = fileNameBase + "." + dateFormatter.format( now() );
+        if( !filename.equals( currentFileNameBase ) )
+        {
+            if( null != currentFileNameBase )
+            {
+                rotations.increment();
+            }
+            closeFile();
+            currentFileNameBase = filename;
+            resume();
+        }
+
+        for( String eartifact : eartifacts )
+        {
+            if( linesWrittenToCurrentFile >= maxPerFile )
+            {
+                rotations.increment();
+                closeFile();
+                currentFileExtension++;
+                linesWrittenToCurrentFile = 0;
+            }
+            if( null == out )
+            {
+                file = new FileOutputStream( currentFileNameBase +
+                        String.format( ".%03d", currentFileExtension ), true );
+                out = new BufferedWriter( new OutputStreamWriter( file ),
+                        64 * 1024 );
+            }
+            out.write( eartifact );
+            out.write( '\n' );
+            linesWrittenToCurrentFile++;
+        }
+        out.flush();
+        appended.add( eartifacts.size() );
+        unsynced = true;
+    }
+
+    /**
+     * Picks the file to carry on from for the current date: the last one
+     * there is, and how many lines it has, or 001 if there are none.
+     */
+    private void resume() throws IOException
+    {
+        currentFileExtension = 1;
+        while( new File( currentFileNameBase + String.format( ".%03d",
+                currentFileExtension + 1 ) ).exists() )
+        {
+            currentFileExtension++;
+        }
+        linesWrittenToCurrentFile = countLines( new File( currentFileNameBase +
+                String.format( ".%03d", currentFileExtension ) ) );
+    }
+
+    /**
+     * @return The number of new lines in a file; 0 if it doesn't exist.
+     */
+    private static long countLines( File existing ) throws IOException
+    {
+        if( !existing.exists() )
+        {
+            return 0;
+        }
+        long lines = 0;
+        FileInputStream in = new FileInputStream( existing );
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while( (read = in.read( buffer )) > 0 )
+            {
+                for( int i = 0; i < read; i++ )
+                {
+                    if( buffer[i] == '\n' )
+                    {
+                        lines++;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Forces the current file to disk.
+     */
+    private void forceFile() throws IOException
+    {
+        if( null != file )
+        {
+            file.getChannel().force( false );
+            syncs.increment();
+        }
+        unsynced = false;
+        lastSync = System.currentTimeMillis();
+    }
+
+    /**
+     * Forces the current file to disk, logging rather than throwing if it
+     * can't be; the next group to fail will report it.
+     */
+    private void sync()
+    {
+        try
+        {
+            forceFile();
+        } catch( IOException e ) {
+            logger.log( Level.SEVERE, "Couldn't force e-artifacts to disk",
+                    e );
+        }
+    }
+
+    /**
+     * Closes the current file, first forcing it to disk unless the policy
+     * is never to.
+     */
+    private void closeFile()
+    {
+        if( null == out )
+        {
+            return;
+        }
+        try
+        {
+            out.flush();
+            if( syncPolicy != SyncPolicy.NONE && unsynced )
+            {
+                forceFile();
+            }
+        } catch( IOException e ) {
+            logger.log( Level.SEVERE, "Couldn't flush e-artifact file", e );
+        }
+        try
+        {
+            out.close();
+        } catch( IOException e ) {
+            logger.log( Level.SEVERE, "Couldn't close e-artifact file", e );
+        }
+        out = null;
+        file = null;
+    }
+}
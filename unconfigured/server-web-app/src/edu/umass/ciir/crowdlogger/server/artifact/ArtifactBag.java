@@ -62,9 +62,6 @@ public class ArtifactBag
     public void addSecondaryPrivateField( String secondaryPrivateField,
             long count ) throws JSONException
     {
-        logger.info( "Adding secondary private field: " + 
-                secondaryPrivateField );
-        
         secondaryPrivateFields.put( secondaryPrivateField, count );
     }
     
@@ -104,6 +101,16 @@ public class ArtifactBag
         }
     }
     
+    /**
+     * Returns the primary private field, e.g., the normalized query.
+     * 
+     * @return The primary private field.
+     */
+    public String getPrimaryField()
+    {
+        return this.primaryPrivateField;
+    }
+    
     /**
      * Returns the amount of support for this artifact, i.e., the number
      * of distinct (x,y) pairs.
@@ -0,0 +1,328 @@
+package edu.umass.ciir.crowdlogger.server.artifact;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Helpers for keeping strings as byte arrays, which is how EArtifactBag
+ * holds cipher texts and share coordinates. These are all ASCII in
+ * practice, so a string is stored one byte per character and compared and
+ * hashed against a String (or any CharSequence) without encoding it;
+ * anything else is stored as UTF-8.
+ *
+ * Strings can also be stored as fields in a larger array: a base-128 varint
+ * header and then the string. Decimal numbers, like share coordinates, are
+ * packed two characters to a byte, and the low bit of the header says
+ * whether that was done; the rest of it is the number of characters (when
+ * packed) or bytes.
+ */
+final class ByteStrings
+{
+    // The packed characters, by nibble.
+    private static final String PACKED = "0123456789.-";
+
+    private ByteStrings()
+    {
+    }
+
+    /**
+     * @return The bytes of the string: one per character if it's ASCII,
+     *      UTF-8 otherwise.
+     */
+    static byte[] encode( CharSequence s )
+    {
+        int length = s.length();
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+        {
+            char c = s.charAt( i );
+            if( c >= 0x80 )
+            {
+                return utf8( s );
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return The string the bytes at the given place encode.
+     */
+    static String decode( byte[] bytes, int offset, int length )
+    {
+        try
+        {
+            return new String( bytes, offset, length, "UTF-8" );
+        } catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return A hash of the bytes at the given place.
+     */
+    static int hash( byte[] bytes, int offset, int length )
+    {
+        int h = 0;
+        for( int i = offset; i < offset + length; i++ )
+        {
+            h = 31 * h + bytes[i];
+        }
+        return h;
+    }
+
+    /**
+     * @return The hash of the string's encoding, without encoding it if it's
+     *      ASCII.
+     */
+    static int hash( CharSequence s )
+    {
+        int h = 0;
+        int length = s.length();
+        for( int i = 0; i < length; i++ )
+        {
+            char c = s.charAt( i );
+            if( c >= 0x80 )
+            {
+                byte[] bytes = utf8( s );
+                return hash( bytes, 0, bytes.length );
+            }
+            h = 31 * h + c;
+        }
+        return h;
+    }
+
+    /**
+     * @return <code>true</code> if the bytes at the given place are the
+     *      string's encoding.
+     */
+    static boolean equals( byte[] bytes, int offset, int length,
+            CharSequence s )
+    {
+        int sLength = s.length();
+        for( int i = 0; i < sLength; i++ )
+        {
+            char c = s.charAt( i );
+            if( c >= 0x80 )
+            {
+                byte[] encoded = utf8( s );
+                if( encoded.length != length )
+                {
+                    return false;
+                }
+                for( int j = 0; j < length; j++ )
+                {
+                    if( bytes[offset + j] != encoded[j] )
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if( i >= length || bytes[offset + i] != (byte) c )
+            {
+                return false;
+            }
+        }
+        return sLength == length;
+    }
+
+    /**
+     * @return The number of bytes the string takes up as a field.
+     */
+    static int fieldSize( CharSequence s )
+    {
+        int length = s.length();
+        if( isPackable( s ) )
+        {
+            return varintSize( length << 1 | 1 ) + (length + 1) / 2;
+        }
+        int bytes = encodedLength( s );
+        return varintSize( bytes << 1 ) + bytes;
+    }
+
+    /**
+     * Writes the string as a field. There must be room for it.
+     *
+     * @return The offset just past the field.
+     */
+    static int writeField( byte[] bytes, int offset, CharSequence s )
+    {
+        int length = s.length();
+        if( isPackable( s ) )
+        {
+            offset = writeVarint( bytes, offset, length << 1 | 1 );
+            for( int i = 0; i < length; i += 2 )
+            {
+                int high = PACKED.indexOf( s.charAt( i ) );
+                int low = i + 1 < length ?
+                    PACKED.indexOf( s.charAt( i + 1 ) ) : 0xf;
+                bytes[offset++] = (byte) (high << 4 | low);
+            }
+            return offset;
+        }
+        byte[] encoded = encode( s );
+        offset = writeVarint( bytes, offset, encoded.length << 1 );
+        System.arraycopy( encoded, 0, bytes, offset, encoded.length );
+        return offset + encoded.length;
+    }
+
+    /**
+     * @return The offset just past the field at the given offset.
+     */
+    static int skipField( byte[] bytes, int offset )
+    {
+        int header = readVarint( bytes, offset );
+        int length = header >>> 1;
+        return offset + varintSize( header ) +
+            ((header & 1) == 1 ? (length + 1) / 2 : length );
+    }
+
+    /**
+     * @return The string in the field at the given offset.
+     */
+    static String readField( byte[] bytes, int offset )
+    {
+        int header = readVarint( bytes, offset );
+        int length = header >>> 1;
+        offset += varintSize( header );
+        if( (header & 1) == 0 )
+        {
+            return decode( bytes, offset, length );
+        }
+        char[] chars = new char[length];
+        for( int i = 0; i < length; i++ )
+        {
+            chars[i] = packedChar( bytes, offset, i );
+        }
+        return new String( chars );
+    }
+
+    /**
+     * @return <code>true</code> if the field at the given offset holds the
+     *      string.
+     */
+    static boolean fieldEquals( byte[] bytes, int offset,
+            CharSequence s )
+    {
+        int header = readVarint( bytes, offset );
+        int length = header >>> 1;
+        offset += varintSize( header );
+        if( (header & 1) == 0 )
+        {
+            return equals( bytes, offset, length, s );
+        }
+        if( s.length() != length )
+        {
+            return false;
+        }
+        for( int i = 0; i < length; i++ )
+        {
+            if( packedChar( bytes, offset, i ) != s.charAt( i ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The hash of the string in the field at the given offset; the
+     *      same as {@link #hash(CharSequence)} of it.
+     */
+    static int fieldHash( byte[] bytes, int offset )
+    {
+        int header = readVarint( bytes, offset );
+        int length = header >>> 1;
+        offset += varintSize( header );
+        if( (header & 1) == 0 )
+        {
+            return hash( bytes, offset, length );
+        }
+        int h = 0;
+        for( int i = 0; i < length; i++ )
+        {
+            h = 31 * h + packedChar( bytes, offset, i );
+        }
+        return h;
+    }
+
+    private static boolean isPackable( CharSequence s )
+    {
+        int length = s.length();
+        for( int i = 0; i < length; i++ )
+        {
+            if( PACKED.indexOf( s.charAt( i ) ) < 0 )
+            {
+                return false;
+            }
+        }
+        return length > 0;
+    }
+
+    private static char packedChar( byte[] bytes, int offset, int i )
+    {
+        int b = bytes[offset + i / 2];
+        return PACKED.charAt( (i & 1) == 0 ? (b >> 4) & 0xf : b & 0xf );
+    }
+
+    private static int encodedLength( CharSequence s )
+    {
+        int length = s.length();
+        for( int i = 0; i < length; i++ )
+        {
+            if( s.charAt( i ) >= 0x80 )
+            {
+                return utf8( s ).length;
+            }
+        }
+        return length;
+    }
+
+    private static int readVarint( byte[] bytes, int offset )
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = bytes[offset++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while( b < 0 );
+        return value;
+    }
+
+    private static int writeVarint( byte[] bytes, int offset, int value )
+    {
+        while( (value & ~0x7f) != 0 )
+        {
+            bytes[offset++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varintSize( int value )
+    {
+        int size = 1;
+        while( (value & ~0x7f) != 0 )
+        {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static byte[] utf8( CharSequence s )
+    {
+        try
+        {
+            return s.toString().getBytes( "UTF-8" );
+        } catch( UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -3,14 +3,23 @@ package edu.umass.ciir.crowdlogger.server.artifact;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Logger;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import edu.umass.ciir.crowdlogger.server.BasicDecryptor;
-import edu.umass.ciir.crowdlogger.server.BigDecimalLagrangeInterpolator;
+import edu.umass.ciir.crowdlogger.io.EArtifactFields;
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.SampledTrace;
+import edu.umass.ciir.crowdlogger.server.AES256Decryptor;
+import edu.umass.ciir.crowdlogger.server.KeyRecovery;
+import edu.umass.ciir.crowdlogger.server.LagrangeBasisCache;
 
 
 
@@ -20,6 +29,15 @@ import edu.umass.ciir.crowdlogger.server.BigDecimalLagrangeInterpolator;
  * job id, the primary cipher text, and a listing of each distinct secondary
  * cipher text along with a frequency count.
  * 
+ * There can be tens of millions of these, most with a single e-artifact, so
+ * they're kept compact: the shares are the x and y strings, packed two
+ * digits to a byte, one after another in a single array, and the secondary
+ * cipher texts are bytes in an open-addressing table with a parallel array
+ * of counts. The shares are only parsed into numbers when the bag is
+ * decrypted, and a share's y isn't even looked at if its x is already in
+ * the bag. Bags with more than a handful of shares get a hash index of them
+ * as well.
+ * 
  * @author hfeild
  *
  */
@@ -27,13 +45,73 @@ public class EArtifactBag
 {
     private String primaryCipherText;
     private String experimentId;
-    private HashMap<String, Long> secondaryCipherTexts;
-    private HashMap<BigDecimal, BigDecimal> points;
     private long totalInstances;
     private int k;
+    private List<BigDecimal> badShares;
+    // Whether the first e-artifact's primary cipher text, experiment id and 
+    // k have been read.
+    private boolean headerRead;
+    // Only set once the key is recovered by decryptAndCacheKey().
+    private RecoveredKey recoveredKey;
+    
+    // The shares, each as an x field and a y field (see ByteStrings); x is 
+    // in BigDecimal's plain form, so equal x's have equal bytes.
+    private byte[] shares;
+    private int sharesLength;
+    private int shareCount;
+    // Open-addressing index of share offsets (plus one, so zero is empty),
+    // made once there are more than INDEX_AFTER shares.
+    private int[] shareIndex;
+    
+    // Open-addressing table of secondary cipher texts and their counts.
+    private byte[][] secondaryCipherTexts;
+    private long[] secondaryCounts;
+    private int secondaryCount;
+    
+    private static final int INDEX_AFTER = 8;
+    
+    /**
+     * A bag's key, with its decrypted fields so they needn't be decrypted 
+     * again.
+     */
+    private static class RecoveredKey
+    {
+        final String key;
+        final String primaryPrivateField;
+        // Secondary cipher text -> private field.
+        final HashMap<String, String> secondaryPrivateFields = 
+            new HashMap<String, String>();
+        // Made when the first secondary cipher text needs decrypting.
+        AES256Decryptor decryptor;
+        
+        RecoveredKey( String key, String primaryPrivateField )
+        {
+            this.key = key;
+            this.primaryPrivateField = primaryPrivateField;
+        }
+    }
     
     private static final Logger logger = 
         Logger.getLogger(EArtifactBag.class.getName());
+    private static final SampledTrace trace = new SampledTrace( logger );
+    
+    private static final Counter decrypted = 
+        Metrics.counter( "decryption.bags.decrypted" );
+    private static final Counter unsupported = 
+        Metrics.counter( "decryption.bags.unsupported" );
+    private static final Counter failed = 
+        Metrics.counter( "decryption.bags.failed" );
+    private static final Counter keyReused = 
+        Metrics.counter( "decryption.bags.key_reused" );
+    
+    // Interpolation weights, shared by every bag with the same x values; 
+    // off unless a capacity is given.
+    private static final LagrangeBasisCache basisCache = 
+        Integer.getInteger( LagrangeBasisCache.CAPACITY_PROPERTY, 0 ) > 0 ?
+            new LagrangeBasisCache( Integer.getInteger( 
+                    LagrangeBasisCache.CAPACITY_PROPERTY ) ) : null;
+    private static final KeyRecovery keyRecovery = 
+        new KeyRecovery( basisCache );
     
     /**
      * Initializes all of the internal data structures.
@@ -42,10 +120,18 @@ public class EArtifactBag
     {
         primaryCipherText = null;
         experimentId = null;
-        secondaryCipherTexts = new HashMap<String,Long>();
-        points = new HashMap<BigDecimal, BigDecimal>();
+        headerRead = false;
+        shares = null;
+        sharesLength = 0;
+        shareCount = 0;
+        shareIndex = null;
+        secondaryCipherTexts = new byte[2][];
+        secondaryCounts = new long[2];
+        secondaryCount = 0;
         totalInstances = 0;
         k = 0;
+        badShares = Collections.emptyList();
+        recoveredKey = null;
     }
     
     /**
@@ -86,34 +172,98 @@ public class EArtifactBag
     public void addEArtifact( JSONObject eartifact ) throws JSONException
     {
         // Set the primary cipher text and job id if they haven't already.
-        if( null == primaryCipherText )
+        if( !headerRead )
         {
             primaryCipherText = eartifact.getString( "primary_cipher_text");
-            experimentId = eartifact.getString( "experiment_id" );
+            headerRead = true;
+            // There are only a few of these, so share them between bags.
+            experimentId = eartifact.getString( "experiment_id" ).intern();
             k = eartifact.getInt( "k" );
   
         }  
 
         // Add in the secondary cipher text.
-        String secondaryCipherText = 
-            eartifact.getString( "secondary_cipher_text" );
-        long currentCount = 0;
-        if( secondaryCipherTexts.containsKey( secondaryCipherText ) )
+        countSecondaryCipherText( 
+                eartifact.getString( "secondary_cipher_text" ) );
+
+        // Add in the (x,y) point, unless we have one with that x.
+        CharSequence x = plainForm( eartifact.getString( "x" ) );
+        if( findShare( x ) < 0 )
         {
-            currentCount = 
-                secondaryCipherTexts.get( secondaryCipherText );
+            addShare( x, eartifact.getString( "y" ) );
+        }
+        
+        // Increment the instance count.
+        totalInstances++;
+    }
+    
+    /**
+     * Adds the information for the given e-artifact into the current bag,
+     * as {@link #addEArtifact(JSONObject)} does, but from an e-artifact 
+     * whose fields were pulled out of its JSON. Only what the bag keeps is 
+     * copied.
+     * 
+     * @param eartifact The e-artifact's fields.
+     * @throws JSONException 
+     */
+    public void addEArtifact( EArtifactFields eartifact ) 
+        throws JSONException
+    {
+        addEArtifact( eartifact, true );
+    }
+    
+    /**
+     * Like {@link #addEArtifact(EArtifactFields)}, but for a bag whose 
+     * primary cipher text is kept by the caller (e.g., in a 
+     * CipherTextDictionary) rather than copied into the bag; it must be 
+     * given with {@link #setPrimaryCipherText(String)} before the bag is 
+     * decrypted or printed.
+     * 
+     * @param eartifact The e-artifact's fields.
+     * @throws JSONException 
+     */
+    public void addEArtifactWithoutPrimary( EArtifactFields eartifact ) 
+        throws JSONException
+    {
+        addEArtifact( eartifact, false );
+    }
+    
+    /**
+     * Gives the bag its primary cipher text, if it was left out when its
+     * e-artifacts were added.
+     * 
+     * @param primaryCipherText The primary cipher text.
+     */
+    public void setPrimaryCipherText( String primaryCipherText )
+    {
+        this.primaryCipherText = primaryCipherText;
+    }
+    
+    private void addEArtifact( EArtifactFields eartifact, 
+            boolean withPrimary ) throws JSONException
+    {
+        if( !headerRead )
+        {
+            if( withPrimary )
+            {
+                primaryCipherText = eartifact.getString( 
+                        EArtifactFields.PRIMARY_CIPHER_TEXT );
+            }
+            headerRead = true;
+            experimentId = eartifact.getString( 
+                    EArtifactFields.EXPERIMENT_ID ).intern();
+            k = eartifact.getInt( EArtifactFields.K );
         }
-        secondaryCipherTexts.put(secondaryCipherText, currentCount+1);
 
-        // Add in the (x,y) point.
-        BigDecimal x = new BigDecimal( eartifact.getString( "x" ) );
-        if( !points.containsKey( x ) )
+        countSecondaryCipherText( 
+                eartifact.get( EArtifactFields.SECONDARY_CIPHER_TEXT ) );
+
+        CharSequence x = plainForm( eartifact.get( EArtifactFields.X ) );
+        if( findShare( x ) < 0 )
         {
-            BigDecimal y = new BigDecimal( eartifact.getString( "y" ) );
-            points.put(x, y);
+            addShare( x, eartifact.get( EArtifactFields.Y ) );
         }
         
-        // Increment the instance count.
         totalInstances++;
     }
     
@@ -124,63 +274,183 @@ public class EArtifactBag
      */
     public boolean hasSufficientSupport()
     {
-        return points.size() >= k;
+        return shareCount >= k;
     }
     
     
     /**
      * Decrypts this eartifact bag if there is suffient support. The
-     * decrypted contents are returned in the form of an ArtifactBag.
+     * decrypted contents are returned in the form of an ArtifactBag. If 
+     * the key was cached by {@link #decryptAndCacheKey()}, it's used rather 
+     * than recovered again.
      * 
      * @return The ArtifactBag equivalent of this EArtrifactBag or null if
      *     there is insufficient support for decryption.
      */
     public ArtifactBag decrypt()
     {
+        return decrypt( false );
+    }
+    
+    /**
+     * Like {@link #decrypt()}, but once the key is recovered it's kept, 
+     * along with the decrypted fields, so later calls (after more 
+     * e-artifacts are added) only decrypt secondary cipher texts that 
+     * haven't been seen before.
+     * 
+     * @return The ArtifactBag equivalent of this EArtrifactBag or null if
+     *     there is insufficient support for decryption.
+     */
+    public ArtifactBag decryptAndCacheKey()
+    {
+        return decrypt( true );
+    }
+    
+    /**
+     * @return <code>true</code> if {@link #decryptAndCacheKey()} has 
+     *     recovered this bag's key.
+     */
+    public boolean isKeyCached()
+    {
+        return null != recoveredKey;
+    }
+    
+    /**
+     * Decrypts this bag, recovering its key unless it's cached.
+     * 
+     * @param cacheKey Whether to cache the key once it's recovered.
+     * 
+     * @return The ArtifactBag equivalent of this EArtrifactBag or null if
+     *     it couldn't be decrypted.
+     */
+    private ArtifactBag decrypt( boolean cacheKey )
+    {
+        if( null != recoveredKey )
+        {
+            keyReused.increment();
+            return decrypt( recoveredKey );
+        }
+        
         // Don't keep on going unless we have sufficient support.
         if( !hasSufficientSupport() )
         {
+            unsupported.increment();
             return null;
         }
         
-        ArtifactBag artifactBag = null;
+        // Parse the shares, setting aside any whose y isn't a number.
+        HashMap<BigDecimal, BigDecimal> points = 
+            new HashMap<BigDecimal, BigDecimal>();
+        List<BigDecimal> malformedShares = new ArrayList<BigDecimal>();
+        for( int offset = 0; offset < sharesLength; )
+        {
+            BigDecimal x = new BigDecimal( 
+                    ByteStrings.readField( shares, offset ) );
+            offset = ByteStrings.skipField( shares, offset );
+            try
+            {
+                points.put( x, new BigDecimal( 
+                        ByteStrings.readField( shares, offset ) ) );
+            } catch( NumberFormatException e )
+            {
+                malformedShares.add( x );
+            }
+            offset = ByteStrings.skipField( shares, offset );
+        }
         
         // Get the k -- this requires interpolating over the given points
-        // and finding the y-intercept.
-        BigDecimalLagrangeInterpolator lagrange = 
-            new BigDecimalLagrangeInterpolator( points, k );
-        String key = lagrange.evaluateAndRound( new BigDecimal(0) );
+        // and finding the y-intercept. If the key doesn't decrypt the 
+        // primary cipher text, other subsets of the points are tried.
+        KeyRecovery.Result recovery = points.size() < k ? null :
+            keyRecovery.recover( points, k, primaryCipherText );
+        badShares = malformedShares;
+        if( null != recovery )
+        {
+            badShares.addAll( recovery.getBadShares() );
+            Collections.sort( badShares );
+        }
+        if( null == recovery || !recovery.isRecovered() )
+        {
+            failed.increment();
+            return null;
+        }
+        
+        RecoveredKey recovered = new RecoveredKey( recovery.getKey(), 
+                recovery.getPrimaryPrivateField() );
+        ArtifactBag artifactBag = decrypt( recovered );
+        if( cacheKey && null != artifactBag )
+        {
+            recoveredKey = recovered;
+        }
+        return artifactBag;
+    }
+    
+    /**
+     * Puts together the ArtifactBag from the recovered key, decrypting 
+     * any secondary cipher texts it doesn't have the private field of.
+     * 
+     * @return The ArtifactBag; if a secondary cipher text couldn't be 
+     *     decrypted, it has only the ones before it.
+     */
+    private ArtifactBag decrypt( RecoveredKey recovered )
+    {
+        ArtifactBag artifactBag = null;
+        boolean traced = trace.isSampled();
         
-        // Decrypt the primary cipher text and create a new ArtifactBag
-        // object to contain all of the decrypted information.
+        // Create a new ArtifactBag object to contain all of the decrypted 
+        // information.
         try
         {
-            String primaryPrivateField = BasicDecryptor.decryptAES256(
-                    key, primaryCipherText );
+            String primaryPrivateField = recovered.primaryPrivateField;
             
-            logger.info( "Decrypted 1st field: [" + primaryCipherText + 
-                    "] -> [" + primaryPrivateField + "]" );
+            if( traced )
+            {
+                trace.trace( "Decrypted 1st field: [" + primaryCipherText + 
+                        "] -> [" + primaryPrivateField + "]" );
+            }
             
             artifactBag = new ArtifactBag( primaryPrivateField,
-                    experimentId, points.size(), totalInstances );
+                    experimentId, shareCount, totalInstances );
             
             // Go through each of the secondary cipher texts and
             // add them to the artifact bag.
-            for( String secondaryCipherText : secondaryCipherTexts.keySet())
+            for( int i = 0; i < secondaryCipherTexts.length; i++ )
             {
-                String secondaryPrivateField = 
-                    BasicDecryptor.decryptAES256(
-                            key, secondaryCipherText );
+                if( null == secondaryCipherTexts[i] )
+                {
+                    continue;
+                }
+                String secondaryCipherText = ByteStrings.decode( 
+                        secondaryCipherTexts[i], 0, 
+                        secondaryCipherTexts[i].length );
+                String secondaryPrivateField = recovered.
+                    secondaryPrivateFields.get( secondaryCipherText );
+                if( null == secondaryPrivateField )
+                {
+                    if( null == recovered.decryptor )
+                    {
+                        recovered.decryptor = 
+                            new AES256Decryptor( recovered.key );
+                    }
+                    secondaryPrivateField = 
+                        recovered.decryptor.decrypt( secondaryCipherText );
+                    recovered.secondaryPrivateFields.put( 
+                            secondaryCipherText, secondaryPrivateField );
+                }
                 
                 
-                logger.info( "Decrypted 2nd field: [" + secondaryCipherText + 
-                        "] -> [" + secondaryPrivateField + "]" );
+                if( traced )
+                {
+                    trace.trace( "Decrypted 2nd field: [" + 
+                            secondaryCipherText + "] -> [" + 
+                            secondaryPrivateField + "]" );
+                }
                 
                 
                 try
                 {
                     artifactBag.addSecondaryPrivateField(secondaryPrivateField, 
-                            secondaryCipherTexts.get(secondaryCipherText) );
+                            secondaryCounts[i] );
                     
                 } catch (JSONException e)
                 {
@@ -189,12 +459,16 @@ public class EArtifactBag
                 }
             }
             
+            decrypted.increment();
+            
         } catch (IOException e)
         {
+            failed.increment();
             // TODO Auto-generated catch block
             e.printStackTrace();
         } catch (GeneralSecurityException e)
         {
+            failed.increment();
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
@@ -203,6 +477,65 @@ public class EArtifactBag
     }
     
     
+    /**
+     * Describes the contents of this bag -- the primary cipher text, job id,
+     * k, the (x,y) points and the secondary cipher text counts -- as a JSON
+     * string. This is written out for bags that couldn't be decrypted, so
+     * they can be looked into later.
+     * 
+     * @return A JSON string describing this bag.
+     */
+    public String toString2()
+    {
+        try
+        {
+            JSONObject json = new JSONObject();
+            json.put( "primary_cipher_text", primaryCipherText );
+            json.put( "experiment_id", experimentId );
+            json.put( "k", k );
+            json.put( "total_instances", totalInstances );
+            
+            JSONObject pointsJson = new JSONObject();
+            for( int offset = 0; offset < sharesLength; )
+            {
+                String x = ByteStrings.readField( shares, offset );
+                offset = ByteStrings.skipField( shares, offset );
+                pointsJson.put( x, ByteStrings.readField( shares, offset ) );
+                offset = ByteStrings.skipField( shares, offset );
+            }
+            json.put( "points", pointsJson );
+            
+            JSONObject secondaryJson = new JSONObject();
+            for( int i = 0; i < secondaryCipherTexts.length; i++ )
+            {
+                if( null != secondaryCipherTexts[i] )
+                {
+                    secondaryJson.put( ByteStrings.decode( 
+                            secondaryCipherTexts[i], 0, 
+                            secondaryCipherTexts[i].length ), 
+                            secondaryCounts[i] );
+                }
+            }
+            json.put( "secondary_cipher_texts", secondaryJson );
+            if( !badShares.isEmpty() )
+            {
+                JSONArray badJson = new JSONArray();
+                for( BigDecimal x : badShares )
+                {
+                    badJson.put( x.toPlainString() );
+                }
+                json.put( "bad_shares", badJson );
+            }
+            
+            return json.toString();
+        } catch (JSONException e)
+        {
+            logger.severe( "Couldn't describe e-artifact bag: " + e );
+            return null;
+        }
+    }
+    
+    
     /**
      * Returns the amount of support for this artifact, i.e., the number
      * of distinct (x,y) pairs.
@@ -211,7 +544,20 @@ public class EArtifactBag
      */
     public long getAmountOfSupport()
     {
-        return this.points.size();
+        return this.shareCount;
+    }
+    
+    /**
+     * Returns the x values of the shares that kept the key from being 
+     * recovered from the first k points, as found by the last call to
+     * {@link #decrypt()}.
+     * 
+     * @return The x values of the bad shares; empty if there were none or
+     *     if the first k points were fine.
+     */
+    public List<BigDecimal> getBadShares()
+    {
+        return this.badShares;
     }
     
     /**
@@ -224,4 +570,223 @@ public class EArtifactBag
     {
         return this.totalInstances;
     }
-}
\ No newline at end of file
+    
+    /**
+     * Adds one to the count of a secondary cipher text, adding it if it's 
+     * new.
+     * 
+     * @param secondaryCipherText The secondary cipher text.
+     */
+    private void countSecondaryCipherText( 
+            CharSequence secondaryCipherText )
+    {
+        int mask = secondaryCipherTexts.length - 1;
+        int i = ByteStrings.hash( secondaryCipherText ) & mask;
+        while( null != secondaryCipherTexts[i] )
+        {
+            byte[] existing = secondaryCipherTexts[i];
+            if( ByteStrings.equals( existing, 0, existing.length, 
+                    secondaryCipherText ) )
+            {
+                secondaryCounts[i]++;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        
+        // Keep the table at most half full.
+        if( 2 * (secondaryCount + 1) > secondaryCipherTexts.length )
+        {
+            byte[][] oldTexts = secondaryCipherTexts;
+            long[] oldCounts = secondaryCounts;
+            secondaryCipherTexts = new byte[2 * oldTexts.length][];
+            secondaryCounts = new long[2 * oldTexts.length];
+            mask = secondaryCipherTexts.length - 1;
+            for( int j = 0; j < oldTexts.length; j++ )
+            {
+                if( null != oldTexts[j] )
+                {
+                    int slot = ByteStrings.hash( 
+                            oldTexts[j], 0, oldTexts[j].length ) & mask;
+                    while( null != secondaryCipherTexts[slot] )
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    secondaryCipherTexts[slot] = oldTexts[j];
+                    secondaryCounts[slot] = oldCounts[j];
+                }
+            }
+            i = ByteStrings.hash( secondaryCipherText ) & mask;
+            while( null != secondaryCipherTexts[i] )
+            {
+                i = (i + 1) & mask;
+            }
+        }
+        secondaryCipherTexts[i] = ByteStrings.encode( secondaryCipherText );
+        secondaryCounts[i] = 1;
+        secondaryCount++;
+    }
+    
+    /**
+     * Finds a share by its x.
+     * 
+     * @param x The x, in plain form.
+     * 
+     * @return The offset of the share, or -1 if there isn't one.
+     */
+    private int findShare( CharSequence x )
+    {
+        if( null != shareIndex )
+        {
+            int mask = shareIndex.length - 1;
+            for( int i = ByteStrings.hash( x ) & mask; 0 != shareIndex[i]; 
+                    i = (i + 1) & mask )
+            {
+                int offset = shareIndex[i] - 1;
+                if( ByteStrings.fieldEquals( shares, offset, x ) )
+                {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+        
+        for( int offset = 0; offset < sharesLength; )
+        {
+            if( ByteStrings.fieldEquals( shares, offset, x ) )
+            {
+                return offset;
+            }
+            offset = ByteStrings.skipField( shares, 
+                    ByteStrings.skipField( shares, offset ) );
+        }
+        return -1;
+    }
+    
+    /**
+     * Appends a share.
+     * 
+     * @param x The x, in plain form.
+     * @param y The y, as given.
+     */
+    private void addShare( CharSequence x, CharSequence y )
+    {
+        int needed = sharesLength + ByteStrings.fieldSize( x ) + 
+            ByteStrings.fieldSize( y );
+        
+        // Most bags only ever get one share, so start with an exact fit.
+        if( null == shares || needed > shares.length )
+        {
+            byte[] grown = new byte[null == shares ? needed :
+                Math.max( needed, shares.length + shares.length / 2 )];
+            if( null != shares )
+            {
+                System.arraycopy( shares, 0, grown, 0, sharesLength );
+            }
+            shares = grown;
+        }
+        
+        int offset = sharesLength;
+        sharesLength = ByteStrings.writeField( shares, 
+                ByteStrings.writeField( shares, offset, x ), y );
+        shareCount++;
+        
+        if( shareCount > INDEX_AFTER )
+        {
+            if( null == shareIndex || 2 * shareCount > shareIndex.length )
+            {
+                indexShares();
+            }
+            else
+            {
+                indexShare( offset );
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the share index, big enough to stay at most half full until 
+     * the number of shares doubles.
+     */
+    private void indexShares()
+    {
+        int size = 1;
+        while( size < 4 * shareCount )
+        {
+            size <<= 1;
+        }
+        shareIndex = new int[size];
+        for( int offset = 0; offset < sharesLength; )
+        {
+            indexShare( offset );
+            offset = ByteStrings.skipField( shares, 
+                    ByteStrings.skipField( shares, offset ) );
+        }
+    }
+    
+    /**
+     * Adds the share at the given offset to the index.
+     */
+    private void indexShare( int offset )
+    {
+        int mask = shareIndex.length - 1;
+        int slot = ByteStrings.fieldHash( shares, offset ) & mask;
+        while( 0 != shareIndex[slot] )
+        {
+            slot = (slot + 1) & mask;
+        }
+        shareIndex[slot] = offset + 1;
+    }
+    
+    /**
+     * Puts an x in BigDecimal's plain form, so that x's that make equal 
+     * BigDecimals have the same bytes. Plain decimals, which are what the 
+     * extension sends, are already in that form and are returned as is.
+     * 
+     * @param x The x, as given.
+     * 
+     * @return The x in plain form.
+     * 
+     * @throws NumberFormatException If x isn't a number.
+     */
+    private static CharSequence plainForm( CharSequence x )
+    {
+        int length = x.length();
+        int i = 0;
+        boolean negative = length > 0 && x.charAt( 0 ) == '-';
+        if( negative )
+        {
+            i++;
+        }
+        
+        // The whole part: 0, or digits without a leading 0.
+        int wholeStart = i;
+        boolean nonZero = false;
+        while( i < length && x.charAt( i ) >= '0' && x.charAt( i ) <= '9' )
+        {
+            nonZero |= x.charAt( i ) != '0';
+            i++;
+        }
+        boolean plain = i > wholeStart && 
+            (x.charAt( wholeStart ) != '0' || i == wholeStart + 1);
+        
+        // The fraction: a point and at least one digit.
+        if( plain && i < length )
+        {
+            plain = x.charAt( i++ ) == '.' && i < length;
+            while( plain && i < length )
+            {
+                char c = x.charAt( i++ );
+                plain = c >= '0' && c <= '9';
+                nonZero |= c != '0';
+            }
+        }
+        
+        // BigDecimal has no negative zero.
+        if( plain && (!negative || nonZero) )
+        {
+            return x;
+        }
+        return new BigDecimal( x.toString() ).toPlainString();
+    }
+}
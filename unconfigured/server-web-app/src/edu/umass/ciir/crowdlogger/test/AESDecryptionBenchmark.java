@@ -0,0 +1,166 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.ssl.OpenSSL;
+
+import edu.umass.ciir.crowdlogger.server.AES256Decryptor;
+import edu.umass.ciir.crowdlogger.server.BasicDecryptor;
+
+/**
+ * Measures the cost of decrypting a bag's fields, which all share a key,
+ * three ways: with OpenSSL.decrypt, as the decryptor used to (deriving the
+ * key and IV and making a Cipher for every field); with
+ * BasicDecryptor.decryptAES256, which now makes an AES256Decryptor per
+ * field; and with one AES256Decryptor for all of them, as EArtifactBag
+ * does. The fields are made with {@link EArtifactGenerator} with the
+ * extension's salt, and include ones ending in new lines, non-ASCII text
+ * and base 64 broken over lines.
+ *
+ * Every field is checked to decrypt to the same text each way, and a wrong
+ * key to fail (or not) the same way, since KeyRecovery relies on that to
+ * reject keys. Exits with status 1 if anything differs.
+ */
+public class AESDecryptionBenchmark
+{
+    /**
+     * Decrypts the way BasicDecryptor did before AES256Decryptor.
+     */
+    private static String openSSL( String key, String cipherText )
+        throws Exception
+    {
+        return new String( OpenSSL.decrypt( "aes-256-cbc", key.toCharArray(),
+                cipherText.getBytes() ) ).replaceAll( "\n$", "" );
+    }
+
+    /**
+     * @return The clear text, or "!failed".
+     */
+    private static String attempt( int method, AES256Decryptor decryptor,
+            String key, String cipherText )
+    {
+        try
+        {
+            return method == 0 ? openSSL( key, cipherText ) :
+                method == 1 ? BasicDecryptor.decryptAES256( key, cipherText ) :
+                decryptor.decrypt( cipherText );
+        } catch( Exception e ) {
+            return "!failed";
+        }
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int fields = 20000;
+        int wrongKeys = 2000;
+        int runs = 3;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "AESDecryptionBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--fields=X Decrypt X fields\n\t" +
+            "--wrongKeys=X Check X wrong keys\n\t" +
+            "--runs=X Time each method X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        fields = options.getInt( "fields", fields );
+        wrongKeys = options.getInt( "wrongKeys", wrongKeys );
+        runs = options.getInt( "runs", runs );
+
+        Random random = new Random( 7 );
+        String key = EArtifactGenerator.password( "benchmark query",
+                "benchmark" ).toString();
+        List<String> cipherTexts = new ArrayList<String>();
+        for( int i = 0; i < fields; i++ )
+        {
+            String clearText = "http://example.com/result/" +
+                random.nextInt( 100000 );
+            if( i % 10 == 1 )
+            {
+                clearText += "\n";
+            }
+            else if( i % 10 == 2 )
+            {
+                clearText = "caf\u00e9 r\u00e9sum\u00e9 " + i;
+            }
+            String cipherText = EArtifactGenerator.encryptAES256( key,
+                    clearText, EArtifactGenerator.SALT );
+            if( i % 10 == 3 )
+            {
+                // As openssl -a writes it.
+                cipherText = cipherText.replaceAll( "(.{64})", "$1\n" );
+            }
+            cipherTexts.add( cipherText );
+        }
+
+        // Check the results match.
+        boolean same = true;
+        AES256Decryptor decryptor = new AES256Decryptor( key );
+        for( String cipherText : cipherTexts )
+        {
+            String expected = attempt( 0, null, key, cipherText );
+            same &= !expected.equals( "!failed" ) &&
+                expected.equals( attempt( 1, null, key, cipherText ) ) &&
+                expected.equals( attempt( 2, decryptor, key, cipherText ) );
+        }
+        int rejected = 0;
+        for( int i = 0; i < wrongKeys; i++ )
+        {
+            String wrongKey = key.substring( 0, key.length() - 6 ) +
+                (100000 + random.nextInt( 900000 ));
+            String cipherText = cipherTexts.get( i % cipherTexts.size() );
+            String expected = attempt( 0, null, wrongKey, cipherText );
+            // KeyRecovery also rejects keys that don't decrypt to text.
+            if( expected.equals( "!failed" ) ||
+                    expected.indexOf( '\uFFFD' ) >= 0 )
+            {
+                rejected++;
+            }
+            same &= expected.equals( attempt( 1, null, wrongKey,
+                    cipherText ) ) && expected.equals( attempt( 2,
+                    new AES256Decryptor( wrongKey ), wrongKey, cipherText ) );
+        }
+        // A failure mustn't leave the decryptor unusable.
+        same &= attempt( 2, decryptor, key, "U2FsdGVkX1+jXjLsCWRRxgAAAAAA" +
+                "AAAAAAAAAAAAAAA=" ).equals( "!failed" ) && attempt( 2,
+                decryptor, key, cipherTexts.get( 0 ) ).equals( attempt( 0,
+                null, key, cipherTexts.get( 0 ) ) );
+
+        System.out.println( fields + " fields, " + rejected + " of " +
+                wrongKeys + " wrong keys rejected" );
+        String[] names = { "OpenSSL.decrypt", "decryptAES256",
+            "AES256Decryptor" };
+        double baseline = 0;
+        System.out.println( "method              us/field  speedup" );
+        for( int method = 0; method < names.length; method++ )
+        {
+            double best = Double.MAX_VALUE;
+            // The first run warms up.
+            for( int r = 0; r <= runs; r++ )
+            {
+                decryptor = new AES256Decryptor( key );
+                long start = System.nanoTime();
+                for( String cipherText : cipherTexts )
+                {
+                    attempt( method, decryptor, key, cipherText );
+                }
+                if( r > 0 )
+                {
+                    best = Math.min( best,
+                            (System.nanoTime() - start) / 1e3 / fields );
+                }
+            }
+            if( method == 0 )
+            {
+                baseline = best;
+            }
+            System.out.println( String.format( "%-16s %11.2f %8.2f",
+                    names[method], best, baseline / best ) );
+        }
+
+        System.out.println( same ? "Results match" : "Results DIFFER" );
+        System.exit( same ? 0 : 1 );
+    }
+}
@@ -0,0 +1,181 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.metrics.Timer;
+import edu.umass.ciir.crowdlogger.server.EArtifactDecryptor;
+
+/**
+ * Measures how many bags per second EArtifactDecryptor decrypts with
+ * different numbers of threads, and the speedup over one thread. The input
+ * is made with {@link EArtifactGenerator}: bags with between 1 and
+ * maxSupport e-artifacts, most of them with enough to decrypt. Bags are
+ * written in the same order whatever the number of threads, so each run's
+ * output file and printed totals are checked to be identical to the
+ * single-threaded run's.
+ *
+ * Both the whole run and the decryption stage alone (reading the input is
+ * still done on one thread) are timed.
+ */
+public class BagDecryptionBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * Hashes a file, followed by some extra text.
+     */
+    private static String digest( File file, String extra ) throws Exception
+    {
+        MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[65536];
+            int read;
+            while( (read = in.read( buffer )) > 0 )
+            {
+                md5.update( buffer, 0, read );
+            }
+        } finally {
+            in.close();
+        }
+        md5.update( extra.getBytes( "UTF-8" ) );
+
+        StringBuilder hex = new StringBuilder();
+        for( byte b : md5.digest() )
+        {
+            hex.append( String.format( "%02x", b ) );
+        }
+        return hex.toString();
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int bags = 2000;
+        int maxSupport = 20;
+        int k = 3;
+        int runs = 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = { 1, 2, 4, Math.max( 8, 2 * cores ) };
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "BagDecryptionBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--bags=X Generate X bags\n\t" +
+            "--maxSupport=X Give bags up to X e-artifacts\n\t" +
+            "--k=X Generate e-artifacts that need X shares\n\t" +
+            "--threads=X,Y,... Run with X, Y, ... decryption threads\n\t" +
+            "--runs=X Time each thread count X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        bags = options.getInt( "bags", bags );
+        maxSupport = options.getInt( "maxSupport", maxSupport );
+        k = options.getInt( "k", k );
+        threads = options.getInts( "threads", threads );
+        runs = options.getInt( "runs", runs );
+
+        logger.setLevel( Level.WARNING );
+
+        System.out.println( "Generating " + bags + " bags..." );
+        Random random = new Random( 5 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 5 );
+        File input = File.createTempFile( "bag-decryption-benchmark", ".in" );
+        input.deleteOnExit();
+        FileWriter out = new FileWriter( input );
+        try
+        {
+            for( int b = 0; b < bags; b++ )
+            {
+                String[] secondaries =
+                    new String[1 + random.nextInt( maxSupport )];
+                for( int i = 0; i < secondaries.length; i++ )
+                {
+                    secondaries[i] = "secondary " + random.nextInt( 4 );
+                }
+                for( JSONObject eartifact : generator.eartifacts(
+                        "benchmark", "primary " + b, secondaries, k ) )
+                {
+                    out.write( eartifact.toString() );
+                    out.write( "\n" );
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        String[] inputs = { input.getPath() };
+        File output = File.createTempFile( "bag-decryption-benchmark",
+                ".out" );
+        output.deleteOnExit();
+        Timer stage = Metrics.timer( "decryption.bags.stage.micros" );
+        PrintStream stdout = System.out;
+
+        System.out.println( cores + " core(s) available" );
+        System.out.println( "threads     bags/sec  speedup  stage bags/sec" +
+                "  speedup  output" );
+        String expected = null;
+        double baseline = 0;
+        double stageBaseline = 0;
+        for( int t = -1; t < threads.length; t++ )
+        {
+            // The first round warms up with one thread.
+            int runThreads = t < 0 ? 1 : threads[t];
+            double best = 0;
+            double stageBest = 0;
+            String outputDigest = null;
+            for( int r = 0; r < runs; r++ )
+            {
+                EArtifactDecryptor decryptor = new EArtifactDecryptor();
+                decryptor.setThreads( runThreads );
+
+                ByteArrayOutputStream printed = new ByteArrayOutputStream();
+                System.setOut( new PrintStream( printed ) );
+                double stageBefore = stage.getMean() * stage.getCount();
+                long start = System.nanoTime();
+                try
+                {
+                    decryptor.decrptEArtifactFile( inputs, output.getPath() );
+                } finally {
+                    System.setOut( stdout );
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                double stageSeconds = (stage.getMean() * stage.getCount() -
+                        stageBefore) / 1e6;
+
+                best = Math.max( best, bags / seconds );
+                stageBest = Math.max( stageBest, bags / stageSeconds );
+                outputDigest = digest( output, printed.toString() );
+            }
+
+            if( t < 0 )
+            {
+                expected = outputDigest;
+                continue;
+            }
+            if( t == 0 )
+            {
+                baseline = best;
+                stageBaseline = stageBest;
+            }
+            System.out.println( String.format(
+                    "%7d %12.0f %8.2f %15.0f %8.2f  %s", runThreads, best,
+                    best / baseline, stageBest, stageBest / stageBaseline,
+                    outputDigest.equals( expected ) ? "same" : "DIFFERENT" ) );
+        }
+
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,247 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.ExactLagrangeInterpolator;
+import edu.umass.ciir.crowdlogger.server.LagrangeBasisCache;
+
+/**
+ * Replays an e-artifacts file, recovering the key of every bag with enough
+ * support, once without a LagrangeBasisCache and once with one, and reports
+ * the time per bag, the speedup and the cache's hit rate. The keys from the
+ * two passes are checked to be the same.
+ *
+ * Without an input file, one is made with {@link EArtifactGenerator}: a
+ * population of users, each with a pass phrase, sends primaries whose
+ * popularity falls off as 1/rank, and each user's x is the one the extension
+ * would give them. Bags are grouped the way EArtifactBag groups them, so the
+ * first k points in the map's iteration order are the ones interpolated.
+ *
+ * The extension hashes the primary data into each x, so the same set of x
+ * values seldom comes up twice and the cache mostly misses; with
+ * <code>--perUserX</code>, users keep one x across primaries instead, which
+ * shows what the cache does when sets of x values do repeat.
+ */
+public class BasisCacheBenchmark
+{
+    /**
+     * Recovers the key of each bag, returning the keys in bag order.
+     */
+    private static List<String> recover(
+            List<HashMap<BigDecimal, BigDecimal>> bags, List<Integer> ks,
+            LagrangeBasisCache cache )
+    {
+        List<String> keys = new ArrayList<String>( bags.size() );
+        for( int i = 0; i < bags.size(); i++ )
+        {
+            ExactLagrangeInterpolator lagrange = new ExactLagrangeInterpolator(
+                    bags.get( i ), ks.get( i ), cache );
+            keys.add( lagrange.evaluateAndRound( BigDecimal.ZERO ) );
+        }
+        return keys;
+    }
+
+    /**
+     * Writes a file of e-artifacts like the one the decryptor would make.
+     */
+    private static void generate( File file, int primaries, int maxSupport,
+            int users, int k, int n, boolean perUserX ) throws Exception
+    {
+        Random random = new Random( 7 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 7 );
+        String[] passphrases = new String[users];
+        for( int i = 0; i < users; i++ )
+        {
+            passphrases[i] = "user " + i + " " + random.nextLong();
+        }
+
+        FileWriter out = new FileWriter( file );
+        try
+        {
+            for( int rank = 1; rank <= primaries; rank++ )
+            {
+                int support = Math.max( 1, maxSupport / rank );
+                String[] secondaries = new String[support];
+                String[] senders = new String[support];
+                for( int i = 0; i < support; i++ )
+                {
+                    secondaries[i] = "clicked " + random.nextInt( 10 );
+                    senders[i] = passphrases[random.nextInt( users )];
+                }
+                List<JSONObject> eartifacts = perUserX ?
+                    generator.eartifacts( "replay", "query " + rank,
+                            secondaries, senders, k, n, "" ) :
+                    generator.eartifacts( "replay", "query " + rank,
+                            secondaries, senders, k, n );
+                for( JSONObject eartifact : eartifacts )
+                {
+                    out.write( eartifact.toString() );
+                    out.write( "\n" );
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        String eartifactsFile = null;
+        int primaries = 2000;
+        int maxSupport = 1000;
+        int users = 5000;
+        int k = 3;
+        int n = 10;
+        int rounds = 5;
+        int capacity = LagrangeBasisCache.DEFAULT_CAPACITY;
+        boolean perUserX = false;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "BasisCacheBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--eartifacts=X Replay the e-artifacts in file X instead of " +
+                "generating them\n\t" +
+            "--primaries=X Generate X distinct primaries\n\t" +
+            "--maxSupport=X Give the most popular primary X e-artifacts\n\t" +
+            "--users=X Generate e-artifacts from X users\n\t" +
+            "--k=X Generate e-artifacts that need X shares\n\t" +
+            "--n=X Generate x values the way an experiment with n=X " +
+                "would\n\t" +
+            "--perUserX Give each user the same x for every primary, as " +
+                "compute_user_share does without a secret\n\t" +
+            "--capacity=X Keep weights for X sets of x values\n\t" +
+            "--rounds=X Replay X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        eartifactsFile = options.getString( "eartifacts", eartifactsFile );
+        primaries = options.getInt( "primaries", primaries );
+        maxSupport = options.getInt( "maxSupport", maxSupport );
+        users = options.getInt( "users", users );
+        k = options.getInt( "k", k );
+        n = options.getInt( "n", n );
+        perUserX = options.has( "perUserX" );
+        capacity = options.getInt( "capacity", capacity );
+        rounds = options.getInt( "rounds", rounds );
+
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        File input;
+        if( null == eartifactsFile )
+        {
+            input = File.createTempFile( "basis-cache-benchmark",
+                    ".eartifacts" );
+            input.deleteOnExit();
+            System.out.println( "Generating e-artifacts for " + primaries +
+                    " primaries from " + users + " users (k=" + k + ", n=" +
+                    n + ")..." );
+            generate( input, primaries, maxSupport, users, k, n, perUserX );
+        }
+        else
+        {
+            input = new File( eartifactsFile );
+        }
+
+        // Group the points the way EArtifactBag does.
+        LinkedHashMap<String, HashMap<BigDecimal, BigDecimal>> points =
+            new LinkedHashMap<String, HashMap<BigDecimal, BigDecimal>>();
+        HashMap<String, Integer> bagKs = new HashMap<String, Integer>();
+        long lines = 0;
+        BufferedReader reader = new BufferedReader( new FileReader( input ) );
+        try
+        {
+            String line;
+            while( null != (line = reader.readLine()) )
+            {
+                JSONObject eartifact = new JSONObject( line );
+                String primary = eartifact.getString( "primary_cipher_text" );
+                HashMap<BigDecimal, BigDecimal> bag = points.get( primary );
+                if( null == bag )
+                {
+                    bag = new HashMap<BigDecimal, BigDecimal>();
+                    points.put( primary, bag );
+                    bagKs.put( primary, eartifact.getInt( "k" ) );
+                }
+                BigDecimal x = new BigDecimal( eartifact.getString( "x" ) );
+                if( !bag.containsKey( x ) )
+                {
+                    bag.put( x, new BigDecimal( eartifact.getString( "y" ) ) );
+                }
+                lines++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        List<HashMap<BigDecimal, BigDecimal>> bags =
+            new ArrayList<HashMap<BigDecimal, BigDecimal>>();
+        List<Integer> ks = new ArrayList<Integer>();
+        for( String primary : points.keySet() )
+        {
+            HashMap<BigDecimal, BigDecimal> bag = points.get( primary );
+            int bagK = bagKs.get( primary );
+            if( bag.size() >= bagK )
+            {
+                bags.add( bag );
+                ks.add( bagK );
+            }
+        }
+        System.out.println( lines + " e-artifacts, " + points.size() +
+                " bags, " + bags.size() + " with enough support" );
+
+        // Warm up.
+        List<String> expected = recover( bags, ks, null );
+        recover( bags, ks, new LagrangeBasisCache( capacity ) );
+
+        Counter hits = Metrics.counter( "decryption.basis_cache.hits" );
+        Counter misses = Metrics.counter( "decryption.basis_cache.misses" );
+        long hitsBefore = hits.getCount();
+        long missesBefore = misses.getCount();
+
+        double uncached = Double.MAX_VALUE;
+        double cached = Double.MAX_VALUE;
+        boolean same = true;
+        for( int r = 0; r < rounds; r++ )
+        {
+            long start = System.nanoTime();
+            recover( bags, ks, null );
+            uncached = Math.min( uncached, System.nanoTime() - start );
+
+            // A fresh cache each time, as a decryptor run starts with.
+            LagrangeBasisCache cache = new LagrangeBasisCache( capacity );
+            start = System.nanoTime();
+            List<String> keys = recover( bags, ks, cache );
+            cached = Math.min( cached, System.nanoTime() - start );
+            same &= keys.equals( expected );
+        }
+
+        long lookups = hits.getCount() - hitsBefore +
+            misses.getCount() - missesBefore;
+        double hitRate = lookups == 0 ? 0 :
+            (double) (hits.getCount() - hitsBefore) / lookups;
+
+        System.out.println( "Microseconds per bag" );
+        System.out.println( "     uncached       cached  speedup  hit rate  keys" );
+        System.out.println( String.format( "%13.1f %12.1f %8.2f %8.1f%%  %s",
+                uncached / 1000 / bags.size(), cached / 1000 / bags.size(),
+                uncached / cached, 100 * hitRate,
+                same ? "same" : "DIFFERENT" ) );
+
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,135 @@
+package edu.umass.ciir.crowdlogger.test;
+
+/**
+ * The command line options of the benchmarks and tests in this package:
+ * <code>--help</code>, flags like <code>--name</code>, and values like
+ * <code>--name=X</code> or, for lists, <code>--name=X,Y,...</code>. If an
+ * option is given more than once, the last one counts; anything that isn't
+ * asked for is ignored.
+ */
+public class BenchmarkOptions
+{
+    private final String[] args;
+
+    /**
+     * Reads the options, printing the usage and exiting if
+     * <code>--help</code> is among them.
+     *
+     * @param usage The usage message.
+     * @param args The command line arguments.
+     */
+    public BenchmarkOptions( String usage, String[] args )
+    {
+        this.args = args;
+        if( has( "help" ) )
+        {
+            System.out.println( usage );
+            System.exit( 0 );
+        }
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     *
+     * @return Whether <code>--name</code> was given.
+     */
+    public boolean has( String name )
+    {
+        for( String arg : args )
+        {
+            if( arg.equals( "--" + name ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     * @param defaultValue What to return if it wasn't given.
+     *
+     * @return The X of <code>--name=X</code>.
+     */
+    public String getString( String name, String defaultValue )
+    {
+        String prefix = "--" + name + "=";
+        String value = defaultValue;
+        for( String arg : args )
+        {
+            if( arg.startsWith( prefix ) )
+            {
+                value = arg.substring( prefix.length() );
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     * @param defaultValue What to return if it wasn't given.
+     *
+     * @return The X of <code>--name=X</code>.
+     */
+    public int getInt( String name, int defaultValue )
+    {
+        String value = getString( name, null );
+        return null == value ? defaultValue : Integer.parseInt( value );
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     * @param defaultValue What to return if it wasn't given.
+     *
+     * @return The X of <code>--name=X</code>.
+     */
+    public long getLong( String name, long defaultValue )
+    {
+        String value = getString( name, null );
+        return null == value ? defaultValue : Long.parseLong( value );
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     * @param defaultValue What to return if it wasn't given.
+     *
+     * @return The X, Y, ... of <code>--name=X,Y,...</code>.
+     */
+    public int[] getInts( String name, int[] defaultValue )
+    {
+        String value = getString( name, null );
+        if( null == value )
+        {
+            return defaultValue;
+        }
+        String[] parts = value.split( "," );
+        int[] values = new int[parts.length];
+        for( int i = 0; i < parts.length; i++ )
+        {
+            values[i] = Integer.parseInt( parts[i] );
+        }
+        return values;
+    }
+
+    /**
+     * @param name The option's name, without the dashes.
+     * @param defaultValue What to return if it wasn't given.
+     *
+     * @return The X, Y, ... of <code>--name=X,Y,...</code>.
+     */
+    public long[] getLongs( String name, long[] defaultValue )
+    {
+        String value = getString( name, null );
+        if( null == value )
+        {
+            return defaultValue;
+        }
+        String[] parts = value.split( "," );
+        long[] values = new long[parts.length];
+        for( int i = 0; i < parts.length; i++ )
+        {
+            values[i] = Long.parseLong( parts[i] );
+        }
+        return values;
+    }
+}
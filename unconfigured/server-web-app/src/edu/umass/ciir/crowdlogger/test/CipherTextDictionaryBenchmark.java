@@ -0,0 +1,302 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.CipherTextDictionary;
+
+/**
+ * Compares keeping bags by primary cipher text in a HashMap keyed by
+ * Strings, as EArtifactDecryptor did, with giving each primary cipher text
+ * an id from a {@link CipherTextDictionary} and keeping the bags in an
+ * array: the heap and direct memory taken up at a number of distinct keys
+ * (10 million by default), the garbage collection while they're added, and
+ * how fast they're added and looked up again. The bags themselves are left
+ * out (every key maps to the same object), since they're the same either
+ * way.
+ *
+ * The keys look like primary cipher texts (base 64 of "Salted__", a salt and
+ * one or two blocks) and are made from their number as they're needed, so
+ * the benchmark doesn't hold them itself. At 10 million keys the HashMap
+ * needs a bigger heap than the default; run with e.g. -Xmx4g.
+ *
+ * Before measuring, the dictionary is checked: ids are dense and in order,
+ * added keys come back the same and unknown ones aren't found, keys whose
+ * hashes collide (with a hash that keeps only a few bits) still get their
+ * own ids, clearing starts the ids over, and keys that aren't ASCII or are
+ * bigger than a slab are kept. The ids at full size are checked too. Exits
+ * with status 1 if anything's wrong.
+ */
+public class CipherTextDictionaryBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    private static final char[] BASE64 = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ" +
+        "abcdefghijklmnopqrstuvwxyz0123456789+/").toCharArray();
+
+    /**
+     * A dictionary whose hashes collide a lot.
+     */
+    private static class CollidingDictionary extends CipherTextDictionary
+    {
+        protected long hash( byte[] bytes, int length )
+        {
+            return super.hash( bytes, length ) & 0xf;
+        }
+    }
+
+    /**
+     * Writes key number i into the buffer: "U2FsdGVkX1" (base 64 of
+     * "Salted__") and then 22 or 54 more characters that depend on i.
+     *
+     * @return The buffer, with its limit at the end of the key.
+     */
+    private static CharBuffer key( long i, CharBuffer key )
+    {
+        char[] chars = key.array();
+        String header = "U2FsdGVkX1";
+        header.getChars( 0, header.length(), chars, 0 );
+        int length = (i & 3) == 0 ? 64 : 44;
+        long state = i;
+        for( int c = header.length(); c < length - 1; c++ )
+        {
+            if( (c - header.length()) % 10 == 0 )
+            {
+                // splitmix64
+                state += 0x9e3779b97f4a7c15L;
+                long z = state;
+                z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+                z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+                z ^= z >>> 31;
+                for( int j = 0; j < 10 && c + j < length - 1; j++ )
+                {
+                    chars[c + j] = BASE64[(int) (z >>> (6 * j)) & 0x3f];
+                }
+            }
+        }
+        chars[length - 1] = '=';
+        key.clear();
+        key.limit( length );
+        return key;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for( int i = 0; i < 5; i++ )
+        {
+            System.gc();
+            used = Math.min( used, runtime.totalMemory() -
+                    runtime.freeMemory() );
+        }
+        return used;
+    }
+
+    private static long directMemory()
+    {
+        for( BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(
+                BufferPoolMXBean.class ) )
+        {
+            if( pool.getName().equals( "direct" ) )
+            {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The number of collections and the milliseconds spent in them
+     *      so far.
+     */
+    private static long[] collections()
+    {
+        long[] totals = new long[2];
+        for( GarbageCollectorMXBean collector :
+                ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            totals[0] += collector.getCollectionCount();
+            totals[1] += collector.getCollectionTime();
+        }
+        return totals;
+    }
+
+    /**
+     * @return Whether the dictionary does what it says, on a few thousand
+     *      keys.
+     */
+    private static boolean check() throws Exception
+    {
+        boolean ok = true;
+        CharBuffer key = CharBuffer.allocate( 64 );
+        CipherTextDictionary[] dictionaries = { new CipherTextDictionary(),
+            new CollidingDictionary() };
+        Counter collisions = Metrics.counter( "dictionary.hash_collisions" );
+        long before = collisions.getCount();
+        for( CipherTextDictionary dictionary : dictionaries )
+        {
+            for( int round = 0; round < 2; round++ )
+            {
+                for( int i = 0; i < 5000; i++ )
+                {
+                    ok &= dictionary.add( key( i, key ) ) == i;
+                    ok &= dictionary.add( key( i / 2, key ) ) == i / 2;
+                }
+                ok &= dictionary.size() == 5000;
+                for( int i = 0; i < 5000; i++ )
+                {
+                    ok &= dictionary.find( key( i, key ) ) == i;
+                    ok &= dictionary.get( i ).equals( key( i, key )
+                            .toString() );
+                    ok &= dictionary.find( key( 5000 + i, key ) ) == -1;
+                }
+                ok &= dictionary.size() == 5000;
+                dictionary.clear();
+                ok &= dictionary.size() == 0 &&
+                    dictionary.find( key( 0, key ) ) == -1;
+            }
+        }
+        ok &= collisions.getCount() > before;
+
+        // Keys that aren't ASCII, and one bigger than a slab.
+        System.setProperty( CipherTextDictionary.SLAB_PROPERTY, "1" );
+        CipherTextDictionary dictionary = new CipherTextDictionary();
+        System.clearProperty( CipherTextDictionary.SLAB_PROPERTY );
+        StringBuilder big = new StringBuilder();
+        while( big.length() < 3 << 20 )
+        {
+            big.append( "0123456789abcdef" );
+        }
+        String[] odd = { "caf\u00e9", "", "\u20ac100", big.toString(),
+            "cafe", "U2FsdGVkX1+after" };
+        for( int i = 0; i < odd.length; i++ )
+        {
+            ok &= dictionary.add( odd[i] ) == i;
+        }
+        for( int i = 0; i < odd.length; i++ )
+        {
+            ok &= dictionary.find( odd[i] ) == i &&
+                dictionary.get( i ).equals( odd[i] );
+        }
+        return ok;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int keys = 10000000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "CipherTextDictionaryBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--keys=X Add X distinct keys\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        keys = options.getInt( "keys", keys );
+        logger.setLevel( Level.WARNING );
+
+        boolean ok = check();
+        System.out.println( "Checks: " + (ok ? "passed" : "FAILED") );
+
+        Object bag = new Object();
+        CharBuffer key = CharBuffer.allocate( 64 );
+        String[] names = { "HashMap<String>", "dictionary" };
+        System.out.println( String.format( "%,d keys, %d MB max heap", keys,
+                Runtime.getRuntime().maxMemory() >> 20 ) );
+        System.out.println( "method           heap B/key  direct B/key  " +
+            "GCs   GC ms    adds/s  lookups/s" );
+        for( int method = 0; method < 2; method++ )
+        {
+            long heap = usedHeap();
+            long direct = directMemory();
+            long[] gcs = collections();
+
+            HashMap<String, Object> map = null;
+            CipherTextDictionary dictionary = null;
+            Object[] bags = null;
+            long start = System.nanoTime();
+            if( method == 0 )
+            {
+                map = new HashMap<String, Object>();
+                for( int i = 0; i < keys; i++ )
+                {
+                    // The String is kept as the key, as the old map did.
+                    String primary = key( i, key ).toString();
+                    if( null == map.get( primary ) )
+                    {
+                        map.put( primary, bag );
+                    }
+                }
+                ok &= map.size() == keys;
+            }
+            else
+            {
+                dictionary = new CipherTextDictionary();
+                bags = new Object[1024];
+                for( int i = 0; i < keys; i++ )
+                {
+                    int id = dictionary.add( key( i, key ) );
+                    if( id == bags.length )
+                    {
+                        Object[] grown = new Object[bags.length * 2];
+                        System.arraycopy( bags, 0, grown, 0, bags.length );
+                        bags = grown;
+                    }
+                    bags[id] = bag;
+                    ok &= id == i;
+                }
+            }
+            double addSeconds = (System.nanoTime() - start) / 1e9;
+            long[] gcsAfter = collections();
+
+            // Look up every key again, as each of its e-artifacts would.
+            start = System.nanoTime();
+            for( int i = 0; i < keys; i++ )
+            {
+                if( method == 0 )
+                {
+                    ok &= map.get( key( i, key ).toString() ) == bag;
+                }
+                else
+                {
+                    ok &= bags[dictionary.add( key( i, key ) )] == bag;
+                }
+            }
+            double lookupSeconds = (System.nanoTime() - start) / 1e9;
+
+            long heapUsed = usedHeap() - heap;
+            long directUsed = directMemory() - direct;
+            // Used after measuring, so they're still there to measure.
+            if( method == 0 )
+            {
+                ok &= map.size() == keys;
+            }
+            else
+            {
+                ok &= dictionary.size() == keys && bags[keys - 1] == bag &&
+                    dictionary.getBytesAllocated() == directUsed;
+            }
+            System.out.println( String.format(
+                    "%-16s %11.1f %13.1f %5d %7d %9.0f %10.0f",
+                    names[method], (double) heapUsed / keys,
+                    (double) directUsed / keys, gcsAfter[0] - gcs[0],
+                    gcsAfter[1] - gcs[1], keys / addSeconds,
+                    keys / lookupSeconds ) );
+            map = null;
+            dictionary = null;
+            bags = null;
+        }
+
+        System.out.println( ok ? "Results match" : "Results DIFFER" );
+        System.exit( ok ? 0 : 1 );
+    }
+}
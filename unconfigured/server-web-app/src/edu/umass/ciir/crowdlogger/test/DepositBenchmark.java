@@ -0,0 +1,189 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.umass.ciir.crowdlogger.anonymizer.ShardedBuffer;
+
+/**
+ * Measures how deposit throughput into the anonymizer's e-artifact buffer
+ * scales with the number of concurrent producers. For each producer count
+ * (1, 2, 4, ..., 64) the old synchronized list and the sharded buffer are
+ * each filled for a fixed amount of time while a flusher thread drains them
+ * once per flush interval, just like the depot's timer does.
+ */
+public class DepositBenchmark
+{
+    /**
+     * The two buffers being compared, behind one interface.
+     */
+    private interface Buffer
+    {
+        void add( String eartifact );
+        int drain();
+    }
+
+    private static class SynchronizedListBuffer implements Buffer
+    {
+        private final List<String> list =
+            Collections.synchronizedList( new ArrayList<String>() );
+
+        public void add( String eartifact )
+        {
+            list.add( eartifact );
+        }
+
+        public int drain()
+        {
+            List<String> copy = new ArrayList<String>();
+            synchronized( list )
+            {
+                for( String eartifact : list )
+                {
+                    copy.add( eartifact );
+                }
+                list.clear();
+            }
+            return copy.size();
+        }
+    }
+
+    private static class ShardedBufferAdapter implements Buffer
+    {
+        private final ShardedBuffer<String> buffer =
+            new ShardedBuffer<String>();
+
+        public void add( String eartifact )
+        {
+            buffer.add( eartifact );
+        }
+
+        public int drain()
+        {
+            return buffer.drain().size();
+        }
+    }
+
+    /**
+     * Runs one trial.
+     *
+     * @param buffer The buffer to fill.
+     * @param producers The number of producer threads.
+     * @param millis How long to run for.
+     * @param flushMillis How often to drain the buffer.
+     *
+     * @return Deposits per second.
+     */
+    private static double runTrial( final Buffer buffer, int producers,
+            long millis, final long flushMillis ) throws InterruptedException
+    {
+        final AtomicBoolean running = new AtomicBoolean( true );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final long[] counts = new long[producers];
+        final String eartifact = "{\"rsa_protected_key\":\"xxxxxxxxxxxxxxxx\"," +
+            "\"encrypted_data\":\"yyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyy\"}";
+
+        Thread[] threads = new Thread[producers];
+        for( int i = 0; i < producers; i++ )
+        {
+            final int id = i;
+            threads[i] = new Thread( new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    } catch( InterruptedException e )
+                    {
+                        return;
+                    }
+                    long count = 0;
+                    while( running.get() )
+                    {
+                        buffer.add( eartifact );
+                        count++;
+                    }
+                    counts[id] = count;
+                }
+            });
+            threads[i].start();
+        }
+
+        Thread flusher = new Thread( new Runnable() {
+            public void run()
+            {
+                while( running.get() )
+                {
+                    try
+                    {
+                        Thread.sleep( flushMillis );
+                    } catch( InterruptedException e )
+                    {
+                        return;
+                    }
+                    buffer.drain();
+                }
+            }
+        });
+        flusher.start();
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep( millis );
+        running.set( false );
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        flusher.interrupt();
+        flusher.join();
+        buffer.drain();
+
+        long total = 0;
+        for( long count : counts )
+        {
+            total += count;
+        }
+        return total / (elapsed / 1e9);
+    }
+
+    public static void main( String[] args ) throws InterruptedException
+    {
+        long millis = 2000;
+        long flushMillis = 1000;
+        int maxProducers = 64;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "DepositBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--millis=X Run each trial for X milliseconds\n\t" +
+            "--flushMillis=X Drain the buffer every X milliseconds\n\t" +
+            "--maxProducers=X Go up to X producer threads\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        millis = options.getLong( "millis", millis );
+        flushMillis = options.getLong( "flushMillis", flushMillis );
+        maxProducers = options.getInt( "maxProducers", maxProducers );
+
+        // Warm up both implementations before measuring anything.
+        runTrial( new SynchronizedListBuffer(), 4, millis, flushMillis );
+        runTrial( new ShardedBufferAdapter(), 4, millis, flushMillis );
+
+        System.out.println( String.format( "%-10s %20s %20s %8s",
+                "producers", "synchronized (ops/s)", "sharded (ops/s)",
+                "ratio" ) );
+        for( int producers = 1; producers <= maxProducers; producers *= 2 )
+        {
+            double synced = runTrial( new SynchronizedListBuffer(),
+                    producers, millis, flushMillis );
+            double sharded = runTrial( new ShardedBufferAdapter(),
+                    producers, millis, flushMillis );
+            System.out.println( String.format( "%-10d %20.0f %20.0f %8.2f",
+                    producers, synced, sharded, sharded / synced ) );
+        }
+    }
+}
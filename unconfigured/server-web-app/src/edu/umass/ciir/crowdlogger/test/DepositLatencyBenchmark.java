@@ -0,0 +1,242 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import edu.umass.ciir.crowdlogger.anonymizer.EEArtifactDepot;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+
+/**
+ * Measures the latency of deposits into the depot while its buffer holds a
+ * given number of e-artifacts (10,000 and 100,000 by default). The depot's
+ * doPost is called directly with stand-in request and response objects; the
+ * depot is never initialized, so nothing is flushed and the buffer keeps
+ * growing.
+ *
+ * For comparison, the old response, which echoed the whole buffer back by
+ * string concatenation, is replayed on top of each deposit for a few samples
+ * at the smaller sizes (it is far too slow to run at 100,000).
+ */
+public class DepositLatencyBenchmark
+{
+    private static final String EARTIFACT =
+        "{\"rsa_protected_key\":\"0123456789abcdef0123456789abcdef\"," +
+        "\"encrypted_data\":\"U2FsdGVkX1+0123456789abcdef0123456789\"}";
+
+    /**
+     * Stands in for the servlet container's request: a POSTed form.
+     */
+    private static HttpServletRequest request( final byte[] body )
+    {
+        final ByteArrayInputStream in = new ByteArrayInputStream( body );
+        final ServletInputStream stream = new ServletInputStream() {
+            public int read()
+            {
+                return in.read();
+            }
+
+            public int read( byte[] b, int off, int len )
+            {
+                return in.read( b, off, len );
+            }
+        };
+
+        return (HttpServletRequest) Proxy.newProxyInstance(
+            HttpServletRequest.class.getClassLoader(),
+            new Class<?>[]{ HttpServletRequest.class },
+            new InvocationHandler() {
+                public Object invoke( Object proxy, Method method,
+                        Object[] args )
+                {
+                    String name = method.getName();
+                    if( name.equals( "getMethod" ) )
+                    {
+                        return "POST";
+                    }
+                    if( name.equals( "getContentType" ) )
+                    {
+                        return "application/x-www-form-urlencoded";
+                    }
+                    if( name.equals( "getInputStream" ) )
+                    {
+                        return stream;
+                    }
+                    if( name.equals( "getContentLength" ) )
+                    {
+                        return body.length;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Stands in for the servlet container's response, throwing away
+     * whatever is written to it.
+     */
+    private static HttpServletResponse response()
+    {
+        final OutputStream sink = new ByteArrayOutputStream();
+        final PrintWriter writer = new PrintWriter( sink );
+        final ServletOutputStream stream = new ServletOutputStream() {
+            public void write( int b ) throws IOException
+            {
+                sink.write( b );
+            }
+        };
+
+        return (HttpServletResponse) Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(),
+            new Class<?>[]{ HttpServletResponse.class },
+            new InvocationHandler() {
+                public Object invoke( Object proxy, Method method,
+                        Object[] args )
+                {
+                    String name = method.getName();
+                    if( name.equals( "getWriter" ) )
+                    {
+                        return writer;
+                    }
+                    if( name.equals( "getOutputStream" ) )
+                    {
+                        return stream;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Encodes a form holding the given number of e-artifacts.
+     */
+    private static byte[] form( int eartifacts ) throws IOException
+    {
+        StringBuilder bundle = new StringBuilder();
+        for( int i = 0; i < eartifacts; i++ )
+        {
+            bundle.append( EARTIFACT ).append( '\n' );
+        }
+        return ( "eartifacts=" + URLEncoder.encode( bundle.toString(),
+                    "UTF-8" ) ).getBytes( "US-ASCII" );
+    }
+
+    /**
+     * What the depot used to send back on every deposit.
+     */
+    private static String echo( List<String> buffer )
+    {
+        String ret = "";
+        Iterator<String> i = buffer.iterator();
+        while( i.hasNext() )
+        {
+            ret += i.next() + "<br>";
+        }
+        return ret;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int[] sizes = { 10000, 100000 };
+        int deposits = 2000;
+        int bundleSize = 10;
+        int echoSamples = 5;
+        int maxEchoSize = 10000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "DepositLatencyBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--sizes=X,Y,... Measure with X, Y, ... e-artifacts buffered\n\t" +
+            "--deposits=X Time X deposits at each size\n\t" +
+            "--bundleSize=X Put X e-artifacts in each deposit\n\t" +
+            "--echoSamples=X Time X deposits with the old echo\n\t" +
+            "--maxEchoSize=X Skip the old echo above X e-artifacts\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        sizes = options.getInts( "sizes", sizes );
+        deposits = options.getInt( "deposits", deposits );
+        bundleSize = options.getInt( "bundleSize", bundleSize );
+        echoSamples = options.getInt( "echoSamples", echoSamples );
+        maxEchoSize = options.getInt( "maxEchoSize", maxEchoSize );
+
+        EEArtifactDepot depot = new EEArtifactDepot();
+        byte[] deposit = form( bundleSize );
+
+        // Mirrors the depot's buffer for replaying the old echo.
+        List<String> mirror = new ArrayList<String>();
+        int buffered = 0;
+
+        System.out.println( "Depositing bundles of " + bundleSize +
+                " e-artifacts (latencies in microseconds)" );
+
+        for( int s = 0; s < sizes.length; s++ )
+        {
+            // Fill the buffer up to the next size.
+            int fill = sizes[s] - buffered;
+            if( fill > 0 )
+            {
+                depot.doPost( request( form( fill ) ), response() );
+                for( int i = 0; i < fill; i++ )
+                {
+                    mirror.add( EARTIFACT );
+                }
+                buffered += fill;
+            }
+
+            // Warm up, then time.
+            for( int i = 0; i < 100; i++ )
+            {
+                depot.doPost( request( deposit ), response() );
+            }
+            buffered += 100 * bundleSize;
+
+            Histogram ack = new Histogram();
+            for( int i = 0; i < deposits; i++ )
+            {
+                long start = System.nanoTime();
+                depot.doPost( request( deposit ), response() );
+                ack.record( (System.nanoTime() - start) / 1000 );
+            }
+            buffered += deposits * bundleSize;
+
+            System.out.println( String.format(
+                    "%8d buffered, ack:  p50 %8d  p99 %8d  max %8d",
+                    sizes[s], ack.getPercentile( 50 ),
+                    ack.getPercentile( 99 ), ack.getMax() ) );
+
+            if( sizes[s] <= maxEchoSize && echoSamples > 0 )
+            {
+                Histogram echo = new Histogram();
+                for( int i = 0; i < echoSamples; i++ )
+                {
+                    long start = System.nanoTime();
+                    depot.doPost( request( deposit ), response() );
+                    echo( mirror ).length();
+                    echo.record( (System.nanoTime() - start) / 1000 );
+                }
+                buffered += echoSamples * bundleSize;
+
+                System.out.println( String.format(
+                        "%8d buffered, echo: p50 %8d  p99 %8d  max %8d",
+                        sizes[s], echo.getPercentile( 50 ),
+                        echo.getPercentile( 99 ), echo.getMax() ) );
+            }
+        }
+
+        System.exit( 0 );
+    }
+}
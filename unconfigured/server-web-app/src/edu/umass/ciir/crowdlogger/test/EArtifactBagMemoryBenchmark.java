@@ -0,0 +1,245 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.server.artifact.EArtifactBag;
+
+/**
+ * Reports the heap taken per EArtifactBag at a range of support levels,
+ * next to the maps of BigDecimals and Strings that bags used to be made of.
+ * The e-artifacts have the shape of real ones (base 64 cipher texts, x's
+ * with two decimal places, y's of eighty-odd digits), with some x's sent
+ * twice and a few secondary cipher texts per bag. Each bag's support and
+ * points are also checked against the old layout's.
+ *
+ * Run with a heap big enough for the largest set, e.g., -Xmx2g.
+ */
+public class EArtifactBagMemoryBenchmark
+{
+    // Held here, rather than in locals, so they stay reachable between heap
+    // measurements.
+    private static MapBag[] mapBags;
+    private static EArtifactBag[] compactBags;
+    private static String[] primaries;
+
+    /**
+     * A bag the way EArtifactBag used to keep one.
+     */
+    private static class MapBag
+    {
+        String primaryCipherText;
+        String experimentId;
+        HashMap<String, Long> secondaryCipherTexts =
+            new HashMap<String, Long>();
+        HashMap<BigDecimal, BigDecimal> points =
+            new HashMap<BigDecimal, BigDecimal>();
+        long totalInstances;
+        int k;
+
+        void addEArtifact( JSONObject eartifact ) throws Exception
+        {
+            if( null == primaryCipherText )
+            {
+                primaryCipherText = eartifact.getString( "primary_cipher_text" );
+                experimentId = eartifact.getString( "experiment_id" );
+                k = eartifact.getInt( "k" );
+            }
+            String secondary = eartifact.getString( "secondary_cipher_text" );
+            Long count = secondaryCipherTexts.get( secondary );
+            secondaryCipherTexts.put( secondary,
+                    null == count ? 1 : count + 1 );
+            BigDecimal x = new BigDecimal( eartifact.getString( "x" ) );
+            if( !points.containsKey( x ) )
+            {
+                points.put( x, new BigDecimal( eartifact.getString( "y" ) ) );
+            }
+            totalInstances++;
+        }
+    }
+
+    private static String base64( Random random, int length )
+    {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz" +
+            "0123456789+/";
+        StringBuilder text = new StringBuilder( "U2FsdGVkX1" );
+        while( text.length() < length )
+        {
+            text.append( alphabet.charAt( random.nextInt( 64 ) ) );
+        }
+        return text.toString();
+    }
+
+    /**
+     * Makes the e-artifacts of one bag.
+     */
+    private static JSONObject[] eartifacts( Random random, int support )
+        throws Exception
+    {
+        String primary = base64( random, 64 );
+        String[] secondaries = new String[1 + support / 3];
+        for( int i = 0; i < secondaries.length; i++ )
+        {
+            secondaries[i] = base64( random, 44 + 24 * random.nextInt( 3 ) );
+        }
+
+        JSONObject[] eartifacts = new JSONObject[support];
+        String x = null;
+        String y = null;
+        for( int i = 0; i < support; i++ )
+        {
+            // One in ten users sends the same x as the last.
+            if( null == x || random.nextInt( 10 ) != 0 )
+            {
+                x = new BigDecimal( BigInteger.valueOf(
+                        100 + random.nextInt( 100000 ) ), 2 ).toPlainString();
+                y = new BigDecimal( new BigInteger( 270, random ), 4 ).
+                    toPlainString();
+            }
+            JSONObject eartifact = new JSONObject();
+            eartifact.put( "x", x );
+            eartifact.put( "y", y );
+            eartifact.put( "k", 3 );
+            eartifact.put( "primary_cipher_text", primary );
+            eartifact.put( "secondary_cipher_text",
+                    secondaries[random.nextInt( secondaries.length )] );
+            eartifact.put( "experiment_id", "experiment-" + 7 );
+            eartifacts[i] = eartifact;
+        }
+        return eartifacts;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for( int i = 0; i < 5; i++ )
+        {
+            System.gc();
+            used = Math.min( used, runtime.totalMemory() -
+                    runtime.freeMemory() );
+        }
+        return used;
+    }
+
+    /**
+     * @return Whether the compact bag holds what the map bag does.
+     */
+    @SuppressWarnings( "unchecked" )
+    private static boolean same( EArtifactBag bag, MapBag mapBag )
+        throws Exception
+    {
+        if( bag.getAmountOfSupport() != mapBag.points.size() ||
+                bag.getNumberOfInstances() != mapBag.totalInstances )
+        {
+            return false;
+        }
+
+        JSONObject description = new JSONObject( bag.toString2() );
+        JSONObject points = description.getJSONObject( "points" );
+        JSONObject secondaries =
+            description.getJSONObject( "secondary_cipher_texts" );
+        if( points.length() != mapBag.points.size() || secondaries.length() !=
+                mapBag.secondaryCipherTexts.size() )
+        {
+            return false;
+        }
+        for( Iterator<String> xs = points.keys(); xs.hasNext(); )
+        {
+            String x = xs.next();
+            if( !new BigDecimal( points.getString( x ) ).equals(
+                    mapBag.points.get( new BigDecimal( x ) ) ) )
+            {
+                return false;
+            }
+        }
+        for( String secondary : mapBag.secondaryCipherTexts.keySet() )
+        {
+            if( secondaries.getLong( secondary ) !=
+                    mapBag.secondaryCipherTexts.get( secondary ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int[] supports = { 1, 2, 3, 5, 10, 50, 200, 1000 };
+        int eartifactsPerLevel = 500000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EArtifactBagMemoryBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--supports=X,Y,... Measure bags with X, Y, ... e-artifacts\n\t" +
+            "--eartifacts=X Put about X e-artifacts in the bags at each " +
+                "support level\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        supports = options.getInts( "supports", supports );
+        eartifactsPerLevel = options.getInt( "eartifacts", eartifactsPerLevel );
+
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        boolean allSame = true;
+        System.out.println( "Bytes per bag, by e-artifacts per bag" );
+        System.out.println( "  support     bags       maps    compact  ratio" );
+        for( int support : supports )
+        {
+            int bags = Math.max( 100, eartifactsPerLevel / support );
+            Random random = new Random( support );
+
+            mapBags = new MapBag[bags];
+            compactBags = new EArtifactBag[bags];
+            for( int b = 0; b < bags; b++ )
+            {
+                mapBags[b] = new MapBag();
+                compactBags[b] = new EArtifactBag();
+                for( JSONObject eartifact : eartifacts( random, support ) )
+                {
+                    mapBags[b].addEArtifact( eartifact );
+                    compactBags[b].addEArtifact( eartifact );
+                }
+            }
+
+            // Primary cipher texts are shared by both kinds, and with the
+            // decryptor's map of bags, so they're left out of both.
+            long both = usedHeap();
+            for( int b = 0; b < bags; b++ )
+            {
+                if( b % 97 == 0 )
+                {
+                    allSame &= same( compactBags[b], mapBags[b] );
+                }
+            }
+            primaries = new String[bags];
+            for( int b = 0; b < bags; b++ )
+            {
+                primaries[b] = mapBags[b].primaryCipherText;
+            }
+            mapBags = null;
+            long compactOnly = usedHeap();
+            compactBags = null;
+            long primariesOnly = usedHeap();
+
+            double maps = (double) (both - compactOnly) / bags;
+            double compact = (double) (compactOnly - primariesOnly) / bags;
+            System.out.println( String.format( "%9d %8d %10.0f %10.0f %6.2f",
+                    support, bags, maps, compact, maps / compact ) );
+            primaries = null;
+        }
+
+        System.out.println( allSame ? "Bags match the old layout" :
+            "Bags DIFFER from the old layout" );
+        System.exit( allSame ? 0 : 1 );
+    }
+}
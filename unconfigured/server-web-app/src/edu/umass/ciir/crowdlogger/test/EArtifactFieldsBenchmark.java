@@ -0,0 +1,397 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.io.EArtifactFields;
+import edu.umass.ciir.crowdlogger.server.artifact.EArtifactBag;
+
+/**
+ * Compares reading the fields of e-artifacts and ee-artifacts with a
+ * JSONObject per record, as EArtifactBag and EEArtifactDecryptor did, and
+ * with {@link EArtifactFields}, from Strings and from slices of UTF-8 (as
+ * MappedLineReader hands out lines): records per second, and bytes
+ * allocated per record, from the JVM's count of what the thread allocated.
+ * Each method is run once to warm up and then timed several times; the
+ * best run is kept. The records come from {@link EArtifactGenerator}.
+ *
+ * Before timing, EArtifactFields is checked against JSONObject on a list of
+ * awkward records (spacing, escapes, numbers, missing, repeated and nested
+ * fields, lenient syntax, text that isn't JSON): every field, k as an int,
+ * and the exceptions, from both Strings and slices. Bags are also filled
+ * both ways and compared. Exits with status 1 if anything differs.
+ */
+public class EArtifactFieldsBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    private static final String[] NAMES = { "rsa_protected_key",
+        "encrypted_data", "primary_cipher_text", "secondary_cipher_text",
+        "experiment_id", "k", "x", "y" };
+
+    private static final int[] EARTIFACT_FIELDS = {
+        EArtifactFields.PRIMARY_CIPHER_TEXT,
+        EArtifactFields.SECONDARY_CIPHER_TEXT, EArtifactFields.EXPERIMENT_ID,
+        EArtifactFields.K, EArtifactFields.X, EArtifactFields.Y };
+
+    private static final int[] EEARTIFACT_FIELDS = {
+        EArtifactFields.RSA_PROTECTED_KEY, EArtifactFields.ENCRYPTED_DATA };
+
+    /**
+     * @return Records that take every path through EArtifactFields.
+     */
+    private static List<String> awkward( String eartifact )
+    {
+        String body = eartifact.substring( 1, eartifact.length() - 1 );
+        List<String> lines = new ArrayList<String>();
+        lines.add( eartifact );
+        lines.add( "{ " + body.replace( ":", " : " ).replace( ",", " ,\t" ) +
+                " }" );
+        lines.add( eartifact + " trailing" );
+        lines.add( "{\"version\":2,\"note\":null,\"ok\":true," + body + "}" );
+        lines.add( "{\"more\":{\"x\":1}," + body + "}" );
+        lines.add( "{\"list\":[1,2]," + body + "}" );
+        lines.add( "{\"extra\":1,\"extra\":2," + body + "}" );
+        lines.add( "{\"extra\":1,\"extrA\":2," + body + "}" );
+        lines.add( "{" + body + ",\"y\":\"7\"}" );
+        lines.add( "{\"k\":\"3\"," + body.replaceAll( "\"k\":[^,]*,?", "" ) +
+                "}" );
+        for( String k : new String[] { "03", "-3", "3.0", "3e0", "+3",
+                "12345678901", "2147483648", "0", "1234567890", "true" } )
+        {
+            lines.add( "{\"k\":" + k + "," +
+                    body.replaceAll( "\"k\":[^,]*,?", "" ) + "}" );
+        }
+        lines.add( "{\"x\":0.5," + body.replaceAll( "\"x\":\"[^\"]*\",?", "" )
+                + "}" );
+        lines.add( "{" + body.replaceAll( ",?\"y\":\"[^\"]*\"", "" ) + "}" );
+        lines.add( "{" + body.replace( "\"x\"", "\"\\u0078\"" ) + "}" );
+        lines.add( "{\"e\\u0078tra\":1," + body + "}" );
+        lines.add( "{" + body.replace( "/", "\\/" ).replace( "+", "\\u002b" )
+                + "}" );
+        lines.add( "{\"experiment_id\":\"caf\u00e9 \\\"\\t\\n\\\\\"," +
+                body.replaceAll( "\"experiment_id\":\"[^\"]*\",?", "" ) +
+                "}" );
+        lines.add( "{\"note\":\"r\u00e9sum\u00e9\"," + body + "}" );
+        lines.add( "{" + body.replace( '"', '\'' ) + "}" );
+        lines.add( "{" + body.replace( ",", ";" ) + "}" );
+        lines.add( "{" + body.replace( "\":", "\"=>" ) + "}" );
+        lines.add( "{" + body.replace( "\"k\"", "k" ) + "}" );
+        lines.add( "{\"bad\":\"\\q\"," + body + "}" );
+        lines.add( "{\"bad\":\"\\u00zz\"," + body + "}" );
+        lines.add( "{\"bad\":\"a\nb\"," + body + "}" );
+        lines.add( "{\"bad\":\"\u0000\"," + body + "}" );
+        lines.add( "{\"" + body );
+        lines.add( "{" + body + "," );
+        lines.add( "{" + body + ",}" );
+        lines.add( "{" + body + "]" );
+        lines.add( "/* c */ {" + body + "}" );
+        lines.add( "{}" );
+        lines.add( "" );
+        lines.add( "not json" );
+        lines.add( "{\"rsa_protected_key\":\"a\",\"encrypted_data\":\"b\"}" );
+        return lines;
+    }
+
+    /**
+     * @return What JSONObject makes of a record: the exception, or each
+     *      field (or why it couldn't be had) and k as an int.
+     */
+    private static String viaJSONObject( String line )
+    {
+        JSONObject record;
+        try
+        {
+            record = new JSONObject( line );
+        } catch( Exception e ) {
+            return e.toString();
+        }
+        StringBuilder fields = new StringBuilder();
+        for( String name : NAMES )
+        {
+            try
+            {
+                fields.append( record.getString( name ) );
+            } catch( JSONException e ) {
+                fields.append( e.getMessage() );
+            }
+            fields.append( '|' );
+        }
+        try
+        {
+            fields.append( record.getInt( "k" ) );
+        } catch( JSONException e ) {
+            fields.append( e.getMessage() );
+        }
+        return fields.toString();
+    }
+
+    /**
+     * @return What EArtifactFields makes of a record, as
+     *      {@link #viaJSONObject(String)} puts it.
+     */
+    private static String viaFields( EArtifactFields fields, String line,
+            boolean slice ) throws Exception
+    {
+        try
+        {
+            if( slice )
+            {
+                // Not at the start of its buffer, as lines usually aren't.
+                byte[] bytes = ("\n" + line + "\n").getBytes( "UTF-8" );
+                ByteBuffer buffer = ByteBuffer.wrap( bytes, 1,
+                        bytes.length - 2 );
+                fields.parse( buffer );
+                if( buffer.position() != 1 )
+                {
+                    return "moved the slice";
+                }
+            }
+            else
+            {
+                fields.parse( line );
+            }
+        } catch( Exception e ) {
+            return e.toString();
+        }
+        StringBuilder values = new StringBuilder();
+        for( int field = 0; field < NAMES.length; field++ )
+        {
+            try
+            {
+                values.append( fields.get( field ) );
+            } catch( JSONException e ) {
+                values.append( e.getMessage() );
+            }
+            values.append( '|' );
+        }
+        try
+        {
+            values.append( fields.getInt( EArtifactFields.K ) );
+        } catch( JSONException e ) {
+            values.append( e.getMessage() );
+        }
+        return values.toString();
+    }
+
+    /**
+     * Fills bags both ways.
+     *
+     * @return Whether they came out the same.
+     */
+    private static boolean sameBags( List<String> lines ) throws Exception
+    {
+        EArtifactBag viaJSON = new EArtifactBag();
+        EArtifactBag viaFields = new EArtifactBag();
+        EArtifactFields fields = new EArtifactFields();
+        for( String line : lines )
+        {
+            viaJSON.addEArtifact( new JSONObject( line ) );
+            fields.parse( line );
+            viaFields.addEArtifact( fields );
+        }
+        return viaJSON.toString2().equals( viaFields.toString2() ) &&
+            viaJSON.getNumberOfInstances() == viaFields.getNumberOfInstances();
+    }
+
+    /**
+     * Reads the fields of every record one way.
+     *
+     * @return The total length of the fields, so nothing's optimized away.
+     */
+    private static long read( int method, List<String> lines,
+            ByteBuffer bytes, int[] ends, int[] wanted ) throws Exception
+    {
+        long length = 0;
+        EArtifactFields fields = new EArtifactFields();
+        if( method == 0 )
+        {
+            for( String line : lines )
+            {
+                JSONObject record = new JSONObject( line );
+                for( int field : wanted )
+                {
+                    length += record.getString( NAMES[field] ).length();
+                }
+            }
+        }
+        else if( method == 1 )
+        {
+            for( String line : lines )
+            {
+                fields.parse( line );
+                for( int field : wanted )
+                {
+                    length += fields.get( field ).length();
+                }
+            }
+        }
+        else
+        {
+            ByteBuffer slice = bytes.duplicate();
+            int start = 0;
+            for( int end : ends )
+            {
+                slice.limit( end );
+                slice.position( start );
+                fields.parse( slice );
+                for( int field : wanted )
+                {
+                    length += fields.get( field ).length();
+                }
+                start = end + 1;
+            }
+        }
+        return length;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int records = 200000;
+        int runs = 5;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EArtifactFieldsBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--records=X Read X records of each kind per run\n\t" +
+            "--runs=X Time each method X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        records = options.getInt( "records", records );
+        runs = options.getInt( "runs", runs );
+        logger.setLevel( Level.WARNING );
+
+        EArtifactGenerator generator = new EArtifactGenerator( 1024, 23 );
+        List<String> eartifacts = new ArrayList<String>();
+        List<String> eeartifacts = new ArrayList<String>();
+        List<String> bag = new ArrayList<String>();
+        for( int i = 0; eartifacts.size() < 2000; i++ )
+        {
+            List<JSONObject> made = generator.eartifacts( "exp-" + i % 3,
+                    "query " + i, new String[] { "http://a.com/", "b", "c" },
+                    2 );
+            for( JSONObject eartifact : made )
+            {
+                eartifacts.add( eartifact.toString() );
+                if( eeartifacts.size() < 200 )
+                {
+                    eeartifacts.add( generator.eeartifact( eartifact ) );
+                }
+            }
+            if( i == 0 )
+            {
+                for( JSONObject eartifact : made )
+                {
+                    bag.add( eartifact.toString() );
+                }
+            }
+        }
+
+        // Check the fields.
+        List<String> checks = awkward( eartifacts.get( 0 ) );
+        checks.add( eeartifacts.get( 0 ) );
+        EArtifactFields fields = new EArtifactFields();
+        boolean same = true;
+        int fallbacks = 0;
+        for( String line : checks )
+        {
+            String expected = viaJSONObject( line );
+            for( int slice = 0; slice < 2; slice++ )
+            {
+                String got = viaFields( fields, line, slice == 1 );
+                if( !expected.equals( got ) )
+                {
+                    same = false;
+                    System.out.println( "DIFFERENT for " + line +
+                            "\n  JSONObject:      " + expected +
+                            "\n  EArtifactFields: " + got );
+                }
+            }
+            fallbacks += fields.wasFullyParsed() ? 1 : 0;
+        }
+        System.out.println( "Fields: " + checks.size() + " records, " +
+                fallbacks + " read with JSONObject; " +
+                (same ? "same" : "DIFFERENT") );
+        boolean bags = sameBags( bag ) && sameBags( eartifacts );
+        System.out.println( "Bags: " + (bags ? "same" : "DIFFERENT") );
+        same &= bags;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        String[] kinds = { "e-artifacts", "ee-artifacts" };
+        String[] methods = { "JSONObject", "fields/String", "fields/slice" };
+        System.out.println( "records          method         records/s " +
+            "bytes/record  speedup" );
+        for( int kind = 0; kind < 2; kind++ )
+        {
+            List<String> distinct = kind == 0 ? eartifacts : eeartifacts;
+            List<String> lines = new ArrayList<String>( records );
+            for( int i = 0; i < records; i++ )
+            {
+                lines.add( distinct.get( i % distinct.size() ) );
+            }
+            // The lines as UTF-8, one after another, as in a mapped file.
+            StringBuilder text = new StringBuilder();
+            int[] ends = new int[records];
+            for( int i = 0; i < records; i++ )
+            {
+                text.append( lines.get( i ) );
+                ends[i] = text.length();
+                text.append( '\n' );
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(
+                    text.toString().getBytes( "UTF-8" ) );
+            text = null;
+            int[] wanted = kind == 0 ? EARTIFACT_FIELDS : EEARTIFACT_FIELDS;
+
+            double baseline = 0;
+            long expectedLength = -1;
+            for( int method = 0; method < methods.length; method++ )
+            {
+                double best = Double.MAX_VALUE;
+                long allocated = Long.MAX_VALUE;
+                for( int r = 0; r <= runs; r++ )
+                {
+                    long before = threads.getThreadAllocatedBytes( thread );
+                    long start = System.nanoTime();
+                    long length = read( method, lines, bytes, ends, wanted );
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    long bytesAllocated =
+                        threads.getThreadAllocatedBytes( thread ) - before;
+                    if( expectedLength < 0 )
+                    {
+                        expectedLength = length;
+                    }
+                    same &= length == expectedLength;
+                    if( r > 0 )
+                    {
+                        best = Math.min( best, seconds );
+                        allocated = Math.min( allocated, bytesAllocated );
+                    }
+                }
+                if( method == 0 )
+                {
+                    baseline = best;
+                }
+                System.out.println( String.format(
+                        "%-16s %-14s %9.0f %12.1f %8.2f", kinds[kind],
+                        methods[method], records / best,
+                        (double) allocated / records, baseline / best ) );
+            }
+        }
+
+        System.out.println( same ? "Results match" : "Results DIFFER" );
+        System.exit( same ? 0 : 1 );
+    }
+}
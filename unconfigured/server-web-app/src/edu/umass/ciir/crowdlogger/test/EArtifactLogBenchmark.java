@@ -0,0 +1,419 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Histogram;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.RotatingEArtifactLog;
+
+/**
+ * Measures how many deposits per second the master server can write with
+ * several request threads at once: the way EEArtifactWriter used to (open,
+ * append and close the file for every deposit, holding one lock), and with
+ * a {@link RotatingEArtifactLog} under each sync policy. Reports the
+ * deposits and e-artifacts per second, the deposit latency and, for the
+ * log, the average group size and number of syncs.
+ *
+ * Each run's files are checked to hold every e-artifact exactly once, with
+ * no file over the limit and each deposit's e-artifacts next to each other
+ * (unless a file filled up part way through). Two more checks: a log whose
+ * clock moves on a day every so often starts each day at 001, and a log
+ * opened on files already there carries on from the last one. Exits with
+ * status 1 if any check fails.
+ */
+public class EArtifactLogBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    private static final Object FILE_LOCK = new Object();
+
+    /**
+     * Writes a deposit the way EEArtifactWriter used to, less the date and
+     * rotation bookkeeping.
+     */
+    private static void writeOld( String filename, List<String> deposit )
+        throws IOException
+    {
+        synchronized( FILE_LOCK )
+        {
+            BufferedWriter out = new BufferedWriter(
+                    new FileWriter( filename, true ) );
+            try
+            {
+                for( String eartifact : deposit )
+                {
+                    out.write( eartifact );
+                    out.write( '\n' );
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * @return The deposits, each a list of made-up e-artifacts; every
+     *      e-artifact is unique and names its deposit.
+     */
+    private static List<List<String>> deposits( int count, int size )
+    {
+        StringBuilder padding = new StringBuilder();
+        while( padding.length() < 200 )
+        {
+            padding.append( "U2FsdGVkX1+jXjLsCWRRxg" );
+        }
+        List<List<String>> deposits = new ArrayList<List<String>>();
+        for( int d = 0; d < count; d++ )
+        {
+            List<String> deposit = new ArrayList<String>();
+            for( int i = 0; i < size; i++ )
+            {
+                deposit.add( "{\"deposit\":" + d + ",\"i\":" + i +
+                        ",\"primary_cipher_text\":\"" + padding + "\"}" );
+            }
+            deposits.add( deposit );
+        }
+        return deposits;
+    }
+
+    /**
+     * Something that writes a deposit.
+     */
+    private interface Target
+    {
+        void write( List<String> deposit ) throws IOException;
+    }
+
+    /**
+     * Writes the deposits from a number of threads.
+     *
+     * @return The seconds taken, followed by the latencies in microseconds.
+     */
+    private static double[] run( final Target target,
+            final List<List<String>> deposits, int threads )
+        throws Exception
+    {
+        final AtomicLong next = new AtomicLong();
+        final double[] result = new double[deposits.size() + 1];
+        final Exception[] error = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for( int t = 0; t < threads; t++ )
+        {
+            workers[t] = new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        int d;
+                        while( (d = (int) next.getAndIncrement()) <
+                                deposits.size() )
+                        {
+                            long depositStart = System.nanoTime();
+                            target.write( deposits.get( d ) );
+                            result[d + 1] =
+                                (System.nanoTime() - depositStart) / 1e3;
+                        }
+                    } catch( Exception e ) {
+                        error[0] = e;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for( Thread worker : workers )
+        {
+            worker.join();
+        }
+        if( null != error[0] )
+        {
+            throw error[0];
+        }
+        result[0] = (System.nanoTime() - start) / 1e9;
+        return result;
+    }
+
+    /**
+     * Checks the files in a directory: each under the limit (all but the
+     * last of a day at it), every e-artifact there once, and each deposit's
+     * e-artifacts together in order unless split over consecutive files.
+     *
+     * @return A description of the first problem, or null.
+     */
+    private static String check( File directory, List<List<String>> deposits,
+            long maxPerFile, boolean contiguous ) throws IOException
+    {
+        File[] files = directory.listFiles();
+        Arrays.sort( files );
+        List<String> all = new ArrayList<String>();
+        for( int f = 0; f < files.length; f++ )
+        {
+            List<String> lines = new ArrayList<String>();
+            BufferedReader reader =
+                new BufferedReader( new FileReader( files[f] ) );
+            String line;
+            while( null != (line = reader.readLine()) )
+            {
+                lines.add( line );
+            }
+            reader.close();
+
+            String day = files[f].getName().replaceFirst( "\\.\\d+$", "" );
+            boolean lastOfDay = f + 1 == files.length ||
+                !files[f + 1].getName().startsWith( day + "." );
+            if( lines.size() > maxPerFile ||
+                    (!lastOfDay && lines.size() != maxPerFile) )
+            {
+                return files[f].getName() + " has " + lines.size() +
+                    " lines";
+            }
+            all.addAll( lines );
+        }
+
+        if( contiguous )
+        {
+            // Each deposit's e-artifacts should run i = 0, 1, ... in turn.
+            for( int i = 0; i < all.size(); )
+            {
+                String deposit = all.get( i ).replaceFirst( ",\"i\".*", "" );
+                int size = deposits.get( 0 ).size();
+                for( int j = 0; j < size; j++, i++ )
+                {
+                    if( i >= all.size() || !all.get( i ).startsWith(
+                            deposit + ",\"i\":" + j + "," ) )
+                    {
+                        return "a deposit was split up";
+                    }
+                }
+            }
+        }
+
+        List<String> expected = new ArrayList<String>();
+        for( List<String> deposit : deposits )
+        {
+            expected.addAll( deposit );
+        }
+        Collections.sort( expected );
+        Collections.sort( all );
+        return all.equals( expected ) ? null : "the e-artifacts differ";
+    }
+
+    private static File emptyDirectory( File directory )
+    {
+        if( directory.exists() )
+        {
+            for( File file : directory.listFiles() )
+            {
+                file.delete();
+            }
+        }
+        else
+        {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    private static double percentile( double[] result, double p )
+    {
+        double[] latencies = Arrays.copyOfRange( result, 1, result.length );
+        Arrays.sort( latencies );
+        return latencies[(int) Math.min( latencies.length - 1,
+                p * latencies.length )];
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int deposits = 20000;
+        int size = 20;
+        int threads = 8;
+        int maxPerFile = 50000;
+        long syncInterval = 1000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EArtifactLogBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--deposits=X Write X deposits\n\t" +
+            "--size=X Put X e-artifacts in each deposit\n\t" +
+            "--threads=X Write from X request threads\n\t" +
+            "--maxPerFile=X Rotate files every X e-artifacts\n\t" +
+            "--syncInterval=X Sync every X ms with the interval policy\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        deposits = options.getInt( "deposits", deposits );
+        size = options.getInt( "size", size );
+        threads = options.getInt( "threads", threads );
+        maxPerFile = options.getInt( "maxPerFile", maxPerFile );
+        syncInterval = options.getLong( "syncInterval", syncInterval );
+
+        logger.setLevel( Level.WARNING );
+
+        final List<List<String>> work = deposits( deposits, size );
+        File root = File.createTempFile( "log-benchmark", "" );
+        root.delete();
+        final File directory = new File( root, "out" );
+        boolean ok = true;
+
+        System.out.println( deposits + " deposits of " + size +
+                " e-artifacts from " + threads + " threads, " + maxPerFile +
+                " per file" );
+        System.out.println( "writer          deposits/sec  eartifacts/sec" +
+                "  p50 us   p99 us  group  syncs  files" );
+
+        // The old way, after a run to warm up. Everything goes to one file,
+        // since the rotation isn't what's being timed.
+        double[] result = null;
+        for( int r = 0; r < 2; r++ )
+        {
+            emptyDirectory( directory );
+            result = run( new Target() {
+                public void write( List<String> deposit ) throws IOException
+                {
+                    writeOld( new File( directory, "eartifacts" ).getPath(),
+                            deposit );
+                }
+            }, work, threads );
+        }
+        String problem = check( directory, work, Long.MAX_VALUE, true );
+        ok &= null == problem;
+        System.out.println( String.format(
+                "%-15s %12.0f %15.0f %7.0f %8.0f %6s %6s %6d  %s",
+                "open per write", deposits / result[0],
+                deposits * size / result[0], percentile( result, 0.5 ),
+                percentile( result, 0.99 ), "-", "-",
+                directory.listFiles().length,
+                null == problem ? "ok" : problem ) );
+
+        // Every policy is run once to warm up before any is timed, since
+        // the first to run would otherwise pay for compiling the log.
+        Counter syncs = Metrics.counter( "server.log.syncs" );
+        Histogram groups = Metrics.histogram( "server.log.group.size" );
+        for( int r = 0; r < 2; r++ )
+        {
+            for( RotatingEArtifactLog.SyncPolicy policy :
+                RotatingEArtifactLog.SyncPolicy.values() )
+            {
+                emptyDirectory( directory );
+                final RotatingEArtifactLog log = new RotatingEArtifactLog(
+                        new File( directory, "eartifacts" ).getPath(),
+                        maxPerFile, policy, syncInterval, 20000 );
+                long syncsBefore = syncs.getCount();
+                long groupsBefore = groups.getCount();
+                result = run( new Target() {
+                    public void write( List<String> deposit )
+                        throws IOException
+                    {
+                        log.write( deposit );
+                    }
+                }, work, threads );
+                log.close();
+                if( r == 0 )
+                {
+                    continue;
+                }
+
+                problem = check( directory, work, maxPerFile, false );
+                ok &= null == problem;
+                System.out.println( String.format(
+                        "%-15s %12.0f %15.0f %7.0f %8.0f %6.1f %6d %6d  %s",
+                        "log " + policy.toString().toLowerCase(),
+                        deposits / result[0], deposits * size / result[0],
+                        percentile( result, 0.5 ), percentile( result, 0.99 ),
+                        deposits / (double) (groups.getCount() - groupsBefore),
+                        syncs.getCount() - syncsBefore,
+                        directory.listFiles().length,
+                        null == problem ? "ok" : problem ) );
+            }
+        }
+
+        // A day goes by every 1000 deposits.
+        emptyDirectory( directory );
+        final AtomicLong written = new AtomicLong();
+        final RotatingEArtifactLog daily = new RotatingEArtifactLog(
+                new File( directory, "eartifacts" ).getPath(), 3000,
+                RotatingEArtifactLog.SyncPolicy.NONE, 0, 20000 ) {
+            protected Date now()
+            {
+                return new Date( 1000L * 86400 * (20000 +
+                        written.get() / 1000) );
+            }
+        };
+        List<List<String>> some = work.subList( 0, Math.min( 5000,
+                work.size() ) );
+        for( List<String> deposit : some )
+        {
+            daily.write( deposit );
+            written.incrementAndGet();
+        }
+        daily.close();
+        int days = 0;
+        boolean startsAtOne = true;
+        for( String name : directory.list() )
+        {
+            if( name.endsWith( ".001" ) )
+            {
+                days++;
+            }
+            else if( !new File( directory, name.replaceFirst( "\\d+$",
+                    String.format( "%03d", Integer.parseInt(
+                            name.replaceFirst( ".*\\.", "" ) ) - 1 ) ) )
+                    .exists() )
+            {
+                startsAtOne = false;
+            }
+        }
+        problem = check( directory, some, 3000, false );
+        boolean daysOk = startsAtOne && null == problem &&
+            days == (some.size() + 999) / 1000;
+        ok &= daysOk;
+        System.out.println( "Rotating by date: " + days + " days in " +
+                directory.list().length + " files  " +
+                (daysOk ? "ok" : null == problem ? "misnumbered" : problem) );
+
+        // Carrying on after a restart.
+        emptyDirectory( directory );
+        List<List<String>> first = work.subList( 0, 300 );
+        List<List<String>> second = work.subList( 300, 700 );
+        RotatingEArtifactLog log = new RotatingEArtifactLog(
+                new File( directory, "eartifacts" ).getPath(), 2500,
+                RotatingEArtifactLog.SyncPolicy.NONE, 0, 20000 );
+        for( List<String> deposit : first )
+        {
+            log.write( deposit );
+        }
+        log.close();
+        log = new RotatingEArtifactLog(
+                new File( directory, "eartifacts" ).getPath(), 2500,
+                RotatingEArtifactLog.SyncPolicy.NONE, 0, 20000 );
+        for( List<String> deposit : second )
+        {
+            log.write( deposit );
+        }
+        log.close();
+        problem = check( directory, work.subList( 0, 700 ), 2500, true );
+        ok &= null == problem;
+        System.out.println( "Restarting: " + directory.list().length +
+                " files  " + (null == problem ? "ok" : problem) );
+
+        emptyDirectory( directory ).delete();
+        root.delete();
+        System.out.println( ok ? "All checks passed" : "Checks FAILED" );
+        System.exit( ok ? 0 : 1 );
+    }
+}
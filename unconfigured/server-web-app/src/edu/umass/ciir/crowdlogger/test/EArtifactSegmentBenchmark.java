@@ -0,0 +1,356 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.io.EArtifactSegment;
+import edu.umass.ciir.crowdlogger.io.EArtifactSegmentReader;
+import edu.umass.ciir.crowdlogger.server.EArtifactDecryptor;
+
+/**
+ * Compares a replay corpus of e-artifacts as JSON lines and as a segment
+ * (see {@link EArtifactSegment}): the bytes on disk, and the CPU time taken
+ * to read every e-artifact and its primary cipher text, as
+ * EArtifactDecryptor does. The corpus is made with
+ * {@link EArtifactGenerator} for a few experiments, with primaries whose
+ * popularity falls off as 1/rank; a few e-artifacts are made awkward (base
+ * 64 broken over lines, extra fields, missing fields, numbers with a
+ * leading "+") so the fallbacks get used.
+ *
+ * Checks that converting to a segment and back gives the same e-artifacts,
+ * that the index finds exactly the e-artifacts with a primary cipher text,
+ * and that EArtifactDecryptor gives the same output for either. Exits with
+ * status 1 if anything differs.
+ */
+public class EArtifactSegmentBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * Writes the corpus.
+     *
+     * @return The primary cipher texts, by number of e-artifacts.
+     */
+    private static HashMap<String, Integer> generate( File corpus,
+            int primaries, int maxSupport, int k ) throws Exception
+    {
+        Random random = new Random( 21 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 21 );
+        String[] experiments = { "exp-a", "exp-b", "exp-c" };
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+
+        FileWriter out = new FileWriter( corpus );
+        try
+        {
+            int n = 0;
+            for( int rank = 1; rank <= primaries; rank++ )
+            {
+                int support = Math.max( 1, maxSupport / rank );
+                String[] secondaries = new String[support];
+                for( int i = 0; i < support; i++ )
+                {
+                    secondaries[i] = "http://example.com/result/" +
+                        random.nextInt( 50 );
+                }
+                for( JSONObject eartifact : generator.eartifacts(
+                        experiments[rank % experiments.length],
+                        "query " + rank, secondaries, k ) )
+                {
+                    int awkward = n++ % 500;
+                    if( awkward == 1 )
+                    {
+                        // As openssl -a writes it.
+                        eartifact.put( "secondary_cipher_text", eartifact
+                                .getString( "secondary_cipher_text" )
+                                .replaceAll( "(.{64})", "$1\n" ) );
+                    }
+                    else if( awkward == 2 )
+                    {
+                        eartifact.put( "version", 2 );
+                    }
+                    else if( awkward == 3 )
+                    {
+                        eartifact.remove( "y" );
+                    }
+                    else if( awkward == 4 )
+                    {
+                        eartifact.put( "x", "+" + eartifact.getString( "x" ) );
+                    }
+                    String primary =
+                        eartifact.getString( "primary_cipher_text" );
+                    Integer count = counts.get( primary );
+                    counts.put( primary, null == count ? 1 : count + 1 );
+                    out.write( eartifact.toString() + "\n" );
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Reads every e-artifact in the JSON lines and its primary cipher text.
+     *
+     * @return The number read.
+     */
+    private static long readJSON( File corpus ) throws Exception
+    {
+        long read = 0;
+        BufferedReader in = new BufferedReader( new InputStreamReader(
+                new FileInputStream( corpus ), "UTF-8" ), 64 * 1024 );
+        try
+        {
+            String line;
+            while( null != (line = in.readLine()) )
+            {
+                new JSONObject( line ).getString( "primary_cipher_text" );
+                read++;
+            }
+        } finally {
+            in.close();
+        }
+        return read;
+    }
+
+    /**
+     * Reads every e-artifact in the segment and its primary cipher text.
+     *
+     * @return The number read.
+     */
+    private static long readSegment( File segment ) throws Exception
+    {
+        long read = 0;
+        EArtifactSegmentReader reader = new EArtifactSegmentReader( segment );
+        try
+        {
+            JSONObject eartifact;
+            while( null != (eartifact = reader.next()) )
+            {
+                eartifact.getString( "primary_cipher_text" );
+                read++;
+            }
+        } finally {
+            reader.close();
+        }
+        return read;
+    }
+
+    /**
+     * @return Whether the two have the same fields with equal values.
+     */
+    private static boolean same( JSONObject a, JSONObject b ) throws Exception
+    {
+        if( a.length() != b.length() )
+        {
+            return false;
+        }
+        Iterator<?> keys = a.keys();
+        while( keys.hasNext() )
+        {
+            String key = (String) keys.next();
+            if( !b.has( key ) || !a.get( key ).equals( b.get( key ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The file's lines as e-artifacts.
+     */
+    private static List<JSONObject> load( File file ) throws Exception
+    {
+        List<JSONObject> eartifacts = new ArrayList<JSONObject>();
+        BufferedReader in = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line;
+            while( null != (line = in.readLine()) )
+            {
+                eartifacts.add( new JSONObject( line ) );
+            }
+        } finally {
+            in.close();
+        }
+        return eartifacts;
+    }
+
+    /**
+     * Runs the decryptor and returns its sorted output lines followed by
+     * what it printed.
+     */
+    private static List<String> decrypt( File input ) throws Exception
+    {
+        File output = File.createTempFile( "segment-benchmark", ".out" );
+        output.deleteOnExit();
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut( new PrintStream( printed ) );
+        try
+        {
+            new EArtifactDecryptor().decrptEArtifactFile(
+                    new String[] { input.getPath() }, output.getPath() );
+        } finally {
+            System.setOut( stdout );
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new FileReader( output ) );
+        try
+        {
+            String line;
+            while( null != (line = reader.readLine()) )
+            {
+                lines.add( line );
+            }
+        } finally {
+            reader.close();
+        }
+        output.delete();
+
+        Collections.sort( lines );
+        lines.add( printed.toString() );
+        return lines;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int primaries = 20000;
+        int maxSupport = 2000;
+        int k = 3;
+        int runs = 3;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EArtifactSegmentBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--primaries=X Generate X distinct primaries\n\t" +
+            "--maxSupport=X Give the most popular primary X e-artifacts\n\t" +
+            "--k=X Generate e-artifacts that need X shares\n\t" +
+            "--runs=X Time each format X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        primaries = options.getInt( "primaries", primaries );
+        maxSupport = options.getInt( "maxSupport", maxSupport );
+        k = options.getInt( "k", k );
+        runs = options.getInt( "runs", runs );
+        logger.setLevel( Level.WARNING );
+
+        File corpus = File.createTempFile( "segment-benchmark", ".json" );
+        File segment = File.createTempFile( "segment-benchmark", ".segment" );
+        File back = File.createTempFile( "segment-benchmark", ".back" );
+        corpus.deleteOnExit();
+        segment.deleteOnExit();
+        back.deleteOnExit();
+
+        HashMap<String, Integer> counts =
+            generate( corpus, primaries, maxSupport, k );
+        long start = System.nanoTime();
+        long eartifacts = EArtifactSegment.toSegment( new File[] { corpus },
+                segment );
+        double convertSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Round trip.
+        EArtifactSegment.toJSON( new File[] { segment }, back );
+        List<JSONObject> original = load( corpus );
+        List<JSONObject> restored = load( back );
+        boolean same = original.size() == restored.size();
+        for( int i = 0; same && i < original.size(); i++ )
+        {
+            same = same( original.get( i ), restored.get( i ) );
+        }
+        System.out.println( "Round trip: " + (same ? "same" : "DIFFERENT") );
+
+        // The index.
+        boolean found = true;
+        EArtifactSegmentReader reader = new EArtifactSegmentReader( segment );
+        try
+        {
+            found = reader.getRecordCount() == original.size();
+            int checked = 0;
+            for( String primary : counts.keySet() )
+            {
+                if( checked++ == 1000 )
+                {
+                    break;
+                }
+                List<JSONObject> bag = reader.find( primary );
+                found &= bag.size() == counts.get( primary );
+            }
+            found &= reader.find( "U2FsdGVkX1+nothere" ).isEmpty();
+        } finally {
+            reader.close();
+        }
+        System.out.println( "Index: " + (found ? "finds every bag" :
+            "WRONG") );
+        same &= found;
+
+        // The decryptor.
+        boolean decrypted = decrypt( corpus ).equals( decrypt( segment ) );
+        System.out.println( "Decryption: " + (decrypted ? "same" :
+            "DIFFERENT") );
+        same &= decrypted;
+
+        System.out.println( String.format( "%d e-artifacts, %d primaries; " +
+                "converted at %.0f e-artifacts/s", eartifacts, counts.size(),
+                eartifacts / convertSeconds ) );
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] bytes = { corpus.length(), segment.length() };
+        String[] names = { "JSON lines", "segment" };
+        double[] best = { Double.MAX_VALUE, Double.MAX_VALUE };
+        // The first run of each warms up.
+        for( int r = 0; r <= runs; r++ )
+        {
+            for( int format = 0; format < 2; format++ )
+            {
+                long cpu = threads.getCurrentThreadCpuTime();
+                long read = format == 0 ? readJSON( corpus ) :
+                    readSegment( segment );
+                cpu = threads.getCurrentThreadCpuTime() - cpu;
+                same &= read == eartifacts;
+                if( r > 0 )
+                {
+                    best[format] = Math.min( best[format], cpu / 1e3 / read );
+                }
+            }
+        }
+
+        System.out.println( "format       bytes  bytes/e-artifact  " +
+            "us/e-artifact" );
+        for( int format = 0; format < 2; format++ )
+        {
+            System.out.println( String.format( "%-10s %11d %17.1f %14.2f",
+                    names[format], bytes[format],
+                    (double) bytes[format] / eartifacts, best[format] ) );
+        }
+        System.out.println( String.format( "segment: %.2fx smaller, %.2fx " +
+                "less CPU to read", (double) bytes[0] / bytes[1],
+                best[0] / best[1] ) );
+
+        System.out.println( same ? "Results match" : "Results DIFFER" );
+        System.exit( same ? 0 : 1 );
+    }
+}
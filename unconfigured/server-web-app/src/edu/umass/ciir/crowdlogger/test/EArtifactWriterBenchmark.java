@@ -0,0 +1,378 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.EArtifactWriter;
+
+/**
+ * Measures how many e-artifacts per second EArtifactWriter writes, and how
+ * many files it opens per million, with different numbers of writing
+ * threads and sharders, against the writer it replaced (one unbuffered
+ * FileWriter per file, closed first in, first out). The e-artifacts are
+ * made up -- only the fields the writer looks at matter -- for a few
+ * experiments, with primaries whose popularity falls off as 1/rank, so
+ * some files are written to far more than others.
+ *
+ * Each run's files are checked to hold the same lines as the old writer's
+ * (in the same order for one thread; sorted for more, since the threads
+ * interleave). Exits with status 1 if any differ.
+ */
+public class EArtifactWriterBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    private static final String BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * The writer as it was: FIFO eviction of unbuffered FileWriters.
+     */
+    private static class OldWriter
+    {
+        final int maxOpenFiles;
+        final String outputDirectory;
+        HashMap<String, FileWriter> openFiles =
+            new HashMap<String, FileWriter>();
+        ArrayList<String> recentFiles = new ArrayList<String>();
+        int opens = 0;
+
+        OldWriter( String outputDirectory, int maxOpenFiles )
+        {
+            this.outputDirectory = outputDirectory;
+            this.maxOpenFiles = maxOpenFiles;
+        }
+
+        void writeEArtifact( JSONObject eartifact ) throws Exception
+        {
+            String experimentId = eartifact.getString( "experiment_id" );
+            String primaryCipherText =
+                eartifact.getString( "primary_cipher_text" );
+            String charId = primaryCipherText.charAt( 35 ) + "";
+            charId = charId.replaceAll( "\\W", "zz" );
+            String filename = outputDirectory + File.separator +
+                experimentId.replaceAll( "\\W", "_" ) + "-" + charId +
+                ".eartifacts";
+
+            if( !openFiles.containsKey( filename ) )
+            {
+                if( recentFiles.size() >= maxOpenFiles )
+                {
+                    String removedFilename = recentFiles.remove( 0 );
+                    if( openFiles.containsKey( removedFilename ) )
+                    {
+                        openFiles.remove( removedFilename ).close();
+                    }
+                }
+                opens++;
+                recentFiles.add( filename );
+                openFiles.put( filename, new FileWriter( filename, true ) );
+            }
+            openFiles.get( filename ).append( eartifact.toString() + "\n" );
+        }
+
+        void closeFiles() throws IOException
+        {
+            for( FileWriter file : openFiles.values() )
+            {
+                file.close();
+            }
+            openFiles.clear();
+            recentFiles.clear();
+        }
+    }
+
+    /**
+     * Makes a primary cipher text that starts the way the extension's do.
+     */
+    private static String cipherText( Random random )
+    {
+        StringBuilder text = new StringBuilder( "U2FsdGVkX1+jXjLsCWRRxg" );
+        while( text.length() < 64 )
+        {
+            text.append( BASE64.charAt( random.nextInt( 64 ) ) );
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Each file in the directory's lines, by file name, sorted if
+     *      asked to be.
+     */
+    private static HashMap<String, List<String>> read( File directory,
+            boolean sort ) throws IOException
+    {
+        HashMap<String, List<String>> files =
+            new HashMap<String, List<String>>();
+        for( File file : directory.listFiles() )
+        {
+            List<String> lines = new ArrayList<String>();
+            BufferedReader reader = new BufferedReader( new FileReader( file ) );
+            try
+            {
+                String line;
+                while( null != (line = reader.readLine()) )
+                {
+                    lines.add( line );
+                }
+            } finally {
+                reader.close();
+            }
+            if( sort )
+            {
+                Collections.sort( lines );
+            }
+            files.put( file.getName(), lines );
+        }
+        return files;
+    }
+
+    private static File emptyDirectory( File directory )
+    {
+        if( directory.exists() )
+        {
+            for( File file : directory.listFiles() )
+            {
+                file.delete();
+            }
+        }
+        else
+        {
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    private static void delete( File directory )
+    {
+        emptyDirectory( directory ).delete();
+    }
+
+    /**
+     * Writes the e-artifacts with the given number of threads, each taking
+     * the next one in turn.
+     *
+     * @return The seconds taken.
+     */
+    private static double write( final EArtifactWriter writer,
+            final List<JSONObject> eartifacts, int threads ) throws Exception
+    {
+        final AtomicInteger next = new AtomicInteger();
+        final Exception[] error = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for( int t = 0; t < threads; t++ )
+        {
+            workers[t] = new Thread() {
+                public void run()
+                {
+                    try
+                    {
+                        int i;
+                        while( (i = next.getAndIncrement()) <
+                                eartifacts.size() )
+                        {
+                            writer.writeEArtifact( eartifacts.get( i ) );
+                        }
+                    } catch( Exception e ) {
+                        error[0] = e;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for( Thread worker : workers )
+        {
+            worker.join();
+        }
+        writer.closeFiles();
+        if( null != error[0] )
+        {
+            throw error[0];
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int records = 300000;
+        int experiments = 3;
+        int primaries = 20000;
+        int maxOpenFiles = EArtifactWriter.MAX_OPEN_FILES;
+        int bufferSize = EArtifactWriter.BUFFER_SIZE;
+        int maxBuffers = EArtifactWriter.MAX_BUFFERS;
+        int shards = 32;
+        int[] threads = { 1, 2, 4 };
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EArtifactWriterBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--records=X Write X e-artifacts\n\t" +
+            "--experiments=X Spread them over X experiments\n\t" +
+            "--primaries=X Make X distinct primaries per experiment\n\t" +
+            "--maxOpenFiles=X Keep X files open\n\t" +
+            "--bufferSize=X Buffer X bytes per file\n\t" +
+            "--maxBuffers=X Use at most X buffers at once\n\t" +
+            "--shards=X Hash each experiment over X files\n\t" +
+            "--threads=X,Y,... Write with X, Y, ... threads\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        records = options.getInt( "records", records );
+        experiments = options.getInt( "experiments", experiments );
+        primaries = options.getInt( "primaries", primaries );
+        maxOpenFiles = options.getInt( "maxOpenFiles", maxOpenFiles );
+        bufferSize = options.getInt( "bufferSize", bufferSize );
+        maxBuffers = options.getInt( "maxBuffers", maxBuffers );
+        shards = options.getInt( "shards", shards );
+        threads = options.getInts( "threads", threads );
+
+        logger.setLevel( Level.WARNING );
+
+        // Make the e-artifacts.
+        Random random = new Random( 13 );
+        String[][] cipherTexts = new String[experiments][primaries];
+        double[] cumulative = new double[primaries];
+        double total = 0;
+        for( int rank = 0; rank < primaries; rank++ )
+        {
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+            for( int e = 0; e < experiments; e++ )
+            {
+                cipherTexts[e][rank] = cipherText( random );
+            }
+        }
+        List<JSONObject> eartifacts = new ArrayList<JSONObject>();
+        for( int i = 0; i < records; i++ )
+        {
+            int e = random.nextInt( experiments );
+            int rank = Arrays.binarySearch( cumulative,
+                    random.nextDouble() * total );
+            rank = Math.min( primaries - 1, rank < 0 ? -rank - 1 : rank );
+            JSONObject eartifact = new JSONObject();
+            eartifact.put( "experiment_id", "experiment " + e );
+            eartifact.put( "primary_cipher_text", cipherTexts[e][rank] );
+            eartifact.put( "secondary_cipher_text", cipherText( random ) );
+            eartifact.put( "x", "" + random.nextInt( 1000 ) + "." +
+                    random.nextInt( 100 ) );
+            eartifact.put( "y", "" + Math.abs( random.nextLong() ) );
+            eartifact.put( "k", 3 );
+            eartifacts.add( eartifact );
+        }
+
+        File root = File.createTempFile( "writer-benchmark", "" );
+        root.delete();
+        File expectedDirectory = emptyDirectory( new File( root, "old" ) );
+        File directory = new File( root, "new" );
+
+        // The old writer, after a run to warm up.
+        double seconds = 0;
+        OldWriter old = null;
+        for( int run = 0; run < 2; run++ )
+        {
+            emptyDirectory( expectedDirectory );
+            old = new OldWriter( expectedDirectory.getPath(), maxOpenFiles );
+            long start = System.nanoTime();
+            for( JSONObject eartifact : eartifacts )
+            {
+                old.writeEArtifact( eartifact );
+            }
+            old.closeFiles();
+            seconds = (System.nanoTime() - start) / 1e9;
+        }
+        HashMap<String, List<String>> expected =
+            read( expectedDirectory, false );
+        HashMap<String, List<String>> expectedSorted =
+            read( expectedDirectory, true );
+
+        System.out.println( records + " e-artifacts, " + experiments +
+                " experiments, " + maxOpenFiles + " open files, " +
+                bufferSize + " byte buffers" );
+        System.out.println( "writer         threads   records/sec  " +
+                "opens/million  files  output" );
+        System.out.println( String.format( "%-14s %7d %13.0f %14.0f %6d  %s",
+                "old", 1, records / seconds, old.opens * 1e6 / records,
+                expected.size(), "-" ) );
+
+        Counter opens = Metrics.counter( "decryption.writer.file_opens" );
+        boolean allSame = true;
+        String[] sharderNames = { "by character", "by hash" };
+        EArtifactWriter.Sharder[] sharders = { EArtifactWriter.BY_CHARACTER,
+            EArtifactWriter.byHash( shards ) };
+        for( int s = 0; s < sharders.length; s++ )
+        {
+            for( int t : threads )
+            {
+                // The first run warms up.
+                double best = 0;
+                long opened = 0;
+                for( int run = 0; run < 2; run++ )
+                {
+                    emptyDirectory( directory );
+                    EArtifactWriter writer = new EArtifactWriter(
+                            directory.getPath(), sharders[s], maxOpenFiles,
+                            bufferSize, maxBuffers );
+                    long opensBefore = opens.getCount();
+                    best = Math.max( best,
+                            records / write( writer, eartifacts, t ) );
+                    opened = opens.getCount() - opensBefore;
+                }
+
+                // The hashed files hold the same lines, grouped differently.
+                String same;
+                HashMap<String, List<String>> files = read( directory,
+                        s > 0 || t > 1 );
+                if( s == 0 )
+                {
+                    same = files.equals( t > 1 ? expectedSorted : expected ) ?
+                        "same" : "DIFFERENT";
+                }
+                else
+                {
+                    List<String> all = new ArrayList<String>();
+                    List<String> expectedAll = new ArrayList<String>();
+                    for( List<String> lines : files.values() )
+                    {
+                        all.addAll( lines );
+                    }
+                    for( List<String> lines : expected.values() )
+                    {
+                        expectedAll.addAll( lines );
+                    }
+                    Collections.sort( all );
+                    Collections.sort( expectedAll );
+                    same = all.equals( expectedAll ) ? "same lines" :
+                        "DIFFERENT";
+                }
+                allSame &= !same.equals( "DIFFERENT" );
+                System.out.println( String.format(
+                        "%-14s %7d %13.0f %14.0f %6d  %s", sharderNames[s], t,
+                        best, opened * 1e6 / records, files.size(), same ) );
+            }
+        }
+
+        delete( expectedDirectory );
+        delete( directory );
+        root.delete();
+        System.out.println( allSame ? "Outputs match" : "Outputs DIFFER" );
+        System.exit( allSame ? 0 : 1 );
+    }
+}
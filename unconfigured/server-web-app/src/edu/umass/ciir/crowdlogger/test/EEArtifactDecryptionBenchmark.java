@@ -0,0 +1,176 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.server.EEArtifactDecryptor;
+
+/**
+ * Measures how many ee-artifact lines per second EEArtifactDecryptor gets
+ * through with different numbers of decryption threads. The input is made
+ * with {@link EArtifactGenerator} and a fresh RSA key; each run writes to
+ * its own output directory, and the outputs are checked to be identical,
+ * since the lines are meant to come out in the order they went in.
+ */
+public class EEArtifactDecryptionBenchmark
+{
+    /**
+     * Hashes every output file in a directory, in name order.
+     */
+    private static String digest( File directory ) throws Exception
+    {
+        MessageDigest md5 = MessageDigest.getInstance( "MD5" );
+        File[] files = directory.listFiles();
+        Arrays.sort( files );
+        byte[] buffer = new byte[65536];
+        for( File file : files )
+        {
+            md5.update( file.getName().getBytes( "UTF-8" ) );
+            FileInputStream in = new FileInputStream( file );
+            try
+            {
+                int n;
+                while( (n = in.read( buffer )) > 0 )
+                {
+                    md5.update( buffer, 0, n );
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for( byte b : md5.digest() )
+        {
+            hex.append( String.format( "%02x", b ) );
+        }
+        return hex.toString();
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int eeartifacts = 20000;
+        int rsaBits = 2048;
+        int runs = 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threads = { 1, 2, 4, Math.max( 8, 2 * cores ) };
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "EEArtifactDecryptionBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--eeartifacts=X Decrypt X ee-artifacts per run\n\t" +
+            "--rsaBits=X Use an X bit RSA key\n\t" +
+            "--threads=X,Y,... Run with X, Y, ... decryption threads\n\t" +
+            "--runs=X Time each thread count X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        eeartifacts = options.getInt( "eeartifacts", eeartifacts );
+        rsaBits = options.getInt( "rsaBits", rsaBits );
+        threads = options.getInts( "threads", threads );
+        runs = options.getInt( "runs", runs );
+
+        // The decryptor logs every line at INFO.
+        Logger.getLogger( "" ).setLevel( Level.WARNING );
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        File work = File.createTempFile( "eeartifact-benchmark", "" );
+        work.delete();
+        work.mkdirs();
+
+        // Make the input: a few hundred primaries shared by many users.
+        System.out.println( "Generating " + eeartifacts + " ee-artifacts " +
+                "with a " + rsaBits + " bit key..." );
+        EArtifactGenerator generator = new EArtifactGenerator( rsaBits, 42 );
+        File key = new File( work, "private.pem" );
+        generator.writePrivateKey( key );
+
+        File input = new File( work, "input.eeartifacts" );
+        FileWriter out = new FileWriter( input );
+        int perPrimary = 50;
+        for( int made = 0; made < eeartifacts; )
+        {
+            String[] secondaries = new String[
+                Math.min( perPrimary, eeartifacts - made )];
+            for( int i = 0; i < secondaries.length; i++ )
+            {
+                secondaries[i] = "secondary " + i;
+            }
+            List<JSONObject> eartifacts = generator.eartifacts(
+                    "benchmark", "primary " + made, secondaries, 5 );
+            for( JSONObject eartifact : eartifacts )
+            {
+                out.write( generator.eeartifact( eartifact ) );
+                out.write( "\n" );
+            }
+            made += secondaries.length;
+        }
+        out.close();
+
+        EEArtifactDecryptor decryptor =
+            new EEArtifactDecryptor( key.getPath() );
+        String[] inputs = { input.getPath() };
+
+        // Warm up.
+        File warmup = new File( work, "warmup" );
+        warmup.mkdirs();
+        decryptor.decrptEEArtifactFile( inputs, warmup.getPath(), cores );
+        String expected = digest( warmup );
+
+        System.out.println( cores + " core(s) available" );
+        System.out.println( "threads    lines/sec  speedup  output" );
+        double baseline = 0;
+        for( int t = 0; t < threads.length; t++ )
+        {
+            double best = 0;
+            String outputDigest = null;
+            for( int r = 0; r < runs; r++ )
+            {
+                File output = new File( work, "out-" + threads[t] + "-" + r );
+                output.mkdirs();
+
+                long start = System.nanoTime();
+                long lines = decryptor.decrptEEArtifactFile( inputs,
+                        output.getPath(), threads[t] );
+                double seconds = (System.nanoTime() - start) / 1e9;
+
+                best = Math.max( best, lines / seconds );
+                outputDigest = digest( output );
+                delete( output );
+            }
+            if( t == 0 )
+            {
+                baseline = best;
+            }
+
+            System.out.println( String.format( "%7d %12.0f %8.2f  %s",
+                    threads[t], best, best / baseline,
+                    outputDigest.equals( expected ) ? "same" : "DIFFERENT" ) );
+        }
+
+        delete( work );
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,238 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.EArtifactDecryptor;
+
+/**
+ * Decrypts the same e-artifact files with EArtifactDecryptor in memory and
+ * then with a range of memory budgets small enough to make it spill to
+ * partition files, and with limits on the distinct primary cipher texts
+ * held at once low enough to make it give up on reading into memory (or
+ * split partitions again), and checks that each run writes the same lines
+ * (in any order) and prints the same totals. The e-artifacts are made with
+ * {@link EArtifactGenerator}: primaries whose support falls off as 1/rank,
+ * spread over several files, with a few malformed lines and e-artifacts
+ * missing fields thrown in.
+ *
+ * Reports the time of each run and how many partitions were written and
+ * split again. Exits with status 1 if any run's output differs.
+ */
+public class ExternalAggregationTest
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * Writes the input files.
+     */
+    private static File[] generate( int primaries, int maxSupport, int files,
+            int k ) throws Exception
+    {
+        Random random = new Random( 11 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 11 );
+
+        File[] inputs = new File[files];
+        FileWriter[] outs = new FileWriter[files];
+        for( int i = 0; i < files; i++ )
+        {
+            inputs[i] = File.createTempFile( "external-aggregation", ".in" );
+            inputs[i].deleteOnExit();
+            outs[i] = new FileWriter( inputs[i] );
+        }
+
+        try
+        {
+            for( int rank = 1; rank <= primaries; rank++ )
+            {
+                int support = Math.max( 1, maxSupport / rank );
+                String[] secondaries = new String[support];
+                for( int i = 0; i < support; i++ )
+                {
+                    secondaries[i] = "clicked " + random.nextInt( 5 );
+                }
+                for( JSONObject eartifact : generator.eartifacts( "external",
+                        "query " + rank, secondaries, k ) )
+                {
+                    int r = random.nextInt( 500 );
+                    if( r == 0 )
+                    {
+                        eartifact.remove( "y" );
+                    }
+                    else if( r == 1 )
+                    {
+                        outs[random.nextInt( files )].write( "{not json\n" );
+                    }
+                    outs[random.nextInt( files )].write(
+                            eartifact.toString() + "\n" );
+                }
+            }
+        } finally {
+            for( FileWriter out : outs )
+            {
+                out.close();
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Runs the decryptor and returns its sorted output lines followed by
+     * what it printed.
+     */
+    private static List<String> decrypt( String[] inputs, long budget,
+            int maxCipherTexts ) throws Exception
+    {
+        File output = File.createTempFile( "external-aggregation", ".out" );
+        output.deleteOnExit();
+
+        EArtifactDecryptor decryptor = new EArtifactDecryptor();
+        decryptor.setMemoryBudget( budget,
+                new File( System.getProperty( "java.io.tmpdir" ) ) );
+        decryptor.setMaxCipherTexts( maxCipherTexts );
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut( new PrintStream( printed ) );
+        try
+        {
+            decryptor.decrptEArtifactFile( inputs, output.getPath() );
+        } finally {
+            System.setOut( stdout );
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new FileReader( output ) );
+        try
+        {
+            String line;
+            while( null != (line = reader.readLine()) )
+            {
+                lines.add( line );
+            }
+        } finally {
+            reader.close();
+        }
+        output.delete();
+
+        Collections.sort( lines );
+        lines.add( printed.toString() );
+        return lines;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int primaries = 3000;
+        int maxSupport = 500;
+        int files = 3;
+        int k = 3;
+        long[] budgets = { 1 << 20, 256 << 10, 32 << 10 };
+        int[] limits = { 1000, 100 };
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "ExternalAggregationTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--primaries=X Generate X distinct primaries\n\t" +
+            "--maxSupport=X Give the most popular primary X e-artifacts\n\t" +
+            "--files=X Spread the e-artifacts over X files\n\t" +
+            "--k=X Generate e-artifacts that need X shares\n\t" +
+            "--budgets=X,Y,... Compare runs with budgets of X, Y, ... " +
+                "bytes\n\t" +
+            "--limits=X,Y,... Compare runs holding at most X, Y, ... " +
+                "primaries at once,\n\t\twith no budget and with the " +
+                "first one\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        primaries = options.getInt( "primaries", primaries );
+        maxSupport = options.getInt( "maxSupport", maxSupport );
+        files = options.getInt( "files", files );
+        k = options.getInt( "k", k );
+        budgets = options.getLongs( "budgets", budgets );
+        limits = options.getInts( "limits", limits );
+
+        // The malformed lines are logged as severe.
+        logger.setLevel( Level.OFF );
+
+        File[] inputFiles = generate( primaries, maxSupport, files, k );
+        String[] inputs = new String[files];
+        long inputBytes = 0;
+        for( int i = 0; i < files; i++ )
+        {
+            inputs[i] = inputFiles[i].getPath();
+            inputBytes += inputFiles[i].length();
+        }
+        System.out.println( "Input: " + inputBytes + " bytes in " + files +
+                " files" );
+
+        Counter partitions = Metrics.counter( "decryption.spill.partitions" );
+        Counter resplit = Metrics.counter( "decryption.spill.resplit" );
+        Counter spilled = Metrics.counter( "decryption.spill.bytes" );
+
+        // Warm up.
+        decrypt( inputs, 0, Integer.MAX_VALUE );
+
+        long start = System.nanoTime();
+        List<String> expected = decrypt( inputs, 0, Integer.MAX_VALUE );
+        System.out.println( String.format( "%22s %8.0f ms %6d lines",
+                "in memory", (System.nanoTime() - start) / 1e6,
+                expected.size() - 1 ) );
+
+        // Each budget, then each limit with no budget and the first one.
+        List<long[]> runs = new ArrayList<long[]>();
+        for( long budget : budgets )
+        {
+            runs.add( new long[]{ budget, Integer.MAX_VALUE } );
+        }
+        for( int limit : limits )
+        {
+            runs.add( new long[]{ 0, limit } );
+            if( budgets.length > 0 )
+            {
+                runs.add( new long[]{ budgets[0], limit } );
+            }
+        }
+
+        boolean allSame = true;
+        for( long[] run : runs )
+        {
+            long budget = run[0];
+            int limit = (int) run[1];
+            long partitionsBefore = partitions.getCount();
+            long resplitBefore = resplit.getCount();
+            long spilledBefore = spilled.getCount();
+            start = System.nanoTime();
+            List<String> lines = decrypt( inputs, budget, limit );
+            double ms = (System.nanoTime() - start) / 1e6;
+            boolean same = lines.equals( expected );
+            allSame &= same;
+            String name = (budget > 0 ? budget + " B" : "in memory") +
+                (limit < Integer.MAX_VALUE ? ", " + limit + " max" : "");
+            System.out.println( String.format(
+                    "%22s %8.0f ms %6d partitions %4d split %10d bytes " +
+                    "spilled  %s", name, ms,
+                    partitions.getCount() - partitionsBefore,
+                    resplit.getCount() - resplitBefore,
+                    spilled.getCount() - spilledBefore,
+                    same ? "same" : "DIFFERENT" ) );
+        }
+
+        System.out.println( allSame ? "Outputs match" : "Outputs DIFFER" );
+        System.exit( allSame ? 0 : 1 );
+    }
+}
@@ -0,0 +1,207 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.umass.ciir.crowdlogger.anonymizer.ForwardingClient;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+
+/**
+ * Load tests bundle forwarding against a stub anonymizer running in this
+ * process. Bundles are forwarded by a number of threads, first the old way
+ * (a new DefaultHttpClient per bundle, never released) and then through the
+ * pooled ForwardingClient, and the forwards per second of each is printed
+ * along with the pool metrics.
+ */
+public class ForwardingLoadTest
+{
+    /**
+     * Accepts a bundle and answers like the depot does.
+     */
+    private static class StubAnonymizer implements HttpHandler
+    {
+        public void handle( HttpExchange exchange ) throws IOException
+        {
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[8192];
+            while( in.read( buffer ) >= 0 )
+            {
+                // Just drain it.
+            }
+            in.close();
+
+            byte[] response = "success\n".getBytes( "UTF-8" );
+            exchange.sendResponseHeaders( 200, response.length );
+            OutputStream out = exchange.getResponseBody();
+            out.write( response );
+            out.close();
+        }
+    }
+
+    /**
+     * Something that can forward a bundle.
+     */
+    private interface Forwarder
+    {
+        boolean send( String url, String bundle );
+    }
+
+    /**
+     * What EEArtifactDepot.sendEArtifacts used to do.
+     */
+    private static class UnpooledForwarder implements Forwarder
+    {
+        public boolean send( String url, String bundle )
+        {
+            HttpClient client = new DefaultHttpClient();
+            HttpPost method = new HttpPost( url );
+            List<NameValuePair> params = new ArrayList<NameValuePair>();
+            params.add( new BasicNameValuePair( "eartifacts", bundle ) );
+            try
+            {
+                method.setEntity(
+                        new UrlEncodedFormEntity( params, HTTP.UTF_8 ) );
+                HttpResponse response = client.execute( method );
+                int code = response.getStatusLine().getStatusCode();
+                return code >= 200 && code < 300;
+            } catch( IOException e )
+            {
+                return false;
+            }
+        }
+    }
+
+    private static class PooledForwarder implements Forwarder
+    {
+        public boolean send( String url, String bundle )
+        {
+            return ForwardingClient.getInstance().send( url, bundle );
+        }
+    }
+
+    /**
+     * Forwards the given number of bundles using the given number of
+     * threads.
+     *
+     * @return Forwards per second.
+     */
+    private static double run( final Forwarder forwarder, final String url,
+            final String bundle, int threads, final int forwards )
+        throws InterruptedException
+    {
+        final AtomicInteger remaining = new AtomicInteger( forwards );
+        final AtomicInteger failures = new AtomicInteger( 0 );
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+
+        long start = System.nanoTime();
+        for( int i = 0; i < threads; i++ )
+        {
+            pool.execute( new Runnable() {
+                public void run()
+                {
+                    while( remaining.getAndDecrement() > 0 )
+                    {
+                        if( !forwarder.send( url, bundle ) )
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        while( !pool.awaitTermination( 1, TimeUnit.SECONDS ) )
+        {
+            // Keep waiting.
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if( failures.get() > 0 )
+        {
+            System.out.println( "\t" + failures.get() + " forwards failed" );
+        }
+        return forwards / seconds;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int threads = 8;
+        int forwards = 2000;
+        int bundleSize = 100;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "ForwardingLoadTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--threads=X Forward from X threads\n\t" +
+            "--forwards=X Forward X bundles in total\n\t" +
+            "--bundleSize=X Put X e-artifacts in each bundle\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        threads = options.getInt( "threads", threads );
+        forwards = options.getInt( "forwards", forwards );
+        bundleSize = options.getInt( "bundleSize", bundleSize );
+
+        // Start the stub anonymizer. It writes its headers and body
+        // separately, so without this every reused connection would stall on
+        // Nagle's algorithm waiting for a delayed ACK.
+        System.setProperty( "sun.net.httpserver.nodelay", "true" );
+        HttpServer server = HttpServer.create(
+                new InetSocketAddress( "127.0.0.1", 0 ), 128 );
+        StubAnonymizer stub = new StubAnonymizer();
+        server.createContext( "/crowdlogger/deposit", stub );
+        server.setExecutor( Executors.newFixedThreadPool( threads * 2 ) );
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() +
+            "/crowdlogger/deposit";
+
+        StringBuilder bundle = new StringBuilder();
+        for( int i = 0; i < bundleSize; i++ )
+        {
+            bundle.append( "{\"rsa_protected_key\":\"k" ).append( i )
+                .append( "\",\"encrypted_data\":\"U2FsdGVkX1+abcdefghij\"}\n" );
+        }
+
+        System.out.println( "Forwarding " + forwards + " bundles of " +
+                bundleSize + " e-artifacts from " + threads + " threads to " +
+                url );
+
+        double unpooled = run( new UnpooledForwarder(), url,
+                bundle.toString(), threads, forwards );
+        System.out.println( String.format(
+                "Unpooled (new client per bundle): %10.1f forwards/s",
+                unpooled ) );
+
+        double pooled = run( new PooledForwarder(), url,
+                bundle.toString(), threads, forwards );
+        System.out.println( String.format(
+                "Pooled (ForwardingClient):        %10.1f forwards/s",
+                pooled ) );
+
+        System.out.println( "\nMetrics:\n" + Metrics.report() );
+
+        ForwardingClient.shutdownInstance();
+        server.stop( 0 );
+        System.exit( 0 );
+    }
+}
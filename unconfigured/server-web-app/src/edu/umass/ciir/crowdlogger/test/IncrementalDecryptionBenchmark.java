@@ -0,0 +1,222 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.server.EArtifactDecryptor;
+import edu.umass.ciir.crowdlogger.server.IncrementalEArtifactDecryptor;
+
+/**
+ * Compares how soon decrypted bags come out of EArtifactDecryptor, which
+ * can't write anything until it has read every file, and
+ * IncrementalEArtifactDecryptor, which writes each bag as soon as it has k
+ * shares. The e-artifacts are made with {@link EArtifactGenerator} for
+ * primaries whose support falls off as 1/rank, shuffled into the order
+ * they might arrive in, and split into rotated files the way the master
+ * server writes them; the incremental decryptor flushes after each file,
+ * as it would after each poll.
+ *
+ * Reports the time to the first bag, to half of the bags and to all of
+ * them, and checks that the last line written for each bag by the
+ * incremental decryptor is the line the batch decryptor writes for it.
+ */
+public class IncrementalDecryptionBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * Collects lines as they're written, noting when each was.
+     */
+    private static class TimedWriter extends StringWriter
+    {
+        final long start = System.nanoTime();
+        final List<Long> nanos = new ArrayList<Long>();
+        final List<String> lines = new ArrayList<String>();
+
+        public void write( String line )
+        {
+            nanos.add( System.nanoTime() - start );
+            lines.add( line.trim() );
+        }
+    }
+
+    /**
+     * @return The artifact bag lines of a decryptor's output file, by
+     *      primary private field.
+     */
+    private static HashMap<String, String> bags( List<String> lines )
+        throws Exception
+    {
+        HashMap<String, String> bags = new HashMap<String, String>();
+        for( String line : lines )
+        {
+            if( line.startsWith( "{" ) )
+            {
+                JSONObject json = new JSONObject( line );
+                if( json.has( "primary_private_field" ) )
+                {
+                    bags.put( json.getString( "primary_private_field" ),
+                            line );
+                }
+            }
+        }
+        return bags;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int primaries = 10000;
+        int maxSupport = 2000;
+        int k = 3;
+        int linesPerFile = 5000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "IncrementalDecryptionBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--primaries=X Generate X distinct primaries\n\t" +
+            "--maxSupport=X Give the most popular primary X e-artifacts\n\t" +
+            "--k=X Generate e-artifacts that need X shares\n\t" +
+            "--linesPerFile=X Rotate files every X e-artifacts\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        primaries = options.getInt( "primaries", primaries );
+        maxSupport = options.getInt( "maxSupport", maxSupport );
+        k = options.getInt( "k", k );
+        linesPerFile = options.getInt( "linesPerFile", linesPerFile );
+
+        logger.setLevel( Level.WARNING );
+
+        // Make the e-artifacts and shuffle them into arrival order.
+        Random random = new Random( 3 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 3 );
+        List<String> eartifacts = new ArrayList<String>();
+        for( int rank = 1; rank <= primaries; rank++ )
+        {
+            String[] secondaries =
+                new String[Math.max( 1, maxSupport / rank )];
+            for( int i = 0; i < secondaries.length; i++ )
+            {
+                secondaries[i] = "clicked " + random.nextInt( 5 );
+            }
+            for( JSONObject eartifact : generator.eartifacts( "incremental",
+                    "query " + rank, secondaries, k ) )
+            {
+                eartifacts.add( eartifact.toString() );
+            }
+        }
+        Collections.shuffle( eartifacts, random );
+
+        File directory = File.createTempFile( "incremental-benchmark", "" );
+        directory.delete();
+        directory.mkdirs();
+        List<String> inputs = new ArrayList<String>();
+        for( int i = 0; i < eartifacts.size(); i += linesPerFile )
+        {
+            File file = new File( directory, "eartifacts.17-Oct-2026." +
+                    String.format( "%03d", inputs.size() + 1 ) );
+            file.deleteOnExit();
+            FileWriter out = new FileWriter( file );
+            for( String line : eartifacts.subList( i,
+                    Math.min( eartifacts.size(), i + linesPerFile ) ) )
+            {
+                out.write( line + "\n" );
+            }
+            out.close();
+            inputs.add( file.getPath() );
+        }
+        directory.deleteOnExit();
+        System.out.println( eartifacts.size() + " e-artifacts in " +
+                inputs.size() + " files" );
+
+        // Batch, after a run to warm up.
+        File output = File.createTempFile( "incremental-benchmark", ".out" );
+        output.deleteOnExit();
+        PrintStream stdout = System.out;
+        System.setOut( new PrintStream( new ByteArrayOutputStream() ) );
+        double batchMs = 0;
+        try
+        {
+            for( int run = 0; run < 2; run++ )
+            {
+                long start = System.nanoTime();
+                new EArtifactDecryptor().decrptEArtifactFile(
+                        inputs.toArray( new String[0] ), output.getPath() );
+                batchMs = (System.nanoTime() - start) / 1e6;
+            }
+        } finally {
+            System.setOut( stdout );
+        }
+        List<String> batchLines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader( new FileReader( output ) );
+        String line;
+        while( null != (line = reader.readLine()) )
+        {
+            batchLines.add( line );
+        }
+        reader.close();
+        HashMap<String, String> expected = bags( batchLines );
+
+        // Incremental, a file at a time.
+        TimedWriter written = new TimedWriter();
+        IncrementalEArtifactDecryptor decryptor =
+            new IncrementalEArtifactDecryptor( written );
+        for( String input : inputs )
+        {
+            reader = new BufferedReader( new FileReader( input ) );
+            while( null != (line = reader.readLine()) )
+            {
+                decryptor.addEArtifact( line );
+            }
+            reader.close();
+            decryptor.flush();
+        }
+        decryptor.close();
+        double incrementalMs = (System.nanoTime() - written.start) / 1e6;
+
+        // When each bag was first written.
+        HashMap<String, Long> firstWritten = new HashMap<String, Long>();
+        for( int i = 0; i < written.lines.size(); i++ )
+        {
+            String bag = new JSONObject( written.lines.get( i ) ).getString(
+                    "primary_private_field" );
+            if( !firstWritten.containsKey( bag ) )
+            {
+                firstWritten.put( bag, written.nanos.get( i ) );
+            }
+        }
+        List<Long> times = new ArrayList<Long>( firstWritten.values() );
+        Collections.sort( times );
+
+        HashMap<String, String> last = bags( written.lines );
+        boolean same = last.equals( expected );
+
+        System.out.println( expected.size() + " bags decrypted; " +
+                written.lines.size() + " lines written incrementally" );
+        System.out.println( "                first bag   half of bags" +
+                "    all bags" );
+        System.out.println( String.format( "batch        %10.0f ms %10.0f ms" +
+                " %10.0f ms", batchMs, batchMs, batchMs ) );
+        System.out.println( String.format( "incremental  %10.0f ms %10.0f ms" +
+                " %10.0f ms", times.get( 0 ) / 1e6,
+                times.get( times.size() / 2 ) / 1e6, incrementalMs ) );
+        System.out.println( same ? "Last lines match the batch output" :
+            "Last lines DIFFER from the batch output" );
+        System.exit( same ? 0 : 1 );
+    }
+}
@@ -0,0 +1,103 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.server.BigDecimalInterpolator;
+import edu.umass.ciir.crowdlogger.server.BigDecimalLagrangeInterpolator;
+import edu.umass.ciir.crowdlogger.server.ExactLagrangeInterpolator;
+
+/**
+ * Times recovering a password from k shares with BigDecimalLagrangeInterpolator
+ * and ExactLagrangeInterpolator, for a few values of k. Each recovery
+ * creates a new interpolator, as EArtifactBag does.
+ */
+public class InterpolatorBenchmark
+{
+    private static final int LAGRANGE = 0;
+    private static final int EXACT = 1;
+
+    /**
+     * Recovers each set of shares' intercept and returns the mean time per
+     * recovery, in microseconds.
+     */
+    private static double time( int engine,
+            List<HashMap<BigDecimal, BigDecimal>> shares, int k, int rounds )
+    {
+        long start = System.nanoTime();
+        long checksum = 0;
+        for( int r = 0; r < rounds; r++ )
+        {
+            for( int i = 0; i < shares.size(); i++ )
+            {
+                BigDecimalInterpolator interpolator = engine == EXACT ?
+                    new ExactLagrangeInterpolator( shares.get( i ), k ) :
+                    new BigDecimalLagrangeInterpolator( shares.get( i ), k );
+                checksum += interpolator.evaluateAndRound(
+                        BigDecimal.ZERO ).length();
+            }
+        }
+        if( checksum == 42 )
+        {
+            System.out.print( "" );
+        }
+        return (System.nanoTime() - start) / 1000.0 /
+            (rounds * shares.size());
+    }
+
+    @SuppressWarnings( "unchecked" )
+    public static void main( String[] args ) throws Exception
+    {
+        int[] ks = { 2, 5, 10, 20, 50 };
+        int sets = 200;
+        int rounds = 5;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "InterpolatorBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--ks=X,Y,... Time recoveries from X, Y, ... shares\n\t" +
+            "--sets=X Use X sets of shares for each k\n\t" +
+            "--rounds=X Recover each set X times\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        ks = options.getInts( "ks", ks );
+        sets = options.getInt( "sets", sets );
+        rounds = options.getInt( "rounds", rounds );
+
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        Random random = new Random( 1 );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 1 );
+
+        System.out.println( "Microseconds per recovery" );
+        System.out.println( "    k     BigDecimal          exact  speedup" );
+        for( int k : ks )
+        {
+            List<HashMap<BigDecimal, BigDecimal>> shares =
+                new ArrayList<HashMap<BigDecimal, BigDecimal>>( sets );
+            for( int i = 0; i < sets; i++ )
+            {
+                shares.add( generator.shares( new BigInteger( 256, random ).
+                        mod( EArtifactGenerator.BIG_PRIME ), k, k ) );
+            }
+
+            // Warm up.
+            time( LAGRANGE, shares, k, 1 );
+            time( EXACT, shares, k, 1 );
+
+            double lagrange = time( LAGRANGE, shares, k, rounds );
+            double exact = time( EXACT, shares, k, rounds );
+            System.out.println( String.format( "%5d %14.1f %14.1f %8.2f",
+                    k, lagrange, exact, lagrange / exact ) );
+        }
+
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,118 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.server.BigDecimalLagrangeInterpolator;
+import edu.umass.ciir.crowdlogger.server.ExactLagrangeInterpolator;
+
+/**
+ * Checks ExactLagrangeInterpolator against random shares for k = 2..50:
+ *
+ * <ul>
+ *   <li>the intercept it recovers is the password the shares were made
+ *       from;</li>
+ *   <li>it agrees with BigDecimalLagrangeInterpolator, which picks the same
+ *       k points;</li>
+ *   <li>interpolating over more than k points gives the same intercept;</li>
+ *   <li>evaluating at a share's x gives back its y exactly.</li>
+ * </ul>
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class InterpolatorPropertyTest
+{
+    public static void main( String[] args ) throws Exception
+    {
+        int minK = 2;
+        int maxK = 50;
+        int trials = 20;
+        long seed = 1;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "InterpolatorPropertyTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--minK=X --maxK=Y Check k from X to Y\n\t" +
+            "--trials=X Check X sets of shares for each k\n\t" +
+            "--seed=X Seed the random shares with X\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        minK = options.getInt( "minK", minK );
+        maxK = options.getInt( "maxK", maxK );
+        trials = options.getInt( "trials", trials );
+        seed = options.getLong( "seed", seed );
+
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        Random random = new Random( seed );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, seed );
+        int checks = 0;
+        int failures = 0;
+
+        for( int k = minK; k <= maxK; k++ )
+        {
+            for( int t = 0; t < trials; t++ )
+            {
+                BigInteger password = new BigInteger( 256, random ).mod(
+                        EArtifactGenerator.BIG_PRIME );
+                HashMap<BigDecimal, BigDecimal> shares = generator.shares(
+                        password, k, k + random.nextInt( k + 1 ) );
+                String expected = password.toString();
+
+                String exact = new ExactLagrangeInterpolator( shares, k ).
+                    evaluateAndRound( BigDecimal.ZERO );
+                String old = new BigDecimalLagrangeInterpolator( shares, k ).
+                    evaluateAndRound( BigDecimal.ZERO );
+                String overdetermined = new ExactLagrangeInterpolator(
+                        shares, shares.size() ).evaluateAndRound(
+                                BigDecimal.ZERO );
+
+                checks += 3;
+                if( !exact.equals( expected ) )
+                {
+                    failures++;
+                    System.out.println( "k=" + k + ": exact gave " + exact +
+                            ", expected " + expected );
+                }
+                if( !exact.equals( old ) )
+                {
+                    failures++;
+                    System.out.println( "k=" + k + ": exact gave " + exact +
+                            ", BigDecimal gave " + old );
+                }
+                if( !overdetermined.equals( expected ) )
+                {
+                    failures++;
+                    System.out.println( "k=" + k + ": " + shares.size() +
+                            " points gave " + overdetermined +
+                            ", expected " + expected );
+                }
+
+                ExactLagrangeInterpolator lagrange =
+                    new ExactLagrangeInterpolator( shares, shares.size() );
+                for( Map.Entry<BigDecimal, BigDecimal> share :
+                        shares.entrySet() )
+                {
+                    checks++;
+                    BigDecimal y = lagrange.evaluate( share.getKey() );
+                    if( y.compareTo( share.getValue() ) != 0 )
+                    {
+                        failures++;
+                        System.out.println( "k=" + k + ": f(" +
+                                share.getKey() + ") gave " + y +
+                                ", expected " + share.getValue() );
+                    }
+                }
+            }
+        }
+
+        System.out.println( checks + " checks, " + failures + " failures" );
+        System.exit( failures == 0 ? 0 : 1 );
+    }
+}
@@ -0,0 +1,158 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.umass.ciir.crowdlogger.server.KeyRecovery;
+
+/**
+ * Checks KeyRecovery on bags with some of their shares corrupted, always
+ * including one of the first k (the ones tried first). In half of the
+ * bags, that one is only nudged, which may or may not change the key; the
+ * others are thrown well off. The checks:
+ *
+ * <ul>
+ *   <li>the recovered password is the one the shares were made from;</li>
+ *   <li>the decrypted primary is the one encrypted;</li>
+ *   <li>if the first k didn't do, the shares reported as bad are exactly
+ *       the corrupted ones.</li>
+ * </ul>
+ *
+ * For each bag size it also reports the mean number of subsets tried and
+ * the time per bag. Exits with status 1 if any check fails.
+ */
+public class KeyRecoveryTest
+{
+    public static void main( String[] args ) throws Exception
+    {
+        // k, points, bad shares.
+        int[][] configs = { {3, 5, 2}, {3, 10, 1}, {3, 100, 10},
+                {3, 300, 30}, {4, 500, 50}, {10, 300, 15} };
+        int bags = 20;
+        int budget = KeyRecovery.DEFAULT_BUDGET;
+        long seed = 1;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "KeyRecoveryTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--configs=K:M:B,... Check bags of M shares needing K, B of " +
+                "them bad\n\t" +
+            "--bags=X Check X bags of each kind\n\t" +
+            "--budget=X Try at most X subsets per bag\n\t" +
+            "--seed=X Seed the random shares with X\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        String configList = options.getString( "configs", null );
+        if( null != configList )
+        {
+            String[] parts = configList.split( "," );
+            configs = new int[parts.length][];
+            for( int j = 0; j < parts.length; j++ )
+            {
+                String[] fields = parts[j].split( ":" );
+                configs[j] = new int[]{ Integer.parseInt( fields[0] ),
+                        Integer.parseInt( fields[1] ),
+                        Integer.parseInt( fields[2] ) };
+            }
+        }
+        bags = options.getInt( "bags", bags );
+        budget = options.getInt( "budget", budget );
+        seed = options.getLong( "seed", seed );
+
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" ).setLevel(
+                Level.WARNING );
+
+        Random random = new Random( seed );
+        EArtifactGenerator generator = new EArtifactGenerator( 512, seed );
+        KeyRecovery recovery = new KeyRecovery( budget, null );
+        int failures = 0;
+
+        System.out.println( "    k  points    bad  recovered  attempts" +
+                "   ms/bag" );
+        for( int[] config : configs )
+        {
+            int k = config[0];
+            int m = config[1];
+            int b = config[2];
+            int recovered = 0;
+            long attempts = 0;
+            long nanos = 0;
+
+            for( int bag = 0; bag < bags; bag++ )
+            {
+                BigInteger password = new BigInteger( 256, random ).mod(
+                        EArtifactGenerator.BIG_PRIME );
+                String primary = "primary " + bag;
+                String primaryCipherText = EArtifactGenerator.encryptAES256(
+                        password.toString(), primary, EArtifactGenerator.SALT );
+                HashMap<BigDecimal, BigDecimal> points =
+                    generator.shares( password, k, m );
+
+                // Corrupt one of the first k and b-1 others.
+                List<BigDecimal> xs = new ArrayList<BigDecimal>(
+                        points.keySet() );
+                List<BigDecimal> bad = new ArrayList<BigDecimal>();
+                bad.add( xs.remove( random.nextInt( k ) ) );
+                Collections.shuffle( xs, random );
+                bad.addAll( xs.subList( 0, b - 1 ) );
+                // In every other bag, the first is only nudged, which can
+                // leave the rounded key as it is; the rest are thrown well
+                // off.
+                int nudged = bag % 2;
+                if( nudged == 1 )
+                {
+                    points.put( bad.get( 0 ), points.get( bad.get( 0 ) ).add(
+                            new BigDecimal( "0.001" ) ) );
+                }
+                for( BigDecimal x : bad.subList( nudged, b ) )
+                {
+                    points.put( x, points.get( x ).add( new BigDecimal(
+                            new BigInteger( 64, random ).add( BigInteger.ONE ),
+                            random.nextInt( 3 ) ) ) );
+                }
+                Collections.sort( bad );
+
+                long start = System.nanoTime();
+                KeyRecovery.Result result = recovery.recover(
+                        points, k, primaryCipherText );
+                nanos += System.nanoTime() - start;
+                attempts += result.getAttempts();
+
+                if( !result.isRecovered() )
+                {
+                    continue;
+                }
+                recovered++;
+
+                // Nothing's reported if the first k were good enough.
+                List<BigDecimal> expected = result.getAttempts() == 1 ?
+                    Collections.<BigDecimal>emptyList() : bad;
+                if( !result.getKey().equals( password.toString() ) ||
+                        !result.getPrimaryPrivateField().equals( primary ) ||
+                        !result.getBadShares().equals( expected ) )
+                {
+                    failures++;
+                    System.out.println( "FAILED: k=" + k + ", points=" + m +
+                            ", bad=" + bad + ", reported " +
+                            result.getBadShares() );
+                }
+            }
+
+            // Running out of budget isn't a failure, just a short count.
+            System.out.println( String.format( "%5d %7d %6d %6d/%-4d %9.1f %8.2f",
+                    k, m, b, recovered, bags, (double) attempts / bags,
+                    nanos / 1e6 / bags ) );
+        }
+
+        System.out.println( failures == 0 ? "All checks passed" :
+            failures + " failures" );
+        System.exit( failures == 0 ? 0 : 1 );
+    }
+}
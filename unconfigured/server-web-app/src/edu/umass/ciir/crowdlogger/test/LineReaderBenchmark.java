@@ -0,0 +1,316 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.io.MappedLineReader;
+
+/**
+ * Measures how fast the lines of an e-artifact file are read: with Scanner
+ * (as EArtifactDecryptor did, ending on NoSuchElementException), with
+ * BufferedReader, and with MappedLineReader, both as Strings and as byte
+ * slices, and as slices with the file split between several readers on
+ * their own threads. The file is made of e-artifacts from
+ * {@link EArtifactGenerator}, repeated up to the size asked for, with some
+ * lines ending in "\r\n", some blank, some not ASCII, and the last without
+ * a new line. The file is read once before timing, so it's in the page
+ * cache for every method.
+ *
+ * Before timing, MappedLineReader's lines are checked against
+ * BufferedReader's, whole and split into 1 to 7 ranges, with windows
+ * small enough that lines run across them. Exits with status 1 if any
+ * differ.
+ */
+public class LineReaderBenchmark
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * Writes the file.
+     */
+    private static void generate( File file, long bytes ) throws Exception
+    {
+        EArtifactGenerator generator = new EArtifactGenerator( 512, 22 );
+        List<String> lines = new ArrayList<String>();
+        for( int i = 0; lines.size() < 2000; i++ )
+        {
+            for( JSONObject eartifact : generator.eartifacts( "exp",
+                    "query " + i, new String[] { "a", "b", "c" }, 3 ) )
+            {
+                lines.add( eartifact.toString() );
+            }
+        }
+        lines.set( 10, lines.get( 10 ) + "\r" );
+        lines.set( 11, "" );
+        lines.set( 12, "{\"note\":\"caf\u00e9 r\u00e9sum\u00e9\"}" );
+
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream( file ), 64 * 1024 );
+        try
+        {
+            long written = 0;
+            for( int i = 0; written < bytes; i++ )
+            {
+                byte[] line = lines.get( i % lines.size() ).getBytes( "UTF-8" );
+                out.write( line );
+                written += line.length;
+                if( written < bytes )
+                {
+                    out.write( '\n' );
+                    written++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return The file's lines, read with BufferedReader.
+     */
+    private static List<String> readAll( File file ) throws Exception
+    {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader( new InputStreamReader(
+                new FileInputStream( file ), "UTF-8" ), 64 * 1024 );
+        try
+        {
+            String line;
+            while( null != (line = in.readLine()) )
+            {
+                lines.add( line );
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * @return The lines in a range of the file, read with MappedLineReader.
+     */
+    private static List<String> readRange( File file, long start, long end )
+        throws Exception
+    {
+        List<String> lines = new ArrayList<String>();
+        MappedLineReader reader = new MappedLineReader( file, start, end );
+        try
+        {
+            String line;
+            while( null != (line = reader.nextLine()) )
+            {
+                lines.add( line );
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Reads the lines of a range as slices.
+     *
+     * @return The number of lines and bytes.
+     */
+    private static long[] readSlices( File file, long start, long end )
+        throws Exception
+    {
+        long[] counts = new long[2];
+        MappedLineReader reader = new MappedLineReader( file, start, end );
+        try
+        {
+            ByteBuffer line;
+            while( null != (line = reader.next()) )
+            {
+                counts[0]++;
+                counts[1] += line.remaining();
+            }
+        } finally {
+            reader.close();
+        }
+        return counts;
+    }
+
+    /**
+     * Reads the file one way.
+     *
+     * @return The number of lines and bytes (characters, for Strings).
+     */
+    private static long[] read( int method, final File file,
+            ExecutorService pool, int threads ) throws Exception
+    {
+        long[] counts = new long[2];
+        if( method == 0 )
+        {
+            Scanner scanner = new Scanner( file, "UTF-8" );
+            try
+            {
+                String line;
+                while( (line = scanner.nextLine()) != null )
+                {
+                    counts[0]++;
+                    counts[1] += line.length();
+                }
+            } catch( NoSuchElementException e ) {
+                // The end of the file.
+            } finally {
+                scanner.close();
+            }
+        }
+        else if( method == 1 )
+        {
+            BufferedReader in = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( file ), "UTF-8" ), 64 * 1024 );
+            try
+            {
+                String line;
+                while( null != (line = in.readLine()) )
+                {
+                    counts[0]++;
+                    counts[1] += line.length();
+                }
+            } finally {
+                in.close();
+            }
+        }
+        else if( method == 2 )
+        {
+            MappedLineReader reader = new MappedLineReader( file );
+            try
+            {
+                String line;
+                while( null != (line = reader.nextLine()) )
+                {
+                    counts[0]++;
+                    counts[1] += line.length();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        else if( method == 3 )
+        {
+            counts = readSlices( file, 0, Long.MAX_VALUE );
+        }
+        else
+        {
+            final long[] boundaries = MappedLineReader.split( file, threads );
+            List<Future<long[]>> parts = new ArrayList<Future<long[]>>();
+            for( int i = 0; i < threads; i++ )
+            {
+                final int part = i;
+                parts.add( pool.submit( new Callable<long[]>() {
+                    public long[] call() throws Exception
+                    {
+                        return readSlices( file, boundaries[part],
+                                boundaries[part + 1] );
+                    }
+                } ) );
+            }
+            for( Future<long[]> part : parts )
+            {
+                counts[0] += part.get()[0];
+                counts[1] += part.get()[1];
+            }
+        }
+        return counts;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        long megabytes = 200;
+        int threads = 4;
+        int runs = 3;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "LineReaderBenchmark [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--megabytes=X Read a file of X MB\n\t" +
+            "--threads=X Split the file between X readers\n\t" +
+            "--runs=X Time each method X times and keep the best\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        megabytes = options.getLong( "megabytes", megabytes );
+        threads = options.getInt( "threads", threads );
+        runs = options.getInt( "runs", runs );
+        logger.setLevel( Level.WARNING );
+
+        File file = File.createTempFile( "line-reader-benchmark", ".json" );
+        file.deleteOnExit();
+        generate( file, megabytes << 20 );
+
+        // Check the lines, with windows of 1 MB so lines cross them.
+        List<String> expected = readAll( file );
+        System.setProperty( MappedLineReader.WINDOW_PROPERTY, "1" );
+        boolean same = true;
+        for( int parts = 1; parts <= 7; parts++ )
+        {
+            long[] boundaries = MappedLineReader.split( file, parts );
+            List<String> lines = new ArrayList<String>();
+            for( int i = 0; i < parts; i++ )
+            {
+                lines.addAll( readRange( file, boundaries[i],
+                        boundaries[i + 1] ) );
+            }
+            same &= lines.equals( expected );
+        }
+        System.clearProperty( MappedLineReader.WINDOW_PROPERTY );
+        long lines = expected.size();
+        expected = null;
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        String[] names = { "Scanner", "BufferedReader", "mapped Strings",
+            "mapped slices", "mapped x" + threads };
+        double baseline = 0;
+        System.out.println( megabytes + " MB, " + lines + " lines, " +
+                Runtime.getRuntime().availableProcessors() + " cores" );
+        System.out.println( "method               MB/s   lines/s  speedup" );
+        for( int method = 0; method < names.length; method++ )
+        {
+            double best = Double.MAX_VALUE;
+            // The first run warms up (and reads the file into the cache).
+            for( int r = 0; r <= runs; r++ )
+            {
+                long start = System.nanoTime();
+                long[] counts = read( method, file, pool, threads );
+                double seconds = (System.nanoTime() - start) / 1e9;
+                same &= counts[0] == lines;
+                if( r > 0 )
+                {
+                    best = Math.min( best, seconds );
+                }
+            }
+            if( method == 0 )
+            {
+                baseline = best;
+            }
+            System.out.println( String.format( "%-16s %8.1f %9.0f %8.2f",
+                    names[method], megabytes / best, lines / best,
+                    baseline / best ) );
+        }
+        pool.shutdown();
+
+        System.out.println( same ? "Results match" : "Results DIFFER" );
+        System.exit( same ? 0 : 1 );
+    }
+}
@@ -0,0 +1,177 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.umass.ciir.crowdlogger.server.OrderedParallelProcessor;
+
+/**
+ * Checks OrderedParallelProcessor:
+ *
+ * <ul>
+ *   <li>the outputs reach the sink in input order;</li>
+ *   <li>a source, worker or sink that throws makes run() throw, and no
+ *       writer thread is left running afterwards.</li>
+ * </ul>
+ *
+ * Exits with status 1 if any check fails.
+ */
+public class OrderedParallelProcessorTest
+{
+    private static final String NAME = "processor-test";
+
+    private static int checks = 0;
+    private static int failures = 0;
+
+    /**
+     * Counts up from 0 to one less than the given count, throwing an
+     * IOException on the given call instead (if it's positive).
+     */
+    private static OrderedParallelProcessor.Source<Integer> source(
+            final int count, final int throwOn )
+    {
+        return new OrderedParallelProcessor.Source<Integer>() {
+            private int calls = 0;
+
+            public Integer next() throws IOException
+            {
+                calls++;
+                if( calls == throwOn )
+                {
+                    throw new IOException( "disk" );
+                }
+                return calls <= count ? calls - 1 : null;
+            }
+        };
+    }
+
+    /**
+     * Doubles each input, throwing on the given one (if it's not -1).
+     */
+    private static OrderedParallelProcessor.Worker<Integer, Integer> doubler(
+            final int throwOn )
+    {
+        return new OrderedParallelProcessor.Worker<Integer, Integer>() {
+            public Integer process( Integer input )
+            {
+                if( input == throwOn )
+                {
+                    throw new IllegalStateException( "worker" );
+                }
+                return input * 2;
+            }
+        };
+    }
+
+    /**
+     * Collects the outputs, throwing on the given one (if it's not -1).
+     */
+    private static OrderedParallelProcessor.Sink<Integer> collector(
+            final List<Integer> outputs, final int throwOn )
+    {
+        return new OrderedParallelProcessor.Sink<Integer>() {
+            public void write( Integer output )
+            {
+                if( output == throwOn )
+                {
+                    throw new StringIndexOutOfBoundsException( 35 );
+                }
+                outputs.add( output );
+            }
+        };
+    }
+
+    private static void check( String what, boolean passed )
+    {
+        checks++;
+        if( !passed )
+        {
+            failures++;
+            System.out.println( "FAILED: " + what );
+        }
+    }
+
+    /**
+     * @return Whether any of the processor's writer threads is still alive.
+     */
+    private static boolean writerAlive()
+    {
+        for( Thread thread : Thread.getAllStackTraces().keySet() )
+        {
+            if( thread.getName().startsWith( NAME + "-writer" ) &&
+                    thread.isAlive() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the processor and checks that it throws the given kind of
+     * exception and leaves no writer behind.
+     */
+    private static void checkThrows( String what,
+            OrderedParallelProcessor.Source<Integer> source,
+            OrderedParallelProcessor.Worker<Integer, Integer> worker,
+            OrderedParallelProcessor.Sink<Integer> sink,
+            Class<? extends Throwable> expected )
+    {
+        Throwable thrown = null;
+        try
+        {
+            new OrderedParallelProcessor<Integer, Integer>( NAME, 4, 10 ).run(
+                    source, worker, sink );
+        } catch( Throwable e )
+        {
+            thrown = e;
+        }
+        check( what + " throws " + expected.getSimpleName() + " (got " +
+                thrown + ")", expected.isInstance( thrown ) );
+        check( what + " leaves no writer running", !writerAlive() );
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int inputs = 100000;
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "OrderedParallelProcessorTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--inputs=X Process X inputs\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        inputs = options.getInt( "inputs", inputs );
+
+        // In order.
+        List<Integer> outputs = new ArrayList<Integer>( inputs );
+        long read = new OrderedParallelProcessor<Integer, Integer>( NAME, 4,
+                10 ).run( source( inputs, -1 ), doubler( -1 ),
+                        collector( outputs, -1 ) );
+        boolean ordered = read == inputs && outputs.size() == inputs;
+        for( int i = 0; ordered && i < inputs; i++ )
+        {
+            ordered = outputs.get( i ) == i * 2;
+        }
+        check( "outputs are in input order", ordered );
+        check( "a finished run leaves no writer running", !writerAlive() );
+
+        // Failures, early and late.
+        checkThrows( "a source failing on its 11th call", source( inputs, 11 ),
+                doubler( -1 ), collector( new ArrayList<Integer>(), -1 ),
+                IOException.class );
+        checkThrows( "a source failing late", source( inputs, inputs / 2 ),
+                doubler( -1 ), collector( new ArrayList<Integer>(), -1 ),
+                IOException.class );
+        checkThrows( "a failing worker", source( inputs, -1 ),
+                doubler( 500 ), collector( new ArrayList<Integer>(), -1 ),
+                IOException.class );
+        checkThrows( "a failing sink", source( inputs, -1 ), doubler( -1 ),
+                collector( new ArrayList<Integer>(), 1000 ),
+                StringIndexOutOfBoundsException.class );
+
+        System.out.println( checks + " checks, " + failures + " failures" );
+        System.exit( failures == 0 ? 0 : 1 );
+    }
+}
@@ -0,0 +1,426 @@
+package edu.umass.ciir.crowdlogger.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONObject;
+
+import edu.umass.ciir.crowdlogger.metrics.Counter;
+import edu.umass.ciir.crowdlogger.metrics.Metrics;
+import edu.umass.ciir.crowdlogger.server.DecryptionPipeline;
+import edu.umass.ciir.crowdlogger.server.EArtifactWriter;
+import edu.umass.ciir.crowdlogger.server.EEArtifactDecryptor;
+
+/**
+ * Checks that a DecryptionPipeline that's killed part way through picks up
+ * where its last checkpoint left it and ends up with the same output as
+ * one that wasn't. The input, made with {@link EArtifactGenerator} and a
+ * fresh RSA key, is a few ee-artifact files for two jobs.
+ *
+ * The pipeline is run straight through in one working directory, then
+ * started in another in a separate JVM (with small write buffers, so
+ * e-artifacts past the checkpoint reach the disk) and killed once it's
+ * checkpointed past half of the input and is part way to its next
+ * checkpoint. It's then run again in that directory. The e-artifact files
+ * of the two directories should be byte for byte the same, their .clog
+ * files should have the same lines, and the resumed run should read only
+ * the lines after the checkpoint. The time the resumed run takes is shown
+ * next to the time of the whole run, as is that of running once more
+ * after it's finished, which should read nothing. Exits with status 1 if
+ * anything's wrong.
+ */
+public class PipelineRecoveryTest
+{
+    // Held so the level set on it sticks.
+    private static final Logger logger =
+        Logger.getLogger( "edu.umass.ciir.crowdlogger" );
+
+    /**
+     * @return The lines of every file in a directory with the given suffix,
+     *      sorted, each after its file's name.
+     */
+    private static List<String> lines( File directory, String suffix )
+        throws IOException
+    {
+        List<String> lines = new ArrayList<String>();
+        File[] files = directory.listFiles();
+        Arrays.sort( files );
+        for( File file : files )
+        {
+            if( !file.getName().endsWith( suffix ) )
+            {
+                continue;
+            }
+            BufferedReader in = new BufferedReader( new FileReader( file ) );
+            try
+            {
+                String line;
+                while( null != (line = in.readLine()) )
+                {
+                    lines.add( file.getName() + " " + line );
+                }
+            } finally {
+                in.close();
+            }
+        }
+        Collections.sort( lines );
+        return lines;
+    }
+
+    /**
+     * @return Whether two directories' e-artifact files have the same names
+     *      and bytes.
+     */
+    private static boolean sameFiles( File a, File b ) throws IOException
+    {
+        String[] names = a.list();
+        String[] others = b.list();
+        Arrays.sort( names );
+        Arrays.sort( others );
+        if( !Arrays.equals( names, others ) )
+        {
+            return false;
+        }
+        for( String name : names )
+        {
+            if( !Arrays.equals( read( new File( a, name ) ),
+                    read( new File( b, name ) ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] read( File file ) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile( file, "r" );
+        try
+        {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully( bytes );
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return The number of lines in a file from an offset on.
+     */
+    private static long linesFrom( File file, long offset ) throws IOException
+    {
+        byte[] bytes = read( file );
+        long lines = 0;
+        for( int i = (int) offset; i < bytes.length; i++ )
+        {
+            if( bytes[i] == '\n' )
+            {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return The checkpointed offset of each input (by canonical path), or
+     *      <code>null</code> if there's no whole checkpoint yet.
+     */
+    private static JSONObject offsets( File checkpoint )
+    {
+        try
+        {
+            return new JSONObject( new String( read( checkpoint ), "UTF-8" ) )
+                .getJSONObject( "inputs" );
+        } catch( Exception e ) {
+            return null;
+        }
+    }
+
+    private static long sum( JSONObject offsets ) throws Exception
+    {
+        long sum = 0;
+        for( Iterator<?> i = offsets.keys(); i.hasNext(); )
+        {
+            sum += offsets.getLong( (String) i.next() );
+        }
+        return sum;
+    }
+
+    /**
+     * @return Whether an input's offset is somewhere in the middle of it.
+     */
+    private static boolean partWay( JSONObject offsets ) throws Exception
+    {
+        for( Iterator<?> i = offsets.keys(); i.hasNext(); )
+        {
+            String input = (String) i.next();
+            long offset = offsets.getLong( input );
+            if( offset > 0 && offset < new File( input ).length() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads everything a process prints, so it doesn't block.
+     */
+    private static void drain( final InputStream in )
+    {
+        Thread thread = new Thread() {
+            public void run()
+            {
+                byte[] buffer = new byte[8192];
+                try
+                {
+                    while( in.read( buffer ) >= 0 )
+                    {
+                    }
+                } catch( IOException e ) {
+                }
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( null != children )
+        {
+            for( File child : children )
+            {
+                delete( child );
+            }
+        }
+        file.delete();
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int eeartifacts = 8000;
+        int files = 4;
+        int rsaBits = 1024;
+        int checkpointLines = 500;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        String usage = "Usage: java edu.umass.ciir.crowdlogger.test." +
+            "PipelineRecoveryTest [options]\n\nOptions:\n\t" +
+            "--help  Print this message and exit\n\t" +
+            "--eeartifacts=X Decrypt X ee-artifacts\n\t" +
+            "--files=X Spread them over X input files\n\t" +
+            "--rsaBits=X Use an X bit RSA key\n\t" +
+            "--checkpoint-lines=X Checkpoint every X lines\n";
+
+        BenchmarkOptions options = new BenchmarkOptions( usage, args );
+        eeartifacts = options.getInt( "eeartifacts", eeartifacts );
+        files = options.getInt( "files", files );
+        rsaBits = options.getInt( "rsaBits", rsaBits );
+        checkpointLines = options.getInt( "checkpoint-lines", checkpointLines );
+        // The decryptors and writer log every file at INFO.
+        Logger.getLogger( "" ).setLevel( Level.WARNING );
+        logger.setLevel( Level.WARNING );
+
+        File work = File.createTempFile( "pipeline-recovery", "" );
+        work.delete();
+        work.mkdirs();
+
+        // Make the input: two jobs, a few hundred primaries each.
+        System.out.println( "Generating " + eeartifacts + " ee-artifacts " +
+                "in " + files + " files with a " + rsaBits + " bit key..." );
+        EArtifactGenerator generator = new EArtifactGenerator( rsaBits, 42 );
+        File key = new File( work, "private.pem" );
+        generator.writePrivateKey( key );
+
+        String[] inputs = new String[files];
+        FileWriter[] outs = new FileWriter[files];
+        for( int i = 0; i < files; i++ )
+        {
+            inputs[i] = new File( work, "eartifacts.2011-04-21." +
+                    String.format( "%03d", i ) ).getPath();
+            outs[i] = new FileWriter( inputs[i] );
+        }
+        int perPrimary = 10;
+        int line = 0;
+        for( int made = 0; made < eeartifacts; )
+        {
+            String[] secondaries = new String[
+                Math.min( perPrimary, eeartifacts - made )];
+            for( int i = 0; i < secondaries.length; i++ )
+            {
+                secondaries[i] = "secondary " + i;
+            }
+            List<JSONObject> eartifacts = generator.eartifacts(
+                    made % 3 == 0 ? "job-a" : "job.b", "primary " + made,
+                    secondaries, 3 );
+            for( JSONObject eartifact : eartifacts )
+            {
+                // Each file holds a run of the lines, as the server's do.
+                FileWriter out = outs[line++ * files / eeartifacts];
+                out.write( generator.eeartifact( eartifact ) );
+                out.write( "\n" );
+            }
+            made += secondaries.length;
+        }
+        long inputBytes = 0;
+        for( int i = 0; i < files; i++ )
+        {
+            outs[i].close();
+            inputBytes += new File( inputs[i] ).length();
+        }
+
+        Counter read = Metrics.counter( "decryption.eeartifacts.read" );
+        Counter discarded = Metrics.counter( "pipeline.bytes_discarded" );
+        boolean ok = true;
+
+        // Straight through.
+        File straight = new File( work, "straight" );
+        DecryptionPipeline pipeline = new DecryptionPipeline(
+                new EEArtifactDecryptor( key.getPath() ), straight.getPath() );
+        pipeline.setThreads( threads );
+        pipeline.setCheckpointInterval( checkpointLines, 3600 );
+        long start = System.nanoTime();
+        pipeline.run( inputs );
+        double fullSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Killed part way through.
+        File resumed = new File( work, "resumed" );
+        File checkpoint = new File( resumed, "checkpoint.json" );
+        List<String> command = new ArrayList<String>();
+        command.add( new File( new File( System.getProperty( "java.home" ),
+                "bin" ), "java" ).getPath() );
+        command.add( "-cp" );
+        command.add( System.getProperty( "java.class.path" ) );
+        command.add( "-D" + EArtifactWriter.BUFFER_SIZE_PROPERTY + "=1" );
+        command.add( DecryptionPipeline.class.getName() );
+        command.add( "--threads=" + threads );
+        command.add( "--checkpoint-lines=" + checkpointLines );
+        command.add( "--checkpoint-seconds=3600" );
+        command.add( key.getPath() );
+        command.add( resumed.getPath() );
+        command.addAll( Arrays.asList( inputs ) );
+        Process child = new ProcessBuilder( command )
+            .redirectErrorStream( true ).start();
+        drain( child.getInputStream() );
+
+        // Wait for a checkpoint past half way and part way through a file,
+        // then for half the time between checkpoints, so the kill falls
+        // between two.
+        long lastOffset = -1;
+        long lastChange = System.nanoTime();
+        long between = 0;
+        boolean finished = false;
+        while( true )
+        {
+            try
+            {
+                child.exitValue();
+                finished = true;
+                break;
+            } catch( IllegalThreadStateException e ) {
+            }
+            JSONObject offsets = offsets( checkpoint );
+            long offset = null == offsets ? -1 : sum( offsets );
+            if( offset != lastOffset )
+            {
+                long now = System.nanoTime();
+                if( lastOffset > 0 )
+                {
+                    between = now - lastChange;
+                }
+                lastOffset = offset;
+                lastChange = now;
+                if( between > 0 && offset > inputBytes / 2 &&
+                        partWay( offsets ) )
+                {
+                    Thread.sleep( between / 2000000 );
+                    break;
+                }
+            }
+            Thread.sleep( 10 );
+        }
+        child.destroy();
+        child.waitFor();
+        if( finished )
+        {
+            System.out.println( "The pipeline finished before it could be " +
+                    "killed; try more ee-artifacts." );
+            ok = false;
+        }
+
+        // What the resumed run should read.
+        JSONObject offsets = offsets( checkpoint );
+        long expectedLines = 0;
+        for( String input : inputs )
+        {
+            String path = new File( input ).getCanonicalPath();
+            expectedLines += linesFrom( new File( input ),
+                    offsets.has( path ) ? offsets.getLong( path ) : 0 );
+        }
+        System.out.println( String.format( "Killed at byte %,d of %,d " +
+                "checkpointed; %,d lines left", sum( offsets ), inputBytes,
+                expectedLines ) );
+        long discardedBefore = discarded.getCount();
+
+        pipeline = new DecryptionPipeline(
+                new EEArtifactDecryptor( key.getPath() ), resumed.getPath() );
+        pipeline.setThreads( threads );
+        pipeline.setCheckpointInterval( checkpointLines, 3600 );
+        long before = read.getCount();
+        start = System.nanoTime();
+        pipeline.run( inputs );
+        double resumeSeconds = (System.nanoTime() - start) / 1e9;
+        long resumedLines = read.getCount() - before;
+        System.out.println( String.format( "%,d bytes written after the " +
+                "checkpoint discarded", discarded.getCount() -
+                discardedBefore ) );
+
+        // And once it's done.
+        before = read.getCount();
+        start = System.nanoTime();
+        pipeline.run( inputs );
+        double rerunSeconds = (System.nanoTime() - start) / 1e9;
+        long rerunLines = read.getCount() - before;
+
+        boolean sameEArtifacts = sameFiles(
+                new File( straight, "eartifactFiles" ),
+                new File( resumed, "eartifactFiles" ) );
+        List<String> clogs = lines( straight, ".clog" );
+        boolean sameClogs = !clogs.isEmpty() &&
+            clogs.equals( lines( resumed, ".clog" ) );
+        ok &= sameEArtifacts && sameClogs && resumedLines == expectedLines &&
+            rerunLines == 0;
+
+        System.out.println( "run            seconds  lines read" );
+        System.out.println( String.format( "%-12s %9.2f %11d", "straight",
+                fullSeconds, eeartifacts ) );
+        System.out.println( String.format( "%-12s %9.2f %11d", "resumed",
+                resumeSeconds, resumedLines ) );
+        System.out.println( String.format( "%-12s %9.2f %11d", "finished",
+                rerunSeconds, rerunLines ) );
+        System.out.println( "e-artifact files: " +
+                (sameEArtifacts ? "same" : "DIFFERENT") + ", .clog lines: " +
+                (sameClogs ? "same" : "DIFFERENT") + " (" + clogs.size() +
+                ")" );
+
+        delete( work );
+        System.out.println( ok ? "Results match" : "Results DIFFER" );
+        System.exit( ok ? 0 : 1 );
+    }
+}